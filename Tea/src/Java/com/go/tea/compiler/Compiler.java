@@ -97,6 +97,8 @@ public abstract class Compiler {
     private boolean mGenerateCode = true;
     private boolean mExceptionGuardian = false;
 
+    private int mWorkerCount = 1;
+
     private ClassLoader mClassLoader;
 
     private MessageFormatter mFormatter;
@@ -202,6 +204,40 @@ public abstract class Compiler {
         return mExceptionGuardian;
     }
 
+    /**
+     * Sets the number of threads used to compile templates. When greater
+     * than one, all the requested templates and the templates they call are
+     * first parsed concurrently. Called templates are then type checked and
+     * code generated before their callers, and templates that call each
+     * other are checked together by one thread, in name order. Independent
+     * templates are compiled concurrently.
+     *
+     * <p>Error and status events are still dispatched by the thread calling
+     * compile, in the order the templates were requested. Errors reported
+     * against templates that were only compiled because they are called are
+     * dispatched last, in name order. Unlike the serial mode, a
+     * CompilationUnit only counts its own errors, and not also the errors of
+     * templates it called that happened to be compiled on its behalf.
+     *
+     * @param count number of compiler threads, 1 by default.
+     */
+    public void setWorkerCount(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException
+                ("Worker count must be at least one: " + count);
+        }
+        mWorkerCount = count;
+    }
+
+    /**
+     * Returns the number of threads used to compile templates. The default
+     * setting is 1, which compiles templates one at a time in the calling
+     * thread.
+     */
+    public int getWorkerCount() {
+        return mWorkerCount;
+    }
+
     /**
      * Sets the ClassLoader to use to load classes with. If set to null,
      * then classes are loaded using Class.forName.
@@ -290,24 +326,30 @@ public abstract class Compiler {
      */
     public String[] compile(String[] names) throws IOException {
         synchronized (mParseTreeMap) {
-            for (int i=0; i<names.length; i++) {
-                if(Thread.interrupted()) {
-                    break;
-                }
-                dispatchCompileStatus(new StatusEvent(this, i, names.length, 
-                                                      names[i]));
-                CompilationUnit unit = getCompilationUnit(names[i], null);
-                if (unit == null) {
-                    String msg = mFormatter.format("not.found", names[i]);
-                    dispatchCompileError
-                        (new ErrorEvent(this, msg, (SourceInfo)null, null));
-                }
-                else if (!mCompiled.contains(names[i]) &&
-                         unit.shouldCompile()) {
-                    mParseTreeMap.remove(names[i]);
-                    getParseTree(unit);
+            if (mWorkerCount > 1) {
+                new Build(mWorkerCount).compile(names);
+            }
+            else {
+                for (int i=0; i<names.length; i++) {
+                    if(Thread.interrupted()) {
+                        break;
+                    }
+                    dispatchCompileStatus
+                        (new StatusEvent(this, i, names.length, names[i]));
+                    CompilationUnit unit = getCompilationUnit(names[i], null);
+                    if (unit == null) {
+                        String msg =
+                            mFormatter.format("not.found", names[i]);
+                        dispatchCompileError(new ErrorEvent
+                            (this, msg, (SourceInfo)null, null));
+                    }
+                    else if (!mCompiled.contains(names[i]) &&
+                             unit.shouldCompile()) {
+                        mParseTreeMap.remove(names[i]);
+                        getParseTree(unit);
+                    }
                 }
-            }       
+            }
         }
     
         names = new String[mCompiled.size()];
@@ -340,15 +382,17 @@ public abstract class Compiler {
             return null;
         }
 
-        CompilationUnit unit = (CompilationUnit)mCompilationUnitMap.get(name);
-        if (unit == null) {
-            unit = createCompilationUnit(name);
-            if (unit != null) {
-                mCompilationUnitMap.put(name, unit);
+        synchronized (mCompilationUnitMap) {
+            CompilationUnit unit =
+                (CompilationUnit)mCompilationUnitMap.get(name);
+            if (unit == null) {
+                unit = createCompilationUnit(name);
+                if (unit != null) {
+                    mCompilationUnitMap.put(name, unit);
+                }
             }
+            return unit;
         }
-
-        return unit;
     }
 
     /**
@@ -557,12 +601,29 @@ public abstract class Compiler {
         return new JavaClassGenerator(unit);
     }
 
+    /**
+     * Called after code has been generated for a CompilationUnit, while its
+     * full parse tree is still available. When the worker count is more than
+     * one, this method may be called by several threads at once. Default
+     * implementation does nothing.
+     *
+     * @param unit the CompilationUnit just compiled
+     * @param tree its optimized parse tree
+     */
+    protected void compiled(CompilationUnit unit, Template tree) {
+    }
+
     /**
      * Called by the Compiler or by a CompilationUnit when its parse tree is 
      * requested. Requesting a parse tree may cause template code to be
      * generated.
      */
     Template getParseTree(CompilationUnit unit) {
+        Thread t = Thread.currentThread();
+        if (t instanceof Worker && ((Worker)t).getCompiler() == this) {
+            return ((Worker)t).getBuild().getParseTree(unit);
+        }
+
         synchronized (mParseTreeMap) {
             return getParseTree0(unit);
         }
@@ -627,6 +688,8 @@ public abstract class Compiler {
                         codegen.writeTo(out);
                         out.flush();
                         out.close();
+
+                        compiled(unit, tree);
                     }
                 }
                 catch (IOException e) {
@@ -658,4 +721,582 @@ public abstract class Compiler {
 
         return tree;
     }
+
+    /**
+     * State of a single parallel compile, as started by compile when the
+     * worker count is more than one. The thread calling compile only
+     * dispatches events, while the workers parse and then check the
+     * templates.
+     */
+    private class Build {
+        private static final int PARSING = 0, CHECKING = 1, FINISHED = 2;
+
+        private final int mWorkers;
+
+        // Maps qualified names to Nodes.
+        private final Map mNodes = new HashMap();
+
+        // Copy of the parse tree map, for use by the workers.
+        private Map mTrees;
+
+        // Nodes to parse, then Groups to check.
+        private final LinkedList mQueue = new LinkedList();
+
+        private int mPhase = PARSING;
+        private int mRunning;
+        private boolean mCancelled;
+        private Throwable mFailure;
+
+        // Used for grouping nodes that call each other.
+        private int mCounter;
+        private ArrayList mStack;
+
+        Build(int workers) {
+            mWorkers = workers;
+        }
+
+        /**
+         * Must be called while holding the lock on the parse tree map.
+         */
+        void compile(String[] names) throws IOException {
+            int count = names.length;
+            Object[] plan = new Object[count];
+            CompilationUnit[] units = new CompilationUnit[count];
+
+            for (int i=0; i<count; i++) {
+                if (Thread.interrupted()) {
+                    count = i;
+                    break;
+                }
+                CompilationUnit unit = getCompilationUnit(names[i], null);
+                if (unit == null) {
+                    String msg = mFormatter.format("not.found", names[i]);
+                    plan[i] = new ErrorEvent
+                        (Compiler.this, msg, (SourceInfo)null, null);
+                }
+                else if (!mCompiled.contains(names[i]) &&
+                         unit.shouldCompile()) {
+                    mParseTreeMap.remove(names[i]);
+                    units[i] = unit;
+                }
+            }
+
+            mTrees = new HashMap(mParseTreeMap);
+
+            for (int i=0; i<count; i++) {
+                if (units[i] != null) {
+                    plan[i] = require(units[i]);
+                }
+            }
+
+            if (mQueue.isEmpty()) {
+                mPhase = FINISHED;
+            }
+            else {
+                for (int i=0; i<mWorkers; i++) {
+                    Worker worker = new Worker(this, i);
+                    worker.setDaemon(true);
+                    worker.start();
+                }
+            }
+
+            try {
+                for (int i=0; i<count; i++) {
+                    Object item = plan[i];
+                    if (item instanceof Node && !waitFor((Node)item)) {
+                        break;
+                    }
+                    dispatchCompileStatus
+                        (new StatusEvent(Compiler.this, i, names.length,
+                                         names[i]));
+                    if (item instanceof ErrorEvent) {
+                        dispatchCompileError((ErrorEvent)item);
+                    }
+                    else if (item instanceof Node) {
+                        flush((Node)item);
+                    }
+                }
+            }
+            finally {
+                waitForAll();
+            }
+
+            Iterator it = new TreeMap(mNodes).values().iterator();
+            while (it.hasNext()) {
+                Node node = (Node)it.next();
+                flush(node);
+                if (node.mTree != null && !mTrees.containsKey(node.mName)) {
+                    mParseTreeMap.put(node.mName, node.mTree);
+                }
+            }
+
+            if (mFailure instanceof RuntimeException) {
+                throw (RuntimeException)mFailure;
+            }
+            if (mFailure instanceof Error) {
+                throw (Error)mFailure;
+            }
+        }
+
+        /**
+         * Called by workers when type checking or code generation requests
+         * a parse tree. Called templates have always been checked already,
+         * unless they call the requesting template back.
+         */
+        Template getParseTree(CompilationUnit unit) {
+            Node node;
+            synchronized (this) {
+                node = (Node)mNodes.get(unit.getName());
+                if (node == null) {
+                    // Not found when parsing, which can only happen if a
+                    // subclass resolves templates differently. Compile it
+                    // now, in this thread.
+                    node = new Node(unit);
+                    mNodes.put(node.mName, node);
+                }
+            }
+
+            synchronized (node) {
+                if (node.mState == Node.UNCHECKED) {
+                    if (!node.mParsed) {
+                        parse(node, false);
+                    }
+                    check(node);
+                }
+                return node.mTree;
+            }
+        }
+
+        /**
+         * Returns the Node for the given unit, queueing it to be parsed if
+         * it hasn't been seen before.
+         */
+        private synchronized Node require(CompilationUnit unit) {
+            String name = unit.getName();
+            Node node = (Node)mNodes.get(name);
+            if (node == null) {
+                node = new Node(unit);
+                mNodes.put(name, node);
+                Template tree = (Template)mTrees.get(name);
+                if (tree == null) {
+                    mQueue.add(node);
+                    notify();
+                }
+                else {
+                    node.mTree = tree;
+                    node.mParsed = true;
+                    node.mState = Node.CHECKED;
+                }
+            }
+            return node;
+        }
+
+        /**
+         * @param discover when true, require all the templates called by
+         * the parsed template
+         */
+        private void parse(Node node, boolean discover) {
+            final CompilationUnit unit = node.mUnit;
+            Template tree = null;
+
+            try {
+                Scanner s = createScanner(createSourceReader(unit), unit);
+                s.addErrorListener(node);
+                Parser p = createParser(s, unit);
+                p.addErrorListener(node);
+                tree = p.parse();
+                s.close();
+            }
+            catch (IOException e) {
+                uncaughtException(e);
+                String msg = mFormatter.format("read.error", e.toString());
+                node.compileError(new ErrorEvent
+                    (Compiler.this, msg, (SourceInfo)null, unit));
+            }
+            catch (Exception e) {
+                uncaughtException(e);
+                String msg =
+                    mFormatter.format("internal.error", e.toString());
+                node.compileError(new ErrorEvent
+                    (Compiler.this, msg, (SourceInfo)null, unit));
+            }
+
+            node.mTree = tree;
+            node.mParsed = true;
+
+            if (tree != null && discover) {
+                final List callees = node.mCallees;
+                tree.accept(new TreeWalker() {
+                    public Object visit(TemplateCallExpression call) {
+                        String name = call.getTarget().getName();
+                        CompilationUnit callee =
+                            getCompilationUnit(name, unit);
+                        if (callee != null) {
+                            callees.add(require(callee));
+                        }
+                        return super.visit(call);
+                    }
+                });
+            }
+        }
+
+        /**
+         * Type checks and code generates a parsed template, just like
+         * getParseTree0 does.
+         */
+        private void check(Node node) {
+            if (node.mState != Node.UNCHECKED) {
+                return;
+            }
+            node.mState = Node.CHECKING;
+
+            CompilationUnit unit = node.mUnit;
+            String name = node.mName;
+            Template tree = node.mTree;
+
+            try {
+                if (tree == null) {
+                    return;
+                }
+
+                TypeChecker tc = createTypeChecker(unit);
+                tc.setClassLoader(getClassLoader());
+                tc.addErrorListener(node);
+                tc.typeCheck();
+
+                if (!unit.shouldCompile()) {
+                    return;
+                }
+                synchronized (mCompiled) {
+                    if (!mCompiled.add(name)) {
+                        return;
+                    }
+                }
+
+                if (unit.getErrorCount() == 0 && mGenerateCode) {
+                    try {
+                        OutputStream out = unit.getOutputStream();
+
+                        if (out != null) {
+                            tree = (Template)new BasicOptimizer(tree)
+                                .optimize();
+                            node.mTree = tree;
+
+                            CodeGenerator codegen = createCodeGenerator(unit);
+                            codegen.writeTo(out);
+                            out.flush();
+                            out.close();
+
+                            compiled(unit, tree);
+                        }
+                    }
+                    catch (IOException e) {
+                        uncaughtException(e);
+                        String msg = mFormatter.format
+                            ("write.error", e.toString());
+                        node.compileError(new ErrorEvent
+                            (Compiler.this, msg, (SourceInfo)null, unit));
+                    }
+                }
+            }
+            catch (Exception e) {
+                uncaughtException(e);
+                String msg =
+                    mFormatter.format("internal.error", e.toString());
+                node.compileError(new ErrorEvent
+                    (Compiler.this, msg, (SourceInfo)null, unit));
+            }
+            finally {
+                if (tree != null &&
+                    (mPreserveTree == null || !mPreserveTree.contains(name))) {
+                    tree.setStatement(null);
+                }
+                node.mState = Node.CHECKED;
+            }
+        }
+
+        private void check(Group group) {
+            Node[] members = group.mMembers;
+            // Templates being compiled go first. A template checked while
+            // one it calls is still being checked only sees a partial
+            // signature, which is harmless unless code is generated for it.
+            for (int i=0; i<members.length; i++) {
+                boolean compile;
+                try {
+                    compile = members[i].mUnit.shouldCompile();
+                }
+                catch (IOException e) {
+                    // Reported when checked below.
+                    compile = false;
+                }
+                if (compile) {
+                    check(members[i]);
+                }
+            }
+            for (int i=0; i<members.length; i++) {
+                check(members[i]);
+            }
+
+            synchronized (this) {
+                group.mDone = true;
+                Iterator it = group.mCallers.iterator();
+                while (it.hasNext()) {
+                    Group caller = (Group)it.next();
+                    if (--caller.mPending == 0) {
+                        mQueue.add(caller);
+                    }
+                }
+                notifyAll();
+            }
+        }
+
+        /**
+         * Called when all templates are parsed. Splits the templates into
+         * groups that call each other, and queues the groups that don't
+         * depend on any other.
+         */
+        private void schedule() {
+            mStack = new ArrayList();
+            Iterator it = new TreeMap(mNodes).values().iterator();
+            while (it.hasNext()) {
+                Node node = (Node)it.next();
+                if (node.mState == Node.UNCHECKED && node.mIndex < 0) {
+                    connect(node);
+                }
+            }
+            mStack = null;
+        }
+
+        // Tarjan's algorithm, which finds the groups of called templates
+        // before the groups that call them.
+        private void connect(Node node) {
+            node.mIndex = node.mLowLink = mCounter++;
+            mStack.add(node);
+            node.mOnStack = true;
+
+            Iterator it = node.mCallees.iterator();
+            while (it.hasNext()) {
+                Node callee = (Node)it.next();
+                if (callee.mState != Node.UNCHECKED) {
+                    continue;
+                }
+                if (callee.mIndex < 0) {
+                    connect(callee);
+                    node.mLowLink = Math.min(node.mLowLink, callee.mLowLink);
+                }
+                else if (callee.mOnStack) {
+                    node.mLowLink = Math.min(node.mLowLink, callee.mIndex);
+                }
+            }
+
+            if (node.mLowLink != node.mIndex) {
+                return;
+            }
+
+            int index = mStack.lastIndexOf(node);
+            List members = mStack.subList(index, mStack.size());
+            Group group = new Group((Node[])members.toArray
+                                    (new Node[members.size()]));
+            members.clear();
+
+            Set callees = new HashSet();
+            for (int i=0; i<group.mMembers.length; i++) {
+                Node member = group.mMembers[i];
+                member.mOnStack = false;
+                member.mGroup = group;
+                it = member.mCallees.iterator();
+                while (it.hasNext()) {
+                    Group callee = ((Node)it.next()).mGroup;
+                    if (callee != null && callee != group &&
+                        callees.add(callee)) {
+
+                        callee.mCallers.add(group);
+                        group.mPending++;
+                    }
+                }
+            }
+
+            if (group.mPending == 0) {
+                mQueue.add(group);
+            }
+        }
+
+        synchronized Object nextTask() {
+            while (mQueue.isEmpty() && mPhase != FINISHED && !mCancelled) {
+                try {
+                    wait();
+                }
+                catch (InterruptedException e) {
+                    cancel(e);
+                }
+            }
+            if (mCancelled || mQueue.isEmpty()) {
+                return null;
+            }
+            mRunning++;
+            return mQueue.removeFirst();
+        }
+
+        void run(Object task) {
+            try {
+                if (task instanceof Node) {
+                    parse((Node)task, true);
+                }
+                else {
+                    check((Group)task);
+                }
+            }
+            catch (Throwable e) {
+                cancel(e);
+            }
+            finally {
+                synchronized (this) {
+                    if (--mRunning == 0 && (mCancelled || mQueue.isEmpty())) {
+                        if (mPhase == PARSING && !mCancelled) {
+                            mPhase = CHECKING;
+                            try {
+                                schedule();
+                            }
+                            catch (Throwable e) {
+                                cancel(e);
+                            }
+                        }
+                        if (mQueue.isEmpty() || mCancelled) {
+                            mPhase = FINISHED;
+                        }
+                    }
+                    notifyAll();
+                }
+            }
+        }
+
+        private synchronized void cancel(Throwable e) {
+            if (mFailure == null && !(e instanceof InterruptedException)) {
+                mFailure = e;
+            }
+            mCancelled = true;
+            notifyAll();
+        }
+
+        /**
+         * @return false if the build was cancelled or interrupted
+         */
+        private synchronized boolean waitFor(Node node) {
+            try {
+                while ((node.mGroup == null || !node.mGroup.mDone) &&
+                       mPhase != FINISHED) {
+                    wait();
+                }
+            }
+            catch (InterruptedException e) {
+                cancel(e);
+            }
+            return !mCancelled;
+        }
+
+        private synchronized void waitForAll() {
+            while (mPhase != FINISHED) {
+                try {
+                    wait();
+                }
+                catch (InterruptedException e) {
+                    cancel(e);
+                }
+            }
+        }
+
+        private void flush(Node node) {
+            List errors;
+            synchronized (node) {
+                errors = node.mErrors;
+                node.mErrors = Collections.EMPTY_LIST;
+            }
+            for (int i=0; i<errors.size(); i++) {
+                dispatchCompileError((ErrorEvent)errors.get(i));
+            }
+        }
+    }
+
+    private static class Node implements ErrorListener {
+        static final int UNCHECKED = 0, CHECKING = 1, CHECKED = 2;
+
+        final CompilationUnit mUnit;
+        final String mName;
+
+        Template mTree;
+        boolean mParsed;
+        int mState = UNCHECKED;
+
+        // Nodes for all the templates called.
+        final List mCallees = new ArrayList();
+
+        // Errors to be dispatched by the thread calling compile.
+        List mErrors = new ArrayList();
+
+        Group mGroup;
+        int mIndex = -1;
+        int mLowLink;
+        boolean mOnStack;
+
+        Node(CompilationUnit unit) {
+            mUnit = unit;
+            mName = unit.getName();
+        }
+
+        public void compileError(ErrorEvent e) {
+            synchronized (this) {
+                mErrors.add(e);
+            }
+            mUnit.compileError(e);
+        }
+    }
+
+    /**
+     * Templates that call each other, directly or indirectly. Members are
+     * checked by one thread, in name order.
+     */
+    private static class Group {
+        final Node[] mMembers;
+
+        // Number of called groups not yet checked.
+        int mPending;
+
+        // Groups waiting on this one.
+        final List mCallers = new ArrayList();
+
+        boolean mDone;
+
+        Group(Node[] members) {
+            Arrays.sort(members, new Comparator() {
+                public int compare(Object a, Object b) {
+                    return ((Node)a).mName.compareTo(((Node)b).mName);
+                }
+            });
+            mMembers = members;
+        }
+    }
+
+    private class Worker extends Thread {
+        private final Build mBuild;
+
+        Worker(Build build, int id) {
+            super("Tea compiler " + id);
+            mBuild = build;
+        }
+
+        Compiler getCompiler() {
+            return Compiler.this;
+        }
+
+        Build getBuild() {
+            return mBuild;
+        }
+
+        public void run() {
+            Object task;
+            while ((task = mBuild.nextTask()) != null) {
+                mBuild.run(task);
+            }
+        }
+    }
 }
@@ -57,6 +57,7 @@ import java.util.MissingResourceException;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.WeakHashMap;
+import java.util.Collections;
 import java.text.MessageFormat;
 
 /******************************************************************************
@@ -71,17 +72,20 @@ class MessageFormatter {
 
     static {
         try {
-            cMessageFormatters = new WeakHashMap(7);
+            cMessageFormatters =
+                Collections.synchronizedMap(new WeakHashMap(7));
         }
         catch (LinkageError e) {
-            cMessageFormatters = new HashMap(7);
+            cMessageFormatters =
+                Collections.synchronizedMap(new HashMap(7));
         }
         catch (Exception e) {
             // Microsoft VM sometimes throws an undeclared
             // ClassNotFoundException instead of doing the right thing and
             // throwing some form of a LinkageError if the class couldn't
             // be found.
-            cMessageFormatters = new HashMap(7);
+            cMessageFormatters =
+                Collections.synchronizedMap(new HashMap(7));
         }
 
     }
@@ -36,6 +36,7 @@ public class MergedContextSource implements ContextSource {
     private Class[] mContextsInOrder;
     
     private Constructor mConstr;
+    private MergedClass.Factory mFactory;
 
     // TODO: Why use init? Constructers may make more sense.
 
@@ -72,6 +73,9 @@ public class MergedContextSource implements ContextSource {
         mConstr = MergedClass.getConstructor2(mInjector, 
                                               mContextsInOrder,
                                               prefixes);
+        mFactory = MergedClass.getFactory2(mInjector,
+                                           mContextsInOrder,
+                                           prefixes);
     }
 
     protected Class[] getContextsInOrder() {
@@ -85,6 +89,13 @@ public class MergedContextSource implements ContextSource {
         return mConstr;
     }
 
+    /**
+     * let subclasses create merged contexts without reflection
+     */
+    protected MergedClass.Factory getFactory() {
+        return mFactory;
+    }
+
     /**
      * @return the Class of the object returned by createContext.
      */
@@ -96,8 +107,7 @@ public class MergedContextSource implements ContextSource {
      * a generic method to create context instances 
      */
     public Object createContext(Object param) throws Exception {
-            return mConstr.newInstance(new Object[] {
-                new MergingContextFactory(param)});
+        return mFactory.newInstance(new MergingContextFactory(param));
     }
 
     private class MergingContextFactory 
@@ -20,6 +20,7 @@ import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.TreeSet;
@@ -100,13 +101,24 @@ public class TemplateSourceImpl implements TemplateSource {
     private Boolean mReloading;
     
  
+    // Marks template names that weren't found.
+    private static final Object NOT_FOUND = new Object();
+
+    // Maximum number of template names that aren't found to remember.
+    private static final int MAX_MISSES = 1000;
+
     // result fields
-    private TemplateLoader mLoader;
+    private volatile TemplateLoader mLoader;
     private boolean mSuccessfulReload;
     private Date mLastReloadTime;
     private Set mReloadedTemplateNames;
     private Set mKnownTemplateNames;
-    private Map mWrappedTemplates;
+    // Maps names to wrapped templates or NOT_FOUND. The map is replaced
+    // when an entry is added or when templates are reloaded, and so it can
+    // be read without locking. Replacement uses the mWrappedLock monitor.
+    private volatile Map mWrappedTemplates = new HashMap();
+    private int mMissCount;
+    private final Object mWrappedLock = new Object();
     
     // no arg constructor for dynamic classloading.
     public TemplateSourceImpl() {
@@ -138,12 +150,12 @@ public class TemplateSourceImpl implements TemplateSource {
 
         mReloadedTemplateNames = new TreeSet();
         mKnownTemplateNames = new TreeSet();
-        mWrappedTemplates = new HashMap();
         mLastReloadTime = new Date();
         mErrorListener = createErrorListener();
         Class type = mConfig.getContextSource().getContextType();
         boolean exceptionGuardian = mConfig.isExceptionGuardianEnabled();
         String prefix = mConfig.getPackagePrefix();
+        int workers = getCompilerWorkerCount();
 
         // create a FileCompiler and compile templates.
         if (mTemplateRootDirs != null 
@@ -157,6 +169,9 @@ public class TemplateSourceImpl implements TemplateSource {
             fcomp.setClassLoader(injector);
             fcomp.setRuntimeContext(type);
             fcomp.setExceptionGuardianEnabled(exceptionGuardian);
+            fcomp.setWorkerCount(workers);
+            fcomp.setManifestEnabled
+                (mProperties.getBoolean("compile.manifest", false));
             fcomp.addErrorListener(mErrorListener);
             fcomp.setForceCompile(all);
             mReloadedTemplateNames
@@ -187,8 +202,14 @@ public class TemplateSourceImpl implements TemplateSource {
         }
         
         
-        mLoader = new TemplateAdapter(type, injector, 
-                                     mConfig.getPackagePrefix());
+        synchronized (mWrappedLock) {
+            mLoader = new TemplateAdapter(type, injector, 
+                                         mConfig.getPackagePrefix());
+            // Replace together with the loader so that templates from the
+            // old loader don't get mixed in.
+            mWrappedTemplates = new HashMap();
+            mMissCount = 0;
+        }
 
 
         mSuccessfulReload = (mErrorListener
@@ -250,30 +271,85 @@ public class TemplateSourceImpl implements TemplateSource {
     }
 
     public com.go.tea.engine.Template[] getLoadedTemplates() {
-        if (mWrappedTemplates != null) {        
-            return (com.go.tea.engine.Template[])mWrappedTemplates.values()
-                .toArray(new com.go.tea.engine.Template
-                    [mWrappedTemplates.size()]);
+        Collection loaded = new ArrayList(mWrappedTemplates.values());
+        for (Iterator it = loaded.iterator(); it.hasNext(); ) {
+            if (it.next() == NOT_FOUND) {
+                it.remove();
+            }
         }
-        return new com.go.tea.engine.Template[0];
+        return (com.go.tea.engine.Template[])loaded.toArray
+            (new com.go.tea.engine.Template[loaded.size()]);
     }
 
     public com.go.tea.engine.Template getTemplate(String name) 
         throws ClassNotFoundException, NoSuchMethodException {
-        com.go.tea.engine.Template wrapped = null;
-        try {
-            wrapped = (com.go.tea.engine.Template)
-                mWrappedTemplates.get(name);
-            if (wrapped == null) {
-                wrapped = new TemplateImpl
-                    (getTemplateLoader().getTemplate(name), this);
-            }
-            mWrappedTemplates.put(name, wrapped);
+
+        Object wrapped = mWrappedTemplates.get(name);
+        if (wrapped == null) {
+            wrapped = loadTemplate(name);
+        }
+        if (wrapped == NOT_FOUND) {
+            throw new ClassNotFoundException(name);
+        }
+        return (com.go.tea.engine.Template)wrapped;
+    }
+
+    /**
+     * Returns the template with the given name, or null if not found.
+     * Unlike getTemplate, names that aren't found are remembered until
+     * templates are reloaded, and so repeatedly looking up a missing
+     * template is cheap.
+     */
+    public com.go.tea.engine.Template findTemplate(String name) 
+        throws ClassNotFoundException, NoSuchMethodException {
+
+        Object wrapped = mWrappedTemplates.get(name);
+        if (wrapped == null) {
+            wrapped = loadTemplate(name);
         }
-        catch (NullPointerException npe) {
+        return wrapped == NOT_FOUND ?
+            null : (com.go.tea.engine.Template)wrapped;
+    }
+
+    /**
+     * @return wrapped template or NOT_FOUND
+     * @throws ClassNotFoundException if the TemplateLoader isn't available
+     */
+    private Object loadTemplate(String name)
+        throws ClassNotFoundException, NoSuchMethodException {
+
+        TemplateLoader loader = getTemplateLoader();
+        if (loader == null) {
             throw new ClassNotFoundException
                 ("TemplateLoader not yet available");
         }
+
+        Object wrapped;
+        try {
+            wrapped = new TemplateImpl(loader.getTemplate(name), this);
+        }
+        catch (ClassNotFoundException e) {
+            wrapped = NOT_FOUND;
+        }
+
+        synchronized (mWrappedLock) {
+            // Don't add the template if templates were reloaded.
+            if (loader == mLoader) {
+                Object existing = mWrappedTemplates.get(name);
+                if (existing != null) {
+                    wrapped = existing;
+                }
+                else if (wrapped != NOT_FOUND || mMissCount < MAX_MISSES) {
+                    if (wrapped == NOT_FOUND) {
+                        mMissCount++;
+                    }
+                    Map map = new HashMap(mWrappedTemplates);
+                    map.put(name, wrapped);
+                    mWrappedTemplates = map;
+                }
+            }
+        }
+
         return wrapped;
     }
 
@@ -327,6 +403,20 @@ public class TemplateSourceImpl implements TemplateSource {
     }
 
 
+    /**
+     * returns the number of threads each template compiler uses, as set by
+     * the "compile.workers" property. The default is 1, which compiles
+     * templates one at a time.
+     */
+    protected int getCompilerWorkerCount() {
+        int workers = mProperties.getInt("compile.workers", 1);
+        if (workers < 1) {
+            mLog.warn("Invalid compile.workers setting: " + workers);
+            workers = 1;
+        }
+        return workers;
+    }
+
     /** 
      * provides a default class injector using the contextType's ClassLoader
      * as a parent.
@@ -368,6 +458,7 @@ public class TemplateSourceImpl implements TemplateSource {
         rcomp.setClassLoader(injector);
         rcomp.setRuntimeContext(contextType);
         rcomp.setExceptionGuardianEnabled(guardian);
+        rcomp.setWorkerCount(getCompilerWorkerCount());
         rcomp.addErrorListener(mErrorListener);
         String[] result = rcomp.compile(mTemplateResources);
 
@@ -395,6 +486,7 @@ public class TemplateSourceImpl implements TemplateSource {
         scomp.setClassLoader(injector);
         scomp.setRuntimeContext(contextType);
         scomp.setExceptionGuardianEnabled(guardian);
+        scomp.setWorkerCount(getCompilerWorkerCount());
         scomp.addErrorListener(mErrorListener);
         
         String[] templateNames = new String[mTemplateStrings.length];
@@ -444,7 +536,13 @@ public class TemplateSourceImpl implements TemplateSource {
         return result;
     }
 
-    private TemplateLoader getTemplateLoader() {
+    /**
+     * Returns the TemplateLoader for the most recently compiled templates,
+     * waiting for the initial compilation if necessary.
+     *
+     * @return null if interrupted while waiting
+     */
+    public TemplateLoader getTemplateLoader() {
         // only synchronize if needed.
         if (mLoader == null) {
             synchronized(this) {
@@ -60,11 +60,11 @@ import java.util.Map;
 import java.util.HashMap;
 import java.util.Set;
 import java.util.Iterator;
-import java.util.Collections;
 import java.util.TimeZone;
 import java.util.Locale;
 import java.beans.PropertyDescriptor;
 import java.beans.IntrospectionException;
+import java.lang.reflect.Method;
 import com.go.tea.util.BeanAnalyzer;
 import com.go.trove.util.Pair;
 import com.go.trove.util.FastDateFormat;
@@ -84,28 +84,85 @@ public abstract class DefaultContext implements UtilityContext {
 
     // Although the Integer.toString method keeps getting more optimized
     // with each release, it still isn't very fast at converting small values.
-    private static final String[] INT_VALUES = {
-         "0",  "1",  "2",  "3",  "4",  "5",  "6",  "7",  "8",  "9", 
-        "10", "11", "12", "13", "14", "15", "16", "17", "18", "19", 
-        "20", "21", "22", "23", "24", "25", "26", "27", "28", "29", 
-        "30", "31", "32", "33", "34", "35", "36", "37", "38", "39", 
-        "40", "41", "42", "43", "44", "45", "46", "47", "48", "49", 
-        "50", "51", "52", "53", "54", "55", "56", "57", "58", "59", 
-        "60", "61", "62", "63", "64", "65", "66", "67", "68", "69", 
-        "70", "71", "72", "73", "74", "75", "76", "77", "78", "79", 
-        "80", "81", "82", "83", "84", "85", "86", "87", "88", "89", 
-        "90", "91", "92", "93", "94", "95", "96", "97", "98", "99", 
-    };
+    private static final String[] INT_VALUES;
 
     private static final int FIRST_INT_VALUE = 0;
-    private static final int LAST_INT_VALUE = 99;
-
-    private static Map cLocaleCache;
-    private static Map cNFormatCache;
+    private static final int LAST_INT_VALUE = 999;
+
+    // Maximum number of characters needed to print a long, plus room for a
+    // trailing ".0".
+    private static final int MAX_DIGITS = 22;
+
+    // These caches are replaced on each change, so that they can be read
+    // without locking.
+
+    // Map<Locale, Locale>
+    private static volatile Map cLocaleCache = new HashMap(7);
+    // Maps format keys or Locales to NFormats.
+    private static volatile Map cNFormatCache = new HashMap(47);
+    // Maps context classes to Integers of OVERRIDES_* bits.
+    private static volatile Map cOverridesCache = new HashMap(7);
+
+    // Bits set for number toString methods that a subclass overrides. Such
+    // numbers are printed by calling toString instead of by the fast path.
+    private static final int
+        OVERRIDES_INT = 1,
+        OVERRIDES_LONG = 2,
+        OVERRIDES_FLOAT = 4,
+        OVERRIDES_DOUBLE = 8;
 
     static {
-        cLocaleCache = Collections.synchronizedMap(new HashMap(7));
-        cNFormatCache = Collections.synchronizedMap(new HashMap(47));
+        INT_VALUES = new String[LAST_INT_VALUE - FIRST_INT_VALUE + 1];
+        for (int i=0; i<INT_VALUES.length; i++) {
+            INT_VALUES[i] = String.valueOf(FIRST_INT_VALUE + i).intern();
+        }
+    }
+
+    private static synchronized Locale internLocale(Locale locale) {
+        Locale cached = (Locale)cLocaleCache.get(locale);
+        if (cached != null) {
+            return cached;
+        }
+        Map cache = new HashMap(cLocaleCache);
+        cache.put(locale, locale);
+        cLocaleCache = cache;
+        return locale;
+    }
+
+    private static synchronized void putNFormat(Object key, NFormat format) {
+        Map cache = new HashMap(cNFormatCache);
+        cache.put(key, format);
+        cNFormatCache = cache;
+    }
+
+    private static int getOverrides(Class clazz) {
+        Integer overrides = (Integer)cOverridesCache.get(clazz);
+        if (overrides == null) {
+            overrides = new Integer
+                (overrides(clazz, int.class, OVERRIDES_INT) |
+                 overrides(clazz, long.class, OVERRIDES_LONG) |
+                 overrides(clazz, float.class, OVERRIDES_FLOAT) |
+                 overrides(clazz, double.class, OVERRIDES_DOUBLE));
+            synchronized (DefaultContext.class) {
+                Map cache = new HashMap(cOverridesCache);
+                cache.put(clazz, overrides);
+                cOverridesCache = cache;
+            }
+        }
+        return overrides.intValue();
+    }
+
+    /**
+     * Returns the given bit if the class overrides toString for the type.
+     */
+    private static int overrides(Class clazz, Class type, int bit) {
+        try {
+            Method m = clazz.getMethod("toString", new Class[] {type});
+            return m.getDeclaringClass() == DefaultContext.class ? 0 : bit;
+        }
+        catch (NoSuchMethodException e) {
+            return bit;
+        }
     }
 
     private Locale mLocale;
@@ -113,8 +170,14 @@ public abstract class DefaultContext implements UtilityContext {
     private FastDateFormat mDateFormat;
     private NFormat mNFormat;
 
+    // Scratch space for printing numbers without creating Strings.
+    private char[] mDigits;
+
+    private final int mOverrides;
+
 
     public DefaultContext() {
+        mOverrides = getOverrides(getClass());
     }
 
     /**
@@ -129,6 +192,20 @@ public abstract class DefaultContext implements UtilityContext {
      */
     public abstract void print(Object obj) throws Exception;
 
+    /**
+     * Called to print the characters of a converted number. This
+     * implementation passes a new String to print(Object), and subclasses
+     * that write characters to a buffer should override it to avoid creating
+     * the String. The character array must not be retained.
+     *
+     * @hidden
+     */
+    protected void printChars(char[] chars, int offset, int length)
+        throws Exception
+    {
+        print(new String(chars, offset, length));
+    }
+
 
     /**
      * @hidden
@@ -148,28 +225,116 @@ public abstract class DefaultContext implements UtilityContext {
      * @hidden
      */
     public void print(int n) throws Exception {
-        print(toString(n));
+        if ((mOverrides & OVERRIDES_INT) != 0) {
+            print(toString(n));
+        }
+        else if (mNFormat != null && mNFormat.isIntegerFormatted()) {
+            print(mNFormat.format(n));
+        }
+        else if (n <= LAST_INT_VALUE && n >= FIRST_INT_VALUE) {
+            print(INT_VALUES[n]);
+        }
+        else {
+            printDigits(n, false);
+        }
     }
 
     /**
      * @hidden
      */
     public void print(float n) throws Exception {
-        print(toString(n));
+        // Float.toString prints whole numbers in this range as digits
+        // followed by ".0". Negative zero is excluded.
+        if ((mOverrides & OVERRIDES_FLOAT) == 0 && mNFormat == null &&
+            n == (long)n && n > -1e7f && n < 1e7f &&
+            (n != 0 || Float.floatToIntBits(n) == 0)) {
+            printDigits((long)n, true);
+        }
+        else {
+            print(toString(n));
+        }
     }
 
     /**
      * @hidden
      */
     public void print(long n) throws Exception {
-        print(toString(n));
+        if ((mOverrides & OVERRIDES_LONG) != 0) {
+            print(toString(n));
+        }
+        else if (mNFormat != null && mNFormat.isIntegerFormatted()) {
+            print(mNFormat.format(n));
+        }
+        else if (n <= LAST_INT_VALUE && n >= FIRST_INT_VALUE) {
+            print(INT_VALUES[(int)n]);
+        }
+        else {
+            printDigits(n, false);
+        }
     }
 
     /**
      * @hidden
      */
     public void print(double n) throws Exception {
-        print(toString(n));
+        // Double.toString prints whole numbers in this range as digits
+        // followed by ".0". Negative zero is excluded.
+        if ((mOverrides & OVERRIDES_DOUBLE) == 0 && mNFormat == null &&
+            n == (long)n && n > -1e7 && n < 1e7 &&
+            (n != 0 || Double.doubleToLongBits(n) == 0)) {
+            printDigits((long)n, true);
+        }
+        else {
+            print(toString(n));
+        }
+    }
+
+    /**
+     * Prints a number in decimal without creating a String.
+     *
+     * @param fraction when true, print ".0" after the digits
+     */
+    private void printDigits(long n, boolean fraction) throws Exception {
+        char[] digits = mDigits;
+        if (digits == null) {
+            mDigits = digits = new char[MAX_DIGITS];
+        }
+
+        int pos = MAX_DIGITS;
+        if (fraction) {
+            digits[--pos] = '0';
+            digits[--pos] = '.';
+        }
+
+        // Digits are computed from a negative value so that Long.MIN_VALUE
+        // can be printed.
+        boolean negative = n < 0;
+        if (!negative) {
+            n = -n;
+        }
+
+        if (n >= Integer.MIN_VALUE) {
+            // Use faster int arithmetic.
+            int i = (int)n;
+            do {
+                int q = i / 10;
+                digits[--pos] = (char)('0' + (q * 10 - i));
+                i = q;
+            } while (i != 0);
+        }
+        else {
+            do {
+                long q = n / 10;
+                digits[--pos] = (char)('0' + (int)(q * 10 - n));
+                n = q;
+            } while (n != 0);
+        }
+
+        if (negative) {
+            digits[--pos] = '-';
+        }
+
+        printChars(digits, pos, MAX_DIGITS - pos);
     }
 
     /**
@@ -294,17 +459,12 @@ public abstract class DefaultContext implements UtilityContext {
             mNFormat = null;
         }
         else {
-            synchronized (cLocaleCache) {
-                Locale cached = (Locale)cLocaleCache.get(locale);
-                if (cached == null) {
-                    cLocaleCache.put(locale, locale);
-                }
-                else {
-                    locale = cached;
-                }
+            Locale cached = (Locale)cLocaleCache.get(locale);
+            if (cached == null) {
+                cached = internLocale(locale);
             }
             
-            mLocale = locale;
+            mLocale = cached;
             dateFormat(null);
             numberFormat(null);
         }
@@ -390,9 +550,12 @@ public abstract class DefaultContext implements UtilityContext {
             if (mLocale == null) {
                 mNFormat = null;
             }
-            else {
+            else if ((mNFormat =
+                      (NFormat)cNFormatCache.get(mLocale)) == null) {
+
                 mNFormat =
                     new NFormat(NumberFormat.getNumberInstance(mLocale));
+                putNFormat(mLocale, mNFormat);
             }
             return;
         }
@@ -448,7 +611,7 @@ public abstract class DefaultContext implements UtilityContext {
             }
 
             mNFormat = new NFormat(df);
-            cNFormatCache.put(key, mNFormat);
+            putNFormat(key, mNFormat);
         }
     }
 
@@ -1058,9 +1221,15 @@ public abstract class DefaultContext implements UtilityContext {
         }
     }
 
+    /**
+     * NFormats are shared by all threads, but NumberFormat isn't thread-safe.
+     * The shared NumberFormat is only examined, and each thread formats
+     * using its own clone.
+     */
     private static class NFormat {
         private final NumberFormat mFormat;
         private final boolean mFormatInteger;
+        private final ThreadLocal mLocalFormat = new ThreadLocal();
 
         public NFormat(NumberFormat format) {
             mFormat = format;
@@ -1091,22 +1260,29 @@ public abstract class DefaultContext implements UtilityContext {
             mFormatInteger = formatInteger;
         }
 
+        /**
+         * Returns false if integers are formatted just like Long.toString.
+         */
+        public boolean isIntegerFormatted() {
+            return mFormatInteger;
+        }
+
         public String format(int value) {
             return (!mFormatInteger) ?
-                Integer.toString(value) : mFormat.format(value);
+                Integer.toString(value) : getFormat().format(value);
         }
 
         public String format(float value) {
-            return mFormat.format(value);
+            return getFormat().format(value);
         }
 
         public String format(long value) {
             return (!mFormatInteger) ?
-                Long.toString(value) : mFormat.format(value);
+                Long.toString(value) : getFormat().format(value);
         }
 
         public String format(double value) {
-            return mFormat.format(value);
+            return getFormat().format(value);
         }
 
         public String format(Number value) {
@@ -1117,8 +1293,17 @@ public abstract class DefaultContext implements UtilityContext {
                 return format(((Long)value).longValue());
             }
             else {
-                return mFormat.format(value);
+                return getFormat().format(value);
+            }
+        }
+
+        private NumberFormat getFormat() {
+            NumberFormat format = (NumberFormat)mLocalFormat.get();
+            if (format == null) {
+                format = (NumberFormat)mFormat.clone();
+                mLocalFormat.set(format);
             }
+            return format;
         }
 
         public String getNumberFormat() {
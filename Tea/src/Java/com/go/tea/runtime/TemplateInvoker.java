@@ -0,0 +1,274 @@
+/* ====================================================================
+ * Tea - Copyright (c) 1997-2000 Walt Disney Internet Group
+ * ====================================================================
+ * The Tea Software License, Version 1.1
+ *
+ * Copyright (c) 2000 Walt Disney Internet Group. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *        Walt Disney Internet Group (http://opensource.go.com/)."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Tea", "TeaServlet", "Kettle", "Trove" and "BeanDoc" must
+ *    not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact opensource@dig.com.
+ *
+ * 5. Products derived from this software may not be called "Tea",
+ *    "TeaServlet", "Kettle" or "Trove", nor may "Tea", "TeaServlet",
+ *    "Kettle", "Trove" or "BeanDoc" appear in their name, without prior
+ *    written permission of the Walt Disney Internet Group.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE WALT DISNEY INTERNET GROUP OR ITS
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ *
+ * For more information about Tea, please see http://opensource.go.com/.
+ */
+
+package com.go.tea.runtime;
+
+import java.io.*;
+import java.lang.reflect.*;
+import com.go.trove.classfile.*;
+import com.go.trove.util.ClassInjector;
+
+/******************************************************************************
+ * Invokes the static execute method of a compiled template without using
+ * reflection. TemplateInvoker auto-generates a small class per template,
+ * which unpacks the parameter array and calls the execute method directly.
+ * No argument array is allocated, and exceptions thrown by the template are
+ * not wrapped.
+ *
+ * @author Brian S O'Neill
+ * @version
+ * <!--$$Revision$-->, <!--$$JustDate:--> <!-- $-->
+ * @see TemplateLoader
+ */
+public abstract class TemplateInvoker {
+    /**
+     * Returns a new TemplateInvoker for the given static execute method. If
+     * code cannot be generated, an invoker which uses reflection is returned
+     * instead. Invokers are not cached here, so that reloaded templates can
+     * be garbage collected along with their invokers.
+     */
+    public static TemplateInvoker forMethod(Method execute) {
+        try {
+            return generate(execute);
+        }
+        catch (LinkageError e) {
+            return new Reflective(execute);
+        }
+        catch (SecurityException e) {
+            return new Reflective(execute);
+        }
+    }
+
+    private static TemplateInvoker generate(Method execute) {
+        Class templateClass = execute.getDeclaringClass();
+        if (!Modifier.isPublic(templateClass.getModifiers()) ||
+            !Modifier.isPublic(execute.getModifiers())) {
+            return new Reflective(execute);
+        }
+
+        ClassInjector injector = new ClassInjector
+            (templateClass.getClassLoader(), (File)null, null);
+
+        int id = execute.hashCode();
+
+        String baseName = TemplateInvoker.class.getName() + '$';
+        String className = baseName;
+        try {
+            while (true) {
+                className = baseName + (id & 0xffffffffL);
+                try {
+                    injector.loadClass(className);
+                }
+                catch (LinkageError e) {
+                }
+                id++;
+            }
+        }
+        catch (ClassNotFoundException e) {
+        }
+
+        ClassFile cf = generateClassFile(className, execute);
+
+        try {
+            OutputStream stream = injector.getStream(cf.getClassName());
+            cf.writeTo(stream);
+            stream.close();
+        }
+        catch (IOException e) {
+            throw new InternalError(e.toString());
+        }
+
+        try {
+            Class clazz = injector.loadClass(cf.getClassName());
+            return (TemplateInvoker)clazz.newInstance();
+        }
+        catch (ClassNotFoundException e) {
+            throw new InternalError(e.toString());
+        }
+        catch (InstantiationException e) {
+            throw new InternalError(e.toString());
+        }
+        catch (IllegalAccessException e) {
+            throw new InternalError(e.toString());
+        }
+    }
+
+    private static ClassFile generateClassFile(String className,
+                                               Method execute)
+    {
+        ClassFile cf = new ClassFile(className, TemplateInvoker.class);
+        cf.markSynthetic();
+
+        Modifiers publicAccess = new Modifiers();
+        publicAccess.setPublic(true);
+
+        MethodInfo ctor = cf.addConstructor(publicAccess, null);
+        ctor.markSynthetic();
+        CodeBuilder builder = new CodeBuilder(ctor);
+
+        builder.loadThis();
+        builder.invokeSuperConstructor(null);
+        builder.returnVoid();
+
+        TypeDesc objectType = TypeDesc.OBJECT;
+        TypeDesc[] params = {
+            TypeDesc.forClass(Context.class), objectType.toArrayType()
+        };
+
+        MethodInfo mi = cf.addMethod
+            (publicAccess, "invoke", objectType, params);
+        mi.markSynthetic();
+        mi.addException(Exception.class.getName());
+        builder = new CodeBuilder(mi);
+
+        LocalVariable contextVar = builder.getParameters()[0];
+        LocalVariable paramsVar = builder.getParameters()[1];
+
+        Class[] types = execute.getParameterTypes();
+
+        builder.loadLocal(contextVar);
+        builder.checkCast(TypeDesc.forClass(types[0]));
+
+        for (int i=1; i<types.length; i++) {
+            builder.loadLocal(paramsVar);
+            builder.loadConstant(i - 1);
+            builder.loadFromArray(objectType);
+
+            TypeDesc type = TypeDesc.forClass(types[i]);
+            if (type.isPrimitive()) {
+                TypeDesc objType = type.toObjectType();
+                builder.checkCast(objType);
+                builder.convert(objType, type);
+            }
+            else if (type != objectType) {
+                builder.checkCast(type);
+            }
+        }
+
+        builder.invoke(execute);
+
+        Class returnType = execute.getReturnType();
+        if (returnType == void.class) {
+            builder.loadConstant(null);
+        }
+        else if (returnType.isPrimitive()) {
+            builder.convert(TypeDesc.forClass(returnType), objectType);
+        }
+
+        builder.returnValue(objectType);
+
+        return cf;
+    }
+
+    protected TemplateInvoker() {
+    }
+
+    /**
+     * Invokes the template's execute method.
+     *
+     * @param context Must be assignable to the template's context type.
+     * @param parameters Must have same length and types as the template's
+     * parameters, excluding the context.
+     * @return the value returned by the template, or null if void
+     */
+    public abstract Object invoke(Context context, Object[] parameters)
+        throws Exception;
+
+    // Auto-generated code sample:
+    /*
+    public Object invoke(Context context, Object[] parameters)
+        throws Exception
+    {
+        return Template.execute((HttpContext)context,
+                                (String)parameters[0],
+                                ((Integer)parameters[1]).intValue());
+    }
+    */
+
+    /**
+     * Used if code cannot be generated.
+     */
+    private static class Reflective extends TemplateInvoker {
+        private final Method mExecute;
+
+        Reflective(Method execute) {
+            mExecute = execute;
+        }
+
+        public Object invoke(Context context, Object[] parameters)
+            throws Exception
+        {
+            int length = parameters.length;
+            Object[] args = new Object[1 + length];
+            args[0] = context;
+            for (int i=0; i<length; i++) {
+                args[i + 1] = parameters[i];
+            }
+
+            try {
+                return mExecute.invoke(null, args);
+            }
+            catch (InvocationTargetException e) {
+                Throwable t = e.getTargetException();
+                if (t instanceof Exception) {
+                    throw (Exception)t;
+                }
+                else if (t instanceof Error) {
+                    throw (Error)t;
+                }
+                else {
+                    throw e;
+                }
+            }
+        }
+    }
+}
@@ -217,6 +217,7 @@ public class TemplateLoader {
         private Class mClass;
 
         private transient Method mExecuteMethod;
+        private transient TemplateInvoker mInvoker;
         private transient Class mReturnType;
         private transient String[] mParameterNames;
         private transient Class[] mParameterTypes;
@@ -256,30 +257,9 @@ public class TemplateLoader {
         public void execute(Context context, Object[] parameters) 
             throws Exception
         {
-            int length = parameters.length;
-            Object[] args = new Object[1 + length];
-            args[0] = context;
-            for (int i=0; i<length; i++) {
-                args[i + 1] = parameters[i];
-            }
-
-            try {
-                Object ret = mExecuteMethod.invoke(null, args);
-                if (mReturnType != void.class) {
-                    context.print(ret);
-                }
-            }
-            catch (InvocationTargetException e) {
-                Throwable t = e.getTargetException();
-                if (t instanceof Exception) {
-                    throw (Exception)t;
-                }
-                else if (t instanceof Error) {
-                    throw (Error)t;
-                }
-                else {
-                    throw e;
-                }
+            Object ret = mInvoker.invoke(context, parameters);
+            if (mReturnType != void.class) {
+                context.print(ret);
             }
         }
 
@@ -342,6 +322,8 @@ public class TemplateLoader {
                      "for template \"" + getName() + "\"");
             }
 
+            mInvoker = TemplateInvoker.forMethod(mExecuteMethod);
+
             int length = methodParams.length - 1;
             mParameterNames = new String[length];
             mParameterTypes = new Class[length];
@@ -86,7 +86,7 @@ public class BeanAnalyzer {
 
     static {
         Introspector.setBeanInfoSearchPath(new String[0]);
-        cPropertiesCache = new IdentityMap();
+        cPropertiesCache = Collections.synchronizedMap(new IdentityMap());
     }
 
     /**
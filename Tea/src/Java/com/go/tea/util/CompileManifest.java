@@ -0,0 +1,473 @@
+/* ====================================================================
+ * Tea - Copyright (c) 1997-2000 Walt Disney Internet Group
+ * ====================================================================
+ * The Tea Software License, Version 1.1
+ *
+ * Copyright (c) 2000 Walt Disney Internet Group. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *        Walt Disney Internet Group (http://opensource.go.com/)."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Tea", "TeaServlet", "Kettle", "Trove" and "BeanDoc" must
+ *    not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact opensource@dig.com.
+ *
+ * 5. Products derived from this software may not be called "Tea",
+ *    "TeaServlet", "Kettle" or "Trove", nor may "Tea", "TeaServlet",
+ *    "Kettle", "Trove" or "BeanDoc" appear in their name, without prior
+ *    written permission of the Walt Disney Internet Group.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE WALT DISNEY INTERNET GROUP OR ITS
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ *
+ * For more information about Tea, please see http://opensource.go.com/.
+ */
+
+package com.go.tea.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.TreeSet;
+import com.go.tea.compiler.Compiler;
+import com.go.tea.compiler.CompilationUnit;
+import com.go.tea.compiler.Type;
+import com.go.tea.parsetree.FunctionCallExpression;
+import com.go.tea.parsetree.Template;
+import com.go.tea.parsetree.TemplateCallExpression;
+import com.go.tea.parsetree.TreeWalker;
+import com.go.tea.parsetree.Variable;
+
+/******************************************************************************
+ * Records what each compiled template depended on, so that a later build
+ * can tell if the template's class file is still current without relying
+ * on file timestamps. For each template, the manifest holds a hash of its
+ * source, a hash of every context function it calls, and the signatures of
+ * the templates it calls.
+ *
+ * <p>The manifest is stored as a properties file, and all methods are
+ * thread-safe.
+ *
+ * @author Brian S O'Neill
+ * @version
+ * <!--$$Revision$-->, <!--$$JustDate:--> <!-- $-->
+ * @see FileCompiler#setManifestEnabled
+ */
+class CompileManifest {
+    private static final String CONTEXT_KEY = "context";
+    private static final String SOURCE = ".source";
+    private static final String SIGNATURE = ".signature";
+    private static final String FUNCTIONS = ".functions";
+    private static final String CALLS = ".calls";
+
+    /**
+     * Returns a hex encoded MD5 digest of the given bytes.
+     */
+    static String digest(byte[] bytes, int length) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new InternalError(e.toString());
+        }
+        md.update(bytes, 0, length);
+        byte[] hash = md.digest();
+
+        char[] chars = new char[hash.length * 2];
+        for (int i=0; i<hash.length; i++) {
+            chars[i * 2] = Character.forDigit((hash[i] >> 4) & 0xf, 16);
+            chars[i * 2 + 1] = Character.forDigit(hash[i] & 0xf, 16);
+        }
+        return new String(chars);
+    }
+
+    static String digest(String str) {
+        byte[] bytes;
+        try {
+            bytes = str.getBytes("UTF-8");
+        }
+        catch (java.io.UnsupportedEncodingException e) {
+            bytes = str.getBytes();
+        }
+        return digest(bytes, bytes.length);
+    }
+
+    /**
+     * Returns a hex encoded MD5 digest of the file's contents.
+     */
+    static String digest(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[(int)file.length()];
+            int length = 0;
+            int amt;
+            while (length < buffer.length) {
+                amt = in.read(buffer, length, buffer.length - length);
+                if (amt <= 0) {
+                    break;
+                }
+                length += amt;
+            }
+            return digest(buffer, length);
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    private final File mFile;
+    private final Compiler mCompiler;
+    private final Properties mProperties;
+
+    // Maps context function names to digests of all their overloads.
+    private final Map mFunctionDigests = new HashMap();
+
+    // Names of templates that must be compiled, regardless of the manifest.
+    private final Set mForced = new HashSet();
+
+    // Maps names of templates recorded since the last resolve to the sets of
+    // template names they call. The signatures of the called templates are
+    // filled in only once compilation has finished, since a template in a
+    // group of mutually recursive templates can be recorded before the
+    // others in its group have their final signatures.
+    private final Map mUnresolvedCalls = new HashMap();
+
+    /**
+     * Loads the manifest from the given file, if it exists. If the file
+     * cannot be read, or if it was written for a different runtime context,
+     * the manifest starts out empty.
+     */
+    public CompileManifest(File file, Compiler compiler) {
+        mFile = file;
+        mCompiler = compiler;
+        mProperties = new Properties();
+
+        if (file.exists()) {
+            try {
+                InputStream in =
+                    new BufferedInputStream(new FileInputStream(file));
+                try {
+                    mProperties.load(in);
+                }
+                finally {
+                    in.close();
+                }
+            }
+            catch (IOException e) {
+                mProperties.clear();
+            }
+        }
+
+        String context = compiler.getRuntimeContext().getName();
+        if (!context.equals(mProperties.getProperty(CONTEXT_KEY))) {
+            mProperties.clear();
+            mProperties.setProperty(CONTEXT_KEY, context);
+        }
+    }
+
+    /**
+     * Returns true if the template's class file is current according to the
+     * manifest. This is so if the template has not been forced, its source
+     * has not changed, none of the context functions it calls have changed,
+     * and none of the templates it calls have changed signature since it
+     * was last compiled.
+     *
+     * @param name template name
+     * @param sourceDigest digest of the template's current source
+     */
+    public synchronized boolean isCurrent(String name, String sourceDigest) {
+        if (mForced.contains(name) ||
+            !sourceDigest.equals(mProperties.getProperty(name + SOURCE))) {
+            return false;
+        }
+
+        Map functions = parse(mProperties.getProperty(name + FUNCTIONS));
+        Iterator it = functions.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry entry = (Map.Entry)it.next();
+            String function = (String)entry.getKey();
+            if (!entry.getValue().equals(getFunctionDigest(function))) {
+                return false;
+            }
+        }
+
+        return findChangedCall(name) == null;
+    }
+
+    /**
+     * Returns the names of the templates in the manifest that call a
+     * template whose signature has changed since they were compiled, or
+     * that call a template that no longer exists. Must only be called once
+     * compilation has finished.
+     */
+    public synchronized String[] getBrokenCallers() {
+        resolveCalls();
+        Set callers = new TreeSet();
+        Iterator it = mProperties.keySet().iterator();
+        while (it.hasNext()) {
+            String key = (String)it.next();
+            if (key.endsWith(CALLS)) {
+                String name = key.substring(0, key.length() - CALLS.length());
+                if (findChangedCall(name) != null) {
+                    callers.add(name);
+                }
+            }
+        }
+        return (String[])callers.toArray(new String[callers.size()]);
+    }
+
+    /**
+     * Forces the named template to be reported as not current.
+     */
+    public synchronized void force(String name) {
+        mForced.add(name);
+    }
+
+    /**
+     * Records what a freshly compiled template depends on. Must be called
+     * before the template's parse tree is clipped.
+     */
+    public void record(CompilationUnit unit, Template tree,
+                       String sourceDigest) {
+        final Set functions = new TreeSet();
+        final Set calls = new TreeSet();
+
+        functions.add(mCompiler.getRuntimeReceiver());
+        String converter = mCompiler.getRuntimeStringConverter();
+        if (converter != null) {
+            functions.add(converter);
+        }
+
+        tree.accept(new TreeWalker() {
+            public Object visit(FunctionCallExpression node) {
+                Method m = node.getCalledMethod();
+                if (m != null) {
+                    functions.add(m.getName());
+                }
+                return super.visit(node);
+            }
+
+            public Object visit(TemplateCallExpression node) {
+                CompilationUnit called = node.getCalledTemplate();
+                if (called != null) {
+                    calls.add(called.getName());
+                }
+                return super.visit(node);
+            }
+        });
+
+        StringBuffer functionList = new StringBuffer();
+        Iterator it = functions.iterator();
+        while (it.hasNext()) {
+            String function = (String)it.next();
+            append(functionList, function, getFunctionDigest(function));
+        }
+
+        String name = unit.getName();
+        synchronized (this) {
+            mProperties.setProperty(name + SOURCE, sourceDigest);
+            mProperties.setProperty(name + SIGNATURE, signature(tree));
+            mProperties.setProperty(name + FUNCTIONS, functionList.toString());
+            mProperties.remove(name + CALLS);
+            mUnresolvedCalls.put(name, calls);
+            mForced.remove(name);
+        }
+    }
+
+    /**
+     * Writes the manifest back to its file, discarding entries for templates
+     * that no longer exist. Must only be called once compilation has
+     * finished.
+     */
+    public synchronized void save() throws IOException {
+        resolveCalls();
+        Iterator it = mProperties.keySet().iterator();
+        while (it.hasNext()) {
+            String key = (String)it.next();
+            int index = key.lastIndexOf('.');
+            if (index > 0 && !mCompiler.sourceExists(key.substring(0, index))) {
+                it.remove();
+            }
+        }
+
+        OutputStream out =
+            new BufferedOutputStream(new FileOutputStream(mFile));
+        try {
+            mProperties.store(out, "Tea compile manifest");
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Records the signatures of the templates called by the templates
+     * recorded since the last resolve, taken from the called templates' own
+     * entries. A called template without an entry, because it has never
+     * compiled successfully, is recorded with an empty signature, and so
+     * its callers are compiled again once it compiles.
+     */
+    private void resolveCalls() {
+        Iterator it = mUnresolvedCalls.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry entry = (Map.Entry)it.next();
+            StringBuffer callList = new StringBuffer();
+            Iterator calls = ((Set)entry.getValue()).iterator();
+            while (calls.hasNext()) {
+                String called = (String)calls.next();
+                append(callList, called,
+                       mProperties.getProperty(called + SIGNATURE, ""));
+            }
+            mProperties.setProperty
+                ((String)entry.getKey() + CALLS, callList.toString());
+        }
+        mUnresolvedCalls.clear();
+    }
+
+    /**
+     * Returns the name of the first template called by the named one whose
+     * signature no longer matches, or null if all match.
+     */
+    private String findChangedCall(String name) {
+        Map calls = parse(mProperties.getProperty(name + CALLS));
+        Iterator it = calls.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry entry = (Map.Entry)it.next();
+            String called = (String)entry.getKey();
+            if (!mCompiler.sourceExists(called)) {
+                return called;
+            }
+            // A called template that has never compiled successfully has no
+            // signature to compare against. Its callers are checked again
+            // once it compiles.
+            String signature = mProperties.getProperty(called + SIGNATURE);
+            if (signature != null && !signature.equals(entry.getValue())) {
+                return called;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns a digest of the signatures of all the context methods with
+     * the given name. Adding, removing or changing any overload changes the
+     * digest, since that can change which method a template binds to.
+     */
+    private synchronized String getFunctionDigest(String function) {
+        String digest = (String)mFunctionDigests.get(function);
+        if (digest == null) {
+            Method[] methods = mCompiler.getRuntimeContextMethods();
+            String[] signatures = new String[methods.length];
+            int count = 0;
+            for (int i=0; i<methods.length; i++) {
+                Method m = methods[i];
+                if (m.getName().equals(function)) {
+                    signatures[count++] = m.toString();
+                }
+            }
+            Arrays.sort(signatures, 0, count);
+
+            StringBuffer buf = new StringBuffer();
+            for (int i=0; i<count; i++) {
+                buf.append(signatures[i]);
+                buf.append('\n');
+            }
+            digest = digest(buf.toString());
+            mFunctionDigests.put(function, digest);
+        }
+        return digest;
+    }
+
+    private static String signature(Template tree) {
+        StringBuffer buf = new StringBuffer();
+        buf.append('(');
+        Variable[] params = tree.getParams();
+        if (params != null) {
+            for (int i=0; i<params.length; i++) {
+                if (i > 0) {
+                    buf.append(',');
+                }
+                buf.append(params[i].getType());
+            }
+        }
+        buf.append(')');
+        Type returnType = tree.getReturnType();
+        buf.append(returnType);
+        if (tree.hasSubstitutionParam()) {
+            buf.append("...");
+        }
+        return digest(buf.toString());
+    }
+
+    private static void append(StringBuffer list, String key, String value) {
+        if (list.length() > 0) {
+            list.append(' ');
+        }
+        list.append(key);
+        list.append('=');
+        list.append(value);
+    }
+
+    /**
+     * Parses a list of key=value pairs separated by spaces.
+     */
+    private static Map parse(String list) {
+        Map map = new HashMap();
+        if (list != null) {
+            StringTokenizer st = new StringTokenizer(list, " ");
+            while (st.hasMoreTokens()) {
+                String pair = st.nextToken();
+                int index = pair.indexOf('=');
+                if (index > 0) {
+                    map.put(pair.substring(0, index),
+                            pair.substring(index + 1));
+                }
+            }
+        }
+        return map;
+    }
+}
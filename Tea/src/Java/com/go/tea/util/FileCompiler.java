@@ -67,10 +67,14 @@ import java.util.TreeSet;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.Collections;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.HashSet;
 import com.go.trove.util.ClassInjector;
 import com.go.trove.io.DualOutput;
 import com.go.tea.compiler.Compiler;
 import com.go.tea.compiler.CompilationUnit;
+import com.go.tea.parsetree.Template;
 
 /******************************************************************************
  * FileCompiler compiles tea source files by reading them from a file or a
@@ -89,6 +93,9 @@ import com.go.tea.compiler.CompilationUnit;
  * @see ClassInjector
  */
 public class FileCompiler extends AbstractFileCompiler {
+    /** Name of the compile manifest file kept in the destination directory */
+    public static final String MANIFEST_NAME = "tea-manifest.properties";
+
     /**
      * Entry point for a command-line tool suitable for compiling Tea
      * templates to be bundled with a product. Templates are read from files
@@ -106,6 +113,8 @@ public class FileCompiler extends AbstractFileCompiler {
      * -package &lt;package&gt;   Root package to compile templates into.
      * -encoding &lt;encoding&gt; Specify character encoding used by source files.
      * -guardian            Enable the exception guardian.
+     * -workers &lt;count&gt;     Number of threads used to compile templates.
+     * -manifest            Use a compile manifest instead of file timestamps.
      * </pre>
      */
     public static void main(String[] args) throws Exception {
@@ -120,6 +129,8 @@ public class FileCompiler extends AbstractFileCompiler {
         String rootPackage = null;
         String encoding = null;
         boolean guardian = false;
+        int workers = 0;
+        boolean manifest = false;
         File rootDir = null;
         Collection templates = new ArrayList(args.length);
 
@@ -152,6 +163,16 @@ public class FileCompiler extends AbstractFileCompiler {
                         guardian = true;
                         continue;
                     }
+                    else if (arg.equals("-workers") && workers == 0) {
+                        workers = Integer.parseInt(args[i++]);
+                        if (workers > 0) {
+                            continue;
+                        }
+                    }
+                    else if (arg.equals("-manifest") && !manifest) {
+                        manifest = true;
+                        continue;
+                    }
                 }
                 else {
                     if (parsingOptions) {
@@ -180,6 +201,10 @@ public class FileCompiler extends AbstractFileCompiler {
             usage();
             return;
         }
+        catch (NumberFormatException e) {
+            usage();
+            return;
+        }
 
         if (rootDir == null) {
             usage();
@@ -201,6 +226,10 @@ public class FileCompiler extends AbstractFileCompiler {
         compiler.setForceCompile(force);
         compiler.addErrorListener(new ConsoleErrorReporter(System.out));
         compiler.setExceptionGuardianEnabled(guardian);
+        if (workers > 0) {
+            compiler.setWorkerCount(workers);
+        }
+        compiler.setManifestEnabled(manifest);
 
         String[] names;
         if (templates.size() == 0) {
@@ -230,7 +259,9 @@ public class FileCompiler extends AbstractFileCompiler {
             " -force               Compile all templates, even if up-to-date.\n" +
             " -package <package>   Root package to compile templates into.\n" +
             " -encoding <encoding> Specify character encoding used by source files.\n" +
-            " -guardian            Enable the exception guardian.";
+            " -guardian            Enable the exception guardian.\n" +
+            " -workers <count>     Number of threads used to compile templates.\n" +
+            " -manifest            Use a compile manifest instead of file timestamps.";
 
         System.out.print("\nUsage: ");
         System.out.print("java ");
@@ -247,6 +278,8 @@ public class FileCompiler extends AbstractFileCompiler {
     private ClassInjector mInjector;
     private String mEncoding;
     private boolean mForce = false;
+    private boolean mUseManifest = false;
+    private CompileManifest mManifest;
     
     /**
      * @param rootSourceDir Required root source directory
@@ -358,6 +391,81 @@ public class FileCompiler extends AbstractFileCompiler {
         mForce = force;
     }
 
+    /**
+     * When enabled, and a destination directory is set, a manifest file named
+     * {@link #MANIFEST_NAME} is kept in the destination directory. It
+     * records a hash of each compiled template's source, of the context
+     * functions it calls and of the signatures of the templates it calls.
+     * Templates are then only recompiled when one of those has changed,
+     * rather than when the source file is newer than the class file.
+     * Templates not yet in the manifest are always compiled.
+     *
+     * @param enabled When true, use the compile manifest. Default is false.
+     */
+    public void setManifestEnabled(boolean enabled) {
+        mUseManifest = enabled;
+    }
+
+    public boolean isManifestEnabled() {
+        return mUseManifest;
+    }
+
+    /**
+     * Compiles the given templates. If the compile manifest is enabled,
+     * templates that call any template whose signature changed are
+     * compiled too, and the manifest is updated afterwards.
+     */
+    public String[] compile(String[] names) throws IOException {
+        if (!mUseManifest || mRootDestDir == null) {
+            return super.compile(names);
+        }
+
+        if (mManifest == null) {
+            mManifest = new CompileManifest
+                (new File(mRootDestDir, MANIFEST_NAME), this);
+        }
+
+        String[] compiled = super.compile(names);
+
+        // Compiling may have changed template signatures, and so callers
+        // must be compiled again, which can cascade.
+        while (!Thread.currentThread().isInterrupted()) {
+            String[] callers = mManifest.getBrokenCallers();
+            Set done = new HashSet(Arrays.asList(compiled));
+            Collection toCompile = new ArrayList(callers.length);
+            for (int i=0; i<callers.length; i++) {
+                if (!done.contains(callers[i]) && sourceExists(callers[i])) {
+
+                    mManifest.force(callers[i]);
+                    toCompile.add(callers[i]);
+                }
+            }
+            if (toCompile.size() == 0) {
+                break;
+            }
+            compiled = super.compile
+                ((String[])toCompile.toArray(new String[toCompile.size()]));
+        }
+
+        mManifest.save();
+        return compiled;
+    }
+
+    /**
+     * Records the compiled template in the manifest, if enabled.
+     */
+    protected void compiled(CompilationUnit unit, Template tree) {
+        if (mManifest != null) {
+            try {
+                mManifest.record(unit, tree, ((Unit)unit).getSourceDigest());
+            }
+            catch (IOException e) {
+                // Not recording means the template is compiled again next
+                // time, which is safe.
+            }
+        }
+    }
+
     /**
      * Compiles all files in the source directory.
      *
@@ -474,6 +582,7 @@ public class FileCompiler extends AbstractFileCompiler {
         private final String mSourceFileName;
         private final File mSourceFile;
         private final File mDestFile;
+        private String mSourceDigest;
 
         Unit(String name, Compiler compiler) {
             super(name, compiler);
@@ -521,17 +630,36 @@ public class FileCompiler extends AbstractFileCompiler {
         }
         
         public boolean shouldCompile() {
-            if (!mForce &&
-                mDestFile != null &&
-                mDestFile.exists() &&
-                mDestFile.lastModified() >= mSourceFile.lastModified()) {
+            if (!mForce && mDestFile != null && mDestFile.exists()) {
+                if (mManifest != null) {
+                    try {
+                        return !mManifest.isCurrent
+                            (getName(), getSourceDigest());
+                    }
+                    catch (IOException e) {
+                        return true;
+                    }
+                }
 
-                return false;
+                if (mDestFile.lastModified() >= mSourceFile.lastModified()) {
+                    return false;
+                }
             }
 
             return true;
         }
 
+        /**
+         * Returns a hex encoded digest of the source file's contents, which
+         * is computed only once.
+         */
+        public synchronized String getSourceDigest() throws IOException {
+            if (mSourceDigest == null) {
+                mSourceDigest = CompileManifest.digest(mSourceFile);
+            }
+            return mSourceDigest;
+        }
+
         /**
          * @return the file that gets written by the compiler.
          */
@@ -26,11 +26,18 @@ public class ApplicationContextSource implements DynamicContextSource {
 
     private Application mApp;
     private boolean mContextTypeMayChange;
+    // Is non-null if the Application's contexts can be reused per thread.
+    private ReusableContextApplication mReusableApp;
+    private ThreadLocal mLastContext;
 
     public ApplicationContextSource(Application app) {
         mApp = app;
         // storing this saves an instanceof call for every hit.
         mContextTypeMayChange = (app instanceof DynamicContextSource);
+        if (app instanceof ReusableContextApplication) {
+            mReusableApp = (ReusableContextApplication)app;
+            mLastContext = new ThreadLocal();
+        }
     }
 
     /**
@@ -47,7 +54,19 @@ public class ApplicationContextSource implements DynamicContextSource {
         } else {
             rar = new RequestAndResponse();
         }
-        return mApp.createContext(rar.getRequest(), rar.getResponse());
+
+        if (mReusableApp == null) {
+            return mApp.createContext(rar.getRequest(), rar.getResponse());
+        }
+
+        Object context = mLastContext.get();
+        if (context == null || !mReusableApp.resetContext
+            (context, rar.getRequest(), rar.getResponse())) {
+
+            context = mApp.createContext(rar.getRequest(), rar.getResponse());
+            mLastContext.set(context);
+        }
+        return context;
     }
 
     public Object createContext(Class clazz, Object param) throws Exception {
@@ -57,6 +57,8 @@ import java.io.OutputStream;
 import java.io.Writer;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 import java.util.zip.CRC32;
 import javax.servlet.ServletOutputStream;
@@ -69,7 +71,9 @@ import com.go.trove.io.ByteBuffer;
 import com.go.trove.io.DefaultByteBuffer;
 import com.go.trove.io.ByteBufferOutputStream;
 import com.go.trove.io.CharToByteBufferWriter;
+import com.go.trove.io.SlabByteData;
 import com.go.trove.log.Log;
+import com.go.trove.util.CRC32Utils;
 import com.go.trove.util.Deflater;
 import com.go.trove.util.DeflaterPool;
 import com.go.trove.util.DeflaterOutputStream;
@@ -127,6 +131,9 @@ class ApplicationResponseImpl extends FilteredHttpServletResponse
     private ServletOutputStream mOut;
     private PrintWriter mWriter;
 
+    // Leases on off-heap data, released when the response is finished.
+    private List mLeases;
+
     private int mCompressedSegments;
 
     ApplicationResponseImpl(HttpServletResponse response, 
@@ -313,6 +320,7 @@ class ApplicationResponseImpl extends FilteredHttpServletResponse
 
     public void finish() throws IOException {
         if (mState != 0) {
+            releaseLeases();
             return;
         }
 
@@ -335,10 +343,12 @@ class ApplicationResponseImpl extends FilteredHttpServletResponse
 
             setHeader("Content-Encoding", "gzip");
             
+            // Pre-compressed segments report their length without being
+            // read, and so only the uncompressed gaps are counted here.
             LengthComputer lc =
                 new LengthComputer(mCompressedSegments * 2 + 1);
             bytes.writeTo(lc);
-            lc.nextSegment(false);
+            lc.finishSegment();
 
             // Add overhead of GZIP header, final blank block, and GZIP footer
             // to computed length.
@@ -348,15 +358,18 @@ class ApplicationResponseImpl extends FilteredHttpServletResponse
             // Write GZIP header.
             out.write(GZIP_HEADER);
 
-            // Write out GZIP blocks.
-            bytes.writeTo(new FinalOut(out, lc.mSegments));
+            // Write out GZIP blocks, computing the CRC-32 of the uncompressed
+            // gaps as they are written. Pre-compressed segments supply their
+            // own CRC-32.
+            FinalOut fout = new FinalOut(out, lc.mSegments);
+            bytes.writeTo(fout);
 
             // Write final blank block header.
             out.write(FINAL_BLANK_HEADER);
 
             // Write GZIP footer.
             //   CRC-32 of uncompressed bytes.
-            writeInt(out, computeCRC(bytes));
+            writeInt(out, fout.getCRC());
             //   Count of uncompressed bytes.
             writeInt(out, (int)length);
         }
@@ -367,6 +380,32 @@ class ApplicationResponseImpl extends FilteredHttpServletResponse
             catch (IOException e) {
                 mLog.warn(e);
             }
+            releaseLeases();
+        }
+    }
+
+    /**
+     * Called from DetachedResponseImpl to keep off-heap data pinned until
+     * this response is finished.
+     */
+    void addLease(SlabByteData.Lease lease) {
+        if (mLeases == null) {
+            mLeases = new ArrayList();
+        }
+        mLeases.add(lease);
+    }
+
+    /**
+     * Releases all the leases held by this response. Is called when the
+     * response is finished, or when it never will be.
+     */
+    void releaseLeases() {
+        List leases = mLeases;
+        if (leases != null) {
+            mLeases = null;
+            for (int i=leases.size(); --i>=0; ) {
+                ((SlabByteData.Lease)leases.get(i)).release();
+            }
         }
     }
 
@@ -377,53 +416,46 @@ class ApplicationResponseImpl extends FilteredHttpServletResponse
         mRequest = req;
     }
 
-    // Called from DetachedResponseImpl.
-    void appendCompressed(ByteData compressed, ByteData original)
+    /**
+     * Called from DetachedResponseImpl.
+     *
+     * @param crc CRC-32 of original data
+     * @param length length of original data
+     * @param compressedLength length of compressed data
+     */
+    void appendCompressed(ByteData compressed, ByteData original,
+                          int crc, long length, long compressedLength)
         throws IOException
     {
         mCompressedSegments++;
-        mBuffer.appendSurrogate(new CompressedData(compressed, original));
-    }
-
-    private int computeCRC(ByteData bytes) throws IOException {
-        final CRC32 crc = new CRC32();
-
-        OutputStream out = new OutputStream() {
-            public void write(int b) {
-                crc.update(b);
-            }
-                
-            public void write(byte[] b) {
-                crc.update(b, 0, b.length);
-            }
-
-            public void write(byte[] b, int off, int len) {
-                crc.update(b, off, len);
-            }
-        };
-
-        bytes.writeTo(out);
-        return (int)crc.getValue();
+        mBuffer.appendSurrogate(new CompressedData
+                                (compressed, original, crc,
+                                 length, compressedLength));
     }
 
     private static class CompressedData implements ByteData {
-        private final ByteData mCompressed;
-        private final ByteData mOriginal;
-
-        CompressedData(ByteData compressed, ByteData original) {
+        final ByteData mCompressed;
+        final ByteData mOriginal;
+        final int mCRC;
+        final long mLength;
+        final long mCompressedLength;
+
+        CompressedData(ByteData compressed, ByteData original,
+                       int crc, long length, long compressedLength) {
             mCompressed = compressed;
             mOriginal = original;
+            mCRC = crc;
+            mLength = length;
+            mCompressedLength = compressedLength;
         }
 
         public long getByteCount() throws IOException {
-            return mOriginal.getByteCount();
+            return mLength;
         }
 
         public void writeTo(OutputStream out) throws IOException {
             if (out instanceof Segmented) {
-                ((Segmented)out).nextSegment(true);
-                mCompressed.writeTo(out);
-                ((Segmented)out).nextSegment(false);
+                ((Segmented)out).appendCompressed(this);
             }
             else {
                 mOriginal.writeTo(out);
@@ -436,7 +468,10 @@ class ApplicationResponseImpl extends FilteredHttpServletResponse
     }
 
     private interface Segmented {
-        void nextSegment(boolean preCompressed);
+        /**
+         * Called in place of writing the bytes of a pre-compressed segment.
+         */
+        void appendCompressed(CompressedData data) throws IOException;
     }
 
     // Output is discarded, but is used to compute final content length of
@@ -444,33 +479,35 @@ class ApplicationResponseImpl extends FilteredHttpServletResponse
     private static class LengthComputer extends OutputStream
         implements Segmented
     {
+        // If negative, is pre-compressed.
         int[] mSegments;
         int mSegCount;
 
-        // If negative, is pre-compressed.
         private int mCurrentSegment;
-        // If -1, is accepting pre-compressed bytes.
-        private int mSign = 1;
 
         LengthComputer(int segmentCount) {
             mSegments = new int[segmentCount];
         }
 
         public void write(int b) {
-            mCurrentSegment += mSign;
+            mCurrentSegment++;
         }
 
         public void write(byte[] b) {
-            mCurrentSegment += b.length * mSign;
+            mCurrentSegment += b.length;
         }
 
         public void write(byte[] b, int off, int len) {
-            mCurrentSegment += len * mSign;
+            mCurrentSegment += len;
+        }
+
+        public void appendCompressed(CompressedData data) {
+            finishSegment();
+            mSegments[mSegCount++] = -(int)data.mCompressedLength;
         }
 
-        public void nextSegment(boolean preCompressed) {
+        void finishSegment() {
             mSegments[mSegCount++] = mCurrentSegment;
-            mSign = preCompressed ? -1 : 1;
             mCurrentSegment = 0;
         }
 
@@ -498,23 +535,26 @@ class ApplicationResponseImpl extends FilteredHttpServletResponse
         private int[] mSegments;
         private int mCursor;
 
-        // Remaining space in current block. If negative, is accepting
-        // pre-compressed blocks.
+        // Remaining space in current block.
         private int mBlockLen;
 
+        // CRC-32 of all bytes up to the current gap.
+        private int mCRC;
+        // CRC-32 and length of the current gap of uncompressed bytes.
+        private final CRC32 mGapCRC = new CRC32();
+        private long mGapLength;
+
         FinalOut(OutputStream out, int[] segments) {
             mFinOut = out;
             mSegments = segments;
         }
 
         public void write(int b) throws IOException {
-            if (mBlockLen < 0) {
-                mFinOut.write(b);
-                return;
-            }
             if (nextBlock(1) > 0) {
                 mFinOut.write(b);
                 mBlockLen--;
+                mGapCRC.update(b);
+                mGapLength++;
             }
         }
 
@@ -523,25 +563,45 @@ class ApplicationResponseImpl extends FilteredHttpServletResponse
         }
 
         public void write(byte[] b, int off, int len) throws IOException {
-            if (mBlockLen < 0) {
-                mFinOut.write(b, off, len);
-                return;
-            }
             while (len > 0) {
                 int amt = nextBlock(len);
                 if (amt <= 0) {
                     break;
                 }
                 mFinOut.write(b, off, amt);
+                mGapCRC.update(b, off, amt);
+                mGapLength += amt;
                 len -= amt;
                 off += amt;
                 mBlockLen -= amt;
             }
         }
 
-        public void nextSegment(boolean preCompressed) {
-            mCursor++;
-            mBlockLen = preCompressed ? -1 : 0;
+        public void appendCompressed(CompressedData data) throws IOException {
+            finishGap();
+            data.mCompressed.writeTo(mFinOut);
+            mCRC = CRC32Utils.combine(mCRC, data.mCRC, data.mLength);
+            // Skip over the pre-compressed segment to the next gap.
+            mCursor += 2;
+            mBlockLen = 0;
+        }
+
+        /**
+         * Returns the CRC-32 of all the uncompressed bytes written so far,
+         * including those that were pre-compressed.
+         */
+        int getCRC() {
+            finishGap();
+            return mCRC;
+        }
+
+        private void finishGap() {
+            if (mGapLength > 0) {
+                mCRC = CRC32Utils.combine
+                    (mCRC, (int)mGapCRC.getValue(), mGapLength);
+                mGapCRC.reset();
+                mGapLength = 0;
+            }
         }
 
         // Returns amount that can be written to block.
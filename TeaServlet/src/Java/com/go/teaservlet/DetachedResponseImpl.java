@@ -52,24 +52,34 @@
 
 package com.go.teaservlet;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.NotSerializableException;
 import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.Locale;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.Cookie;
 import com.go.teaservlet.io.CharToByteBuffer;
 import com.go.teaservlet.io.DefaultCharToByteBuffer;
 import com.go.teaservlet.io.InternedCharToByteBuffer;
+import com.go.trove.io.ArrayByteData;
 import com.go.trove.io.ByteData;
 import com.go.trove.io.ByteBuffer;
 import com.go.trove.io.DefaultByteBuffer;
 import com.go.trove.io.ByteBufferOutputStream;
+import com.go.trove.io.SlabAllocator;
+import com.go.trove.io.SlabByteData;
 import com.go.trove.util.Deflater;
 import com.go.trove.util.DeflaterPool;
 import com.go.trove.util.DeflaterOutputStream;
+import com.go.trove.util.Depot;
 import com.go.trove.log.Log;
 import com.go.tea.runtime.Substitution;
 
@@ -83,28 +93,214 @@ class DetachedResponseImpl extends ApplicationResponseImpl {
     // Minimum data size to compress.
     private static final int MINIMUM_SIZE = 100;
 
-    static ByteData compressByteData(ByteData original, int level) {
+    // Command codes used by the compact binary form of DetachedData.
+    private static final byte SET_CONTENT_TYPE = 1;
+    private static final byte ADD_COOKIE = 2;
+    private static final byte SET_HEADER = 3;
+    private static final byte ADD_HEADER = 4;
+    private static final byte SET_STATUS = 5;
+    private static final byte SEND_ERROR = 6;
+    private static final byte SEND_REDIRECT = 7;
+    private static final byte ADD_BYTE_DATA = 8;
+    private static final byte COMPRESSED_BYTE_DATA = 9;
+
+    // Header value type codes.
+    private static final byte STRING_VALUE = 0;
+    private static final byte DATE_VALUE = 1;
+    private static final byte INT_VALUE = 2;
+
+    /**
+     * Compresses the original data, computing its CRC-32 at the same time so
+     * that the original data need not be read again when the compressed
+     * data is sent.
+     */
+    static CompressedByteData compressByteData(ByteData original, int level) {
         ByteBuffer compressed = new DefaultByteBuffer();
         OutputStream cout = new ByteBufferOutputStream(compressed);
+        CRC32 crc = new CRC32();
+        long length;
 
         try {
-            if (original.getByteCount() < MINIMUM_SIZE) {
+            length = original.getByteCount();
+            if (length < MINIMUM_SIZE) {
                 level = Deflater.NO_COMPRESSION;
             }
             
             Deflater d = DeflaterPool.get(level, true);
             
             DeflaterOutputStream dout = new DeflaterOutputStream(cout, d, 512);
-            original.writeTo(dout);
+            original.writeTo(new CheckedOutputStream(dout, crc));
             dout.fullFlush();
 
             DeflaterPool.put(d);
+
+            return new CompressedByteData
+                (compressed, original, (int)crc.getValue(), length,
+                 compressed.getByteCount());
         }
         catch (IOException e) {
             throw new InternalError(e.toString());
         }
+    }
+
+    /**
+     * Moves the byte data of the given DetachedData into off-heap memory,
+     * where it may be evicted. If it is evicted, the DetachedData is no longer
+     * valid, as reported by {@link Depot.Perishable}.
+     */
+    static void storeOffHeap(DetachedData data, SlabAllocator allocator)
+        throws IOException
+    {
+        if (data instanceof Data) {
+            ((Data)data).store(allocator);
+        }
+    }
+
+    /**
+     * Plays back the given DetachedData, unless any of its byte data has
+     * been evicted from off-heap memory.
+     *
+     * @return false if evicted and nothing was played back
+     */
+    static boolean playback(DetachedData data,
+                            ApplicationRequest request,
+                            ApplicationResponse response)
+        throws Exception
+    {
+        if (data instanceof Data) {
+            return ((Data)data).tryPlayback(request, response);
+        }
+        data.playback(request, response);
+        return true;
+    }
+
+    /**
+     * Returns a copy of the given ByteData in off-heap memory, or the original
+     * if it cannot be stored.
+     */
+    static ByteData store(ByteData bytes, SlabAllocator allocator)
+        throws IOException
+    {
+        if (bytes instanceof SlabByteData) {
+            return bytes;
+        }
+        ByteData stored = allocator.store(bytes);
+        return stored == null ? bytes : stored;
+    }
+
+    static boolean isEvicted(ByteData bytes) {
+        return bytes instanceof SlabByteData &&
+            ((SlabByteData)bytes).isEvicted();
+    }
+
+    /**
+     * Returns a lease on the given ByteData if stored off-heap, adding it to
+     * the given list. Returns null if evicted, or else the original.
+     */
+    static ByteData lease(ByteData bytes, List leases) {
+        if (!(bytes instanceof SlabByteData)) {
+            return bytes;
+        }
+        SlabByteData.Lease lease = ((SlabByteData)bytes).lease();
+        if (lease != null) {
+            leases.add(lease);
+        }
+        return lease;
+    }
+
+    /**
+     * Writes the given DetachedData in a compact binary form, which is more
+     * efficient than serialization. Only data produced by a detached
+     * response can be written, and not if it contains commands inserted by
+     * an application.
+     *
+     * @throws NotSerializableException if the data cannot be written
+     * @see #readData
+     */
+    static void writeData(DetachedData data, DataOutput out)
+        throws IOException
+    {
+        if (!(data instanceof Data)) {
+            throw new NotSerializableException(data.getClass().getName());
+        }
+        ((Data)data).writeTo(out);
+    }
+
+    /**
+     * Reads DetachedData that was written by writeData. Its byte data is
+     * kept on the heap. Malformed input causes an IOException to be thrown,
+     * and if the input is an in-memory stream, lengths are checked against
+     * what it has available before allocating.
+     */
+    static DetachedData readData(DataInput in) throws IOException {
+        Data data = new Data();
+        data.readFrom(in);
+        return data;
+    }
+
+    private static void writeString(DataOutput out, String str)
+        throws IOException
+    {
+        if (str == null) {
+            out.writeBoolean(false);
+        }
+        else {
+            out.writeBoolean(true);
+            out.writeUTF(str);
+        }
+    }
 
-        return compressed;
+    private static String readString(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeBytes(final DataOutput out, ByteData bytes)
+        throws IOException
+    {
+        long count = bytes.getByteCount();
+        if (count > Integer.MAX_VALUE) {
+            throw new IOException("Byte data too large: " + count);
+        }
+        out.writeInt((int)count);
+
+        final long[] written = new long[1];
+        bytes.writeTo(new OutputStream() {
+            public void write(int b) throws IOException {
+                out.write(b);
+                written[0]++;
+            }
+
+            public void write(byte[] b, int offset, int length)
+                throws IOException
+            {
+                out.write(b, offset, length);
+                written[0] += length;
+            }
+        });
+
+        if (written[0] != count) {
+            throw new IOException
+                ("Byte data count mismatch: " + written[0] + " != " + count);
+        }
+    }
+
+    /**
+     * Reads a count of bytes or commands that follow, which cannot exceed
+     * what an in-memory input stream has available.
+     */
+    private static int readLength(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || (in instanceof InputStream &&
+                           length > ((InputStream)in).available())) {
+            throw new IOException("Invalid length: " + length);
+        }
+        return length;
+    }
+
+    private static ByteData readBytes(DataInput in) throws IOException {
+        byte[] bytes = new byte[readLength(in)];
+        in.readFully(bytes);
+        return new ArrayByteData(bytes);
     }
 
     private final SwappableBuffer mSwappableBuffer;
@@ -290,16 +486,128 @@ class DetachedResponseImpl extends ApplicationResponseImpl {
         }
     }
 
-    private static class Data implements DetachedData, Serializable {
+    private static class Data
+        implements DetachedData, Depot.Perishable, Serializable
+    {
         private List mCommands;
         private boolean mCompressed;
 
+        // Set when byte data is stored off-heap.
+        private transient SlabAllocator mAllocator;
+
         public void playback(ApplicationRequest request,
                              ApplicationResponse response) throws Exception {
-            if (mCommands != null) {
-                int size = mCommands.size();
+            if (!tryPlayback(request, response)) {
+                throw new IOException("Cached data has been evicted");
+            }
+        }
+
+        boolean tryPlayback(ApplicationRequest request,
+                            ApplicationResponse response) throws Exception {
+            List commands = mCommands;
+            if (commands == null) {
+                return true;
+            }
+
+            int size = commands.size();
+
+            if (mAllocator == null) {
+                for (int i=0; i<size; i++) {
+                    ((Command)commands.get(i)).execute(request, response);
+                }
+                return true;
+            }
+
+            // Lease the off-heap byte data that will be written before
+            // executing any commands, so that none of it is evicted before
+            // the response is written out.
+            Command[] leased = new Command[size];
+            List leases = new ArrayList();
+            try {
+                for (int i=0; i<size; i++) {
+                    Command command = (Command)commands.get(i);
+                    if (command instanceof AddByteData) {
+                        command = ((AddByteData)command).lease(leases);
+                    }
+                    else if (command instanceof CompressedByteData) {
+                        command = ((CompressedByteData)command)
+                            .lease(leases, request, response);
+                    }
+                    if (command == null) {
+                        return false;
+                    }
+                    leased[i] = command;
+                }
+
+                if (response instanceof ApplicationResponseImpl &&
+                    !(response instanceof DetachedResponseImpl)) {
+                    // Data is written when the response is finished, and
+                    // so the response releases the leases.
+                    ApplicationResponseImpl impl =
+                        (ApplicationResponseImpl)response;
+                    for (int i=0; i<leases.size(); i++) {
+                        impl.addLease((SlabByteData.Lease)leases.get(i));
+                    }
+                    leases.clear();
+                }
+
                 for (int i=0; i<size; i++) {
-                    ((Command)mCommands.get(i)).execute(request, response);
+                    leased[i].execute(request, response);
+                }
+                return true;
+            }
+            finally {
+                // Release leases not held by the response, either because
+                // some data was evicted, or because the data has been
+                // copied into an enclosing detached response.
+                for (int i=leases.size(); --i>=0; ) {
+                    ((SlabByteData.Lease)leases.get(i)).release();
+                }
+            }
+        }
+
+        /**
+         * Returns false if any off-heap byte data has been evicted.
+         */
+        public boolean isValid() {
+            List commands = mCommands;
+            if (mAllocator == null || commands == null) {
+                return true;
+            }
+            int size = commands.size();
+            for (int i=0; i<size; i++) {
+                Object command = commands.get(i);
+                if (command instanceof AddByteData) {
+                    if (isEvicted(((AddByteData)command).mBytes)) {
+                        return false;
+                    }
+                }
+                else if (command instanceof CompressedByteData) {
+                    if (((CompressedByteData)command).isEvicted()) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        synchronized void store(SlabAllocator allocator) throws IOException {
+            mAllocator = allocator;
+            List commands = mCommands;
+            if (commands == null) {
+                return;
+            }
+            int size = commands.size();
+            for (int i=0; i<size; i++) {
+                Object command = commands.get(i);
+                if (command instanceof AddByteData) {
+                    ByteData bytes = ((AddByteData)command).mBytes;
+                    bytes = DetachedResponseImpl.store(bytes, allocator);
+                    commands.set(i, new AddByteData(bytes));
+                }
+                else if (command instanceof CompressedByteData) {
+                    CompressedByteData c = (CompressedByteData)command;
+                    commands.set(i, c.store(allocator, c.mOriginal));
                 }
             }
         }
@@ -335,17 +643,39 @@ class DetachedResponseImpl extends ApplicationResponseImpl {
                     return;
                 }
 
+                SlabAllocator allocator = mAllocator;
+
                 for (int i=0; i<size; i++) {
                     Object command = commands.get(i);
                     if (command instanceof AddByteData) {
                         ByteData original = ((AddByteData)command).mBytes;
                         try {
-                            if (original.getByteCount() > 0) {
-                                command = new CompressedByteData
-                                    (compressByteData(original, level),
-                                     original);
-                                mCommands.set(i, command);
+                            if (original.getByteCount() <= 0) {
+                                continue;
+                            }
+                            if (allocator == null) {
+                                command = compressByteData(original, level);
                             }
+                            else {
+                                // Read the original through a lease, in
+                                // case it gets evicted.
+                                List leases = new ArrayList(1);
+                                ByteData source = lease(original, leases);
+                                if (source == null) {
+                                    continue;
+                                }
+                                try {
+                                    command = compressByteData(source, level)
+                                        .store(allocator, original);
+                                }
+                                finally {
+                                    if (source != original) {
+                                        ((SlabByteData.Lease)source)
+                                            .release();
+                                    }
+                                }
+                            }
+                            mCommands.set(i, command);
                         }
                         catch (IOException e) {
                             throw new InternalError(e.toString());
@@ -361,6 +691,155 @@ class DetachedResponseImpl extends ApplicationResponseImpl {
             }
             mCommands.add(c);
         }
+
+        synchronized void writeTo(DataOutput out) throws IOException {
+            List commands = mCommands;
+            int size = commands == null ? 0 : commands.size();
+
+            out.writeBoolean(mCompressed);
+            out.writeInt(size);
+
+            for (int i=0; i<size; i++) {
+                Object command = commands.get(i);
+                if (command instanceof AddByteData) {
+                    out.writeByte(ADD_BYTE_DATA);
+                    writeBytes(out, ((AddByteData)command).mBytes);
+                }
+                else if (command instanceof CompressedByteData) {
+                    CompressedByteData c = (CompressedByteData)command;
+                    out.writeByte(COMPRESSED_BYTE_DATA);
+                    out.writeInt(c.mCRC);
+                    out.writeLong(c.mLength);
+                    out.writeLong(c.mCompressedLength);
+                    writeBytes(out, c.mCompressed);
+                    writeBytes(out, c.mOriginal);
+                }
+                else if (command instanceof SetContentType) {
+                    out.writeByte(SET_CONTENT_TYPE);
+                    writeString(out, ((SetContentType)command).mContentType);
+                }
+                else if (command instanceof SetHeader) {
+                    SetHeader h = (SetHeader)command;
+                    out.writeByte(h instanceof AddHeader ?
+                                  ADD_HEADER : SET_HEADER);
+                    out.writeUTF(h.mName);
+                    if (h.mValue instanceof String) {
+                        out.writeByte(STRING_VALUE);
+                        out.writeUTF((String)h.mValue);
+                    }
+                    else if (h.mValue instanceof Long) {
+                        out.writeByte(DATE_VALUE);
+                        out.writeLong(((Long)h.mValue).longValue());
+                    }
+                    else {
+                        out.writeByte(INT_VALUE);
+                        out.writeInt(((Integer)h.mValue).intValue());
+                    }
+                }
+                else if (command instanceof SetStatus) {
+                    SetStatus st = (SetStatus)command;
+                    out.writeByte(st instanceof SendError ?
+                                  SEND_ERROR : SET_STATUS);
+                    out.writeInt(st.mCode);
+                    writeString(out, st.mMessage);
+                }
+                else if (command instanceof SendRedirect) {
+                    out.writeByte(SEND_REDIRECT);
+                    writeString(out, ((SendRedirect)command).mLocation);
+                }
+                else if (command instanceof AddCookie) {
+                    Cookie cookie = ((AddCookie)command).mCookie;
+                    out.writeByte(ADD_COOKIE);
+                    out.writeUTF(cookie.getName());
+                    writeString(out, cookie.getValue());
+                    writeString(out, cookie.getComment());
+                    writeString(out, cookie.getDomain());
+                    out.writeInt(cookie.getMaxAge());
+                    writeString(out, cookie.getPath());
+                    out.writeBoolean(cookie.getSecure());
+                    out.writeInt(cookie.getVersion());
+                }
+                else {
+                    throw new NotSerializableException
+                        (command.getClass().getName());
+                }
+            }
+        }
+
+        void readFrom(DataInput in) throws IOException {
+            mCompressed = in.readBoolean();
+            int size = readLength(in);
+            mCommands = new ArrayList(size);
+
+            for (int i=0; i<size; i++) {
+                Command command;
+                byte code = in.readByte();
+                switch (code) {
+                case ADD_BYTE_DATA:
+                    command = new AddByteData(readBytes(in));
+                    break;
+                case COMPRESSED_BYTE_DATA:
+                    int crc = in.readInt();
+                    long length = in.readLong();
+                    long compressedLength = in.readLong();
+                    ByteData compressed = readBytes(in);
+                    command = new CompressedByteData
+                        (compressed, readBytes(in), crc,
+                         length, compressedLength);
+                    break;
+                case SET_CONTENT_TYPE:
+                    command = new SetContentType(readString(in));
+                    break;
+                case SET_HEADER: case ADD_HEADER:
+                    String name = in.readUTF();
+                    Object value;
+                    switch (in.readByte()) {
+                    case STRING_VALUE:
+                        value = in.readUTF();
+                        break;
+                    case DATE_VALUE:
+                        value = new Long(in.readLong());
+                        break;
+                    default:
+                        value = new Integer(in.readInt());
+                        break;
+                    }
+                    if (code == ADD_HEADER) {
+                        command = new AddHeader(name, value);
+                    }
+                    else {
+                        command = new SetHeader(name, value);
+                    }
+                    break;
+                case SET_STATUS:
+                    command = new SetStatus(in.readInt(), readString(in));
+                    break;
+                case SEND_ERROR:
+                    command = new SendError(in.readInt(), readString(in));
+                    break;
+                case SEND_REDIRECT:
+                    command = new SendRedirect(readString(in));
+                    break;
+                case ADD_COOKIE:
+                    Cookie cookie =
+                        new Cookie(in.readUTF(), readString(in));
+                    cookie.setComment(readString(in));
+                    String domain = readString(in);
+                    if (domain != null) {
+                        cookie.setDomain(domain);
+                    }
+                    cookie.setMaxAge(in.readInt());
+                    cookie.setPath(readString(in));
+                    cookie.setSecure(in.readBoolean());
+                    cookie.setVersion(in.readInt());
+                    command = new AddCookie(cookie);
+                    break;
+                default:
+                    throw new IOException("Unknown command code: " + code);
+                }
+                mCommands.add(command);
+            }
+        }
     }
 
     private static class SetContentType implements Command, Serializable {
@@ -518,17 +997,46 @@ class DetachedResponseImpl extends ApplicationResponseImpl {
 
         public void execute(ApplicationRequest request,
                             ApplicationResponse response) throws IOException {
-            response.getResponseBuffer().appendSurrogate(mBytes);
+            if (mBytes instanceof SlabByteData.Lease &&
+                response instanceof DetachedResponseImpl) {
+                // Copy into the enclosing detached response, so that it
+                // doesn't depend on this data remaining off-heap.
+                mBytes.writeTo
+                    (new ByteBufferOutputStream(response.getResponseBuffer()));
+            }
+            else {
+                response.getResponseBuffer().appendSurrogate(mBytes);
+            }
+        }
+
+        /**
+         * Returns a command that writes a lease on off-heap byte data, or
+         * null if evicted.
+         */
+        Command lease(List leases) {
+            ByteData bytes = DetachedResponseImpl.lease(mBytes, leases);
+            if (bytes == mBytes) {
+                return this;
+            }
+            return bytes == null ? null : new AddByteData(bytes);
         }
     }
 
     private static class CompressedByteData implements Command, Serializable {
         private final ByteData mCompressed;
         private final ByteData mOriginal;
+        // CRC-32 and length of original data.
+        private final int mCRC;
+        private final long mLength;
+        private final long mCompressedLength;
 
-        CompressedByteData(ByteData compressed, ByteData original) {
+        CompressedByteData(ByteData compressed, ByteData original,
+                           int crc, long length, long compressedLength) {
             mCompressed = compressed;
             mOriginal = original;
+            mCRC = crc;
+            mLength = length;
+            mCompressedLength = compressedLength;
         }
 
         public void execute(ApplicationRequest request,
@@ -538,7 +1046,8 @@ class DetachedResponseImpl extends ApplicationResponseImpl {
                 try {
                     ApplicationResponseImpl impl =
                         (ApplicationResponseImpl)response;
-                    impl.appendCompressed(mCompressed, mOriginal);
+                    impl.appendCompressed(mCompressed, mOriginal, mCRC,
+                                          mLength, mCompressedLength);
                     return;
                 }
                 catch (ClassCastException e) {
@@ -547,5 +1056,50 @@ class DetachedResponseImpl extends ApplicationResponseImpl {
 
             response.getResponseBuffer().appendSurrogate(mOriginal);
         }
+
+        boolean isEvicted() {
+            return DetachedResponseImpl.isEvicted(mCompressed) ||
+                DetachedResponseImpl.isEvicted(mOriginal);
+        }
+
+        /**
+         * Returns a copy with the compressed data stored off-heap, and with
+         * the given original data.
+         */
+        CompressedByteData store(SlabAllocator allocator, ByteData original)
+            throws IOException
+        {
+            return new CompressedByteData
+                (DetachedResponseImpl.store(mCompressed, allocator),
+                 DetachedResponseImpl.store(original, allocator),
+                 mCRC, mLength, mCompressedLength);
+        }
+
+        /**
+         * Returns a command that writes a lease on the off-heap byte data
+         * that will be written to the given response, or null if evicted.
+         * If the original data will be written, the command is an
+         * AddByteData.
+         */
+        Command lease(List leases, ApplicationRequest request,
+                      ApplicationResponse response) {
+            if (request.isCompressionAccepted() &&
+                response instanceof ApplicationResponseImpl &&
+                !(response instanceof DetachedResponseImpl)) {
+
+                ByteData compressed =
+                    DetachedResponseImpl.lease(mCompressed, leases);
+                if (compressed == mCompressed) {
+                    return this;
+                }
+                return compressed == null ? null : new CompressedByteData
+                    (compressed, mOriginal, mCRC, mLength, mCompressedLength);
+            }
+
+            // Compressed data won't be written, and a detached response
+            // copies the original, so that it doesn't depend on this data
+            // remaining off-heap.
+            return new AddByteData(mOriginal).lease(leases);
+        }
     }
 }
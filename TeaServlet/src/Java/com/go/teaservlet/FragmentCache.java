@@ -0,0 +1,234 @@
+/* ====================================================================
+ * TeaServlet - Copyright (c) 1999-2000 Walt Disney Internet Group
+ * ====================================================================
+ * The Tea Software License, Version 1.1
+ *
+ * Copyright (c) 2000 Walt Disney Internet Group. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *        Walt Disney Internet Group (http://opensource.go.com/)."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Tea", "TeaServlet", "Kettle", "Trove" and "BeanDoc" must
+ *    not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact opensource@dig.com.
+ *
+ * 5. Products derived from this software may not be called "Tea",
+ *    "TeaServlet", "Kettle" or "Trove", nor may "Tea", "TeaServlet",
+ *    "Kettle", "Trove" or "BeanDoc" appear in their name, without prior
+ *    written permission of the Walt Disney Internet Group.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE WALT DISNEY INTERNET GROUP OR ITS
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ *
+ * For more information about Tea, please see http://opensource.go.com/.
+ */
+
+package com.go.teaservlet;
+
+import com.go.trove.io.ByteData;
+import com.go.trove.util.UsageMap;
+
+/******************************************************************************
+ * A bounded cache of HTTP response bodies, shared by all HttpResources. When
+ * the total size of the cached bodies exceeds the limit, the least recently
+ * used are evicted.
+ *
+ * @author Brian S O'Neill
+ * @version
+ * <!--$$Revision$-->, <!--$$JustDate:--> <!-- $-->
+ */
+class FragmentCache {
+    // Maps URL strings to Fragments, most recently used first.
+    private final UsageMap mFragments;
+    private final long mMaxBytes;
+    private final long mMaxFragmentBytes;
+    private long mBytes;
+
+    /**
+     * @param maxBytes maximum total size of cached bodies. Any single body
+     * larger than one eighth of this is not cached.
+     */
+    public FragmentCache(long maxBytes) {
+        mFragments = new UsageMap();
+        mMaxBytes = maxBytes;
+        mMaxFragmentBytes = maxBytes / 8;
+    }
+
+    /**
+     * Returns the maximum total size of cached bodies.
+     */
+    public long getMaxByteCount() {
+        return mMaxBytes;
+    }
+
+    /**
+     * Returns the Fragment for the given URL, or null if not cached.
+     */
+    public synchronized Fragment get(String url) {
+        Fragment fragment = (Fragment)mFragments.get(url);
+        if (fragment != null) {
+            // Mark as recently used.
+            mFragments.put(url, fragment);
+        }
+        return fragment;
+    }
+
+    /**
+     * Caches a Fragment, replacing any existing one for the URL. If the
+     * Fragment is too large, it isn't cached and any existing one is removed.
+     */
+    public synchronized void put(String url, Fragment fragment) {
+        if (fragment.getByteCount() > mMaxFragmentBytes) {
+            remove(url);
+            return;
+        }
+
+        Fragment old = (Fragment)mFragments.put(url, fragment);
+        if (old != null) {
+            mBytes -= old.getByteCount();
+        }
+        mBytes += fragment.getByteCount();
+
+        while (mBytes > mMaxBytes) {
+            Fragment lru = (Fragment)mFragments.remove(mFragments.lastKey());
+            mBytes -= lru.getByteCount();
+        }
+    }
+
+    public synchronized void remove(String url) {
+        Fragment old = (Fragment)mFragments.remove(url);
+        if (old != null) {
+            mBytes -= old.getByteCount();
+        }
+    }
+
+    /**
+     * Returns the number of cached fragments.
+     */
+    public synchronized int size() {
+        return mFragments.size();
+    }
+
+    /**
+     * Returns the total size of the cached bodies.
+     */
+    public synchronized long getByteCount() {
+        return mBytes;
+    }
+
+    /**
+     * A cached response body and the information needed to revalidate it.
+     * The body never changes, but the expiration can be extended when a
+     * revalidation reports that the body is not modified.
+     */
+    public static class Fragment {
+        private final ByteData mBody;
+        private final long mByteCount;
+        private final String mETag;
+        private final String mLastModified;
+
+        private long mExpires;
+        private long mStaleUntil;
+        private boolean mRevalidating;
+
+        /**
+         * @param body the response body
+         * @param byteCount the size of the body
+         * @param eTag optional ETag header value
+         * @param lastModified optional Last-Modified header value
+         * @param expires time at which the body becomes stale
+         * @param staleUntil time until which the stale body may be served
+         * while it is being revalidated
+         */
+        public Fragment(ByteData body, long byteCount,
+                        String eTag, String lastModified,
+                        long expires, long staleUntil) {
+            mBody = body;
+            mByteCount = byteCount;
+            mETag = eTag;
+            mLastModified = lastModified;
+            mExpires = expires;
+            mStaleUntil = staleUntil;
+        }
+
+        public ByteData getBody() {
+            return mBody;
+        }
+
+        public long getByteCount() {
+            return mByteCount;
+        }
+
+        public String getETag() {
+            return mETag;
+        }
+
+        public String getLastModified() {
+            return mLastModified;
+        }
+
+        public synchronized boolean isFresh(long now) {
+            return now < mExpires;
+        }
+
+        /**
+         * Returns true if this fragment is stale, but its body may still be
+         * served while it is being revalidated.
+         */
+        public synchronized boolean isServableWhileStale(long now) {
+            return now < mStaleUntil;
+        }
+
+        /**
+         * Returns true if the caller should revalidate this fragment. Only
+         * one caller at a time is allowed to revalidate.
+         */
+        public synchronized boolean startRevalidation() {
+            if (mRevalidating) {
+                return false;
+            }
+            mRevalidating = true;
+            return true;
+        }
+
+        /**
+         * Called when a revalidation finishes. If the body was not modified,
+         * pass the new expiration times, otherwise pass zeros.
+         */
+        public synchronized void endRevalidation(long expires,
+                                                 long staleUntil) {
+            mRevalidating = false;
+            if (expires > mExpires) {
+                mExpires = expires;
+                mStaleUntil = staleUntil;
+            }
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/* ====================================================================
+ * TeaServlet - Copyright (c) 1999-2000 Walt Disney Internet Group
+ * ====================================================================
+ * The Tea Software License, Version 1.1
+ *
+ * Copyright (c) 2000 Walt Disney Internet Group. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *        Walt Disney Internet Group (http://opensource.go.com/)."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Tea", "TeaServlet", "Kettle", "Trove" and "BeanDoc" must
+ *    not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact opensource@dig.com.
+ *
+ * 5. Products derived from this software may not be called "Tea",
+ *    "TeaServlet", "Kettle" or "Trove", nor may "Tea", "TeaServlet",
+ *    "Kettle", "Trove" or "BeanDoc" appear in their name, without prior
+ *    written permission of the Walt Disney Internet Group.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE WALT DISNEY INTERNET GROUP OR ITS
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ *
+ * For more information about Tea, please see http://opensource.go.com/.
+ */
+
+package com.go.teaservlet;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import com.go.trove.io.ArrayByteData;
+import com.go.trove.io.ByteData;
+import com.go.trove.util.UsageMap;
+
+/******************************************************************************
+ * A bounded cache of small file contents, keyed by file path. Each cached
+ * file is checked for modification at most once per check interval, by
+ * comparing its last modified time and length. When the total size of the
+ * cached contents exceeds the limit, the least recently used are evicted.
+ *
+ * @author Brian S O'Neill
+ * @version
+ * <!--$$Revision$-->, <!--$$JustDate:--> <!-- $-->
+ */
+class HotFileCache {
+    // Maps file paths to Entries, most recently used first.
+    private final UsageMap mEntries;
+    private final long mMaxBytes;
+    private final long mMaxFileBytes;
+    private final long mCheckInterval;
+    private long mBytes;
+
+    /**
+     * @param maxBytes maximum total size of cached file contents
+     * @param maxFileBytes files larger than this are not cached
+     * @param checkInterval milliseconds between checks for modification
+     */
+    public HotFileCache(long maxBytes, long maxFileBytes, long checkInterval) {
+        mEntries = new UsageMap();
+        mMaxBytes = maxBytes;
+        mMaxFileBytes = maxFileBytes;
+        mCheckInterval = checkInterval;
+    }
+
+    /**
+     * Returns the contents of the given file, which must not be modified.
+     * Returns null if the file is too large to be cached, in which case it
+     * should be read directly.
+     *
+     * @throws FileNotFoundException if file doesn't exist
+     */
+    public ByteData get(File file) throws IOException {
+        String path = file.getPath();
+        long now = System.currentTimeMillis();
+
+        Entry entry;
+        synchronized (this) {
+            entry = (Entry)mEntries.get(path);
+            if (entry != null) {
+                // Mark as recently used.
+                mEntries.put(path, entry);
+                if (now < entry.mCheckAfter) {
+                    return entry.mData;
+                }
+            }
+        }
+
+        long lastModified = file.lastModified();
+        long length = file.length();
+
+        if (entry != null &&
+            entry.mLastModified == lastModified && entry.mLength == length) {
+            synchronized (this) {
+                entry.mCheckAfter = now + mCheckInterval;
+            }
+            return entry.mData;
+        }
+
+        if (length > mMaxFileBytes) {
+            remove(path);
+            return null;
+        }
+
+        byte[] bytes = read(file);
+        if (bytes == null) {
+            // File grew after its length was checked.
+            remove(path);
+            return null;
+        }
+
+        entry = new Entry(new ArrayByteData(bytes), lastModified,
+                          bytes.length, now + mCheckInterval);
+
+        synchronized (this) {
+            Entry old = (Entry)mEntries.put(path, entry);
+            if (old != null) {
+                mBytes -= old.mLength;
+            }
+            mBytes += entry.mLength;
+
+            while (mBytes > mMaxBytes) {
+                old = (Entry)mEntries.remove(mEntries.lastKey());
+                mBytes -= old.mLength;
+            }
+        }
+
+        return entry.mData;
+    }
+
+    public synchronized void remove(String path) {
+        Entry old = (Entry)mEntries.remove(path);
+        if (old != null) {
+            mBytes -= old.mLength;
+        }
+    }
+
+    /**
+     * Returns the number of cached files.
+     */
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Returns the total size of the cached file contents.
+     */
+    public synchronized long getByteCount() {
+        return mBytes;
+    }
+
+    /**
+     * @return null if file is too large
+     */
+    private byte[] read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long length = raf.length();
+            if (length > mMaxFileBytes) {
+                return null;
+            }
+            byte[] bytes = new byte[(int)length];
+            raf.readFully(bytes);
+            return bytes;
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    private static class Entry {
+        final ByteData mData;
+        final long mLastModified;
+        final long mLength;
+
+        // Access while synchronized on HotFileCache.
+        long mCheckAfter;
+
+        Entry(ByteData data, long lastModified, long length,
+              long checkAfter) {
+            mData = data;
+            mLastModified = lastModified;
+            mLength = length;
+            mCheckAfter = checkAfter;
+        }
+    }
+}
@@ -284,6 +284,21 @@ public interface HttpContext extends com.go.tea.runtime.UtilityContext {
      */    
     public String readURL(String URL, String encoding) throws IOException;
 
+    /**
+     * Starts reading the contents of the given URL in the background. A later
+     * call to insertURL or readURL with the same URL waits for the prefetch
+     * to complete instead of reading the URL again. By prefetching several
+     * URLs before inserting any of them, the resources are read at the same
+     * time, and the page waits only as long as the slowest one.
+     * <p>
+     * All prefetches share one deadline, which begins when the first URL is
+     * prefetched and lasts as long as the URL timeout. A prefetched URL that
+     * isn't read by then is treated as if it doesn't exist.
+     *
+     * @param url the resource URL
+     */
+    public void prefetchURL(String URL);
+
     /**
      * Requests to check, insert, or read URLs will timeout if the remote
      * hosts doesn't respond in time. Call this function to explicitly set
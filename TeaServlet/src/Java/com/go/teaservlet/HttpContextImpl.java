@@ -60,6 +60,8 @@ import java.util.Collection;
 import java.util.ArrayList;
 import java.util.AbstractList;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.HashMap;
 
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
@@ -70,6 +72,8 @@ import javax.servlet.http.HttpServletResponse;
 import com.go.trove.log.Log;
 import com.go.trove.io.*;
 import com.go.trove.net.*;
+import com.go.trove.util.NoThreadException;
+import com.go.trove.util.ThreadPool;
 
 import com.go.teaservlet.util.DecodedRequest;
 
@@ -89,6 +93,21 @@ implements HttpContext {
 
     private static final int FILE_SPILLOVER = 65000;
 
+    // Caches the contents of files that aren't large enough to spill over,
+    // checking for modifications at most once a second.
+    private static final HotFileCache cFileCache =
+        new HotFileCache(FILE_SPILLOVER * 128, FILE_SPILLOVER, 1000);
+
+    private static ThreadPool cPrefetchPool;
+
+    private static synchronized ThreadPool getPrefetchPool() {
+        if (cPrefetchPool == null) {
+            cPrefetchPool = new ThreadPool("URL prefetch", 100, true);
+            cPrefetchPool.setIdleTimeout(60000);
+        }
+        return cPrefetchPool;
+    }
+
     protected final ServletContext mServletContext;
 
     protected final Log mLog;
@@ -111,6 +130,9 @@ implements HttpContext {
     // Default is 10,000 milliseconds.
     private long mURLTimeout = 10000;
 
+    // Maps URL strings to outstanding Prefetch objects.
+    private Map mPrefetches;
+
     /**
      * Constructs the HttpContext which provides HTTP-specific template
      * functions.
@@ -154,6 +176,23 @@ implements HttpContext {
         }
     }
 
+    /**
+     * Appends converted numbers directly to the internal CharToByteBuffer.
+     *
+     * @hidden
+     */
+    protected void printChars(char[] chars, int offset, int length)
+        throws Exception
+    {
+        if ((mOutputOverridePermitted || mBuffer == null)
+            && mOutputReceiver != null) {
+            mOutputReceiver.print(new String(chars, offset, length));
+        }
+        else if (mBuffer != null) {
+            mBuffer.append(chars, offset, length);
+        }
+    }
+
     public void overrideOutput(boolean overridePermitted) {
         mOutputOverridePermitted = overridePermitted;
     }
@@ -226,6 +265,13 @@ implements HttpContext {
             File file = absoluteFile(path);
             ByteData data = null;
             try {
+                ByteData cached = cFileCache.get(file);
+                if (cached != null) {
+                    // Cached contents never change, so no copy is needed.
+                    mBuffer.appendSurrogate(cached);
+                    return;
+                }
+
                 data = new FileByteData(file);
                 long length = data.getByteCount();
                 if (length > FILE_SPILLOVER) {
@@ -253,7 +299,10 @@ implements HttpContext {
             File file = absoluteFile(path);
             ByteData data = null;
             try {
-                data = new FileByteData(file);
+                data = cFileCache.get(file);
+                if (data == null) {
+                    data = new FileByteData(file);
+                }
                 long length = data.getByteCount();
                 if (length > Integer.MAX_VALUE) {
                     throw new IOException
@@ -281,7 +330,10 @@ implements HttpContext {
             File file = absoluteFile(path);
             ByteData data = null;
             try {
-                data = new FileByteData(file);
+                data = cFileCache.get(file);
+                if (data == null) {
+                    data = new FileByteData(file);
+                }
                 long length = data.getByteCount();
                 if (length > Integer.MAX_VALUE) {
                     throw new IOException
@@ -371,28 +423,19 @@ implements HttpContext {
         // I can't lock the resource to guarantee the length remains fixed.
 
         try {
-            HttpResource resource = HttpResource.get(absoluteURL(url));
-            HttpClient.Response response = resource.getResponse(mURLTimeout);
-            if (response == null) {
-                return;
-            }
-
-            Integer contentLength =
-                response.getHeaders().getInteger("Content-Length");
-
-            byte[] buffer;
-            if (contentLength == null || contentLength.intValue() >= 1024) {
-                buffer = new byte[1024];
+            ByteData data;
+            Prefetch prefetch = takePrefetch(url);
+            if (prefetch != null) {
+                data = prefetch.getData();
             }
             else {
-                buffer = new byte[contentLength.intValue()];
+                data = HttpResource.get(absoluteURL(url))
+                    .getContent(mURLTimeout);
             }
 
-            InputStream in = response.getInputStream();
-
-            int count;
-            while ((count = in.read(buffer)) > 0) {
-                mBuffer.append(buffer, 0, count);
+            if (data != null) {
+                // Body is immutable, so it can be spliced in without a copy.
+                mBuffer.appendSurrogate(data);
             }
         }
         catch (UnknownHostException e) {
@@ -412,22 +455,24 @@ implements HttpContext {
         }
 
         try {
-            HttpResource resource = HttpResource.get(absoluteURL(url));
-            HttpClient.Response response = resource.getResponse(mURLTimeout);
-            if (response == null) {
-                return "";
+            ByteData data;
+            Prefetch prefetch = takePrefetch(url);
+            if (prefetch != null) {
+                data = prefetch.getData();
+            }
+            else {
+                data = HttpResource.get(absoluteURL(url))
+                    .getContent(mURLTimeout);
             }
 
-            Reader in = new InputStreamReader
-                (response.getInputStream(), encoding);
-
-            StringBuffer sb = new StringBuffer(1024);
-            char[] buffer = new char[1024];
-            int count;
-            while ((count = in.read(buffer, 0, 1024)) > 0) {
-                sb.append(buffer, 0, count);
+            if (data == null) {
+                return "";
             }
-            return new String(sb);
+
+            ByteArrayOutputStream out =
+                new ByteArrayOutputStream((int)data.getByteCount());
+            data.writeTo(out);
+            return out.toString(encoding);
         }
         catch (UnknownHostException e) {
         }
@@ -438,10 +483,51 @@ implements HttpContext {
         return "";
     }
 
+    public void prefetchURL(String url) {
+        if (url == null ||
+            (mPrefetches != null && mPrefetches.containsKey(url))) {
+            return;
+        }
+
+        Prefetch prefetch;
+        try {
+            prefetch = new Prefetch(absoluteURL(url), mURLTimeout);
+        }
+        catch (MalformedURLException e) {
+            mLog.warn(e);
+            return;
+        }
+
+        if (mPrefetches == null) {
+            mPrefetches = new HashMap();
+        }
+
+        try {
+            getPrefetchPool().start(prefetch, 0);
+        }
+        catch (NoThreadException e) {
+            // URL will be read when it is inserted.
+            return;
+        }
+        catch (InterruptedException e) {
+            return;
+        }
+
+        mPrefetches.put(url, prefetch);
+    }
+
     public void setURLTimeout(long timeout) {
         mURLTimeout = timeout;
     }
 
+    /**
+     * Removes and returns the outstanding prefetch for the given URL, or
+     * null if none.
+     */
+    private Prefetch takePrefetch(String url) {
+        return mPrefetches == null ? null : (Prefetch)mPrefetches.remove(url);
+    }
+
     private URL absoluteURL(String path) throws MalformedURLException {
         int colonIndex = path.indexOf(':');
         if (colonIndex > 0) {
@@ -493,6 +579,83 @@ implements HttpContext {
         }
     }
 
+    /**
+     * Reads the entire contents of a URL in a separate thread.
+     */
+    private static class Prefetch implements Runnable {
+        private final URL mURL;
+        private final long mTimeout;
+        private final long mDeadline;
+
+        private boolean mDone;
+        private ByteData mData;
+        private IOException mException;
+
+        Prefetch(URL url, long timeout) {
+            mURL = url;
+            mTimeout = timeout;
+            if (timeout < 0) {
+                mDeadline = Long.MAX_VALUE;
+            }
+            else {
+                mDeadline = System.currentTimeMillis() + timeout;
+            }
+        }
+
+        public void run() {
+            ByteData data = null;
+            IOException exception = null;
+            try {
+                data = HttpResource.get(mURL).getContent(mTimeout);
+            }
+            catch (UnknownHostException e) {
+            }
+            catch (IOException e) {
+                exception = e;
+            }
+            finally {
+                synchronized (this) {
+                    mData = data;
+                    mException = exception;
+                    mDone = true;
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Waits until the URL has been read, or until the timeout, measured
+         * from when this prefetch was issued, elapses.
+         *
+         * @return null if no data
+         */
+        synchronized ByteData getData() throws IOException {
+            long deadline = mDeadline;
+            try {
+                while (!mDone) {
+                    if (deadline == Long.MAX_VALUE) {
+                        wait();
+                        continue;
+                    }
+                    long timeout = deadline - System.currentTimeMillis();
+                    if (timeout <= 0) {
+                        throw new InterruptedIOException
+                            ("Timed out reading URL: " + mURL);
+                    }
+                    wait(timeout);
+                }
+            }
+            catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+
+            if (mException != null) {
+                throw mException;
+            }
+            return mData;
+        }
+    }
+
     private static class Request implements HttpContext.Request {
 
         private final HttpServletRequest mRequest;
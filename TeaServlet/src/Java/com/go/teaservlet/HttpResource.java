@@ -16,13 +16,17 @@ package com.go.teaservlet;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import com.go.trove.io.ByteData;
+import com.go.trove.io.ArrayByteData;
 import com.go.trove.net.*;
 import com.go.trove.util.*;
 import com.go.trove.log.*;
 
 /******************************************************************************
  * Very simple HTTP connection implementation, suitable for use by
- * HttpContextImpl.
+ * HttpContextImpl. Response bodies that are allowed to be cached are kept in
+ * a shared {@link FragmentCache}, and they are revalidated with conditional
+ * requests when they become stale.
  * 
  * @author Brian S O'Neill
  * @version
@@ -37,10 +41,28 @@ class HttpResource {
 
     // Maps URLs to HttpResources.
     private static Map cHttpResources;
+
+    // Default maximum total size of cached response bodies.
+    static final long DEFAULT_FRAGMENT_CACHE_SIZE = 4 * 1024 * 1024;
+
+    private static volatile FragmentCache cFragments;
+
+    private static ThreadPool cRevalidators;
     
     static {
         cSocketFactories = new Cache(10);
         cHttpResources = new Cache(100);
+        cFragments = new FragmentCache(DEFAULT_FRAGMENT_CACHE_SIZE);
+    }
+
+    /**
+     * Sets the maximum total size of cached response bodies. Any bodies
+     * already cached are discarded if the size changes.
+     */
+    static synchronized void setFragmentCacheSize(long maxBytes) {
+        if (cFragments.getMaxByteCount() != maxBytes) {
+            cFragments = new FragmentCache(maxBytes);
+        }
     }
 
     public static HttpResource get(URL url) {
@@ -59,16 +81,108 @@ class HttpResource {
                     cSocketFactories.put(key, factory);
                 }
 
-                res = new HttpResource(key, url.getFile(), factory);
+                res = new HttpResource(key, url.getFile(), factory,
+                                       url.toExternalForm());
                 cHttpResources.put(url, res);
             }
             return res;
         }
     }
 
+    private static synchronized ThreadPool getRevalidators() {
+        if (cRevalidators == null) {
+            cRevalidators = new ThreadPool("HttpResource revalidation", 10,
+                                           true);
+            cRevalidators.setIdleTimeout(60000);
+        }
+        return cRevalidators;
+    }
+
+    /**
+     * Returns the freshness lifetime and the period in which a stale body
+     * may still be served while it is revalidated, both in milliseconds.
+     * Returns null if the response must not be cached.
+     */
+    private static long[] getLifetimes(HttpHeaderMap headers) {
+        long maxAge = -1;
+        long sharedMaxAge = -1;
+        long staleAge = -1;
+
+        Object value = headers.get("Cache-Control");
+        if (value != null) {
+            List values;
+            if (value instanceof List) {
+                values = (List)value;
+            }
+            else {
+                values = Collections.singletonList(value);
+            }
+
+            Iterator it = values.iterator();
+            while (it.hasNext()) {
+                StringTokenizer st =
+                    new StringTokenizer(String.valueOf(it.next()), ",");
+                while (st.hasMoreTokens()) {
+                    String token = st.nextToken().trim().toLowerCase();
+                    if (token.equals("no-store") ||
+                        token.startsWith("no-cache") ||
+                        token.startsWith("private")) {
+                        return null;
+                    }
+                    else if (token.startsWith("max-age=")) {
+                        maxAge = parseSeconds(token.substring(8));
+                    }
+                    else if (token.startsWith("s-maxage=")) {
+                        sharedMaxAge = parseSeconds(token.substring(9));
+                    }
+                    else if (token.startsWith("stale-while-revalidate=")) {
+                        staleAge = parseSeconds(token.substring(23));
+                    }
+                }
+            }
+        }
+
+        if (sharedMaxAge >= 0) {
+            // This is a shared cache, so s-maxage takes precedence.
+            maxAge = sharedMaxAge;
+        }
+
+        if (maxAge < 0) {
+            if (headers.get("ETag") == null &&
+                headers.get("Last-Modified") == null) {
+                return null;
+            }
+            // Cache the body, but revalidate it every time.
+            maxAge = 0;
+        }
+        else {
+            Integer age = headers.getInteger("Age");
+            if (age != null) {
+                maxAge = Math.max(0, maxAge - age.intValue());
+            }
+        }
+
+        if (staleAge < 0) {
+            // Without stale-while-revalidate, stale bodies are never served.
+            staleAge = 0;
+        }
+
+        return new long[] {maxAge * 1000, staleAge * 1000};
+    }
+
+    private static long parseSeconds(String value) {
+        try {
+            return Math.max(0, Long.parseLong(value.trim()));
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
     private HostPort mHostPort;
     private String mURI;
     private SocketFactory mFactory;
+    private String mKey;
 
     // 0 = HEAD might be supported
     // 1 = HEAD is supported
@@ -76,10 +190,11 @@ class HttpResource {
     private int mHeadState;
 
     private HttpResource(HostPort hostPort, String uri,
-                         SocketFactory factory) {
+                         SocketFactory factory, String key) {
         mHostPort = hostPort;
         mURI = uri;
         mFactory = factory;
+        mKey = key;
     }
 
     public boolean exists() throws IOException {
@@ -87,6 +202,11 @@ class HttpResource {
     }
 
     public boolean exists(long timeout) throws IOException {
+        FragmentCache.Fragment fragment = cFragments.get(mKey);
+        if (fragment != null && fragment.isFresh(System.currentTimeMillis())) {
+            return true;
+        }
+
         HttpClient client = new HttpClient(mFactory, timeout);
         client.setURI(mURI);
 
@@ -193,10 +313,137 @@ class HttpResource {
      * @return null if no data
      */
     public HttpClient.Response getResponse(long timeout) throws IOException {
+        return getResponse(timeout, null);
+    }
+
+    /**
+     * Returns the body of this resource, which may come from the shared
+     * fragment cache. If the cached body is stale, but still within its
+     * stale-while-revalidate period, it is returned immediately and is
+     * revalidated in the background.
+     *
+     * @return null if no data
+     */
+    public ByteData getContent(long timeout) throws IOException {
+        final FragmentCache.Fragment fragment = cFragments.get(mKey);
+        if (fragment != null) {
+            long now = System.currentTimeMillis();
+            if (fragment.isFresh(now)) {
+                return fragment.getBody();
+            }
+            if (fragment.isServableWhileStale(now)) {
+                if (!fragment.startRevalidation()) {
+                    // Another thread is already revalidating.
+                    return fragment.getBody();
+                }
+                final long revalidateTimeout = timeout;
+                Runnable revalidator = new Runnable() {
+                    public void run() {
+                        try {
+                            fetch(fragment, revalidateTimeout);
+                        }
+                        catch (IOException e) {
+                            Syslog.warn(e);
+                        }
+                        finally {
+                            fragment.endRevalidation(0, 0);
+                        }
+                    }
+                };
+                try {
+                    getRevalidators().start(revalidator, 0);
+                    return fragment.getBody();
+                }
+                catch (NoThreadException e) {
+                }
+                catch (InterruptedException e) {
+                }
+                fragment.endRevalidation(0, 0);
+            }
+        }
+
+        return fetch(fragment, timeout);
+    }
+
+    /**
+     * Reads the body of this resource and caches it if allowed. If a cached
+     * fragment is given, a conditional request is made to revalidate it.
+     *
+     * @return null if no data
+     */
+    private ByteData fetch(FragmentCache.Fragment fragment, long timeout)
+        throws IOException
+    {
+        long start = System.currentTimeMillis();
+        HttpClient.Response response = getResponse(timeout, fragment);
+        if (response == null) {
+            cFragments.remove(mKey);
+            return null;
+        }
+
+        long[] lifetimes = getLifetimes(response.getHeaders());
+
+        if (response.getStatusCode() == 304) {
+            // Not Modified, so keep the cached body.
+            response.getInputStream().close();
+            if (lifetimes == null) {
+                cFragments.remove(mKey);
+            }
+            else {
+                long expires = start + lifetimes[0];
+                fragment.endRevalidation(expires, expires + lifetimes[1]);
+            }
+            return fragment.getBody();
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        InputStream in = response.getInputStream();
+        byte[] buffer = new byte[1024];
+        int count;
+        while ((count = in.read(buffer)) > 0) {
+            out.write(buffer, 0, count);
+        }
+
+        byte[] data = out.toByteArray();
+        ByteData body = new ArrayByteData(data);
+
+        if (lifetimes == null) {
+            cFragments.remove(mKey);
+        }
+        else {
+            HttpHeaderMap headers = response.getHeaders();
+            long expires = start + lifetimes[0];
+            cFragments.put(mKey, new FragmentCache.Fragment
+                           (body, data.length, headers.getString("ETag"),
+                            headers.getString("Last-Modified"),
+                            expires, expires + lifetimes[1]));
+        }
+
+        return body;
+    }
+
+    /**
+     * @param fragment optional cached fragment to revalidate
+     * @return null if no data
+     */
+    private HttpClient.Response getResponse(long timeout,
+                                            FragmentCache.Fragment fragment)
+        throws IOException
+    {
         HttpClient client = new HttpClient(mFactory, timeout);
         client.setURI(mURI);
         client.setPersistent(true);
 
+        if (fragment != null) {
+            if (fragment.getETag() != null) {
+                client.setHeader("If-None-Match", fragment.getETag());
+            }
+            if (fragment.getLastModified() != null) {
+                client.setHeader("If-Modified-Since",
+                                 fragment.getLastModified());
+            }
+        }
+
         HttpClient.Response response = client.getResponse();
 
         int statusCode = response.getStatusCode();
@@ -204,6 +451,12 @@ class HttpResource {
         case 200: // OK
             return response;
 
+        case 304: // Not Modified
+            if (fragment != null) {
+                return response;
+            }
+            break;
+
         case 404: // Not Found
             return null;
             
@@ -212,7 +465,7 @@ class HttpResource {
             client.setURI(mURI);
             response = client.getResponse();
             statusCode = response.getStatusCode();
-            if (statusCode == 200) {
+            if (statusCode == 200 || (statusCode == 304 && fragment != null)) {
                 return response;
             }
             else {
@@ -223,7 +476,7 @@ class HttpResource {
             client.setURI(response.getHeaders().getString("Location"));
             response = client.getResponse();
             statusCode = response.getStatusCode();
-            if (statusCode == 200) {
+            if (statusCode == 200 || (statusCode == 304 && fragment != null)) {
                 return response;
             }
             else {
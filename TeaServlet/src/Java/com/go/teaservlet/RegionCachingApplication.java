@@ -52,6 +52,19 @@
 
 package com.go.teaservlet;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectStreamClass;
 import java.io.Serializable;
 import java.util.*;
 import java.net.*;
@@ -60,6 +73,8 @@ import java.rmi.RemoteException;
 import java.lang.ref.*;
 import com.go.trove.io.*;
 import com.go.trove.log.Log;
+import com.go.trove.persist.ObjectStreamBuilder;
+import com.go.trove.persist.PersistentCollectionKit;
 import com.go.trove.util.*;
 import com.go.trove.util.tq.*;
 import com.go.tea.runtime.TemplateLoader;
@@ -91,12 +106,42 @@ import javax.servlet.ServletException;
  * cache calls can be nested within each other. When templates are reloaded,
  * the cached regions are dropped.
  * <p>
+ * Cached regions can also be kept in a persistent store, which survives
+ * clean restarts. Persistent regions are keyed on template name and a hash of
+ * the compiled template and the templates it calls, instead of the template
+ * instance, and so after a restart or reload, regions of unchanged templates
+ * are served warm. Regions of changed templates are swept from the store. If
+ * the process exits without closing the store, it is discarded and created
+ * anew on the next start.
+ * <p>
  * The RegionCachingApplication can also compress cached regions and send the
  * GZIP compressed response to the client. The intention is not to reduce
  * memory usage on the server, but to conserve bandwidth. If the client
  * supports GZIP encoding, then it is eligible to receive a fully or partially
  * GZIP compressed response.
  * <p>
+ * By default, regions are keyed on all the query parameters, in their
+ * canonical order and excluding any configured to be ignored. A region can
+ * instead declare exactly which parameters and headers identify it by
+ * passing a key spec to the cacheBy function:
+ *
+ * <pre>
+ * cacheBy("id, page, header:Accept-Language") {
+ *     // Cached template code and text goes here
+ * }
+ * </pre>
+ *
+ * Hit and miss counts are kept for each key spec. A key spec can also
+ * attach tags to a region, prefixed with "tag:". Every region is implicitly
+ * tagged with the name of its template. All the regions with a tag can be
+ * purged by calling purgeRegions.
+ * <p>
+ * Members of a cluster can share regions over a multicast channel. A region
+ * that isn't cached locally is fetched from a peer that has already rendered
+ * it, if any, before rendering it locally. Purges apply to the whole
+ * cluster. When shared, regions are identified by template name, region
+ * number, request key, and the string value of the secondary key.
+ * <p>
  * If provided with cluster configuration information to pass along to the 
  * {@link com.go.teaservlet.util.cluster.ClusterManager}, status information 
  * may be shared between machines to compare cache sizes.
@@ -106,18 +151,45 @@ import javax.servlet.ServletException;
  * <!--$$Revision$-->, <!--$$JustDate:-->  1/30/02 <!-- $-->
  */
 public class RegionCachingApplication implements AdminApp {
+    // Distinguishes source hashes that can't survive a restart.
+    private static final String cProcessToken =
+        Long.toString(new Random().nextLong() & Long.MAX_VALUE, 36);
+
     private Log mLog;
     private int mCacheSize;
     private long mDefaultTTL;
     private long mTimeout;
+    private double mRefreshAhead;
     private String[] mHeaders;
+    private String[] mIgnoredParameters;
     private int mCompressLevel;
 
+    // When not null, cached region bytes are stored off-heap.
+    private SlabAllocator mSlabs;
+
     private ClusterManager mClusterManager;
     private ClusterCacheInfo mInfo;
 
-    // Maps Templates to TemplateKeys
-    private Map mTemplateKeys = new IdentityMap();
+    // Shares regions with cluster peers. Null if not clustered.
+    private ClusterConference mConference;
+
+    // Maps cluster keys to recently rendered RegisteredRegions, for finding
+    // regions to provide to peers and to purge.
+    private Map mRegions;
+
+    // Open addressed table of TemplateKeys, probed by template identity
+    // hash code. It is replaced when a key is added, and so it can be read
+    // without locking. Replacement uses the mTemplateKeyLock monitor.
+    private volatile TemplateKey[] mTemplateKeys = new TemplateKey[16];
+    private final Object mTemplateKeyLock = new Object();
+
+    // Key spec used by the cache functions that don't accept one.
+    private KeySpec mDefaultKeySpec;
+
+    // Maps key spec strings to KeySpecs. It is replaced when a KeySpec is
+    // added, using the mKeySpecLock monitor.
+    private volatile Map mKeySpecs = new HashMap();
+    private final Object mKeySpecLock = new Object();
 
     // List of DepotLinks for linking TemplateLoaders and Depots. A Map isn't
     // used here because the list will be small, usually just one element.
@@ -129,6 +201,16 @@ public class RegionCachingApplication implements AdminApp {
     // Shared by all Depots.
     private TransactionQueue mTQ;
 
+    // When not null, all regions are kept in this Depot, which persists them
+    // to disk. It is keyed by strings that identify templates by name and
+    // source hash, and so it isn't dropped when templates are reloaded.
+    private PersistentCollectionKit.PersistentDepot mPersistentDepot;
+
+    // Maps template names to the source hashes of their current versions,
+    // for sweeping regions of old versions from the persistent Depot.
+    private Map mPendingSweeps = new HashMap();
+    private boolean mSweepQueued;
+
     /**
      * Accepts the following optional parameters:
      *
@@ -139,17 +221,57 @@ public class RegionCachingApplication implements AdminApp {
      *              If left unspecified, default.ttl is 5000 milliseconds.
      * timeout      Maximum milliseconds to wait on cache before serving an
      *              expired region. Default value is 500 milliseconds.
+     * refresh.ahead
+     *              Fraction of a region's time-to-live, between 0.0 and 1.0,
+     *              in which it is re-rendered in the background before it
+     *              expires. Default value is 0.0, which disables it.
      * headers      List of headers to use for all keys. i.e. User-Agent or
      *              Host.
+     * ignore.parameters
+     *              List of query parameters that don't identify regions,
+     *              i.e. tracking parameters, and so are excluded from the
+     *              default keys.
+     * cache.offheap.size
+     *              Maximum bytes of direct memory for storing cached region
+     *              bytes outside the Java heap. When the limit is reached,
+     *              least recently used regions are evicted. Default value is
+     *              0, which keeps regions on the heap.
+     * cache.offheap.page.size
+     *              Size of the pages that off-heap region bytes are stored
+     *              in. Default value is 4096 bytes.
+     * cache.persistent.path
+     *              Root file name of a persistent store for cached regions,
+     *              which survives clean restarts. Three letter suffixes are
+     *              added to form the data file names. If left unspecified,
+     *              regions are kept only in memory.
      * gzip         Accepts a value from 0 to 9 to set compression level. When
      *              non-zero, GZIP compression is enabled for cached regions.
      *              A value of 1 offers fast compression, and a value of 9
      *              offers best compression. A value of 6 is the typical
      *              default used by GZIP.
      *
+     * cluster.regions  Properties for sharing regions with cluster peers.
+     *                  The multicast group is cluster.multicast.group.
+     *    port          Multicast port for sharing regions, which must differ
+     *                  from cluster.multicast.port.
+     *    loopback      Name of an in-process LoopbackClusterChannel to use
+     *                  instead of multicast, for testing.
+     *    key           Secret shared by the cluster members, which
+     *                  authenticates their messages. Regions aren't shared
+     *                  without it.
+     *    timeout       Milliseconds to wait for a peer to provide a region
+     *                  before rendering it. The wait ends early once every
+     *                  known peer has answered. Default value is 100.
+     *
      * transactionQueue  Properties for TransactionQueue that executes regions.
      *    max.threads    Maximum thread count. Default is 100.
      *    max.size       Maximum size of TransactionQueue. Default is 100.
+     *    virtual        When true and supported by the Java runtime,
+     *                   regions execute in virtual threads, and max.threads
+     *                   limits how many execute at once. Default is false.
+     *    shards         When greater than zero, waiting transactions are
+     *                   spread across this many separately locked queues,
+     *                   reducing contention. Default is 0.
      * </pre>
      */
     public void init(ApplicationConfig config) throws ServletException {
@@ -160,6 +282,14 @@ public class RegionCachingApplication implements AdminApp {
         mDefaultTTL = props.getNumber
             ("default.ttl", new Long(5000)).longValue();
         mTimeout = props.getNumber("timeout", new Long(500)).longValue();
+        mRefreshAhead = props.getNumber
+            ("refresh.ahead", new Double(0.0)).doubleValue();
+
+        if (mRefreshAhead < 0.0 || mRefreshAhead > 1.0) {
+            mLog.warn("Refresh-ahead must be between 0.0 and 1.0: " +
+                      mRefreshAhead + " interpretted as 0.0");
+            mRefreshAhead = 0.0;
+        }
 
         PropertyMap tqProps = props.subMap("transactionQueue");
 
@@ -167,8 +297,22 @@ public class RegionCachingApplication implements AdminApp {
         ThreadPool tp = new ThreadPool(config.getName(), maxPool);
         tp.setTimeout(5000);
         tp.setIdleTimeout(60000);
+        if (tqProps.getBoolean("virtual", false)) {
+            tp.setVirtual(true);
+            if (!tp.isVirtual()) {
+                mLog.warn("Virtual threads are not supported by this " +
+                          "Java runtime");
+            }
+        }
 
-        mTQ = new TransactionQueue(tp, config.getName() + " TQ", 100, 100);
+        int shards = tqProps.getInt("shards", 0);
+        if (shards > 0) {
+            mTQ = new ShardedTransactionQueue
+                (tp, config.getName() + " TQ", 100, 100, shards);
+        }
+        else {
+            mTQ = new TransactionQueue(tp, config.getName() + " TQ", 100, 100);
+        }
         mTQ.applyProperties(tqProps);
 
         String headers = props.getString("headers");
@@ -190,6 +334,63 @@ public class RegionCachingApplication implements AdminApp {
             }
         }
 
+        String ignored = props.getString("ignore.parameters");
+
+        if (ignored == null) {
+            mIgnoredParameters = null;
+        }
+        else {
+            StringTokenizer st = new StringTokenizer(ignored, " ;,");
+            int count = st.countTokens();
+            if (count == 0) {
+                mIgnoredParameters = null;
+            }
+            else {
+                mIgnoredParameters = new String[count];
+                for (int i=0; i<count; i++) {
+                    mIgnoredParameters[i] = st.nextToken();
+                }
+            }
+        }
+
+        mDefaultKeySpec = new KeySpec(null);
+
+        long offHeapSize = props.getNumber
+            ("cache.offheap.size", new Long(0)).longValue();
+        if (offHeapSize > 0) {
+            int pageSize = props.getInt("cache.offheap.page.size", 4096);
+            mSlabs = new SlabAllocator(offHeapSize, pageSize, 1024 * 1024);
+        }
+
+        String persistentPath = props.getString("cache.persistent.path");
+        if (persistentPath != null) {
+            try {
+                // A cache size of zero writes regions through to disk as
+                // they are created. Otherwise the most recent regions are
+                // only written when evicted from memory, and are lost when
+                // the store is closed. A store that wasn't closed cleanly is
+                // not trusted, and is recreated empty.
+                mPersistentDepot = PersistentCollectionKit
+                    .createPersistentDepot(null, 0, mTQ, mTimeout,
+                                           false, persistentPath, 2048,
+                                           String.class, 200, null, 4096,
+                                           15000, new RegionStreamBuilder());
+                mPersistentDepot.setRefreshAhead(mRefreshAhead);
+            }
+            catch (IOException e) {
+                mLog.warn("Failed to open persistent region cache: " +
+                          persistentPath);
+                mLog.warn(e);
+            }
+        }
+
+        if (mCacheSize > 0) {
+            mRegions = Collections.synchronizedMap(new Cache(mCacheSize));
+        }
+        else {
+            mRegions = Collections.synchronizedMap(new SoftHashMap());
+        }
+
         mCompressLevel = props.getInt("gzip", 0);
 
         if (mCompressLevel < 0) {
@@ -210,6 +411,30 @@ public class RegionCachingApplication implements AdminApp {
         if (mClusterManager != null) {
             mClusterManager.killAuto();
         }
+        if (mConference != null) {
+            mConference.close();
+        }
+        if (mPersistentDepot != null) {
+            // Close the files cleanly, so that the regions are trusted when
+            // they are opened again.
+            try {
+                mPersistentDepot.close();
+            }
+            catch (IOException e) {
+                mLog.warn(e);
+            }
+        }
+        if (mSlabs != null) {
+            mSlabs.clear();
+        }
+    }
+
+    /**
+     * Returns the off-heap storage for cached region bytes, or null if
+     * regions are kept on the heap.
+     */
+    public SlabAllocator getOffHeapStorage() {
+        return mSlabs;
     }
 
     /**
@@ -258,26 +483,83 @@ public class RegionCachingApplication implements AdminApp {
                Object key,
                Substitution s)
         throws Exception
+    {
+        cache(request, response, ttlMillis, key, mDefaultKeySpec, s);
+    }
+
+    void cacheBy(ApplicationRequest request, 
+                 ApplicationResponse response,
+                 String keySpec,
+                 long ttlMillis,
+                 Substitution s)
+        throws Exception
+    {
+        cache(request, response, ttlMillis, null, getKeySpec(keySpec), s);
+    }
+
+    private void cache(ApplicationRequest request, 
+                       ApplicationResponse response,
+                       long ttlMillis,
+                       Object key,
+                       KeySpec spec,
+                       Substitution s)
+        throws Exception
     {
         TemplateKey templateKey = getTemplateKey(request.getTemplate());
 
-        Object[] keyElements = {
-            templateKey,
-            s.getIdentifier(),
-            getHeaderValues(request),
-            request.getQueryString(),
-            key,
-        };
-        
-        key = new MultiKey(keyElements);
-            
-        ApplicationResponse.Command c =
-            new CacheCommand(s, templateKey, ttlMillis, key);
+        if (key instanceof Object[]) {
+            key = new MultiKey(key);
+        }
+
+        RegionKey regionKey = new RegionKey(templateKey, s.getIdentifier(),
+                                            spec.buildKey(request), key);
+        Object depotKey = regionKey;
+        if (mPersistentDepot != null) {
+            // Regions with keys that can't be persisted stay in memory.
+            String persistentKey = regionKey.toPersistentKey();
+            if (persistentKey != null) {
+                depotKey = persistentKey;
+            }
+        }
+
+        ApplicationResponse.Command c = new CacheCommand
+            (s, templateKey, ttlMillis, regionKey, depotKey, spec);
         if (!response.insertCommand(c)) {
             c.execute(request, response);
         }
     }
 
+    /**
+     * Returns the key spec used by the cache functions that don't accept
+     * one, followed by all key specs passed to cacheBy.
+     */
+    KeySpec[] getKeySpecs() {
+        Collection specs = mKeySpecs.values();
+        KeySpec[] all = new KeySpec[specs.size() + 1];
+        all[0] = mDefaultKeySpec;
+        Iterator it = specs.iterator();
+        for (int i=1; it.hasNext(); i++) {
+            all[i] = (KeySpec)it.next();
+        }
+        return all;
+    }
+
+    private KeySpec getKeySpec(String spec) {
+        KeySpec keySpec = (KeySpec)mKeySpecs.get(spec);
+        if (keySpec == null) {
+            synchronized (mKeySpecLock) {
+                keySpec = (KeySpec)mKeySpecs.get(spec);
+                if (keySpec == null) {
+                    keySpec = new KeySpec(spec);
+                    Map specs = new HashMap(mKeySpecs);
+                    specs.put(spec, keySpec);
+                    mKeySpecs = specs;
+                }
+            }
+        }
+        return keySpec;
+    }
+
     void nocache(ApplicationRequest request, 
                  ApplicationResponse response,
                  Substitution s)
@@ -290,27 +572,205 @@ public class RegionCachingApplication implements AdminApp {
     }
 
     private TemplateKey getTemplateKey(TemplateLoader.Template template) {
-        synchronized (mTemplateKeys) {
-            TemplateKey key = (TemplateKey)mTemplateKeys.get(template);
-            if (key == null) {
-                key = new TemplateKey(template);
-                mTemplateKeys.put(template, key);
-            }
+        TemplateKey key = findTemplateKey(mTemplateKeys, template);
+        if (key != null) {
             return key;
         }
+
+        synchronized (mTemplateKeyLock) {
+            TemplateKey[] keys = mTemplateKeys;
+            if ((key = findTemplateKey(keys, template)) != null) {
+                return key;
+            }
+
+            key = new TemplateKey(template);
+
+            // Rebuild the table, dropping keys for reclaimed templates.
+            int count = 1;
+            for (int i=keys.length; --i >= 0; ) {
+                if (keys[i] != null && keys[i].get() != null) {
+                    count++;
+                }
+            }
+            int capacity = 16;
+            while (capacity < count * 2) {
+                capacity <<= 1;
+            }
+
+            TemplateKey[] newKeys = new TemplateKey[capacity];
+            addTemplateKey(newKeys, key);
+            for (int i=keys.length; --i >= 0; ) {
+                if (keys[i] != null && keys[i].get() != null) {
+                    addTemplateKey(newKeys, keys[i]);
+                }
+            }
+
+            mTemplateKeys = newKeys;
+        }
+
+        if (mPersistentDepot != null) {
+            scheduleSweep(key);
+        }
+
+        return key;
+    }
+
+    /**
+     * Schedules removal of the persistent regions of other versions of the
+     * given key's template. Sweeps are batched, since each one scans all
+     * the keys in the store.
+     */
+    private void scheduleSweep(TemplateKey key) {
+        TemplateLoader.Template template = (TemplateLoader.Template)key.get();
+        String hash = key.getSourceHash();
+        if (template == null || hash == null) {
+            return;
+        }
+
+        synchronized (mPendingSweeps) {
+            mPendingSweeps.put(template.getName(), hash);
+            if (mSweepQueued) {
+                return;
+            }
+            mSweepQueued = true;
+        }
+
+        if (!mTQ.enqueue(new Sweeper())) {
+            // Try again when the next template is loaded.
+            synchronized (mPendingSweeps) {
+                mSweepQueued = false;
+            }
+        }
+    }
+
+    private static TemplateKey findTemplateKey(TemplateKey[] keys,
+                                               Object template) {
+        int mask = keys.length - 1;
+        int i = System.identityHashCode(template) & mask;
+        TemplateKey key;
+        while ((key = keys[i]) != null) {
+            if (key.get() == template) {
+                return key;
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    private static void addTemplateKey(TemplateKey[] keys, TemplateKey key) {
+        int mask = keys.length - 1;
+        int i = key.mIdentityHash & mask;
+        while (keys[i] != null) {
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
     }
 
-    private String[] getHeaderValues(ApplicationRequest request) {
-        if (mHeaders == null) {
+    /**
+     * Returns the query string with ignored parameters removed and the
+     * parameters sorted by name. The order of parameters with the same name
+     * is preserved.
+     */
+    String normalizeQuery(String query) {
+        if (query == null) {
             return null;
         }
 
-        String[] headers = (String[])mHeaders.clone();
-        for (int i = headers.length; --i >= 0; ) {
-            headers[i] = request.getHeader(headers[i]);
+        String[] ignored = mIgnoredParameters;
+
+        // Check if the query string is already normal, which is the common
+        // case, without creating any objects.
+        boolean normal = true;
+        int prevStart = 0, prevEnd = 0;
+        for (int start = 0, length = query.length(); start < length; ) {
+            int end = query.indexOf('&', start);
+            if (end < 0) {
+                end = length;
+            }
+            int nameEnd = query.indexOf('=', start);
+            if (nameEnd < 0 || nameEnd > end) {
+                nameEnd = end;
+            }
+            if (start > 0 && compareNames
+                (query, prevStart, prevEnd, start, nameEnd) > 0) {
+                normal = false;
+                break;
+            }
+            if (ignored != null && isIgnored(query, start, nameEnd)) {
+                normal = false;
+                break;
+            }
+            prevStart = start;
+            prevEnd = nameEnd;
+            start = end + 1;
+        }
+
+        if (normal) {
+            return query;
+        }
+
+        List params = new ArrayList();
+        StringTokenizer st = new StringTokenizer(query, "&");
+        while (st.hasMoreTokens()) {
+            String param = st.nextToken();
+            int nameEnd = param.indexOf('=');
+            if (nameEnd < 0) {
+                nameEnd = param.length();
+            }
+            if (ignored == null || !isIgnored(param, 0, nameEnd)) {
+                params.add(param);
+            }
         }
 
-        return headers;
+        // Stable sort keeps the order of parameters with the same name.
+        Collections.sort(params, new Comparator() {
+            public int compare(Object a, Object b) {
+                String strA = (String)a;
+                String strB = (String)b;
+                int endA = strA.indexOf('=');
+                int endB = strB.indexOf('=');
+                return compareNames(strA, 0, endA < 0 ? strA.length() : endA,
+                                    strB, 0, endB < 0 ? strB.length() : endB);
+            }
+        });
+
+        StringBuffer buf = new StringBuffer(query.length());
+        for (int i=0; i<params.size(); i++) {
+            if (i > 0) {
+                buf.append('&');
+            }
+            buf.append((String)params.get(i));
+        }
+        return buf.toString();
+    }
+
+    private boolean isIgnored(String str, int start, int end) {
+        String[] ignored = mIgnoredParameters;
+        int length = end - start;
+        for (int i=ignored.length; --i >= 0; ) {
+            String name = ignored[i];
+            if (name.length() == length &&
+                str.regionMatches(start, name, 0, length)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int compareNames(String str, int startA, int endA,
+                                    int startB, int endB) {
+        return compareNames(str, startA, endA, str, startB, endB);
+    }
+
+    private static int compareNames(String strA, int startA, int endA,
+                                    String strB, int startB, int endB) {
+        while (startA < endA && startB < endB) {
+            int c = strA.charAt(startA++) - strB.charAt(startB++);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return (endA - startA) - (endB - startB);
     }
 
     Depot getDepot(TemplateLoader.Template template) {
@@ -318,6 +778,28 @@ public class RegionCachingApplication implements AdminApp {
     }
 
     Depot getDepot(TemplateKey key) {
+        if (mPersistentDepot != null) {
+            return mPersistentDepot;
+        }
+        return getLocalDepot(key);
+    }
+
+    /**
+     * Returns the Depot that holds the region with the given Depot key.
+     * Persistent regions are keyed by strings, and the rest by RegionKeys.
+     */
+    Depot getDepot(TemplateKey key, Object depotKey) {
+        if (mPersistentDepot != null && depotKey instanceof String) {
+            return mPersistentDepot;
+        }
+        return getLocalDepot(key);
+    }
+
+    /**
+     * Returns the in-memory Depot for regions of the given template, which
+     * holds the regions that can't be persisted.
+     */
+    private Depot getLocalDepot(TemplateKey key) {
         TemplateLoader depotKey = key.getTemplateLoader();
         if (depotKey == null) {
             return null;
@@ -362,6 +844,7 @@ public class RegionCachingApplication implements AdminApp {
 
             // If here, no Depot found. Make one.
             depot = new Depot(null, mCacheSize, mTQ, mTimeout);
+            depot.setRefreshAhead(mRefreshAhead);
             mDepots.add(new DepotLink(depotKey, depot));
         }
 
@@ -383,12 +866,135 @@ public class RegionCachingApplication implements AdminApp {
             mLog.warn("Failed to create ClusterManager.");
             mLog.warn(e);
         }
+
+        PropertyMap props = config.getProperties().subMap("cluster");
+        PropertyMap regionProps = props.subMap("regions");
+
+        try {
+            ClusterChannel channel = null;
+            String loopback = regionProps.getString("loopback");
+            int port = regionProps.getInt("port", 0);
+
+            if (loopback != null) {
+                channel = new LoopbackClusterChannel(loopback);
+            }
+            else if (port > 0) {
+                String group = props.getString("multicast.group");
+                if (group == null) {
+                    mLog.warn("Sharing regions requires " +
+                              "cluster.multicast.group");
+                }
+                else {
+                    InetAddress netInterface = null;
+                    String localNet = props.getString("localNet");
+                    if (localNet != null) {
+                        netInterface = LocalNetResolver.resolveLocalNet
+                            (InetAddress.getLocalHost().getHostName(),
+                             localNet);
+                    }
+                    channel = new MulticastClusterChannel
+                        (InetAddress.getByName(group), port, netInterface);
+                }
+            }
+
+            if (channel != null) {
+                String key = regionProps.getString("key");
+                if (key == null || key.length() == 0) {
+                    mLog.warn("Sharing regions requires cluster.regions.key");
+                    channel.close();
+                }
+                else {
+                    mConference = new ClusterConference
+                        (channel, new LocalRegions(),
+                         regionProps.getNumber
+                         ("timeout", new Long(100)).longValue(),
+                         key.getBytes("UTF-8"));
+                }
+            }
+        }
+        catch (Exception e) {
+            mLog.warn("Failed to share regions with the cluster.");
+            mLog.warn(e);
+        }
+    }
+
+    /**
+     * Purges all the cached regions that have the given tag, throughout the
+     * cluster. Every region is tagged with the name of its template, and key
+     * specs may add more tags.
+     */
+    public void purgeRegions(String tag) {
+        if (mConference == null) {
+            purgeLocalRegions(tag);
+            return;
+        }
+        try {
+            mConference.expireTag(tag);
+        }
+        catch (IOException e) {
+            mLog.warn(e);
+        }
+    }
+
+    /**
+     * Purges a cached region throughout the cluster.
+     *
+     * @param clusterKey key that identifies the region to cluster peers
+     */
+    public void purgeRegion(String clusterKey) {
+        if (mConference == null) {
+            purgeLocalRegion(clusterKey);
+            return;
+        }
+        try {
+            mConference.expireCE(clusterKey);
+        }
+        catch (IOException e) {
+            mLog.warn(e);
+        }
+    }
+
+    void purgeLocalRegion(Object clusterKey) {
+        RegisteredRegion region = (RegisteredRegion)mRegions.remove(clusterKey);
+        if (region != null) {
+            region.purge();
+        }
+    }
+
+    void purgeLocalRegions(Object tag) {
+        List purged = new ArrayList();
+        synchronized (mRegions) {
+            Iterator it = mRegions.values().iterator();
+            while (it.hasNext()) {
+                RegisteredRegion region = (RegisteredRegion)it.next();
+                if (region != null && region.hasTag(tag)) {
+                    it.remove();
+                    purged.add(region);
+                }
+            }
+        }
+        // Purge outside the lock, since Depots have their own locks.
+        for (int i=purged.size(); --i>=0; ) {
+            ((RegisteredRegion)purged.get(i)).purge();
+        }
+    }
+
+    void registerRegion(String clusterKey, RegionKey key, Object depotKey,
+                        String[] tags, ApplicationResponse.DetachedData data,
+                        long validDuration) {
+        mRegions.put(clusterKey, new RegisteredRegion
+                     (key, depotKey, tags, data,
+                      System.currentTimeMillis() + validDuration));
     }
 
     // Allows old templates to be garbage collected when reloaded.
     private static class TemplateKey extends WeakReference {
+        final int mIdentityHash;
+        private volatile String mSourceHash;
+
         TemplateKey(TemplateLoader.Template template) {
             super(template);
+            mIdentityHash = System.identityHashCode(template);
         }
 
         public boolean equals(Object obj) {
@@ -424,6 +1030,606 @@ public class RegionCachingApplication implements AdminApp {
             TemplateLoader.Template t = (TemplateLoader.Template)get();
             return (t != null) ? t.getTemplateLoader() : null;
         }
+
+        /**
+         * Returns a hash of the compiled template and all the templates it
+         * calls, directly or indirectly, which changes when any of their
+         * sources change. Returns null if the template has been unloaded. If
+         * the template's ClassInjector can't provide a checksum, the hash is
+         * only valid until the process exits.
+         */
+        String getSourceHash() {
+            String hash = mSourceHash;
+            if (hash == null) {
+                TemplateLoader.Template t = (TemplateLoader.Template)get();
+                if (t == null) {
+                    return null;
+                }
+                Class clazz = t.getTemplateClass();
+                ClassLoader loader = clazz.getClassLoader();
+                long checksum = -1;
+                if (loader instanceof ClassInjector) {
+                    checksum = ((ClassInjector)loader)
+                        .getDeepChecksum(clazz.getName());
+                }
+                if (checksum >= 0) {
+                    hash = Long.toString(checksum, 36);
+                }
+                else {
+                    hash = cProcessToken + '-' +
+                        Integer.toString(mIdentityHash, 36);
+                }
+                mSourceHash = hash;
+            }
+            return hash;
+        }
+    }
+
+    /**
+     * Identifies a cached region. The hash code is computed up front, since
+     * keys are hashed at least once per request.
+     */
+    private static class RegionKey {
+        private final TemplateKey mTemplateKey;
+        private final Object mRegionId;
+        private final String mRequestKey;
+        private final Object mKey;
+        private final int mHash;
+
+        RegionKey(TemplateKey templateKey, Object regionId,
+                  String requestKey, Object key) {
+            mTemplateKey = templateKey;
+            mRegionId = regionId;
+            mRequestKey = requestKey;
+            mKey = key;
+
+            int hash = templateKey.hashCode();
+            hash = hash * 31 + (regionId == null ? 0 : regionId.hashCode());
+            hash = hash * 31 +
+                (requestKey == null ? 0 : requestKey.hashCode());
+            hash = hash * 31 + (key == null ? 0 : key.hashCode());
+            mHash = hash;
+        }
+
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj instanceof RegionKey) {
+                RegionKey other = (RegionKey)obj;
+                return mHash == other.mHash &&
+                    mTemplateKey.equals(other.mTemplateKey) &&
+                    equals(mRegionId, other.mRegionId) &&
+                    equals(mRequestKey, other.mRequestKey) &&
+                    equals(mKey, other.mKey);
+            }
+            return false;
+        }
+
+        public int hashCode() {
+            return mHash;
+        }
+
+        public String toString() {
+            return mTemplateKey + ", " + mRegionId + ", " + mRequestKey +
+                ", " + mKey;
+        }
+
+        private static boolean equals(Object a, Object b) {
+            return a == null ? b == null : a.equals(b);
+        }
+
+        TemplateKey getTemplateKey() {
+            return mTemplateKey;
+        }
+
+        /**
+         * Returns a key that identifies this region to cluster peers, or
+         * null if its template has been unloaded or if its key can't be
+         * shared. Only null, String, Number and MultiKey keys made of
+         * those can be shared, since other keys may not have a toString
+         * method that tells them apart.
+         */
+        String toClusterKey() {
+            return toKey(null);
+        }
+
+        /**
+         * Returns a key that identifies this region across restarts, by
+         * template name and source hash, or null if it can't be persisted
+         * for any of the reasons that it can't be shared.
+         */
+        String toPersistentKey() {
+            String hash = mTemplateKey.getSourceHash();
+            return hash == null ? null : toKey(hash);
+        }
+
+        private String toKey(String sourceHash) {
+            TemplateLoader.Template template =
+                (TemplateLoader.Template)mTemplateKey.get();
+            if (template == null) {
+                return null;
+            }
+            StringBuffer buf = new StringBuffer(80);
+            appendValue(buf, template.getName());
+            if (sourceHash != null) {
+                appendValue(buf, sourceHash);
+            }
+            appendValue(buf, String.valueOf(mRegionId));
+            appendValue(buf, mRequestKey);
+            if (!appendKey(buf, mKey)) {
+                return null;
+            }
+            return buf.toString();
+        }
+
+        /**
+         * Appends a key prefixed by its type, returning false if it can't
+         * be shared.
+         */
+        private static boolean appendKey(StringBuffer buf, Object key) {
+            if (key == null) {
+                buf.append('-');
+            }
+            else if (key instanceof String) {
+                buf.append('s');
+                appendValue(buf, (String)key);
+            }
+            else if (key instanceof Number) {
+                buf.append('n');
+                appendValue(buf, key.toString());
+            }
+            else if (key instanceof MultiKey) {
+                return appendKey(buf, ((MultiKey)key).getComponent());
+            }
+            else if (key instanceof Object[]) {
+                Object[] keys = (Object[])key;
+                buf.append('a').append(keys.length).append(':');
+                for (int i=0; i<keys.length; i++) {
+                    if (!appendKey(buf, keys[i])) {
+                        return false;
+                    }
+                }
+            }
+            else {
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Appends a value prefixed by its length, so that no value can be
+     * confused with the ones that follow it. A null value is written as '-'.
+     */
+    static void appendValue(StringBuffer buf, String value) {
+        if (value == null) {
+            buf.append('-');
+        }
+        else {
+            buf.append(value.length()).append(':').append(value);
+        }
+    }
+
+    /**
+     * A rendered region that can be provided to cluster peers or purged.
+     */
+    private class RegisteredRegion {
+        private final RegionKey mKey;
+        private final Object mDepotKey;
+        private final String[] mTags;
+        private final long mExpire;
+        // Weakly referenced, since the Depot decides how long to keep it.
+        private final WeakReference mData;
+
+        RegisteredRegion(RegionKey key, Object depotKey, String[] tags,
+                         ApplicationResponse.DetachedData data,
+                         long expire) {
+            mKey = key;
+            mDepotKey = depotKey;
+            mTags = tags;
+            mData = new WeakReference(data);
+            mExpire = expire;
+        }
+
+        /**
+         * Returns the region's data if it hasn't expired, or null.
+         */
+        Object getData() {
+            if (getValidDuration() <= 0) {
+                return null;
+            }
+            Object data = mData.get();
+            if (data instanceof Depot.Perishable &&
+                !((Depot.Perishable)data).isValid()) {
+                return null;
+            }
+            return data;
+        }
+
+        long getValidDuration() {
+            return Math.max(0, mExpire - System.currentTimeMillis());
+        }
+
+        boolean hasTag(Object tag) {
+            Object template = mKey.getTemplateKey().get();
+            if (template != null &&
+                ((TemplateLoader.Template)template).getName().equals(tag)) {
+                return true;
+            }
+            String[] tags = mTags;
+            for (int i=0; i<tags.length; i++) {
+                if (tags[i].equals(tag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void purge() {
+            mData.clear();
+            Depot depot = getDepot(mKey.getTemplateKey(), mDepotKey);
+            if (depot != null) {
+                depot.remove(mDepotKey);
+            }
+        }
+    }
+
+    /**
+     * Provides locally rendered regions to cluster peers.
+     */
+    private class LocalRegions implements ClusterConference.Local {
+        public Object get(Object clusterKey) {
+            RegisteredRegion region =
+                (RegisteredRegion)mRegions.get(clusterKey);
+            return region == null ? null : region.getData();
+        }
+
+        public long getValidDuration(Object clusterKey) {
+            RegisteredRegion region =
+                (RegisteredRegion)mRegions.get(clusterKey);
+            return region == null ? 0 : region.getValidDuration();
+        }
+
+        public void expire(Object clusterKey) {
+            purgeLocalRegion(clusterKey);
+        }
+
+        public void expireTag(Object tag) {
+            purgeLocalRegions(tag);
+        }
+
+        public void writeValue(Object value, DataOutput out)
+            throws IOException
+        {
+            DetachedResponseImpl.writeData
+                ((ApplicationResponse.DetachedData)value, out);
+        }
+
+        public Object readValue(DataInput in) throws IOException {
+            return DetachedResponseImpl.readData(in);
+        }
+    }
+
+    /**************************************************************************
+     * Declares which query parameters and headers identify a cached region,
+     * and keeps hit and miss counts for the regions that use it. A key spec
+     * lists parameter names, and header names prefixed with "header:",
+     * separated by commas, semicolons or spaces. The order of the names
+     * doesn't matter. Names prefixed with "tag:" are tags for purging
+     * regions, and they don't affect the key.
+     * <p>
+     * The default key spec has a null spec string. It uses the normalized
+     * query string and the configured headers.
+     */
+    public class KeySpec {
+        private final String mSpec;
+        private final String[] mParameters;
+        private final String[] mHeaderNames;
+        private final String[] mTags;
+
+        private int mHits;
+        private int mMisses;
+
+        KeySpec(String spec) {
+            mSpec = spec;
+
+            if (spec == null) {
+                mParameters = null;
+                mHeaderNames = mHeaders;
+                mTags = new String[0];
+                return;
+            }
+
+            List params = new ArrayList();
+            List headers = new ArrayList();
+            List tags = new ArrayList();
+            StringTokenizer st = new StringTokenizer(spec, " ;,");
+            while (st.hasMoreTokens()) {
+                String name = st.nextToken();
+                if (name.regionMatches(true, 0, "header:", 0, 7)) {
+                    // Header names are case-insensitive.
+                    name = name.substring(7).toLowerCase();
+                    if (name.length() > 0 && !headers.contains(name)) {
+                        headers.add(name);
+                    }
+                }
+                else if (name.regionMatches(true, 0, "tag:", 0, 4)) {
+                    // Tags don't affect the key.
+                    name = name.substring(4);
+                    if (name.length() > 0 && !tags.contains(name)) {
+                        tags.add(name);
+                    }
+                }
+                else if (!params.contains(name)) {
+                    params.add(name);
+                }
+            }
+
+            Collections.sort(params);
+            Collections.sort(headers);
+
+            mParameters = (String[])params.toArray(new String[params.size()]);
+            mHeaderNames =
+                (String[])headers.toArray(new String[headers.size()]);
+            mTags = (String[])tags.toArray(new String[tags.size()]);
+        }
+
+        /**
+         * Returns the spec string, which is null for the default key spec.
+         */
+        public String getSpec() {
+            return mSpec;
+        }
+
+        /**
+         * Returns the tags attached to regions using this key spec, not
+         * including the implicit template name tag.
+         */
+        public String[] getTags() {
+            return (String[])mTags.clone();
+        }
+
+        String[] tags() {
+            return mTags;
+        }
+
+        public synchronized int getHitCount() {
+            return mHits;
+        }
+
+        public synchronized int getMissCount() {
+            return mMisses;
+        }
+
+        /**
+         * Returns the fraction of cache requests that were hits, or zero if
+         * there were none.
+         */
+        public synchronized double getHitRatio() {
+            int total = mHits + mMisses;
+            return total == 0 ? 0.0 : ((double)mHits) / total;
+        }
+
+        synchronized void hit() {
+            mHits++;
+        }
+
+        synchronized void miss() {
+            mMisses++;
+        }
+
+        /**
+         * Builds the portion of a region key that depends on the request.
+         */
+        String buildKey(ApplicationRequest request) {
+            String[] params = mParameters;
+            String[] headers = mHeaderNames;
+
+            if (params == null) {
+                String query = normalizeQuery(request.getQueryString());
+                if (headers == null) {
+                    return query;
+                }
+                StringBuffer buf = new StringBuffer(80);
+                appendValue(buf, query);
+                appendHeaders(buf, request, headers);
+                return buf.toString();
+            }
+
+            if (params.length == 0 && headers.length == 0) {
+                return null;
+            }
+
+            // Values are decoded, so different encodings of the same
+            // parameter value produce the same key. Each parameter is
+            // written as its number of values, followed by the values.
+            StringBuffer buf = new StringBuffer(80);
+            for (int i=0; i<params.length; i++) {
+                String[] values = request.getParameterValues(params[i]);
+                if (values == null) {
+                    buf.append("0:");
+                }
+                else {
+                    buf.append(values.length).append(':');
+                    for (int j=0; j<values.length; j++) {
+                        appendValue(buf, values[j]);
+                    }
+                }
+            }
+            appendHeaders(buf, request, headers);
+            return buf.toString();
+        }
+
+        private void appendHeaders(StringBuffer buf,
+                                   ApplicationRequest request,
+                                   String[] headers) {
+            for (int i=0; i<headers.length; i++) {
+                appendValue(buf, request.getHeader(headers[i]));
+            }
+        }
+
+        public String toString() {
+            return mSpec == null ? "default" : mSpec;
+        }
+    }
+
+    /**
+     * Removes the persistent regions of template versions other than those
+     * pending a sweep.
+     */
+    private class Sweeper implements Transaction {
+        public void service() {
+            final Map sweeps;
+            synchronized (mPendingSweeps) {
+                sweeps = new HashMap(mPendingSweeps);
+                mPendingSweeps.clear();
+                mSweepQueued = false;
+            }
+
+            mPersistentDepot.removeAll(new Depot.Filter() {
+                public boolean accept(Object key) {
+                    // Keys begin with the length-prefixed template name and
+                    // source hash.
+                    String str = (String)key;
+                    int index = str.indexOf(':');
+                    int end;
+                    try {
+                        end = index + 1 +
+                            Integer.parseInt(str.substring(0, index));
+                    }
+                    catch (RuntimeException e) {
+                        // Not a region key.
+                        return true;
+                    }
+                    if (end > str.length()) {
+                        return true;
+                    }
+                    String hash =
+                        (String)sweeps.get(str.substring(index + 1, end));
+                    if (hash == null) {
+                        return false;
+                    }
+                    StringBuffer prefix = new StringBuffer(hash.length() + 4);
+                    appendValue(prefix, hash);
+                    return !str.startsWith(prefix.toString(), end);
+                }
+            });
+        }
+
+        public void cancel() {
+            synchronized (mPendingSweeps) {
+                mSweepQueued = false;
+            }
+        }
+    }
+
+    /**
+     * Wraps regions kept in the persistent Depot, which are written in the
+     * compact binary form of DetachedResponseImpl instead of being
+     * serialized. Regions that can't be written, because they contain
+     * commands of other applications or have been evicted from off-heap
+     * storage, are read back as expired and without data. So are regions
+     * that can't be read.
+     */
+    private static class StoredRegion
+        implements Externalizable, Depot.Perishable
+    {
+        // Fixed, so that stored regions can be read by later builds.
+        static final long serialVersionUID = 1;
+
+        private ApplicationResponse.DetachedData mData;
+        private long mExpire;
+
+        public StoredRegion() {
+        }
+
+        StoredRegion(ApplicationResponse.DetachedData data, long expire) {
+            mData = data;
+            mExpire = expire;
+        }
+
+        /**
+         * Returns the region's data, or null if it couldn't be stored.
+         */
+        ApplicationResponse.DetachedData getData() {
+            return mData;
+        }
+
+        public boolean isValid() {
+            if (mData == null || System.currentTimeMillis() > mExpire) {
+                return false;
+            }
+            return !(mData instanceof Depot.Perishable) ||
+                ((Depot.Perishable)mData).isValid();
+        }
+
+        public void writeExternal(ObjectOutput out) throws IOException {
+            byte[] bytes = null;
+            if (mData != null) {
+                // Encode fully before writing, to not leave a partial region
+                // in the stream.
+                try {
+                    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+                    DetachedResponseImpl.writeData
+                        (mData, new DataOutputStream(bout));
+                    bytes = bout.toByteArray();
+                }
+                catch (IOException e) {
+                }
+            }
+
+            if (bytes == null) {
+                out.writeLong(0);
+                out.writeInt(-1);
+            }
+            else {
+                out.writeLong(mExpire);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+
+        public void readExternal(ObjectInput in) throws IOException {
+            mExpire = in.readLong();
+            int length = in.readInt();
+            if (length >= 0) {
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                try {
+                    mData = DetachedResponseImpl.readData
+                        (new DataInputStream(new ByteArrayInputStream(bytes)));
+                }
+                catch (IOException e) {
+                    mExpire = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Resolves classes read from the persistent Depot using the ClassLoader
+     * of this application, which may not be visible to Trove.
+     */
+    private static class RegionStreamBuilder extends ObjectStreamBuilder {
+        public ObjectInputStream createInputStream(InputStream in)
+            throws IOException
+        {
+            return new ObjectInputStream(in) {
+                protected Class resolveClass(ObjectStreamClass desc)
+                    throws IOException, ClassNotFoundException
+                {
+                    try {
+                        return Class.forName
+                            (desc.getName(), false,
+                             RegionCachingApplication.class.getClassLoader());
+                    }
+                    catch (ClassNotFoundException e) {
+                        return super.resolveClass(desc);
+                    }
+                }
+            };
+        }
     }
 
     private static class DepotLink extends WeakReference {
@@ -439,14 +1645,21 @@ public class RegionCachingApplication implements AdminApp {
         final Substitution mSub;
         final TemplateKey mTemplateKey;
         final long mTTLMillis;
-        final Object mKey;
+        final RegionKey mKey;
+        // Key of the region in its Depot, which is null if it can't be
+        // cached.
+        final Object mDepotKey;
+        final KeySpec mSpec;
 
         CacheCommand(Substitution s, TemplateKey templateKey,
-                     long ttlMillis, Object key) {
+                     long ttlMillis, RegionKey key, Object depotKey,
+                     KeySpec spec) {
             mSub = s.detach();
             mTemplateKey = templateKey;
             mTTLMillis = ttlMillis;
             mKey = key;
+            mDepotKey = depotKey;
+            mSpec = spec;
         }
 
         public void execute(ApplicationRequest request,
@@ -457,11 +1670,16 @@ public class RegionCachingApplication implements AdminApp {
                 new DetachedDataFactory(this, response);
 
             ApplicationResponse.DetachedData data;
-            Depot depot = getDepot(mTemplateKey);
+            Depot depot = getDepot(mTemplateKey, mDepotKey);
 
-            if (depot != null) {
-                data = (ApplicationResponse.DetachedData)
-                    depot.get(factory, mKey);
+            if (depot != null && mDepotKey != null) {
+                data = unwrap(depot.get(factory, mDepotKey), response);
+                if (factory.mCalled) {
+                    mSpec.miss();
+                }
+                else {
+                    mSpec.hit();
+                }
                 if (mCompressLevel > 0 && !factory.mCalled) {
                     // If the factory wasn't called, then this was a cache hit.
                     // Its likely it will be seen again, so take the time to
@@ -481,23 +1699,87 @@ public class RegionCachingApplication implements AdminApp {
             else {
                 // This should never happen, but just in case, generate data
                 // without caching.
-                data = (ApplicationResponse.DetachedData)factory.create(mKey);
+                data = unwrap(factory.create(mKey), response);
             }
             
-            if (data != null) {
-                data.playback(request, response);
+            if (data != null &&
+                !DetachedResponseImpl.playback(data, request, response)) {
+                // Evicted from off-heap storage after being retrieved, so
+                // generate it again without caching.
+                response.execDetached(mSub).playback(request, response);
+            }
+        }
+
+        private ApplicationResponse.DetachedData unwrap
+            (Object value, ApplicationResponse response) throws Exception
+        {
+            if (value instanceof StoredRegion) {
+                ApplicationResponse.DetachedData data =
+                    ((StoredRegion)value).getData();
+                if (data == null) {
+                    // Stored without its data, so generate it again without
+                    // caching.
+                    data = response.execDetached(mSub);
+                }
+                return data;
             }
+            return (ApplicationResponse.DetachedData)value;
+        }
+
+        /**
+         * Wraps the data for storing in the persistent Depot, if any.
+         */
+        Object wrap(ApplicationResponse.DetachedData data,
+                    long validDuration) {
+            if (getDepot(mTemplateKey, mDepotKey) != mPersistentDepot) {
+                return data;
+            }
+            return new StoredRegion
+                (data, System.currentTimeMillis() + validDuration);
         }
 
         Log getLog() {
             return mLog;
         }
+
+        SlabAllocator getOffHeapStorage() {
+            return mSlabs;
+        }
+
+        /**
+         * Returns the region from a cluster peer, or null if none provided
+         * it.
+         */
+        ClusterConference.Fetched fetchFromPeer(String clusterKey) {
+            ClusterConference conference = mConference;
+            if (conference != null) {
+                try {
+                    ClusterConference.Fetched fetched =
+                        conference.fetch(clusterKey);
+                    if (fetched != null && fetched.getValue()
+                        instanceof ApplicationResponse.DetachedData) {
+                        return fetched;
+                    }
+                }
+                catch (IOException e) {
+                    mLog.warn(e);
+                }
+            }
+            return null;
+        }
+
+        void register(String clusterKey, ApplicationResponse.DetachedData data,
+                      long validDuration) {
+            registerRegion(clusterKey, mKey, mDepotKey, mSpec.tags(),
+                           data, validDuration);
+        }
     }
 
     private static class DetachedDataFactory
         implements Depot.PerishablesFactory
     {
         boolean mCalled;
+        private long mValidDuration;
 
         private CacheCommand mCommand;
         private ApplicationResponse mResponse;
@@ -505,12 +1787,40 @@ public class RegionCachingApplication implements AdminApp {
         DetachedDataFactory(CacheCommand c, ApplicationResponse response) {
             mCommand = c;
             mResponse = response;
+            mValidDuration = c.mTTLMillis;
         }
 
         public Object create(Object xxx) throws InterruptedException {
             mCalled = true;
             try {
-                return mResponse.execDetached(mCommand.mSub);
+                String clusterKey = mCommand.mKey.toClusterKey();
+                ApplicationResponse.DetachedData data = null;
+
+                if (clusterKey != null) {
+                    ClusterConference.Fetched fetched =
+                        mCommand.fetchFromPeer(clusterKey);
+                    if (fetched != null) {
+                        data = (ApplicationResponse.DetachedData)
+                            fetched.getValue();
+                        mValidDuration = Math.min
+                            (mValidDuration, fetched.getValidDuration());
+                    }
+                }
+
+                if (data == null) {
+                    data = mResponse.execDetached(mCommand.mSub);
+                }
+
+                SlabAllocator slabs = mCommand.getOffHeapStorage();
+                if (slabs != null) {
+                    DetachedResponseImpl.storeOffHeap(data, slabs);
+                }
+
+                if (clusterKey != null) {
+                    mCommand.register(clusterKey, data, mValidDuration);
+                }
+
+                return mCommand.wrap(data, mValidDuration);
             }
             catch (InterruptedException e) {
                 mCommand.getLog().error(e);
@@ -523,7 +1833,7 @@ public class RegionCachingApplication implements AdminApp {
         }
         
         public long getValidDuration() {
-            return mCommand.mTTLMillis;
+            return mValidDuration;
         }
     };
 
@@ -596,10 +1906,48 @@ public class RegionCachingApplication implements AdminApp {
             mApp.cache(mRequest, mResponse, ttlMillis, key, s);
         }
 
+        /**
+         * Caches and reuses a region of a page, keyed only on the query
+         * parameters and headers named by the given key spec. The cached
+         * region expires after a default time-to-live period has elapsed.
+         *
+         * @param keySpec names of parameters and "header:" prefixed headers
+         * that identify the region
+         * @param s substitution block whose contents will be cached
+         */
+        public void cacheBy(String keySpec, Substitution s) throws Exception {
+            mApp.cacheBy(mRequest, mResponse, keySpec, mDefaultTTL, s);
+        }
+
+        /**
+         * Caches and reuses a region of a page, keyed only on the query
+         * parameters and headers named by the given key spec. The cached
+         * region expires after the specified time-to-live period has elapsed.
+         *
+         * @param keySpec names of parameters and "header:" prefixed headers
+         * that identify the region
+         * @param ttlMillis maximum time to live of cached region, in
+         * milliseconds
+         * @param s substitution block whose contents will be cached
+         */
+        public void cacheBy(String keySpec, long ttlMillis, Substitution s)
+            throws Exception
+        {
+            mApp.cacheBy(mRequest, mResponse, keySpec, ttlMillis, s);
+        }
+
         public void nocache(Substitution s) throws Exception {
             mApp.nocache(mRequest, mResponse, s);
         }
 
+        public KeySpec[] getKeySpecs() {
+            return mApp.getKeySpecs();
+        }
+
+        public void purgeRegions(String tag) {
+            mApp.purgeRegions(tag);
+        }
+
         public RegionCacheInfo getRegionCacheInfo() {
             return new RegionCacheInfo(mApp.getDepot(mRequest.getTemplate()));
         }
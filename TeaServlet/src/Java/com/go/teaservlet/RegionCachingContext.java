@@ -97,8 +97,45 @@ public interface RegionCachingContext {
     public void cache(long ttlMillis, Object key, Substitution s)
         throws Exception;
 
+    /**
+     * Caches and reuses a region of a page, keyed only on the query
+     * parameters and headers named by the given key spec. The cached region
+     * expires after a default time-to-live period has elapsed.
+     *
+     * @param keySpec names of parameters and "header:" prefixed headers that
+     * identify the region, i.e. "id, page, header:Accept-Language"
+     * @param s substitution block whose contents will be cached
+     */
+    public void cacheBy(String keySpec, Substitution s) throws Exception;
+
+    /**
+     * Caches and reuses a region of a page, keyed only on the query
+     * parameters and headers named by the given key spec. The cached region
+     * expires after the specified time-to-live period has elapsed.
+     *
+     * @param keySpec names of parameters and "header:" prefixed headers that
+     * identify the region
+     * @param ttlMillis maximum time to live of cached region, in milliseconds
+     * @param s substitution block whose contents will be cached
+     */
+    public void cacheBy(String keySpec, long ttlMillis, Substitution s)
+        throws Exception;
+
     public void nocache(Substitution s) throws Exception;
 
+    /**
+     * Returns the default key spec and all key specs passed to cacheBy,
+     * which report hit and miss counts.
+     */
+    public RegionCachingApplication.KeySpec[] getKeySpecs();
+
+    /**
+     * Purges all the cached regions that have the given tag, throughout the
+     * cluster. Every region is tagged with the name of its template, and key
+     * specs can add more tags, i.e. "id, tag:news".
+     */
+    public void purgeRegions(String tag);
+
     public RegionCacheInfo getRegionCacheInfo();
     
     public RegionCachingApplication.ClusterCacheInfo getClusterCacheInfo();
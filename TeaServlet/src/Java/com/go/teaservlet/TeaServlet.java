@@ -112,9 +112,12 @@ import com.go.teaservlet.util.FilteredServletContext;
  * <li>template.default - the default name for templates
  * <li>template.file.encoding - character encoding of template source files
  * <li>template.exception.guardian - when true, runtime exceptions during template execution don't abort page output
+ * <li>template.compile.workers - number of threads used to compile templates, 1 by default
+ * <li>template.compile.manifest - when true, templates are recompiled based on a manifest of source and dependency hashes kept in the classes directory, instead of file timestamps, false by default
  * <li>separator.query - override the query separator of '?'
  * <li>separator.parameter - override the parameter separator of '&'
  * <li>separator.value - override the parameter separator of '='
+ * <li>url.cache.size - maximum total bytes of cacheable URL contents kept for the HttpContext's readURL and insertURL, 4194304 by default
  * <li>log.enabled - turns on/off log (boolean)
  * <li>log.debug - turns on/off log debug messages (boolean)
  * <li>log.info - turns on/off log info messages (boolean)
@@ -187,6 +190,11 @@ public class TeaServlet extends HttpServlet {
 
         PluginContext pluginContext = loadPlugins(mProperties, mLog);
 
+        Number urlCacheSize = mProperties.getNumber
+            ("url.cache.size",
+             new Long(HttpResource.DEFAULT_FRAGMENT_CACHE_SIZE));
+        HttpResource.setFragmentCacheSize(urlCacheSize.longValue());
+
         mEngine = createTeaServletEngine();
 
         ((TeaServletEngineImpl)getEngine()).startEngine(mProperties,
@@ -631,6 +639,8 @@ public class TeaServlet extends HttpServlet {
             if (DEBUG) {
                 mLog.debug("Finished executing template");
             }
+
+            appResponse.finish();
         }
         catch (ServletException e) {
             // Log exception
@@ -671,9 +681,16 @@ public class TeaServlet extends HttpServlet {
                         (appResponse.SC_INTERNAL_SERVER_ERROR, displayMessage);
                 }
             }
-          
+
+            appResponse.finish();
+        }
+        finally {
+            // Finishing releases what the response holds, but an exception
+            // or error may have prevented it.
+            if (appResponse instanceof ApplicationResponseImpl) {
+                ((ApplicationResponseImpl)appResponse).releaseLeases();
+            }
         }
-        appResponse.finish();
     }
 
 
@@ -98,8 +98,7 @@ public class TeaServletContextSource extends MergedContextSource {
      * a generic method to create context instances 
      */
     public Object createContext(Object param) throws Exception {
-        return getConstructor().newInstance
-            (new Object[] {new TSContextFactory(param)});
+        return getFactory().newInstance(new TSContextFactory(param));
     }
 
     private class TSContextFactory implements MergedClass.InstanceFactory {
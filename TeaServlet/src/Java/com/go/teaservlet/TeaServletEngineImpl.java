@@ -44,6 +44,10 @@ public class TeaServletEngineImpl implements TeaServletEngine {
     
     private static final boolean DEBUG = false;
 
+    // Limits on the number of URIs remembered for each set of templates.
+    private static final int MAX_URI_HITS = 10000;
+    private static final int MAX_URI_MISSES = 1000;
+
     // fields needed for implementing the TeaServletEngine interface
     private Log mLog;
     private PropertyMap mProperties;
@@ -56,6 +60,11 @@ public class TeaServletEngineImpl implements TeaServletEngine {
 
     private PluginContext mPluginContext;
 
+    // Maps request URIs to how they were resolved, including misses. The
+    // table is replaced whenever an entry is added or templates are
+    // reloaded, and so it can be read without locking.
+    private volatile URITable mURITable;
+
     protected void startEngine(PropertyMap properties,
                                ServletContext servletContext,
                                String servletName,
@@ -320,31 +329,45 @@ public class TeaServletEngineImpl implements TeaServletEngine {
                                  TemplateSource templateSrc)
         throws ServletException, IOException {
 
+        TemplateLoader loader = null;
+        if (templateSrc instanceof TemplateSourceImpl) {
+            loader = ((TemplateSourceImpl)templateSrc).getTemplateLoader();
+            URITable table = mURITable;
+            if (table != null && table.mSource == templateSrc &&
+                table.mLoader == loader) {
+
+                Resolution r = (Resolution)table.mResolutions.get(uri);
+                if (r != null) {
+                    if (r.mRedirect) {
+                        redirectToDirectory(request, response);
+                    }
+                    return r.mTemplate;
+                }
+            }
+        }
+
         Template template = null;
+        boolean redirect = false;
         try {
             // If path ends in a slash, revert to loading default template. If
             // default not found or not specified, return null.
             boolean useDefault = uri.endsWith("/");
 
             // Trim slashes and replace with dots.
-            while (uri.startsWith("/")) {
-                uri = uri.substring(1);
+            int start = 0;
+            int end = uri.length();
+            while (start < end && uri.charAt(start) == '/') {
+                start++;
             }
-            while (uri.endsWith("/")) {
-                uri = uri.substring(0, uri.length() - 1);
+            while (end > start && uri.charAt(end - 1) == '/') {
+                end--;
             }
-            String name = uri.replace('/', '.');
+            String name = uri.substring(start, end).replace('/', '.');
             
             // Look up template if not trying to use default.
             if (!useDefault) {
                 // Find template that matches the uri
-                try {
-                    template = templateSrc.getTemplate(name);
-                }
-                catch (ClassNotFoundException e) {
-                    mLog.debug("Can't find template \"" + name + "\": " + e);
-                    template = null;
-                }
+                template = lookupTemplate(templateSrc, name);
             }
 
             // Use default if no template found so far.
@@ -361,29 +384,12 @@ public class TeaServletEngineImpl implements TeaServletEngine {
                             + tsTsrc.getDefaultTemplateName();
                     }
                 }
-                try {
-                    template = tsTsrc.getTemplate(name);
-
-                    // Redirect if no slash on end of URI.
-                    if (template != null && !useDefault) {
-                        StringBuffer location = 
-                            new StringBuffer(request.getRequestURI());
-                        int length = location.length();
-                        if (length == 0 
-                            || location.charAt(length - 1) != '/') {
-                            location.append('/');
-                        }
-                        String query = request.getQueryString();
-                        if (query != null) {
-                            location.append('?').append(query);
-                        }
-                        response.setStatus(response.SC_MOVED_PERMANENTLY);
-                        response.sendRedirect(location.toString());
-                    }
-                }
-                catch (ClassNotFoundException e) {
-                    mLog.debug("Can't find default template \"" +
-                               name + "\": " + e);
+                template = lookupTemplate(tsTsrc, name);
+
+                // Redirect if no slash on end of URI.
+                if (template != null && !useDefault) {
+                    redirect = true;
+                    redirectToDirectory(request, response);
                 }
             }
         }
@@ -402,9 +408,89 @@ public class TeaServletEngineImpl implements TeaServletEngine {
             throw new ServletException("Template at \"" + uri 
                                        + "\" is invalid", e);
         }
+
+        if (loader != null) {
+            putResolution(templateSrc, loader, uri, template, redirect);
+        }
+
         return template;
     }
 
+    /**
+     * Returns null if the template isn't found.
+     */
+    private Template lookupTemplate(TemplateSource templateSrc, String name)
+        throws NoSuchMethodException
+    {
+        try {
+            if (templateSrc instanceof TemplateSourceImpl) {
+                // Doesn't throw an exception for missing templates.
+                Template template =
+                    ((TemplateSourceImpl)templateSrc).findTemplate(name);
+                if (template == null) {
+                    mLog.debug("Can't find template \"" + name + '"');
+                }
+                return template;
+            }
+            return templateSrc.getTemplate(name);
+        }
+        catch (ClassNotFoundException e) {
+            mLog.debug("Can't find template \"" + name + "\": " + e);
+            return null;
+        }
+    }
+
+    private void redirectToDirectory(HttpServletRequest request,
+                                     HttpServletResponse response)
+        throws IOException
+    {
+        StringBuffer location = new StringBuffer(request.getRequestURI());
+        int length = location.length();
+        if (length == 0 || location.charAt(length - 1) != '/') {
+            location.append('/');
+        }
+        String query = request.getQueryString();
+        if (query != null) {
+            location.append('?').append(query);
+        }
+        response.setStatus(response.SC_MOVED_PERMANENTLY);
+        response.sendRedirect(location.toString());
+    }
+
+    /**
+     * Remembers how a URI was resolved until templates are reloaded.
+     */
+    private synchronized void putResolution(TemplateSource templateSrc,
+                                            TemplateLoader loader,
+                                            String uri,
+                                            Template template,
+                                            boolean redirect) {
+        URITable table = mURITable;
+        if (table == null || table.mSource != templateSrc ||
+            table.mLoader != loader) {
+
+            table = new URITable(templateSrc, loader, new HashMap(), 0);
+        }
+        else if (table.mResolutions.containsKey(uri)) {
+            return;
+        }
+
+        int misses = table.mMissCount;
+        if (template == null) {
+            if (misses >= MAX_URI_MISSES) {
+                return;
+            }
+            misses++;
+        }
+        else if (table.mResolutions.size() - misses >= MAX_URI_HITS) {
+            return;
+        }
+
+        Map resolutions = new HashMap(table.mResolutions);
+        resolutions.put(uri, new Resolution(template, redirect));
+        mURITable = new URITable(templateSrc, loader, resolutions, misses);
+    }
+
     /**
      * Lets external classes use the HttpContext for their own, possibly
      * malicious purposes.
@@ -439,10 +525,33 @@ public class TeaServletEngineImpl implements TeaServletEngine {
                                   getLog());
     }
 
-}
-
-
 
+    private static class URITable {
+        final TemplateSource mSource;
+        final TemplateLoader mLoader;
+        // Maps URIs to Resolutions.
+        final Map mResolutions;
+        final int mMissCount;
 
+        URITable(TemplateSource source, TemplateLoader loader,
+                 Map resolutions, int missCount) {
+            mSource = source;
+            mLoader = loader;
+            mResolutions = resolutions;
+            mMissCount = missCount;
+        }
+    }
 
+    private static class Resolution {
+        // Is null if no template was found.
+        final Template mTemplate;
+        // Is true if the client must be redirected to the URI with a
+        // trailing slash.
+        final boolean mRedirect;
 
+        Resolution(Template template, boolean redirect) {
+            mTemplate = template;
+            mRedirect = redirect;
+        }
+    }
+}
@@ -360,6 +360,7 @@ public class TeaServletTemplateSource extends TemplateSourceImpl {
                     (mConfig.isExceptionGuardianEnabled());
                 rmcomp.addErrorListener(errorListener);
                 rmcomp.setForceCompile(force);
+                rmcomp.setWorkerCount(getCompilerWorkerCount());
                 results.getKnownTemplateNames()
                     .addAll(Arrays.asList(rmcomp.getAllTemplateNames()));
                 TemplateCompilationResults transients = 
@@ -64,6 +64,7 @@ import java.io.FileOutputStream;
 import java.io.StreamTokenizer;
 import java.net.InetAddress;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.TreeMap;
@@ -126,7 +127,7 @@ public class RemoteCompiler extends AbstractFileCompiler {
             throw new IllegalArgumentException
                 ("Destination is not a directory: " + rootDestDir);
         }
-        mSocketFactories = new HashMap();
+        mSocketFactories = Collections.synchronizedMap(new HashMap());
         mTemplateMap = retrieveTemplateMap();
     }
 
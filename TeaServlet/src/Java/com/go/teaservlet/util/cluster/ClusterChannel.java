@@ -0,0 +1,113 @@
+/* ====================================================================
+ * TeaServlet - Copyright (c) 1999-2000 Walt Disney Internet Group
+ * ====================================================================
+ * The Tea Software License, Version 1.1
+ *
+ * Copyright (c) 2000 Walt Disney Internet Group. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *        Walt Disney Internet Group (http://opensource.go.com/)."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Tea", "TeaServlet", "Kettle", "Trove" and "BeanDoc" must
+ *    not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact opensource@dig.com.
+ *
+ * 5. Products derived from this software may not be called "Tea",
+ *    "TeaServlet", "Kettle" or "Trove", nor may "Tea", "TeaServlet",
+ *    "Kettle", "Trove" or "BeanDoc" appear in their name, without prior
+ *    written permission of the Walt Disney Internet Group.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE WALT DISNEY INTERNET GROUP OR ITS
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ *
+ * For more information about Tea, please see http://opensource.go.com/.
+ */
+
+package com.go.teaservlet.util.cluster;
+
+import java.io.IOException;
+
+/******************************************************************************
+ * Sends messages to all the members of a cluster. Delivery is unreliable:
+ * messages may be lost, and they may also be delivered back to the sender.
+ *
+ * @author Brian S O'Neill
+ * @version
+ * <!--$$Revision$-->, <!--$$JustDate:--> <!-- $-->
+ * @see MulticastClusterChannel
+ * @see LoopbackClusterChannel
+ */
+public interface ClusterChannel {
+    /**
+     * Sets the receiver of messages sent by other members, replacing any
+     * previous one.
+     */
+    public void setReceiver(Receiver receiver);
+
+    /**
+     * Sends a message to all members of the cluster.
+     *
+     * @throws IOException if the message is larger than the maximum size, or
+     * if it cannot be sent
+     */
+    public void send(byte[] message) throws IOException;
+
+    /**
+     * Sends a message to only one member of the cluster.
+     *
+     * @param recipient address of the member, as passed to
+     * {@link Receiver#receive Receiver.receive}
+     * @throws IOException if the message is larger than the maximum size, or
+     * if it cannot be sent
+     */
+    public void send(byte[] message, Object recipient) throws IOException;
+
+    /**
+     * Returns the maximum size of a message, in bytes.
+     */
+    public int getMaxMessageSize();
+
+    /**
+     * Stops sending and receiving messages.
+     */
+    public void close();
+
+    public interface Receiver {
+        /**
+         * Called when a message is received. The array may be reused after
+         * this method returns.
+         *
+         * @param sender address of the member that sent the message, for
+         * replying to it alone
+         */
+        public void receive(byte[] message, int offset, int length,
+                            Object sender);
+    }
+}
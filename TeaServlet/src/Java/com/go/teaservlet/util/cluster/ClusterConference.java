@@ -0,0 +1,499 @@
+/* ====================================================================
+ * TeaServlet - Copyright (c) 1999-2000 Walt Disney Internet Group
+ * ====================================================================
+ * The Tea Software License, Version 1.1
+ *
+ * Copyright (c) 2000 Walt Disney Internet Group. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *        Walt Disney Internet Group (http://opensource.go.com/)."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Tea", "TeaServlet", "Kettle", "Trove" and "BeanDoc" must
+ *    not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact opensource@dig.com.
+ *
+ * 5. Products derived from this software may not be called "Tea",
+ *    "TeaServlet", "Kettle" or "Trove", nor may "Tea", "TeaServlet",
+ *    "Kettle", "Trove" or "BeanDoc" appear in their name, without prior
+ *    written permission of the Walt Disney Internet Group.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE WALT DISNEY INTERNET GROUP OR ITS
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ *
+ * For more information about Tea, please see http://opensource.go.com/.
+ */
+package com.go.teaservlet.util.cluster;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import com.go.trove.log.Syslog;
+import com.go.trove.util.UbercacheConference;
+
+/******************************************************************************
+ * Confers with the other members of a cluster over a {@link ClusterChannel},
+ * sharing cached values and expiring them cluster-wide. A value can be
+ * expired by its key, or by a tag attached to it. When a value isn't cached
+ * locally, it can be fetched from a peer that has already created it. The
+ * first peer to answer provides the value, and a fetch gives up as soon as
+ * every known peer has answered that it doesn't have the value, or when the
+ * timeout elapses.
+ * <p>
+ * Members become known to each other when they send any message, and are
+ * forgotten if they fail to answer a fetch in time.
+ * <p>
+ * Keys and tags must be strings. Values are written and read by the
+ * {@link Local} provider, and values that don't fit into a single channel
+ * message aren't shared. Messages are never deserialized as objects.
+ * <p>
+ * Every message carries an HMAC computed with a key shared by the members,
+ * and messages without a valid one are dropped. Answers to a fetch are
+ * sent only to the member that asked.
+ *
+ * @author Brian S O'Neill
+ * @version
+ * <!--$$Revision$-->, <!--$$JustDate:--> <!-- $-->
+ */
+public class ClusterConference
+    implements UbercacheConference, ClusterChannel.Receiver
+{
+    private static final byte REQUEST = 1;
+    private static final byte RESPONSE = 2;
+    private static final byte EXPIRE = 3;
+    private static final byte EXPIRE_TAG = 4;
+    private static final byte MISSING = 5;
+
+    private static final String MAC_ALGORITHM = "HmacSHA1";
+
+    private final ClusterChannel mChannel;
+    private final Local mLocal;
+    private final long mId;
+    private volatile long mTimeout;
+
+    // Guarded by itself, since Macs aren't thread-safe.
+    private final Mac mMac;
+
+    // Maps request ids to Pending fetches. Also guards mPeers.
+    private final Map mPending = new HashMap();
+    private long mLastRequestId;
+
+    // Ids of the members that have been heard from.
+    private final Set mPeers = new HashSet();
+
+    /**
+     * @param channel channel to the other members
+     * @param local provides locally cached values to peers
+     * @param timeout milliseconds to wait for a peer to provide a value
+     * @param key secret shared by the members, for authenticating messages
+     * @throws IllegalArgumentException if the key is empty
+     * @throws GeneralSecurityException if the Java runtime doesn't support
+     * HmacSHA1
+     */
+    public ClusterConference(ClusterChannel channel, Local local,
+                             long timeout, byte[] key)
+        throws GeneralSecurityException
+    {
+        if (key == null || key.length == 0) {
+            throw new IllegalArgumentException("Cluster key is empty");
+        }
+        mMac = Mac.getInstance(MAC_ALGORITHM);
+        mMac.init(new SecretKeySpec(key, MAC_ALGORITHM));
+        mChannel = channel;
+        mLocal = local;
+        mId = new Random().nextLong();
+        mTimeout = timeout;
+        channel.setReceiver(this);
+    }
+
+    public void setTimeout(long timeout) {
+        mTimeout = timeout;
+    }
+
+    public long getTimeout() {
+        return mTimeout;
+    }
+
+    public ClusterChannel getChannel() {
+        return mChannel;
+    }
+
+    /**
+     * Returns true if a peer provided a value for the given key. The value
+     * is discarded, so call {@link #fetch fetch} instead to use it.
+     */
+    public boolean gotThis(Object key) throws IOException {
+        return fetch(key) != null;
+    }
+
+    /**
+     * Returns a value for the given key provided by a peer, or null if
+     * none did within the timeout.
+     */
+    public Object gimme(Object key) throws IOException {
+        Fetched fetched = fetch(key);
+        return fetched == null ? null : fetched.getValue();
+    }
+
+    /**
+     * Fetches a value for the given key from a peer, returning null if none
+     * provided it within the timeout. If no peers are known, the request is
+     * still sent, so that peers answer and become known, but this method
+     * returns null without waiting.
+     */
+    public Fetched fetch(Object key) throws IOException {
+        Pending pending;
+        Long requestId;
+        synchronized (mPending) {
+            pending = new Pending(new HashSet(mPeers));
+            requestId = new Long(++mLastRequestId);
+            mPending.put(requestId, pending);
+        }
+
+        try {
+            DataOutputStream out = beginMessage(REQUEST);
+            out.writeLong(requestId.longValue());
+            out.writeUTF((String)key);
+            send(out);
+
+            Fetched fetched = pending.await(mTimeout);
+            if (fetched == null) {
+                // Forget peers that didn't answer, so that members which
+                // have left don't hold up every fetch.
+                Set silent = pending.getUnanswered();
+                if (silent.size() > 0) {
+                    synchronized (mPending) {
+                        mPeers.removeAll(silent);
+                    }
+                }
+            }
+            return fetched;
+        }
+        catch (InterruptedException e) {
+            return null;
+        }
+        finally {
+            synchronized (mPending) {
+                mPending.remove(requestId);
+            }
+        }
+    }
+
+    public void stop(Object key) {
+        // Fetches time out on their own.
+    }
+
+    /**
+     * Expires the value for the given key, locally and at all peers.
+     */
+    public void expireCE(Object key) throws IOException {
+        mLocal.expire(key);
+        DataOutputStream out = beginMessage(EXPIRE);
+        out.writeUTF((String)key);
+        send(out);
+    }
+
+    /**
+     * Expires all values with the given tag, locally and at all peers.
+     */
+    public void expireTag(Object tag) throws IOException {
+        mLocal.expireTag(tag);
+        DataOutputStream out = beginMessage(EXPIRE_TAG);
+        out.writeUTF((String)tag);
+        send(out);
+    }
+
+    public void close() {
+        mChannel.setReceiver(null);
+        mChannel.close();
+    }
+
+    public void receive(byte[] message, int offset, int length,
+                        Object source) {
+        try {
+            int macLength = mMac.getMacLength();
+            length -= macLength;
+            if (length <= 0 || !MessageDigest.isEqual
+                (sign(message, offset, length),
+                 copy(message, offset + length, macLength))) {
+                // Not sent by a member, so don't trust even its id. Don't
+                // log either, since anyone can send these.
+                return;
+            }
+
+            DataInputStream in = new DataInputStream
+                (new ByteArrayInputStream(message, offset, length));
+            byte type = in.readByte();
+            long sender = in.readLong();
+            if (sender == mId) {
+                // Sent by this member.
+                return;
+            }
+
+            Long senderId = new Long(sender);
+            synchronized (mPending) {
+                mPeers.add(senderId);
+            }
+
+            switch (type) {
+            case REQUEST:
+                receivedRequest(source, sender, in.readLong(), in.readUTF());
+                break;
+            case RESPONSE:
+                receivedResponse(senderId, in, true);
+                break;
+            case MISSING:
+                receivedResponse(senderId, in, false);
+                break;
+            case EXPIRE:
+                mLocal.expire(in.readUTF());
+                break;
+            case EXPIRE_TAG:
+                mLocal.expireTag(in.readUTF());
+                break;
+            }
+        }
+        catch (Exception e) {
+            Syslog.warn(e);
+        }
+    }
+
+    private void receivedRequest(Object source, long requester,
+                                 long requestId, String key)
+        throws IOException
+    {
+        Object value = mLocal.get(key);
+        long duration = value == null ? 0 : mLocal.getValidDuration(key);
+
+        if (duration > 0) {
+            // Request ids are only unique to the requester, so identify it
+            // too.
+            DataOutputStream out = beginMessage(RESPONSE);
+            out.writeLong(requester);
+            out.writeLong(requestId);
+            out.writeLong(duration);
+            try {
+                mLocal.writeValue(value, out);
+                byte[] message = finishMessage(out);
+                if (message.length <= mChannel.getMaxMessageSize()) {
+                    mChannel.send(message, source);
+                    return;
+                }
+            }
+            catch (IOException e) {
+                // Value cannot be shared.
+            }
+        }
+
+        DataOutputStream out = beginMessage(MISSING);
+        out.writeLong(requester);
+        out.writeLong(requestId);
+        mChannel.send(finishMessage(out), source);
+    }
+
+    private void receivedResponse(Long sender, DataInput in, boolean found)
+        throws IOException
+    {
+        if (in.readLong() != mId) {
+            // Response to another member.
+            return;
+        }
+        Long requestId = new Long(in.readLong());
+        Pending pending;
+        synchronized (mPending) {
+            pending = (Pending)mPending.get(requestId);
+        }
+        if (pending != null) {
+            Fetched fetched = null;
+            if (found) {
+                long duration = in.readLong();
+                fetched = new Fetched(mLocal.readValue(in), duration);
+            }
+            pending.fill(sender, fetched);
+        }
+    }
+
+    private DataOutputStream beginMessage(byte type) throws IOException {
+        Message out = new Message(new ByteArrayOutputStream(256));
+        out.writeByte(type);
+        out.writeLong(mId);
+        return out;
+    }
+
+    private void send(DataOutputStream out) throws IOException {
+        mChannel.send(finishMessage(out));
+    }
+
+    /**
+     * Returns the message's bytes followed by their HMAC.
+     */
+    private byte[] finishMessage(DataOutputStream out) throws IOException {
+        out.flush();
+        ByteArrayOutputStream bytes = ((Message)out).mBytes;
+        byte[] body = bytes.toByteArray();
+        bytes.write(sign(body, 0, body.length));
+        return bytes.toByteArray();
+    }
+
+    private byte[] sign(byte[] message, int offset, int length) {
+        synchronized (mMac) {
+            mMac.update(message, offset, length);
+            return mMac.doFinal();
+        }
+    }
+
+    private static byte[] copy(byte[] bytes, int offset, int length) {
+        byte[] copy = new byte[length];
+        System.arraycopy(bytes, offset, copy, 0, length);
+        return copy;
+    }
+
+    /**************************************************************************
+     * Provides access to values cached by this member.
+     */
+    public interface Local {
+        /**
+         * Returns the valid value for the given key, or null if none.
+         */
+        public Object get(Object key);
+
+        /**
+         * Returns the milliseconds that the value for the given key remains
+         * valid, or zero if none.
+         */
+        public long getValidDuration(Object key);
+
+        public void expire(Object key);
+
+        public void expireTag(Object tag);
+
+        /**
+         * Writes a value to be read by a peer's {@link #readValue readValue}.
+         *
+         * @throws NotSerializableException if the value cannot be shared
+         */
+        public void writeValue(Object value, DataOutput out)
+            throws IOException;
+
+        /**
+         * Reads a value sent by a peer. The input comes from the network,
+         * and so it must be fully validated.
+         */
+        public Object readValue(DataInput in) throws IOException;
+    }
+
+    /**************************************************************************
+     * A value provided by a peer.
+     */
+    public static class Fetched {
+        private final Object mValue;
+        private final long mValidDuration;
+
+        Fetched(Object value, long validDuration) {
+            mValue = value;
+            mValidDuration = validDuration;
+        }
+
+        public Object getValue() {
+            return mValue;
+        }
+
+        /**
+         * Returns the milliseconds that the value remains valid, as
+         * reported by the peer.
+         */
+        public long getValidDuration() {
+            return mValidDuration;
+        }
+    }
+
+    private static class Pending {
+        // Ids of peers that haven't answered yet.
+        private final Set mUnanswered;
+        private Fetched mFetched;
+
+        Pending(Set peers) {
+            mUnanswered = peers;
+        }
+
+        /**
+         * @param fetched null if the peer doesn't have the value
+         */
+        synchronized void fill(Long peer, Fetched fetched) {
+            mUnanswered.remove(peer);
+            if (mFetched == null && fetched != null) {
+                mFetched = fetched;
+                notifyAll();
+            }
+            else if (mUnanswered.isEmpty()) {
+                notifyAll();
+            }
+        }
+
+        synchronized Fetched await(long timeout)
+            throws InterruptedException
+        {
+            if (mFetched == null && !mUnanswered.isEmpty() && timeout > 0) {
+                long end = System.currentTimeMillis() + timeout;
+                do {
+                    wait(timeout);
+                } while (mFetched == null && !mUnanswered.isEmpty() &&
+                         (timeout = end - System.currentTimeMillis()) > 0);
+            }
+            return mFetched;
+        }
+
+        synchronized Set getUnanswered() {
+            return new HashSet(mUnanswered);
+        }
+    }
+
+    private static class Message extends DataOutputStream {
+        final ByteArrayOutputStream mBytes;
+
+        Message(ByteArrayOutputStream bytes) {
+            super(bytes);
+            mBytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/* ====================================================================
+ * TeaServlet - Copyright (c) 1999-2000 Walt Disney Internet Group
+ * ====================================================================
+ * The Tea Software License, Version 1.1
+ *
+ * Copyright (c) 2000 Walt Disney Internet Group. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *        Walt Disney Internet Group (http://opensource.go.com/)."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Tea", "TeaServlet", "Kettle", "Trove" and "BeanDoc" must
+ *    not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact opensource@dig.com.
+ *
+ * 5. Products derived from this software may not be called "Tea",
+ *    "TeaServlet", "Kettle" or "Trove", nor may "Tea", "TeaServlet",
+ *    "Kettle", "Trove" or "BeanDoc" appear in their name, without prior
+ *    written permission of the Walt Disney Internet Group.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE WALT DISNEY INTERNET GROUP OR ITS
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ *
+ * For more information about Tea, please see http://opensource.go.com/.
+ */
+
+package com.go.teaservlet.util.cluster;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/******************************************************************************
+ * A ClusterChannel that delivers messages to the other channels in the same
+ * process that were created with the same name. It stands in for a
+ * {@link MulticastClusterChannel} when testing clustered features on a
+ * single machine. Messages are delivered immediately, in the thread that
+ * sends them, and they aren't delivered back to the sender.
+ *
+ * @author Brian S O'Neill
+ * @version
+ * <!--$$Revision$-->, <!--$$JustDate:--> <!-- $-->
+ */
+public class LoopbackClusterChannel implements ClusterChannel {
+    // Maps names to Lists of open channels.
+    private static Map cGroups = new HashMap();
+
+    private final String mName;
+    private volatile Receiver mReceiver;
+
+    /**
+     * @param name name shared by the channels that form a cluster
+     */
+    public LoopbackClusterChannel(String name) {
+        mName = name;
+        synchronized (cGroups) {
+            List group = (List)cGroups.get(name);
+            if (group == null) {
+                group = new ArrayList();
+                cGroups.put(name, group);
+            }
+            group.add(this);
+        }
+    }
+
+    public void setReceiver(Receiver receiver) {
+        mReceiver = receiver;
+    }
+
+    public void send(byte[] message) throws IOException {
+        if (message.length > getMaxMessageSize()) {
+            throw new IOException("Message too large: " + message.length);
+        }
+
+        Object[] group;
+        synchronized (cGroups) {
+            List list = (List)cGroups.get(mName);
+            if (list == null || !list.contains(this)) {
+                throw new IOException("Channel is closed");
+            }
+            group = list.toArray();
+        }
+
+        for (int i=0; i<group.length; i++) {
+            LoopbackClusterChannel channel = (LoopbackClusterChannel)group[i];
+            Receiver receiver;
+            if (channel != this && (receiver = channel.mReceiver) != null) {
+                // Copy, since receivers may reuse the array.
+                byte[] copy = (byte[])message.clone();
+                receiver.receive(copy, 0, copy.length, this);
+            }
+        }
+    }
+
+    /**
+     * @param recipient LoopbackClusterChannel of the member
+     */
+    public void send(byte[] message, Object recipient) throws IOException {
+        if (message.length > getMaxMessageSize()) {
+            throw new IOException("Message too large: " + message.length);
+        }
+
+        synchronized (cGroups) {
+            List list = (List)cGroups.get(mName);
+            if (list == null || !list.contains(this)) {
+                throw new IOException("Channel is closed");
+            }
+            if (!list.contains(recipient)) {
+                // Like a datagram, silently lost.
+                return;
+            }
+        }
+
+        Receiver receiver = ((LoopbackClusterChannel)recipient).mReceiver;
+        if (receiver != null) {
+            byte[] copy = (byte[])message.clone();
+            receiver.receive(copy, 0, copy.length, this);
+        }
+    }
+
+    public int getMaxMessageSize() {
+        return MulticastClusterChannel.MAX_MESSAGE_SIZE;
+    }
+
+    public void close() {
+        synchronized (cGroups) {
+            List group = (List)cGroups.get(mName);
+            if (group != null) {
+                group.remove(this);
+                if (group.isEmpty()) {
+                    cGroups.remove(mName);
+                }
+            }
+        }
+    }
+
+    public String toString() {
+        return "LoopbackClusterChannel[" + mName + ']';
+    }
+}
@@ -0,0 +1,176 @@
+/* ====================================================================
+ * TeaServlet - Copyright (c) 1999-2000 Walt Disney Internet Group
+ * ====================================================================
+ * The Tea Software License, Version 1.1
+ *
+ * Copyright (c) 2000 Walt Disney Internet Group. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *        Walt Disney Internet Group (http://opensource.go.com/)."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Tea", "TeaServlet", "Kettle", "Trove" and "BeanDoc" must
+ *    not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact opensource@dig.com.
+ *
+ * 5. Products derived from this software may not be called "Tea",
+ *    "TeaServlet", "Kettle" or "Trove", nor may "Tea", "TeaServlet",
+ *    "Kettle", "Trove" or "BeanDoc" appear in their name, without prior
+ *    written permission of the Walt Disney Internet Group.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE WALT DISNEY INTERNET GROUP OR ITS
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ *
+ * For more information about Tea, please see http://opensource.go.com/.
+ */
+
+package com.go.teaservlet.util.cluster;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.net.SocketAddress;
+import com.go.trove.log.Syslog;
+
+/******************************************************************************
+ * A ClusterChannel that sends each message in a single multicast datagram.
+ *
+ * @author Brian S O'Neill
+ * @version
+ * <!--$$Revision$-->, <!--$$JustDate:--> <!-- $-->
+ */
+public class MulticastClusterChannel implements ClusterChannel {
+    /** Largest message that fits in a UDP datagram */
+    public static final int MAX_MESSAGE_SIZE = 65507;
+
+    private final MulticastSocket mSock;
+    private final InetAddress mGroup;
+    private final int mPort;
+    private final Thread mReceiverThread;
+
+    private volatile Receiver mReceiver;
+    private volatile boolean mClosed;
+
+    /**
+     * @param group multicast group address
+     * @param port multicast port, which should not be shared with
+     * ClusterManager's discovery port
+     * @param netInterface optional local interface address to use
+     */
+    public MulticastClusterChannel(InetAddress group, int port,
+                                   InetAddress netInterface)
+        throws IOException
+    {
+        mSock = new MulticastSocket(port);
+        if (netInterface != null) {
+            mSock.setInterface(netInterface);
+        }
+        mSock.joinGroup(group);
+        mGroup = group;
+        mPort = port;
+
+        mReceiverThread = new Thread("MulticastClusterChannel " + port) {
+            public void run() {
+                receiveMessages();
+            }
+        };
+        mReceiverThread.setDaemon(true);
+        mReceiverThread.start();
+    }
+
+    public void setReceiver(Receiver receiver) {
+        mReceiver = receiver;
+    }
+
+    public void send(byte[] message) throws IOException {
+        if (message.length > MAX_MESSAGE_SIZE) {
+            throw new IOException("Message too large: " + message.length);
+        }
+        mSock.send(new DatagramPacket(message, message.length, mGroup, mPort));
+    }
+
+    /**
+     * @param recipient SocketAddress of the member
+     */
+    public void send(byte[] message, Object recipient) throws IOException {
+        if (message.length > MAX_MESSAGE_SIZE) {
+            throw new IOException("Message too large: " + message.length);
+        }
+        // The member's socket is bound to the multicast port, and so it
+        // receives datagrams sent directly to it too.
+        mSock.send(new DatagramPacket(message, message.length,
+                                      (SocketAddress)recipient));
+    }
+
+    public int getMaxMessageSize() {
+        return MAX_MESSAGE_SIZE;
+    }
+
+    public void close() {
+        mClosed = true;
+        try {
+            mSock.leaveGroup(mGroup);
+        }
+        catch (IOException e) {
+        }
+        mSock.close();
+    }
+
+    public String toString() {
+        return "MulticastClusterChannel[" + mGroup.getHostAddress() +
+            ':' + mPort + ']';
+    }
+
+    private void receiveMessages() {
+        byte[] buffer = new byte[MAX_MESSAGE_SIZE];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+
+        while (!mClosed) {
+            try {
+                packet.setLength(buffer.length);
+                mSock.receive(packet);
+                Receiver receiver = mReceiver;
+                if (receiver != null) {
+                    receiver.receive(buffer, packet.getOffset(),
+                                     packet.getLength(),
+                                     packet.getSocketAddress());
+                }
+            }
+            catch (IOException e) {
+                if (!mClosed) {
+                    Syslog.warn(e);
+                }
+            }
+            catch (RuntimeException e) {
+                Syslog.warn(e);
+            }
+        }
+    }
+}
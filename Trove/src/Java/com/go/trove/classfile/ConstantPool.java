@@ -75,6 +75,9 @@ import java.io.*;
 public class ConstantPool {
     // A set of ConstantInfo objects.
     private Map mConstants = new HashMap();
+    // Constants in the order added, so that indexes are assigned the same
+    // way every time, regardless of how the set orders them.
+    private List mConstantList = new ArrayList();
     // Indexed list of constants.
     private Vector mIndexedConstants;
     private int mEntries;
@@ -93,6 +96,7 @@ public class ConstantPool {
             ConstantInfo ci = (ConstantInfo)indexedConstants.get(i);
             if (ci != null) {
                 mConstants.put(ci, ci);
+                mConstantList.add(ci);
                 mEntries += ci.getEntryCount();
             }
         }
@@ -282,6 +286,7 @@ public class ConstantPool {
         }
 
         mConstants.put(constant, constant);
+        mConstantList.add(constant);
         mEntries += entryCount;
 
         return constant;
@@ -308,7 +313,7 @@ public class ConstantPool {
             // more likely be used (one-byte index) than Opcode.LDC_W (two-byte
             // index).
             
-            Iterator it = mConstants.keySet().iterator();
+            Iterator it = mConstantList.iterator();
             while (it.hasNext()) {
                 ConstantInfo constant = (ConstantInfo)it.next();
                 if (constant.hasPriority()) {
@@ -320,7 +325,7 @@ public class ConstantPool {
             
             // Now write all non-priority constants.
             
-            it = mConstants.keySet().iterator();
+            it = mConstantList.iterator();
             while (it.hasNext()) {
                 ConstantInfo constant = (ConstantInfo)it.next();
                 if (!constant.hasPriority()) {
@@ -0,0 +1,576 @@
+/* ====================================================================
+ * Trove - Copyright (c) 1997-2000 Walt Disney Internet Group
+ * ====================================================================
+ * The Tea Software License, Version 1.1
+ *
+ * Copyright (c) 2000 Walt Disney Internet Group. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *        Walt Disney Internet Group (http://opensource.go.com/)."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Tea", "TeaServlet", "Kettle", "Trove" and "BeanDoc" must
+ *    not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact opensource@dig.com.
+ *
+ * 5. Products derived from this software may not be called "Tea",
+ *    "TeaServlet", "Kettle" or "Trove", nor may "Tea", "TeaServlet",
+ *    "Kettle", "Trove" or "BeanDoc" appear in their name, without prior
+ *    written permission of the Walt Disney Internet Group.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE WALT DISNEY INTERNET GROUP OR ITS
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ *
+ * For more information about Tea, please see http://opensource.go.com/.
+ */
+
+package com.go.trove.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import com.go.trove.util.ReadWriteLock;
+import com.go.trove.util.SecureReadWriteLock;
+
+/******************************************************************************
+ * A FileBuffer that uses a FileChannel for positional I/O, and optionally
+ * memory maps the file in fixed size segments. Unlike {@link
+ * SystemFileBuffer}, no native library is required, and unlike a single
+ * mapping, files may be larger than 2 gigabytes.
+ *
+ * <p>Only whole segments are mapped, and the remainder of the file is
+ * accessed through the channel. Reads and writes don't acquire the lock
+ * returned by {@link #lock}, and so concurrent reads of mapped segments
+ * never block. The lock is only acquired when truncating, forcing or
+ * closing. Callers must hold at least a read lock while accessing a region
+ * that another thread may truncate away.
+ *
+ * <p>Mapped segments cannot be explicitly unmapped, and are only released
+ * when garbage collected. Some platforms, Windows among them, refuse to
+ * truncate a file while the region being cut off is still mapped. Truncate
+ * therefore drops the affected segments and, if the first attempt fails,
+ * collects garbage and retries a few times before giving up with an
+ * IOException. If files are frequently truncated on such a platform, pass
+ * a segment size of zero to not map them at all.
+ *
+ * <p>This class assumes it has exclusive access to the file. Changes in
+ * file length made by other processes are not observed.
+ *
+ * @author Brian S O'Neill
+ * @version
+ * <!--$$Revision$-->, <!--$$JustDate:--> <!-- $-->
+ */
+public class ChannelFileBuffer implements FileBuffer {
+    /** Default size of each mapped segment: 8 megabytes */
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 23;
+
+    private static final MappedByteBuffer[] NO_SEGMENTS =
+        new MappedByteBuffer[0];
+
+    private final File mFile;
+    private final String mMode;
+    private RandomAccessFile mRAF;
+    private volatile FileChannel mChannel;
+
+    private final int mSegmentShift;
+    private final int mSegmentMask;
+    private volatile MappedByteBuffer[] mSegments = NO_SEGMENTS;
+
+    private volatile long mSize;
+
+    // Bit 0 set: read only
+    // Bit 1 set: closed
+    private volatile int mFlags;
+
+    private final SecureReadWriteLock mLock = new SecureReadWriteLock();
+
+    /**
+     * Opens the file using segments of {@link #DEFAULT_SEGMENT_SIZE}.
+     */
+    public ChannelFileBuffer(File file, boolean readOnly)
+        throws IOException
+    {
+        this(file, readOnly, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param segmentSize size of each mapped segment, which must be a power
+     * of two, or zero to not map the file at all
+     */
+    public ChannelFileBuffer(File file, boolean readOnly, int segmentSize)
+        throws IOException
+    {
+        if (segmentSize < 0 || (segmentSize & (segmentSize - 1)) != 0) {
+            throw new IllegalArgumentException
+                ("Segment size must be a power of two: " + segmentSize);
+        }
+
+        mFile = file;
+        mMode = readOnly ? "r" : "rw";
+        mRAF = new RandomAccessFile(file, mMode);
+        mChannel = mRAF.getChannel();
+        mSize = mChannel.size();
+        mFlags = readOnly ? 1 : 0;
+
+        if (segmentSize == 0) {
+            mSegmentShift = 0;
+            mSegmentMask = 0;
+        }
+        else {
+            int shift = 0;
+            while ((1 << shift) < segmentSize) {
+                shift++;
+            }
+            mSegmentShift = shift;
+            mSegmentMask = segmentSize - 1;
+        }
+    }
+
+    public int read(long position, byte[] dst, int offset, int length)
+        throws IOException
+    {
+        checkArgs(position, dst, offset, length);
+        return read(position, ByteBuffer.wrap(dst, offset, length));
+    }
+
+    /**
+     * Read bytes into the given buffer, returning the actual amount read,
+     * or -1 if end of file.
+     */
+    public int read(long position, ByteBuffer dst) throws IOException {
+        if (position < 0) {
+            throw new IllegalArgumentException("position < 0: " + position);
+        }
+        checkClosed();
+
+        int length = dst.remaining();
+        if (length == 0) {
+            return 0;
+        }
+        long size = mSize;
+        if (position >= size) {
+            return -1;
+        }
+        if (position + length > size) {
+            length = (int)(size - position);
+        }
+
+        int limit = dst.limit();
+        dst.limit(dst.position() + length);
+        try {
+            int total = 0;
+            while (dst.hasRemaining()) {
+                int amt;
+                ByteBuffer segment = segment(position);
+                if (segment == null) {
+                    amt = channelRead(position, dst);
+                    if (amt <= 0) {
+                        break;
+                    }
+                }
+                else {
+                    int index = (int)position & mSegmentMask;
+                    amt = Math.min(dst.remaining(), segment.capacity() - index);
+                    segment = segment.duplicate();
+                    segment.position(index);
+                    segment.limit(index + amt);
+                    dst.put(segment);
+                }
+                position += amt;
+                total += amt;
+            }
+            return total == 0 ? -1 : total;
+        }
+        finally {
+            dst.limit(limit);
+        }
+    }
+
+    public int write(long position, byte[] src, int offset, int length)
+        throws IOException
+    {
+        checkArgs(position, src, offset, length);
+        return write(position, ByteBuffer.wrap(src, offset, length));
+    }
+
+    /**
+     * Write bytes from the given buffer, returning the actual amount written.
+     */
+    public int write(long position, ByteBuffer src) throws IOException {
+        if (position < 0) {
+            throw new IllegalArgumentException("position < 0: " + position);
+        }
+        checkWritable();
+
+        int total = 0;
+        while (src.hasRemaining()) {
+            int amt;
+            ByteBuffer segment = segment(position);
+            if (segment == null) {
+                amt = channelWrite(position, src);
+            }
+            else {
+                int index = (int)position & mSegmentMask;
+                amt = Math.min(src.remaining(), segment.capacity() - index);
+                int limit = src.limit();
+                src.limit(src.position() + amt);
+                segment = segment.duplicate();
+                segment.position(index);
+                segment.put(src);
+                src.limit(limit);
+            }
+            position += amt;
+            total += amt;
+        }
+
+        extend(position);
+        return total;
+    }
+
+    public int read(long position) throws IOException {
+        if (position < 0) {
+            throw new IllegalArgumentException("position < 0: " + position);
+        }
+        checkClosed();
+        if (position >= mSize) {
+            return -1;
+        }
+        ByteBuffer segment = segment(position);
+        if (segment != null) {
+            return segment.get((int)position & mSegmentMask) & 0xff;
+        }
+        ByteBuffer dst = ByteBuffer.allocate(1);
+        if (channelRead(position, dst) <= 0) {
+            return -1;
+        }
+        return dst.get(0) & 0xff;
+    }
+
+    public void write(long position, int value) throws IOException {
+        if (position < 0) {
+            throw new IllegalArgumentException("position < 0: " + position);
+        }
+        checkWritable();
+        ByteBuffer segment = segment(position);
+        if (segment != null) {
+            segment.put((int)position & mSegmentMask, (byte)value);
+        }
+        else {
+            ByteBuffer src = ByteBuffer.allocate(1);
+            src.put(0, (byte)value);
+            channelWrite(position, src);
+            extend(position + 1);
+        }
+    }
+
+    public long size() throws IOException {
+        checkClosed();
+        return mSize;
+    }
+
+    public void truncate(long size) throws IOException {
+        if (size < 0) {
+            throw new IllegalArgumentException("size < 0: " + size);
+        }
+        try {
+            mLock.acquireWriteLock();
+            checkWritable();
+            synchronized (this) {
+                if (size < mSize) {
+                    // Drop the segments that no longer fit entirely.
+                    MappedByteBuffer[] segments = mSegments;
+                    int count = mSegmentShift == 0 ? 0 :
+                        (int)(size >> mSegmentShift);
+                    boolean dropped = false;
+                    if (count < segments.length) {
+                        for (int i=count; i<segments.length; i++) {
+                            dropped |= segments[i] != null;
+                        }
+                        MappedByteBuffer[] newSegments =
+                            new MappedByteBuffer[count];
+                        System.arraycopy(segments, 0, newSegments, 0, count);
+                        mSegments = newSegments;
+                    }
+                    // Don't keep dropped segments reachable from here.
+                    segments = null;
+                    truncateChannel(size, dropped);
+                    mSize = size;
+                }
+            }
+        }
+        catch (ClosedByInterruptException e) {
+            reopen();
+            throw new InterruptedIOException();
+        }
+        catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        finally {
+            mLock.releaseLock();
+        }
+    }
+
+    public ReadWriteLock lock() {
+        return mLock;
+    }
+
+    public boolean force() throws IOException {
+        try {
+            mLock.acquireWriteLock();
+            checkClosed();
+            MappedByteBuffer[] segments = mSegments;
+            for (int i=0; i<segments.length; i++) {
+                if (segments[i] != null) {
+                    segments[i].force();
+                }
+            }
+            channel().force(true);
+        }
+        catch (ClosedByInterruptException e) {
+            reopen();
+            throw new InterruptedIOException();
+        }
+        catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        finally {
+            mLock.releaseLock();
+        }
+        return true;
+    }
+
+    public boolean isReadOnly() throws IOException {
+        checkClosed();
+        return (mFlags & 1) != 0;
+    }
+
+    public boolean isOpen() {
+        return (mFlags & 2) == 0;
+    }
+
+    public void close() throws IOException {
+        try {
+            mLock.acquireWriteLock();
+            synchronized (this) {
+                if (isOpen()) {
+                    mFlags |= 2;
+                    mSegments = NO_SEGMENTS;
+                    mRAF.close();
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        finally {
+            mLock.releaseLock();
+        }
+    }
+
+    /**
+     * Returns the mapped segment containing the given position, or null if
+     * the segment isn't entirely within the file or the file isn't mapped.
+     */
+    private ByteBuffer segment(long position) throws IOException {
+        if (mSegmentShift == 0) {
+            return null;
+        }
+        int index = (int)(position >> mSegmentShift);
+        MappedByteBuffer[] segments = mSegments;
+        if (index < segments.length && segments[index] != null) {
+            return segments[index];
+        }
+        if (((long)(index + 1) << mSegmentShift) > mSize) {
+            return null;
+        }
+        return map(index);
+    }
+
+    private synchronized MappedByteBuffer map(int index) throws IOException {
+        checkClosed();
+        MappedByteBuffer[] segments = mSegments;
+        if (index < segments.length && segments[index] != null) {
+            return segments[index];
+        }
+        if (((long)(index + 1) << mSegmentShift) > mSize) {
+            return null;
+        }
+
+        MappedByteBuffer segment;
+        try {
+            segment = channel().map
+                ((mFlags & 1) != 0 ?
+                 FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE,
+                 (long)index << mSegmentShift, mSegmentMask + 1);
+        }
+        catch (ClosedByInterruptException e) {
+            reopen();
+            throw new InterruptedIOException();
+        }
+
+        // Copy on write, so that readers never need to synchronize.
+        MappedByteBuffer[] newSegments = new MappedByteBuffer
+            [Math.max(index + 1, segments.length)];
+        System.arraycopy(segments, 0, newSegments, 0, segments.length);
+        newSegments[index] = segment;
+        mSegments = newSegments;
+        return segment;
+    }
+
+    /**
+     * @param dropped when true, mapped segments were dropped, and so
+     * truncation is retried after garbage collecting them
+     */
+    private void truncateChannel(long size, boolean dropped)
+        throws IOException
+    {
+        for (int tries = 0; ; tries++) {
+            try {
+                channel().truncate(size);
+                return;
+            }
+            catch (ClosedByInterruptException e) {
+                throw e;
+            }
+            catch (IOException e) {
+                if (!dropped || tries >= 3) {
+                    throw e;
+                }
+                System.gc();
+                System.runFinalization();
+            }
+        }
+    }
+
+    private synchronized void extend(long size) {
+        if (size > mSize) {
+            mSize = size;
+        }
+    }
+
+    private int channelRead(long position, ByteBuffer dst)
+        throws IOException
+    {
+        while (true) {
+            FileChannel channel = channel();
+            try {
+                return channel.read(dst, position);
+            }
+            catch (ClosedByInterruptException e) {
+                reopen(channel);
+                throw new InterruptedIOException();
+            }
+            catch (ClosedChannelException e) {
+                // Closed because another thread was interrupted.
+                reopen(channel);
+            }
+        }
+    }
+
+    private int channelWrite(long position, ByteBuffer src)
+        throws IOException
+    {
+        while (true) {
+            FileChannel channel = channel();
+            try {
+                return channel.write(src, position);
+            }
+            catch (ClosedByInterruptException e) {
+                reopen(channel);
+                throw new InterruptedIOException();
+            }
+            catch (ClosedChannelException e) {
+                // Closed because another thread was interrupted.
+                reopen(channel);
+            }
+        }
+    }
+
+    private FileChannel channel() throws IOException {
+        checkClosed();
+        return mChannel;
+    }
+
+    private void reopen() throws IOException {
+        reopen(mChannel);
+    }
+
+    /**
+     * An interrupted thread closes a FileChannel for everyone. Since this
+     * FileBuffer is shared, open the file again and carry on. Mapped
+     * segments are unaffected.
+     */
+    private synchronized void reopen(FileChannel closed) throws IOException {
+        checkClosed();
+        if (mChannel == closed && !closed.isOpen()) {
+            mRAF = new RandomAccessFile(mFile, mMode);
+            mChannel = mRAF.getChannel();
+        }
+    }
+
+    private void checkClosed() throws IOException {
+        if ((mFlags & 2) != 0) {
+            throw new IOException("FileBuffer closed");
+        }
+    }
+
+    private void checkWritable() throws IOException {
+        checkClosed();
+        if ((mFlags & 1) != 0) {
+            throw new IOException("FileBuffer is read-only");
+        }
+    }
+
+    private void checkArgs(long position,
+                           byte[] array, int offset, int length) {
+        if (position < 0) {
+            throw new IllegalArgumentException("position < 0: " + position);
+        }
+        
+        if (offset < 0) {
+            throw new ArrayIndexOutOfBoundsException("offset < 0: " + offset);
+        }
+
+        if (length < 0) {
+            throw new IndexOutOfBoundsException("length < 0: " + length);
+        }
+
+        if (offset + length > array.length) {
+            throw new ArrayIndexOutOfBoundsException
+                ("offset + length > array length: " +
+                 (offset + length) + " > " + array.length);
+        }
+    }
+}
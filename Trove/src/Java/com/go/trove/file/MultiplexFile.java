@@ -67,6 +67,7 @@ import java.lang.ref.*;
 import com.go.trove.util.SoftHashMap;
 import com.go.trove.util.ReadWriteLock;
 import com.go.trove.util.SecureReadWriteLock;
+import com.go.trove.util.StripedReadWriteLock;
 
 /******************************************************************************
  * MultiplexFile is a growable list of FileBuffers, stored completely
@@ -192,7 +193,7 @@ public class MultiplexFile {
     private long mTotalBlocks;
 
     private final FileBuffer mFileTable;
-    private final SecureReadWriteLock mFileTableLock;
+    private final ReadWriteLock mFileTableLock;
 
     // Blocks that are free have a set bit in the bitlist. Using clear to mark
     // used blocks is important in the correct operation of the bitlist, since
@@ -435,8 +436,11 @@ public class MultiplexFile {
 
         mClearArray = new byte[Math.min(mBlockSize, 4096)];
 
-        InternalFile internalFileTable =
-            new InternalFile(fb, mFileTableSelfEntryPosition, false);
+        // The file table is read by every file access, and so its lock is
+        // striped.
+        InternalFile internalFileTable = new InternalFile
+            (fb, mFileTableSelfEntryPosition, false,
+             new StripedReadWriteLock());
         mFileTableLock = internalFileTable.mLock;
         mFileTable = new IndirectFile(internalFileTable);
         mFreeBlocksBitlist = new Bitlist(new IndirectFile(new InternalFile
@@ -838,7 +842,7 @@ public class MultiplexFile {
         implements FileBuffer, ReadWriteLock
     {
         private final InternalFile mFile;
-        private final SecureReadWriteLock mLock;
+        private final ReadWriteLock mLock;
         private boolean mClosed;
 
         IndirectFile(InternalFile file) {
@@ -1096,7 +1100,7 @@ public class MultiplexFile {
     private final class InternalFile implements FileBuffer {
         // Lock is declared here so that is may be shared my multiple
         // IndirectFiles.
-        final SecureReadWriteLock mLock = new SecureReadWriteLock();
+        final ReadWriteLock mLock;
 
         private FileBuffer mFileTableBuffer;
         private final long mFileTablePosition;
@@ -1115,6 +1119,17 @@ public class MultiplexFile {
                      boolean isFreeFile)
             throws IOException
         {
+            this(fileTableBuffer, fileTablePosition, isFreeFile,
+                 new SecureReadWriteLock());
+        }
+
+        InternalFile(FileBuffer fileTableBuffer,
+                     long fileTablePosition,
+                     boolean isFreeFile,
+                     ReadWriteLock lock)
+            throws IOException
+        {
+            mLock = lock;
             mFileTableBuffer = fileTableBuffer;
             mFileTablePosition = fileTablePosition;
             mIsFreeFile = isFreeFile;
@@ -54,11 +54,17 @@ package com.go.trove.io;
 
 import java.io.OutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.RandomAccessFile;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
 /******************************************************************************
- * A ByteData implementation that reads the contents of a file.
+ * A ByteData implementation that reads the contents of a file. If the
+ * OutputStream passed to writeTo is a FileOutputStream, or if it also
+ * implements WritableByteChannel, the file is transferred with
+ * FileChannel.transferTo, which can avoid copying through user-space buffers.
  *
  * @author Brian S O'Neill
  * @version
@@ -99,17 +105,48 @@ public class FileByteData implements ByteData {
 
         try {
             long length = raf.length();
+
+            WritableByteChannel channel;
+            if (out instanceof WritableByteChannel) {
+                out.flush();
+                channel = (WritableByteChannel)out;
+            }
+            else if (out instanceof FileOutputStream) {
+                channel = ((FileOutputStream)out).getChannel();
+            }
+            else {
+                channel = null;
+            }
+
+            long position = 0;
+
+            if (channel != null) {
+                FileChannel fc = raf.getChannel();
+                while (position < length) {
+                    long amount =
+                        fc.transferTo(position, length - position, channel);
+                    if (amount <= 0) {
+                        // Channel accepted nothing, so copy the rest below.
+                        break;
+                    }
+                    position += amount;
+                }
+                if (position >= length) {
+                    return;
+                }
+            }
+
             int bufSize;
-            if (length > 4000) {
+            if (length - position > 4000) {
                 bufSize = 4000;
             }
             else {
-                bufSize = (int)length;
+                bufSize = (int)(length - position);
             }
             
             byte[] inputBuffer = new byte[bufSize];
 
-            raf.seek(0);
+            raf.seek(position);
         
             int readAmount;
             while ((readAmount = raf.read(inputBuffer, 0, bufSize)) > 0) {
@@ -0,0 +1,424 @@
+/* ====================================================================
+ * Trove - Copyright (c) 1997-2000 Walt Disney Internet Group
+ * ====================================================================
+ * The Tea Software License, Version 1.1
+ *
+ * Copyright (c) 2000 Walt Disney Internet Group. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *        Walt Disney Internet Group (http://opensource.go.com/)."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Tea", "TeaServlet", "Kettle", "Trove" and "BeanDoc" must
+ *    not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact opensource@dig.com.
+ *
+ * 5. Products derived from this software may not be called "Tea",
+ *    "TeaServlet", "Kettle" or "Trove", nor may "Tea", "TeaServlet",
+ *    "Kettle", "Trove" or "BeanDoc" appear in their name, without prior
+ *    written permission of the Walt Disney Internet Group.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE WALT DISNEY INTERNET GROUP OR ITS
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ *
+ * For more information about Tea, please see http://opensource.go.com/.
+ */
+
+package com.go.trove.io;
+
+import java.io.OutputStream;
+import java.io.IOException;
+
+/******************************************************************************
+ * Stores byte data outside the Java heap, in direct memory slabs that are
+ * divided into fixed size pages. Slabs are allocated as needed, up to a
+ * fixed capacity. When full, the least recently used data is evicted to make
+ * room. Data that is being read is pinned, and its pages aren't reused until
+ * the reads have finished.
+ * <p>
+ * Only the page numbers of stored data are kept on the heap. This keeps
+ * large amounts of long lived data from adding to garbage collection costs.
+ *
+ * @author Brian S O'Neill
+ * @version
+ * <!--$$Revision$-->, <!--$$JustDate:--> <!-- $-->
+ * @see SlabByteData
+ */
+public class SlabAllocator {
+    private static final int DEFAULT_PAGE_SIZE = 4096;
+    private static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+
+    private final int mPageSize;
+    private final int mPagesPerSlab;
+    private final java.nio.ByteBuffer[] mSlabs;
+    private int mSlabCount;
+
+    // Stack of free page numbers.
+    private int[] mFreePages;
+    private int mFreeCount;
+
+    // Doubly linked list of stored data, most recently used at the head.
+    private SlabByteData mHead;
+    private SlabByteData mTail;
+    private int mEntryCount;
+
+    private long mEvictions;
+
+    // Per-thread page sized buffer for transferring to OutputStreams.
+    private final ThreadLocal mTransfer = new ThreadLocal();
+
+    /**
+     * @param capacity maximum amount of direct memory to allocate, in bytes
+     */
+    public SlabAllocator(long capacity) {
+        this(capacity, DEFAULT_PAGE_SIZE, DEFAULT_SLAB_SIZE);
+    }
+
+    /**
+     * @param capacity maximum amount of direct memory to allocate, in bytes
+     * @param pageSize size of the pages that data is stored in
+     * @param slabSize size of each direct memory allocation, which is
+     * rounded down to a multiple of the page size
+     */
+    public SlabAllocator(long capacity, int pageSize, int slabSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException
+                ("Page size must be positive: " + pageSize);
+        }
+        if (slabSize < pageSize) {
+            slabSize = pageSize;
+        }
+        if (capacity < slabSize) {
+            slabSize = (int)Math.max(capacity, pageSize);
+        }
+
+        mPageSize = pageSize;
+        mPagesPerSlab = slabSize / pageSize;
+
+        long maxSlabs = capacity / (mPagesPerSlab * (long)pageSize);
+        if (maxSlabs < 1) {
+            maxSlabs = 1;
+        }
+        else if (maxSlabs > Integer.MAX_VALUE / mPagesPerSlab) {
+            maxSlabs = Integer.MAX_VALUE / mPagesPerSlab;
+        }
+
+        mSlabs = new java.nio.ByteBuffer[(int)maxSlabs];
+        mFreePages = new int[mPagesPerSlab];
+    }
+
+    /**
+     * Copies the given data into direct memory, evicting least recently used
+     * data if necessary. Null is returned if the data is too large, or if
+     * all the memory is in use by data that is being read.
+     */
+    public SlabByteData store(ByteData data) throws IOException {
+        long count = data.getByteCount();
+        if (count > getCapacity()) {
+            return null;
+        }
+
+        int needed = (int)((count + mPageSize - 1) / mPageSize);
+        SlabByteData stored;
+
+        synchronized (this) {
+            if (!reserve(needed)) {
+                return null;
+            }
+            int[] pages = new int[needed];
+            for (int i=0; i<needed; i++) {
+                pages[i] = mFreePages[--mFreeCount];
+            }
+            stored = new SlabByteData(this, pages);
+            // Pinned while being filled in.
+            stored.mPins = 1;
+            link(stored);
+        }
+
+        boolean filled = false;
+        try {
+            PageOutputStream out = new PageOutputStream(stored.mPages);
+            data.writeTo(out);
+            stored.mLength = out.mPosition;
+            filled = true;
+        }
+        finally {
+            synchronized (this) {
+                if (!filled) {
+                    evict(stored);
+                }
+                unpin(stored);
+            }
+        }
+
+        return stored;
+    }
+
+    /**
+     * Evicts all stored data.
+     */
+    public synchronized void clear() {
+        while (mHead != null) {
+            evict(mHead);
+        }
+    }
+
+    /**
+     * Returns the maximum amount of direct memory used, in bytes.
+     */
+    public long getCapacity() {
+        return mSlabs.length * (long)mPagesPerSlab * mPageSize;
+    }
+
+    /**
+     * Returns the amount of direct memory allocated so far, in bytes.
+     */
+    public synchronized long getAllocatedSize() {
+        return mSlabCount * (long)mPagesPerSlab * mPageSize;
+    }
+
+    /**
+     * Returns the amount of allocated direct memory that is holding data, in
+     * bytes.
+     */
+    public synchronized long getUsedSize() {
+        return (mSlabCount * (long)mPagesPerSlab - mFreeCount) * mPageSize;
+    }
+
+    public int getPageSize() {
+        return mPageSize;
+    }
+
+    /**
+     * Returns the number of stored data instances that haven't been evicted.
+     */
+    public synchronized int getEntryCount() {
+        return mEntryCount;
+    }
+
+    /**
+     * Returns the number of stored data instances that have been evicted to
+     * make room.
+     */
+    public synchronized long getEvictionCount() {
+        return mEvictions;
+    }
+
+    public String toString() {
+        return "SlabAllocator[capacity=" + getCapacity() +
+            ", used=" + getUsedSize() + ", entries=" + getEntryCount() + ']';
+    }
+
+    /**
+     * Pins the data such that its pages won't be reused, and marks it as
+     * most recently used. Returns false if evicted.
+     */
+    synchronized boolean pin(SlabByteData data) {
+        if (data.mEvicted) {
+            return false;
+        }
+        data.mPins++;
+        if (data != mHead) {
+            unlink(data);
+            link(data);
+        }
+        return true;
+    }
+
+    synchronized void unpin(SlabByteData data) {
+        if (--data.mPins == 0 && data.mEvicted) {
+            freePages(data);
+        }
+    }
+
+    /**
+     * Writes pages to the given stream. Caller must have pinned the data.
+     */
+    void writeTo(int[] pages, int length, OutputStream out)
+        throws IOException
+    {
+        byte[] transfer = (byte[])mTransfer.get();
+        if (transfer == null) {
+            transfer = new byte[mPageSize];
+            mTransfer.set(transfer);
+        }
+
+        for (int i=0; length > 0; i++) {
+            int amount = Math.min(length, mPageSize);
+            page(pages[i]).get(transfer, 0, amount);
+            out.write(transfer, 0, amount);
+            length -= amount;
+        }
+    }
+
+    /**
+     * Returns a buffer positioned at the start of the given page.
+     */
+    private java.nio.ByteBuffer page(int page) {
+        // Duplicate to get an independent position.
+        java.nio.ByteBuffer slab =
+            mSlabs[page / mPagesPerSlab].duplicate();
+        slab.position((page % mPagesPerSlab) * mPageSize);
+        return slab;
+    }
+
+    /**
+     * Ensures that the requested amount of pages are free, allocating slabs
+     * and evicting data as necessary. Caller must be synchronized.
+     */
+    private boolean reserve(int needed) {
+        while (mFreeCount < needed) {
+            if (mSlabCount < mSlabs.length) {
+                allocateSlab();
+                continue;
+            }
+
+            // Evict the least recently used data that isn't pinned.
+            SlabByteData victim = mTail;
+            while (victim != null && victim.mPins > 0) {
+                victim = victim.mPrev;
+            }
+            if (victim == null) {
+                return false;
+            }
+            evict(victim);
+        }
+        return true;
+    }
+
+    private void allocateSlab() {
+        int index = mSlabCount;
+        mSlabs[index] = java.nio.ByteBuffer.allocateDirect
+            (mPagesPerSlab * mPageSize);
+        mSlabCount = index + 1;
+
+        int total = mSlabCount * mPagesPerSlab;
+        if (mFreePages.length < total) {
+            int[] newFree = new int[total];
+            System.arraycopy(mFreePages, 0, newFree, 0, mFreeCount);
+            mFreePages = newFree;
+        }
+
+        // Push in reverse so that pages are handed out in order.
+        int first = index * mPagesPerSlab;
+        for (int i = first + mPagesPerSlab; --i >= first; ) {
+            mFreePages[mFreeCount++] = i;
+        }
+    }
+
+    /**
+     * Caller must be synchronized.
+     */
+    private void evict(SlabByteData data) {
+        if (data.mEvicted) {
+            return;
+        }
+        data.mEvicted = true;
+        unlink(data);
+        mEvictions++;
+        if (data.mPins == 0) {
+            freePages(data);
+        }
+    }
+
+    private void freePages(SlabByteData data) {
+        int[] pages = data.mPages;
+        for (int i=0; i<pages.length; i++) {
+            mFreePages[mFreeCount++] = pages[i];
+        }
+    }
+
+    private void link(SlabByteData data) {
+        data.mPrev = null;
+        data.mNext = mHead;
+        if (mHead == null) {
+            mTail = data;
+        }
+        else {
+            mHead.mPrev = data;
+        }
+        mHead = data;
+        mEntryCount++;
+    }
+
+    private void unlink(SlabByteData data) {
+        SlabByteData prev = data.mPrev;
+        SlabByteData next = data.mNext;
+        if (prev == null) {
+            mHead = next;
+        }
+        else {
+            prev.mNext = next;
+        }
+        if (next == null) {
+            mTail = prev;
+        }
+        else {
+            next.mPrev = prev;
+        }
+        data.mPrev = null;
+        data.mNext = null;
+        mEntryCount--;
+    }
+
+    /**
+     * Fills in pages of data being stored.
+     */
+    private class PageOutputStream extends OutputStream {
+        private final int[] mPages;
+        int mPosition;
+
+        PageOutputStream(int[] pages) {
+            mPages = pages;
+        }
+
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte)b}, 0, 1);
+        }
+
+        public void write(byte[] bytes, int offset, int length)
+            throws IOException
+        {
+            while (length > 0) {
+                int index = mPosition / mPageSize;
+                if (index >= mPages.length) {
+                    throw new IOException("Data exceeds its byte count");
+                }
+                int pageOffset = mPosition % mPageSize;
+                int amount = Math.min(length, mPageSize - pageOffset);
+                java.nio.ByteBuffer page = page(mPages[index]);
+                page.position(page.position() + pageOffset);
+                page.put(bytes, offset, amount);
+                mPosition += amount;
+                offset += amount;
+                length -= amount;
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/* ====================================================================
+ * Trove - Copyright (c) 1997-2000 Walt Disney Internet Group
+ * ====================================================================
+ * The Tea Software License, Version 1.1
+ *
+ * Copyright (c) 2000 Walt Disney Internet Group. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *        Walt Disney Internet Group (http://opensource.go.com/)."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Tea", "TeaServlet", "Kettle", "Trove" and "BeanDoc" must
+ *    not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact opensource@dig.com.
+ *
+ * 5. Products derived from this software may not be called "Tea",
+ *    "TeaServlet", "Kettle" or "Trove", nor may "Tea", "TeaServlet",
+ *    "Kettle", "Trove" or "BeanDoc" appear in their name, without prior
+ *    written permission of the Walt Disney Internet Group.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE WALT DISNEY INTERNET GROUP OR ITS
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ *
+ * For more information about Tea, please see http://opensource.go.com/.
+ */
+
+package com.go.trove.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectStreamException;
+import java.io.InvalidObjectException;
+import java.io.OutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+
+/******************************************************************************
+ * ByteData stored in direct memory by a {@link SlabAllocator}. It may be
+ * evicted at any time to make room for other data, after which it can no
+ * longer be written. To ensure that data isn't evicted before a deferred
+ * write, obtain a {@link #lease lease} on it.
+ * <p>
+ * When serialized, SlabByteData is replaced with an {@link ArrayByteData}
+ * holding a copy of its bytes.
+ *
+ * @author Brian S O'Neill
+ * @version
+ * <!--$$Revision$-->, <!--$$JustDate:--> <!-- $-->
+ */
+public class SlabByteData implements ByteData, Serializable {
+    static final long serialVersionUID = 1;
+
+    private final transient SlabAllocator mAllocator;
+
+    final transient int[] mPages;
+    transient int mLength;
+
+    // Fields guarded by the SlabAllocator.
+    transient SlabByteData mPrev;
+    transient SlabByteData mNext;
+    transient int mPins;
+    transient volatile boolean mEvicted;
+
+    SlabByteData(SlabAllocator allocator, int[] pages) {
+        mAllocator = allocator;
+        mPages = pages;
+    }
+
+    public long getByteCount() {
+        return mLength;
+    }
+
+    /**
+     * @throws IOException if evicted
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        if (!mAllocator.pin(this)) {
+            throw new IOException("Data has been evicted");
+        }
+        try {
+            mAllocator.writeTo(mPages, mLength, out);
+        }
+        finally {
+            mAllocator.unpin(this);
+        }
+    }
+
+    public void reset() {
+        // No transient data to reset.
+    }
+
+    /**
+     * Returns true if this data has been evicted and can no longer be
+     * written.
+     */
+    public boolean isEvicted() {
+        return mEvicted;
+    }
+
+    /**
+     * Returns a lease that pins this data until it is released, or null
+     * if already evicted.
+     */
+    public Lease lease() {
+        return mAllocator.pin(this) ? new Lease(this) : null;
+    }
+
+    private Object writeReplace() throws ObjectStreamException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(mLength);
+        try {
+            writeTo(out);
+        }
+        catch (IOException e) {
+            throw new InvalidObjectException(e.getMessage());
+        }
+        return new ArrayByteData(out.toByteArray());
+    }
+
+    /**************************************************************************
+     * A lease keeps SlabByteData from being freed until it is released, no
+     * matter how many times it is written. Leases must always be explicitly
+     * released, or else the data can never be freed. Once released, writing
+     * the lease pins the data again, if it hasn't been evicted in the
+     * meantime.
+     */
+    public static class Lease implements ByteData {
+        private final SlabByteData mData;
+        private boolean mPinned;
+
+        Lease(SlabByteData data) {
+            mData = data;
+            mPinned = true;
+        }
+
+        public long getByteCount() {
+            return mData.mLength;
+        }
+
+        /**
+         * @throws IOException if released and then evicted
+         */
+        public synchronized void writeTo(OutputStream out)
+            throws IOException
+        {
+            if (mPinned) {
+                mData.mAllocator.writeTo(mData.mPages, mData.mLength, out);
+            }
+            else {
+                mData.writeTo(out);
+            }
+        }
+
+        public void reset() {
+            // No transient data to reset.
+        }
+
+        /**
+         * Releases the pin on the data, unless already released.
+         */
+        public synchronized void release() {
+            if (mPinned) {
+                mPinned = false;
+                mData.mAllocator.unpin(mData);
+            }
+        }
+    }
+}
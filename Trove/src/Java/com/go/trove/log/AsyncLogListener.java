@@ -0,0 +1,346 @@
+/* ====================================================================
+ * Trove - Copyright (c) 1997-2000 Walt Disney Internet Group
+ * ====================================================================
+ * The Tea Software License, Version 1.1
+ *
+ * Copyright (c) 2000 Walt Disney Internet Group. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *        Walt Disney Internet Group (http://opensource.go.com/)."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Tea", "TeaServlet", "Kettle", "Trove" and "BeanDoc" must
+ *    not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact opensource@dig.com.
+ *
+ * 5. Products derived from this software may not be called "Tea",
+ *    "TeaServlet", "Kettle" or "Trove", nor may "Tea", "TeaServlet",
+ *    "Kettle", "Trove" or "BeanDoc" appear in their name, without prior
+ *    written permission of the Walt Disney Internet Group.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE WALT DISNEY INTERNET GROUP OR ITS
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ *
+ * For more information about Tea, please see http://opensource.go.com/.
+ */
+
+package com.go.trove.log;
+
+/******************************************************************************
+ * LogListener that passes LogEvents to another LogListener from a background
+ * thread. Threads that log only append the event to a bounded ring buffer,
+ * and so they aren't stalled by slow writes. The background thread removes
+ * all the queued events at once, passes them on, and then flushes, if the
+ * listener is a {@link LogScribe}.
+ *
+ * <pre>
+ * OutputStream out = new DailyFileLogStream(logDir);
+ * LogScribe scribe = new LogScribe(new PrintWriter(out));
+ * log.addLogListener
+ *     (new AsyncLogListener(scribe, 8192, AsyncLogListener.DROP));
+ * </pre>
+ *
+ * @author Brian S O'Neill
+ * @version
+ * <!--$$Revision$-->, <!--$$JustDate:--> <!-- $-->
+ */
+public class AsyncLogListener implements LogListener {
+    /** Overflow policy which waits for room in the buffer */
+    public static final int BLOCK = 1;
+
+    /** Overflow policy which discards events when the buffer is full */
+    public static final int DROP = 2;
+
+    /**
+     * Overflow policy which, once the buffer is half full, accepts only one
+     * of every {@link #getSampleRate sample rate} debug and info events.
+     * Events are discarded when the buffer is full.
+     */
+    public static final int SAMPLE = 3;
+
+    private static int cCounter;
+
+    private static synchronized String nextName() {
+        return "AsyncLogListener " + cCounter++;
+    }
+
+    private final LogListener mListener;
+    private final int mPolicy;
+
+    // Ring buffer of events, whose length is a power of two.
+    private final LogEvent[] mEvents;
+    // Is true for events passed to logException.
+    private final boolean[] mExceptions;
+    private final int mMask;
+    private int mHead;
+    private int mCount;
+
+    private int mSampleRate = 10;
+    private int mSampleCounter;
+    private long mDropped;
+
+    private boolean mWriting;
+    private boolean mClosed;
+    private Thread mWriter;
+
+    /**
+     * @param listener listener to pass events to
+     * @param capacity maximum number of queued events, rounded up to a
+     * power of two
+     * @param policy overflow policy: BLOCK, DROP or SAMPLE
+     */
+    public AsyncLogListener(LogListener listener, int capacity, int policy) {
+        if (listener == null) {
+            throw new IllegalArgumentException("LogListener is null");
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException
+                ("Capacity must be positive: " + capacity);
+        }
+        if (policy < BLOCK || policy > SAMPLE) {
+            throw new IllegalArgumentException
+                ("Unknown overflow policy: " + policy);
+        }
+
+        int length = 1;
+        while (length < capacity) {
+            length <<= 1;
+        }
+
+        mListener = listener;
+        mPolicy = policy;
+        mEvents = new LogEvent[length];
+        mExceptions = new boolean[length];
+        mMask = length - 1;
+
+        if (listener instanceof LogScribe) {
+            ((LogScribe)listener).setAutoFlushEnabled(false);
+        }
+
+        mWriter = new Thread(new Writer(), nextName());
+        mWriter.setDaemon(true);
+        mWriter.start();
+    }
+
+    public void logMessage(LogEvent e) {
+        enqueue(e, false);
+    }
+
+    public void logException(LogEvent e) {
+        enqueue(e, true);
+    }
+
+    public int getOverflowPolicy() {
+        return mPolicy;
+    }
+
+    public int getCapacity() {
+        return mEvents.length;
+    }
+
+    /**
+     * Returns the number of events waiting to be passed on.
+     */
+    public synchronized int getQueueDepth() {
+        return mCount;
+    }
+
+    /**
+     * Returns the number of events discarded because of overflow.
+     */
+    public synchronized long getDroppedCount() {
+        return mDropped;
+    }
+
+    /**
+     * Under the SAMPLE policy, one of every sample rate debug and info events
+     * is accepted once the buffer is half full. The default is 10.
+     */
+    public synchronized int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public synchronized void setSampleRate(int rate) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException
+                ("Sample rate must be positive: " + rate);
+        }
+        mSampleRate = rate;
+    }
+
+    /**
+     * Waits until all queued events have been passed on.
+     */
+    public synchronized void flush() throws InterruptedException {
+        while ((mCount > 0 || mWriting) && mWriter != null) {
+            wait();
+        }
+    }
+
+    /**
+     * Passes on all queued events and stops the background thread. Events
+     * logged afterwards are passed on by the logging thread.
+     */
+    public void close() throws InterruptedException {
+        Thread writer;
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            writer = mWriter;
+            notifyAll();
+        }
+        if (writer != null && writer != Thread.currentThread()) {
+            writer.join();
+        }
+    }
+
+    private void enqueue(LogEvent e, boolean exception) {
+        // The logging thread may be renamed or gone by the time the event is
+        // written, so capture its name now.
+        e.getThreadName();
+
+        synchronized (this) {
+            if (!mClosed) {
+                LogEvent[] events = mEvents;
+                int count = mCount;
+                if (count >= events.length) {
+                    if (mPolicy != BLOCK) {
+                        mDropped++;
+                        return;
+                    }
+                    try {
+                        do {
+                            wait();
+                        } while ((count = mCount) >= events.length &&
+                                 !mClosed);
+                    }
+                    catch (InterruptedException ex) {
+                        mDropped++;
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                else if (mPolicy == SAMPLE && count >= (events.length >> 1)
+                         && e.getType() <= LogEvent.INFO_TYPE) {
+                    if (++mSampleCounter < mSampleRate) {
+                        mDropped++;
+                        return;
+                    }
+                    mSampleCounter = 0;
+                }
+
+                if (!mClosed) {
+                    int index = (mHead + count) & mMask;
+                    events[index] = e;
+                    mExceptions[index] = exception;
+                    if ((mCount = count + 1) == 1) {
+                        notifyAll();
+                    }
+                    return;
+                }
+            }
+        }
+
+        // Closed, so pass on directly.
+        dispatch(e, exception);
+    }
+
+    private void dispatch(LogEvent e, boolean exception) {
+        try {
+            if (exception) {
+                mListener.logException(e);
+            }
+            else {
+                mListener.logMessage(e);
+            }
+        }
+        catch (Throwable ex) {
+            Thread t = Thread.currentThread();
+            t.getThreadGroup().uncaughtException(t, ex);
+        }
+    }
+
+    private class Writer implements Runnable {
+        public void run() {
+            LogEvent[] batch = new LogEvent[mEvents.length];
+            boolean[] exceptions = new boolean[batch.length];
+
+            while (true) {
+                int count;
+                synchronized (AsyncLogListener.this) {
+                    mWriting = false;
+                    AsyncLogListener.this.notifyAll();
+                    while ((count = mCount) == 0) {
+                        if (mClosed) {
+                            mWriter = null;
+                            AsyncLogListener.this.notifyAll();
+                            return;
+                        }
+                        try {
+                            AsyncLogListener.this.wait();
+                        }
+                        catch (InterruptedException e) {
+                            // Treat as close, and write what's left.
+                            mClosed = true;
+                        }
+                    }
+
+                    // Remove all the queued events, waking any threads
+                    // blocked on a full buffer.
+                    LogEvent[] events = mEvents;
+                    int mask = mMask;
+                    int head = mHead;
+                    for (int i=0; i<count; i++) {
+                        int index = (head + i) & mask;
+                        batch[i] = events[index];
+                        exceptions[i] = mExceptions[index];
+                        events[index] = null;
+                    }
+                    mHead = (head + count) & mask;
+                    if (mCount == events.length) {
+                        AsyncLogListener.this.notifyAll();
+                    }
+                    mCount = 0;
+                    mWriting = true;
+                }
+
+                for (int i=0; i<count; i++) {
+                    dispatch(batch[i], exceptions[i]);
+                    batch[i] = null;
+                }
+
+                if (mListener instanceof LogScribe) {
+                    ((LogScribe)mListener).flush();
+                }
+            }
+        }
+    }
+}
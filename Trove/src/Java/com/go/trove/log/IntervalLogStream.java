@@ -77,8 +77,9 @@ public abstract class IntervalLogStream extends OutputStream {
     private OutputStream mOut;
     private boolean mIsClosed;
 
-    private Calendar mIntervalStart;
-    private Calendar mNextIntervalStart;
+    // Interval endpoints, in milliseconds.
+    private long mIntervalStart;
+    private long mNextIntervalStart;
 
     private Thread mRolloverThread;
 
@@ -161,15 +162,19 @@ public abstract class IntervalLogStream extends OutputStream {
             throw new IOException("LogStream is closed");
         }
 
-        Calendar cal = Calendar.getInstance();
+        // Only check the time on each write, as creating a Calendar is
+        // relatively expensive.
+        long now = System.currentTimeMillis();
 
         if (mOut == null || 
-            cal.before(mIntervalStart) || !cal.before(mNextIntervalStart)) {
+            now < mIntervalStart || now >= mNextIntervalStart) {
 
             if (mOut != null) {
                 mOut.close();
             }
 
+            Calendar cal = Calendar.getInstance();
+
             mOut = new BufferedOutputStream
                 (mFactory.openOutputStream(cal.getTime()));
 
@@ -180,11 +185,12 @@ public abstract class IntervalLogStream extends OutputStream {
     }
 
     private void setIntervalEndpoints(Calendar cal) {
-        mIntervalStart = (Calendar)cal.clone();
-        moveToIntervalStart(mIntervalStart);
+        Calendar start = (Calendar)cal.clone();
+        moveToIntervalStart(start);
+        mIntervalStart = start.getTime().getTime();
 
-        mNextIntervalStart = cal;
-        moveToNextIntervalStart(mNextIntervalStart);
+        moveToNextIntervalStart(cal);
+        mNextIntervalStart = cal.getTime().getTime();
     }
 
     public static interface Factory {
@@ -119,7 +119,7 @@ public class Log implements LogListener, Serializable {
     private Collection mChildren = new Vector();
     private String mName;
     private String mDescription;
-    private int mEnabledFlags = 0xfffffff;
+    private volatile int mEnabledFlags = 0xfffffff;
     private transient List mListeners = new Vector();
 
     /**
@@ -263,7 +263,7 @@ public class Log implements LogListener, Serializable {
     /**
      * Simple method for logging a single debugging message.
      */
-    public synchronized void debug(String s) {
+    public void debug(String s) {
         if (isEnabled() && isDebugEnabled()) {
             dispatchLogMessage(new LogEvent(this, LogEvent.DEBUG_TYPE, s));
         }
@@ -272,7 +272,7 @@ public class Log implements LogListener, Serializable {
     /**
      * Simple method for logging a single debugging exception.
      */
-    public synchronized void debug(Throwable t) {
+    public void debug(Throwable t) {
         if (isEnabled() && isDebugEnabled()) {
             dispatchLogException(new LogEvent(this, LogEvent.DEBUG_TYPE, t));
         }
@@ -288,7 +288,7 @@ public class Log implements LogListener, Serializable {
     /**
      * Simple method for logging a single information message.
      */
-    public synchronized void info(String s) {
+    public void info(String s) {
         if (isEnabled() && isInfoEnabled()) {
             dispatchLogMessage(new LogEvent(this, LogEvent.INFO_TYPE, s));
         }
@@ -297,7 +297,7 @@ public class Log implements LogListener, Serializable {
     /**
      * Simple method for logging a single information exception.
      */
-    public synchronized void info(Throwable t) {
+    public void info(Throwable t) {
         if (isEnabled() && isInfoEnabled()) {
             dispatchLogException(new LogEvent(this, LogEvent.INFO_TYPE, t));
         }
@@ -313,7 +313,7 @@ public class Log implements LogListener, Serializable {
     /**
      * Simple method for logging a single warning message.
      */
-    public synchronized void warn(String s) {
+    public void warn(String s) {
         if (isEnabled() && isWarnEnabled()) {
             dispatchLogMessage(new LogEvent(this, LogEvent.WARN_TYPE, s));
         }
@@ -322,7 +322,7 @@ public class Log implements LogListener, Serializable {
     /**
      * Simple method for logging a single warning exception.
      */
-    public synchronized void warn(Throwable t) {
+    public void warn(Throwable t) {
         if (isEnabled() && isWarnEnabled()) {
             dispatchLogException(new LogEvent(this, LogEvent.WARN_TYPE, t));
         }
@@ -338,7 +338,7 @@ public class Log implements LogListener, Serializable {
     /**
      * Simple method for logging a single error message.
      */
-    public synchronized void error(String s) {
+    public void error(String s) {
         if (isEnabled() && isErrorEnabled()) {
             dispatchLogMessage(new LogEvent(this, LogEvent.ERROR_TYPE, s));
         }
@@ -347,7 +347,7 @@ public class Log implements LogListener, Serializable {
     /**
      * Simple method for logging a single error exception.
      */
-    public synchronized void error(Throwable t) {
+    public void error(Throwable t) {
         if (isEnabled() && isErrorEnabled()) {
             dispatchLogException(new LogEvent(this, LogEvent.ERROR_TYPE, t));
         }
@@ -546,7 +546,9 @@ public class Log implements LogListener, Serializable {
             Integer.toHexString(hashCode());
     }
 
-    private synchronized boolean isEnabled(int mask) {
+    // Not synchronized, since this is checked on every event. Changes are
+    // synchronized, and the flags are volatile.
+    private boolean isEnabled(int mask) {
         return (mEnabledFlags & mask) == mask;
     }
 
@@ -87,6 +87,7 @@ public class LogScribe implements LogListener {
 
     private boolean mShowThread = true;
     private boolean mShowSourceName = true;
+    private boolean mAutoFlush = true;
 
     public LogScribe(PrintWriter writer) {
         this(writer, (FastDateFormat)null);
@@ -124,7 +125,9 @@ public class LogScribe implements LogListener {
             synchronized (mWriter) {
                 mWriter.print(createPrepend(e));
                 mWriter.println(message);
-                mWriter.flush();
+                if (mAutoFlush) {
+                    mWriter.flush();
+                }
             }
         }
     }
@@ -139,11 +142,30 @@ public class LogScribe implements LogListener {
             synchronized (mWriter) {
                 mWriter.print(createPrepend(e));
                 t.printStackTrace(mWriter);
-                mWriter.flush();
+                if (mAutoFlush) {
+                    mWriter.flush();
+                }
             }
         }
     }
 
+    /**
+     * Flushing the writer after each message is on by default.
+     */
+    public boolean isAutoFlushEnabled() {
+        return mAutoFlush;
+    }
+
+    public void setAutoFlushEnabled(boolean enabled) {
+        mAutoFlush = enabled;
+    }
+
+    public void flush() {
+        synchronized (mWriter) {
+            mWriter.flush();
+        }
+    }
+
     /**
      * The showing of the event thread name is on by default.
      */
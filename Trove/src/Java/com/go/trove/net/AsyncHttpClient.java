@@ -0,0 +1,1223 @@
+/* ====================================================================
+ * Trove - Copyright (c) 1997-2000 Walt Disney Internet Group
+ * ====================================================================
+ * The Tea Software License, Version 1.1
+ *
+ * Copyright (c) 2000 Walt Disney Internet Group. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *        Walt Disney Internet Group (http://opensource.go.com/)."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Tea", "TeaServlet", "Kettle", "Trove" and "BeanDoc" must
+ *    not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact opensource@dig.com.
+ *
+ * 5. Products derived from this software may not be called "Tea",
+ *    "TeaServlet", "Kettle" or "Trove", nor may "Tea", "TeaServlet",
+ *    "Kettle", "Trove" or "BeanDoc" appear in their name, without prior
+ *    written permission of the Walt Disney Internet Group.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE WALT DISNEY INTERNET GROUP OR ITS
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ *
+ * For more information about Tea, please see http://opensource.go.com/.
+ */
+
+package com.go.trove.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import com.go.trove.io.ByteData;
+import com.go.trove.io.CharToByteBuffer;
+import com.go.trove.io.DefaultByteBuffer;
+import com.go.trove.io.FastCharToByteBuffer;
+import com.go.trove.io.InternedCharToByteBuffer;
+
+/******************************************************************************
+ * An HTTP client that uses non-blocking I/O, allowing a single thread to
+ * drive many keep-alive connections. Requests are sent asynchronously, and
+ * each returns a {@link AsyncHttpClient.Future Future} from which the
+ * response is later retrieved.
+ * <p>
+ * Connections are pooled per remote address, and GET and HEAD requests are
+ * pipelined on them. The address for each request is chosen by a
+ * SocketFactory, so a {@link DistributedSocketFactory} provides load
+ * balancing and session affinity. If a connection fails before a GET or
+ * HEAD response is received, the request is retried once, at an address
+ * chosen again by the factory.
+ *
+ * @author Brian S O'Neill
+ * @version
+ * <!--$$Revision$-->, <!--$$JustDate:--> <!-- $-->
+ */
+public class AsyncHttpClient {
+    private static final int READ_BUFFER_SIZE = 16384;
+    private static final int WRITE_BUFFER_SIZE = 8192;
+    private static final int MAX_POOLED_BUFFERS = 64;
+    private static final int MAX_ATTEMPTS = 2;
+
+    // Response parsing states.
+    private static final int HEAD = 0;
+    private static final int BODY = 1;
+    private static final int BODY_UNTIL_CLOSE = 2;
+    private static final int CHUNK_SIZE = 3;
+    private static final int CHUNK_DATA = 4;
+    private static final int CHUNK_END = 5;
+    private static final int TRAILER = 6;
+
+    private final Selector mSelector;
+    private final int mMaxConnections;
+    private final int mMaxPipeline;
+    private final long mIdleTimeout;
+
+    // Requests waiting to be handed to the selector thread.
+    private final List mNewRequests = new ArrayList();
+    private boolean mClosed;
+
+    // The remaining fields are only accessed by the selector thread.
+
+    // Maps InetAddressAndPort strings to Hosts.
+    private final Map mHosts = new HashMap();
+
+    // Pool of direct buffers used for writing requests.
+    private final LinkedList mBufferPool = new LinkedList();
+
+    private final ByteBuffer mReadBuffer =
+        ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final byte[] mCopyBuffer = new byte[READ_BUFFER_SIZE];
+
+    private final Thread mThread;
+
+    /**
+     * Creates a client which opens at most 4 connections per address and
+     * pipelines at most 8 requests per connection.
+     *
+     * @param name name of selector thread
+     */
+    public AsyncHttpClient(String name) throws IOException {
+        this(name, 4, 8, 60000);
+    }
+
+    /**
+     * @param name name of selector thread
+     * @param maxConnections maximum connections to open per address
+     * @param maxPipeline maximum requests to send on a connection before
+     * their responses are received
+     * @param idleTimeout milliseconds before an unused connection is closed
+     */
+    public AsyncHttpClient(String name, int maxConnections, int maxPipeline,
+                           long idleTimeout)
+        throws IOException
+    {
+        if (maxConnections <= 0 || maxPipeline <= 0) {
+            throw new IllegalArgumentException
+                ("Maximum connections and pipeline must be positive");
+        }
+        mSelector = Selector.open();
+        mMaxConnections = maxConnections;
+        mMaxPipeline = maxPipeline;
+        mIdleTimeout = idleTimeout;
+        mThread = new Thread(new Runnable() {
+            public void run() {
+                runSelector();
+            }
+        }, name);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Sends a GET request, whose response must arrive within the factory's
+     * default timeout.
+     *
+     * @param factory selects the address to send the request to
+     * @param uri request URI, which includes the path and query
+     */
+    public Future get(SocketFactory factory, String uri) {
+        return send(factory, null, "GET", uri, null, null,
+                    factory.getDefaultTimeout());
+    }
+
+    /**
+     * Sends a request.
+     *
+     * @param factory selects the address to send the request to
+     * @param session optional session object passed to the factory
+     * @param method request method, such as GET, HEAD or POST
+     * @param uri request URI, which includes the path and query
+     * @param headers optional request headers
+     * @param body optional request body
+     * @param timeout milliseconds for the response to be fully received. If
+     * negative, the timeout is infinite.
+     */
+    public Future send(SocketFactory factory, Object session,
+                       String method, String uri,
+                       HttpHeaderMap headers, byte[] body, long timeout)
+    {
+        Future future = new Future();
+        Request request;
+        try {
+            request = new Request(factory, session, method, uri,
+                                  headers, body, timeout, future);
+        }
+        catch (IOException e) {
+            future.complete(null, e);
+            return future;
+        }
+
+        synchronized (mNewRequests) {
+            if (mClosed) {
+                future.complete(null, new SocketException("Client closed"));
+                return future;
+            }
+            mNewRequests.add(request);
+        }
+        mSelector.wakeup();
+
+        return future;
+    }
+
+    /**
+     * Closes all connections and fails any outstanding requests.
+     */
+    public void close() {
+        synchronized (mNewRequests) {
+            mClosed = true;
+        }
+        mSelector.wakeup();
+    }
+
+    private void runSelector() {
+        try {
+            while (true) {
+                List newRequests;
+                synchronized (mNewRequests) {
+                    if (mClosed) {
+                        break;
+                    }
+                    newRequests = new ArrayList(mNewRequests);
+                    mNewRequests.clear();
+                }
+
+                for (int i=0; i<newRequests.size(); i++) {
+                    enqueue((Request)newRequests.get(i));
+                }
+
+                if (mHosts.size() == 0) {
+                    mSelector.select();
+                }
+                else {
+                    // Wake up periodically to check for expired requests
+                    // and idle connections.
+                    mSelector.select(100);
+                }
+
+                Iterator it = mSelector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = (SelectionKey)it.next();
+                    it.remove();
+                    Connection con = (Connection)key.attachment();
+                    try {
+                        if (!key.isValid()) {
+                            con.failed(new SocketException("Closed"));
+                            continue;
+                        }
+                        if (key.isConnectable()) {
+                            con.finishConnect();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            con.write();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            con.read();
+                        }
+                    }
+                    catch (IOException e) {
+                        con.failed(e);
+                    }
+                    catch (RuntimeException e) {
+                        con.failed(new SocketException(e.toString()));
+                    }
+                }
+
+                checkTimeouts(System.currentTimeMillis());
+            }
+        }
+        catch (IOException e) {
+            Thread t = Thread.currentThread();
+            t.getThreadGroup().uncaughtException(t, e);
+        }
+        finally {
+            shutdown();
+        }
+    }
+
+    private void shutdown() {
+        IOException closed = new SocketException("Client closed");
+
+        List requests;
+        synchronized (mNewRequests) {
+            mClosed = true;
+            requests = new ArrayList(mNewRequests);
+            mNewRequests.clear();
+        }
+        for (int i=0; i<requests.size(); i++) {
+            ((Request)requests.get(i)).fail(closed);
+        }
+
+        Iterator it = new ArrayList(mHosts.values()).iterator();
+        while (it.hasNext()) {
+            Host host = (Host)it.next();
+            while (host.mQueue.size() > 0) {
+                ((Request)host.mQueue.removeFirst()).fail(closed);
+            }
+            Iterator cons = new ArrayList(host.mConnections).iterator();
+            while (cons.hasNext()) {
+                ((Connection)cons.next()).close(closed, false);
+            }
+        }
+        mHosts.clear();
+
+        try {
+            mSelector.close();
+        }
+        catch (IOException e) {
+        }
+    }
+
+    /**
+     * Selects an address for the request and queues it with that host.
+     */
+    private void enqueue(Request request) {
+        InetAddressAndPort address =
+            request.mFactory.getInetAddressAndPort(request.mSession);
+        if (address == null || address.getInetAddress() == null) {
+            request.fail(new ConnectException("No address available"));
+            return;
+        }
+
+        String hostKey = address.toString();
+        Host host = (Host)mHosts.get(hostKey);
+        if (host == null) {
+            host = new Host(hostKey, address);
+            mHosts.put(hostKey, host);
+        }
+
+        host.mQueue.add(request);
+        host.dispatch();
+    }
+
+    /**
+     * Retries a request on a failed connection if allowed, or else fails it.
+     */
+    private void retry(Request request, IOException e) {
+        if (request.mIdempotent && request.mAttempts < MAX_ATTEMPTS &&
+            !request.mFuture.isDone()) {
+            enqueue(request);
+        }
+        else {
+            request.fail(e);
+        }
+    }
+
+    private void checkTimeouts(long now) {
+        Iterator it = new ArrayList(mHosts.values()).iterator();
+        while (it.hasNext()) {
+            Host host = (Host)it.next();
+
+            Iterator requests = host.mQueue.iterator();
+            while (requests.hasNext()) {
+                Request request = (Request)requests.next();
+                if (now >= request.mDeadline) {
+                    requests.remove();
+                    request.fail(new InterruptedIOException
+                                 ("Request timed out: " + request.mURI));
+                }
+            }
+
+            Iterator cons = new ArrayList(host.mConnections).iterator();
+            while (cons.hasNext()) {
+                Connection con = (Connection)cons.next();
+                if (con.mSent.size() > 0) {
+                    // Fail every timed out request. Those behind the first
+                    // stay in the pipeline, and their responses are
+                    // discarded when they arrive.
+                    Iterator sent = con.mSent.iterator();
+                    while (sent.hasNext()) {
+                        Request request = (Request)sent.next();
+                        if (now >= request.mDeadline &&
+                            !request.mFuture.isDone()) {
+                            request.fail(new InterruptedIOException
+                                         ("Request timed out: " +
+                                          request.mURI));
+                        }
+                    }
+
+                    Request first = (Request)con.mSent.getFirst();
+                    if (now >= first.mDeadline) {
+                        // Pipelined responses arrive in order, so the
+                        // connection cannot be used for the others.
+                        con.mSent.removeFirst();
+                        con.close(new InterruptedIOException
+                                  ("Prior request timed out"), true);
+                    }
+                }
+                else if (now - con.mLastUsed >= mIdleTimeout) {
+                    con.close(null, false);
+                }
+            }
+
+            if (host.mQueue.size() == 0 && host.mConnections.size() == 0) {
+                mHosts.remove(host.mKey);
+            }
+        }
+    }
+
+    /**
+     * Returns the name the address was resolved from, or else its literal
+     * form. Unlike getHostName, this never performs a reverse lookup.
+     */
+    private static String hostName(InetAddress addr) {
+        // InetAddress.toString is the host name, if known, and a slash
+        // followed by the literal address.
+        String str = addr.toString();
+        int index = str.indexOf('/');
+        if (index > 0) {
+            return str.substring(0, index);
+        }
+        str = addr.getHostAddress();
+        if (str.indexOf(':') >= 0) {
+            // IPv6 literals are enclosed in brackets.
+            str = '[' + str + ']';
+        }
+        return str;
+    }
+
+    private ByteBuffer allocateBuffer() {
+        if (mBufferPool.size() > 0) {
+            return (ByteBuffer)mBufferPool.removeFirst();
+        }
+        return ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    }
+
+    private void releaseBuffer(ByteBuffer buffer) {
+        if (mBufferPool.size() < MAX_POOLED_BUFFERS) {
+            buffer.clear();
+            mBufferPool.add(buffer);
+        }
+    }
+
+    /**
+     * Allows a response to be retrieved once it has been received.
+     */
+    public static class Future {
+        private boolean mDone;
+        private Response mResponse;
+        private IOException mException;
+
+        /**
+         * Returns true if the response has been received or the request
+         * failed.
+         */
+        public synchronized boolean isDone() {
+            return mDone;
+        }
+
+        /**
+         * Waits for the response, for as long as the request's timeout.
+         */
+        public synchronized Response getResponse() throws IOException {
+            try {
+                while (!mDone) {
+                    wait();
+                }
+            }
+            catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            return result();
+        }
+
+        /**
+         * Waits at most the given amount of time for the response.
+         *
+         * @param timeout milliseconds to wait. If negative, the timeout is
+         * infinite.
+         * @throws InterruptedIOException if the timeout expires
+         */
+        public synchronized Response getResponse(long timeout)
+            throws IOException
+        {
+            if (timeout < 0) {
+                return getResponse();
+            }
+            try {
+                long expire = System.currentTimeMillis() + timeout;
+                while (!mDone) {
+                    if (timeout <= 0) {
+                        throw new InterruptedIOException
+                            ("Timed out waiting for response");
+                    }
+                    wait(timeout);
+                    timeout = expire - System.currentTimeMillis();
+                }
+            }
+            catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            return result();
+        }
+
+        synchronized void complete(Response response, IOException e) {
+            if (!mDone) {
+                mResponse = response;
+                mException = e;
+                mDone = true;
+                notifyAll();
+            }
+        }
+
+        private Response result() throws IOException {
+            if (mException != null) {
+                // Fill in the stack trace of the waiting thread.
+                mException.fillInStackTrace();
+                throw mException;
+            }
+            return mResponse;
+        }
+    }
+
+    /**
+     * A fully received response.
+     */
+    public static class Response {
+        private final int mStatusCode;
+        private final String mStatusMessage;
+        private final HttpHeaderMap mHeaders;
+        private final ByteData mBody;
+
+        Response(int statusCode, String statusMessage,
+                 HttpHeaderMap headers, ByteData body) {
+            mStatusCode = statusCode;
+            mStatusMessage = statusMessage;
+            mHeaders = headers;
+            mBody = body;
+        }
+
+        /**
+         * Returns the server's status code, 200 for OK, 404 for not found,
+         * etc.
+         */
+        public int getStatusCode() {
+            return mStatusCode;
+        }
+
+        /**
+         * Returns the server's status message accompanying the status code.
+         * This message is intended for humans only.
+         */
+        public String getStatusMessage() {
+            return mStatusMessage;
+        }
+
+        public HttpHeaderMap getHeaders() {
+            return mHeaders;
+        }
+
+        /**
+         * Returns the response body, which is empty if the response has
+         * none.
+         */
+        public ByteData getBody() {
+            return mBody;
+        }
+    }
+
+    private static class Request {
+        final SocketFactory mFactory;
+        final Object mSession;
+        final String mURI;
+        final boolean mIdempotent;
+        final boolean mHead;
+        // Request line and headers, except for the final blank line.
+        final byte[] mHeadBytes;
+        final boolean mNeedsHost;
+        final byte[] mBody;
+        final long mDeadline;
+        final Future mFuture;
+
+        int mAttempts;
+
+        Request(SocketFactory factory, Object session,
+                String method, String uri,
+                HttpHeaderMap headers, byte[] body,
+                long timeout, Future future)
+            throws IOException
+        {
+            mFactory = factory;
+            mSession = session;
+            mURI = uri;
+            mIdempotent = "GET".equals(method) || "HEAD".equals(method);
+            mHead = "HEAD".equals(method);
+            if (timeout < 0) {
+                mDeadline = Long.MAX_VALUE;
+            }
+            else {
+                mDeadline = System.currentTimeMillis() + timeout;
+            }
+            mFuture = future;
+
+            CharToByteBuffer buffer = new FastCharToByteBuffer
+                (new DefaultByteBuffer(), "8859_1");
+            buffer = new InternedCharToByteBuffer(buffer);
+
+            buffer.append(method);
+            buffer.append(' ');
+            buffer.append(uri);
+            buffer.append(" HTTP/1.1\r\n");
+            if (headers != null) {
+                headers.appendTo(buffer);
+            }
+            if (body != null &&
+                (headers == null || headers.get("Content-Length") == null)) {
+                buffer.append("Content-Length: ");
+                buffer.append(String.valueOf(body.length));
+                buffer.append("\r\n");
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            buffer.writeTo(out);
+            mHeadBytes = out.toByteArray();
+            // Host header is added when the address is known.
+            mNeedsHost = headers == null || headers.get("Host") == null;
+            mBody = body;
+        }
+
+        /**
+         * Returns the complete request to send to the given host.
+         */
+        byte[] toBytes(Host host) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream
+                (mHeadBytes.length + 40 + (mBody == null ? 0 : mBody.length));
+            out.write(mHeadBytes, 0, mHeadBytes.length);
+            if (mNeedsHost) {
+                out.write(host.mHostHeader, 0, host.mHostHeader.length);
+            }
+            out.write('\r');
+            out.write('\n');
+            if (mBody != null) {
+                out.write(mBody, 0, mBody.length);
+            }
+            return out.toByteArray();
+        }
+
+        void fail(IOException e) {
+            mFuture.complete(null, e);
+        }
+    }
+
+    /**
+     * Requests and connections for one remote address.
+     */
+    private class Host {
+        final String mKey;
+        final InetAddressAndPort mAddress;
+        final byte[] mHostHeader;
+
+        // Requests not yet assigned to a connection.
+        final LinkedList mQueue = new LinkedList();
+        final List mConnections = new ArrayList();
+
+        // Set when the server closes connections after responses, in which
+        // case pipelined requests would only have to be sent again.
+        boolean mNoPipelining;
+
+        Host(String key, InetAddressAndPort address) {
+            mKey = key;
+            mAddress = address;
+            String header = "Host: " + hostName(address.getInetAddress()) +
+                ':' + address.getPort() + "\r\n";
+            byte[] bytes = new byte[header.length()];
+            for (int i=0; i<bytes.length; i++) {
+                bytes[i] = (byte)header.charAt(i);
+            }
+            mHostHeader = bytes;
+        }
+
+        /**
+         * Assigns queued requests to connections which can accept them,
+         * opening new connections if needed.
+         */
+        void dispatch() {
+            while (mQueue.size() > 0) {
+                Request request = (Request)mQueue.getFirst();
+
+                Connection best = null;
+                int size = mConnections.size();
+                for (int i=0; i<size; i++) {
+                    Connection con = (Connection)mConnections.get(i);
+                    if (con.canAccept(request) &&
+                        (best == null ||
+                         con.mSent.size() < best.mSent.size())) {
+                        best = con;
+                    }
+                }
+
+                if (best == null || best.mSent.size() > 0) {
+                    // Prefer a new connection over pipelining.
+                    int connecting = 0;
+                    for (int i=0; i<size; i++) {
+                        if (!((Connection)mConnections.get(i)).mConnected) {
+                            connecting++;
+                        }
+                    }
+                    if (size < mMaxConnections && connecting == 0) {
+                        Connection con;
+                        try {
+                            con = new Connection(this);
+                        }
+                        catch (IOException e) {
+                            mQueue.removeFirst();
+                            request.mAttempts++;
+                            retry(request, e);
+                            continue;
+                        }
+                        mConnections.add(con);
+                        if (best == null) {
+                            if (con.mConnected) {
+                                continue;
+                            }
+                            // Wait for connection to be established.
+                            return;
+                        }
+                    }
+                }
+
+                if (best == null) {
+                    return;
+                }
+
+                mQueue.removeFirst();
+                best.send(request);
+            }
+        }
+
+        /**
+         * Called when a connection fails. If no connections remain, queued
+         * requests are retried elsewhere or failed.
+         */
+        void connectionClosed(Connection con, IOException e) {
+            mConnections.remove(con);
+            if (mConnections.size() == 0 && e != null && !con.mConnected) {
+                // Address cannot be reached, so try the queued requests
+                // elsewhere.
+                LinkedList queue = new LinkedList(mQueue);
+                mQueue.clear();
+                while (queue.size() > 0) {
+                    Request request = (Request)queue.removeFirst();
+                    request.mAttempts++;
+                    retry(request, e);
+                }
+            }
+            else {
+                dispatch();
+            }
+        }
+    }
+
+    private class Connection {
+        final Host mHost;
+        final SocketChannel mChannel;
+        final SelectionKey mKey;
+
+        boolean mConnected;
+        // When true, the server will close the connection after the current
+        // response, so no more requests can be sent.
+        boolean mClosing;
+        boolean mClosed;
+
+        // Requests sent (or being sent), awaiting responses.
+        final LinkedList mSent = new LinkedList();
+
+        // Requests whose bytes are still to be written.
+        final LinkedList mWriteQueue = new LinkedList();
+        ByteBuffer mWriteBuffer;
+        byte[] mWriting;
+        int mWriteOffset;
+
+        long mLastUsed = System.currentTimeMillis();
+
+        // Response parsing state.
+        int mState = HEAD;
+        final ByteArrayOutputStream mLine = new ByteArrayOutputStream();
+        final ByteArrayOutputStream mHead = new ByteArrayOutputStream();
+        long mRemaining;
+        int mStatusCode;
+        String mStatusMessage;
+        HttpHeaderMap mHeaders;
+        DefaultByteBuffer mBody;
+
+        Connection(Host host) throws IOException {
+            mHost = host;
+            mChannel = SocketChannel.open();
+            try {
+                mChannel.configureBlocking(false);
+                InetAddressAndPort address = host.mAddress;
+                mConnected = mChannel.connect
+                    (new InetSocketAddress(address.getInetAddress(),
+                                           address.getPort()));
+                mKey = mChannel.register
+                    (mSelector, mConnected ? SelectionKey.OP_READ :
+                     SelectionKey.OP_CONNECT, this);
+            }
+            catch (IOException e) {
+                mChannel.close();
+                throw e;
+            }
+        }
+
+        boolean canAccept(Request request) {
+            if (!mConnected || mClosing) {
+                return false;
+            }
+            if (mSent.size() == 0) {
+                return true;
+            }
+            return !mHost.mNoPipelining && mSent.size() < mMaxPipeline &&
+                request.mIdempotent &&
+                ((Request)mSent.getLast()).mIdempotent;
+        }
+
+        void finishConnect() throws IOException {
+            if (mChannel.finishConnect()) {
+                mConnected = true;
+                mKey.interestOps(SelectionKey.OP_READ);
+                mHost.dispatch();
+            }
+        }
+
+        void send(Request request) {
+            request.mAttempts++;
+            mSent.add(request);
+            mWriteQueue.add(request.toBytes(mHost));
+            mLastUsed = System.currentTimeMillis();
+            try {
+                write();
+            }
+            catch (IOException e) {
+                failed(e);
+            }
+        }
+
+        void write() throws IOException {
+            while (true) {
+                if (mWriteBuffer == null) {
+                    mWriteBuffer = allocateBuffer();
+                }
+
+                // Fill the buffer from the queued request bytes.
+                while (mWriteBuffer.hasRemaining()) {
+                    if (mWriting == null) {
+                        if (mWriteQueue.size() == 0) {
+                            break;
+                        }
+                        mWriting = (byte[])mWriteQueue.removeFirst();
+                        mWriteOffset = 0;
+                    }
+                    int amount = Math.min(mWriteBuffer.remaining(),
+                                          mWriting.length - mWriteOffset);
+                    mWriteBuffer.put(mWriting, mWriteOffset, amount);
+                    if ((mWriteOffset += amount) >= mWriting.length) {
+                        mWriting = null;
+                    }
+                }
+
+                mWriteBuffer.flip();
+                if (!mWriteBuffer.hasRemaining()) {
+                    // Nothing left to write.
+                    releaseBuffer(mWriteBuffer);
+                    mWriteBuffer = null;
+                    mKey.interestOps(SelectionKey.OP_READ);
+                    return;
+                }
+
+                mChannel.write(mWriteBuffer);
+                boolean full = mWriteBuffer.hasRemaining();
+                mWriteBuffer.compact();
+
+                if (full) {
+                    // Socket buffer is full, so wait until writable.
+                    mKey.interestOps
+                        (SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+        }
+
+        void read() throws IOException {
+            ByteBuffer buffer = mReadBuffer;
+            while (true) {
+                buffer.clear();
+                int amount = mChannel.read(buffer);
+                if (amount < 0) {
+                    endOfStream();
+                    return;
+                }
+                if (amount == 0) {
+                    return;
+                }
+                buffer.flip();
+                buffer.get(mCopyBuffer, 0, amount);
+                mLastUsed = System.currentTimeMillis();
+                parse(mCopyBuffer, 0, amount);
+                if (mClosed) {
+                    return;
+                }
+            }
+        }
+
+        private void parse(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                switch (mState) {
+                case HEAD: case CHUNK_SIZE: case CHUNK_END: case TRAILER: {
+                    int i = off;
+                    int end = off + len;
+                    while (i < end && b[i] != '\n') {
+                        i++;
+                    }
+                    if (i >= end) {
+                        mLine.write(b, off, len);
+                        if (mLine.size() > 65536) {
+                            throw new ProtocolException("Line too long");
+                        }
+                        return;
+                    }
+                    i++;
+                    mLine.write(b, off, i - off);
+                    len -= i - off;
+                    off = i;
+                    lineRead();
+                    break;
+                }
+
+                case BODY: case CHUNK_DATA: {
+                    int amount = (int)Math.min(len, mRemaining);
+                    mBody.append(b, off, amount);
+                    off += amount;
+                    len -= amount;
+                    if ((mRemaining -= amount) == 0) {
+                        if (mState == BODY) {
+                            responseReceived();
+                        }
+                        else {
+                            mState = CHUNK_END;
+                        }
+                    }
+                    break;
+                }
+
+                case BODY_UNTIL_CLOSE:
+                    mBody.append(b, off, len);
+                    return;
+                }
+
+                if (mClosed) {
+                    return;
+                }
+            }
+        }
+
+        private void lineRead() throws IOException {
+            switch (mState) {
+            case HEAD: {
+                String line = lineString();
+                if (line.length() == 0) {
+                    mLine.reset();
+                    if (mStatusCode != 0) {
+                        headersRead();
+                    }
+                    // Otherwise, skip blank lines before the status line.
+                }
+                else if (mStatusCode == 0) {
+                    parseStatusLine(line);
+                    mLine.reset();
+                }
+                else {
+                    // Accumulate header lines until the blank line.
+                    mLine.writeTo(mHead);
+                    mLine.reset();
+                    if (mHead.size() > 65536) {
+                        throw new ProtocolException("Headers too long");
+                    }
+                }
+                return;
+            }
+
+            case CHUNK_SIZE: {
+                String line = lineString().trim();
+                mLine.reset();
+                int index = line.indexOf(';');
+                if (index >= 0) {
+                    line = line.substring(0, index).trim();
+                }
+                try {
+                    mRemaining = Long.parseLong(line, 16);
+                }
+                catch (NumberFormatException e) {
+                    throw new ProtocolException("Invalid chunk size: " + line);
+                }
+                mState = mRemaining == 0 ? TRAILER : CHUNK_DATA;
+                return;
+            }
+
+            case CHUNK_END:
+                mLine.reset();
+                mState = CHUNK_SIZE;
+                return;
+
+            case TRAILER: {
+                boolean blank = lineString().trim().length() == 0;
+                mLine.reset();
+                if (blank) {
+                    responseReceived();
+                }
+                return;
+            }
+            }
+        }
+
+        private String lineString() {
+            byte[] bytes = mLine.toByteArray();
+            int length = bytes.length;
+            while (length > 0 &&
+                   (bytes[length - 1] == '\n' || bytes[length - 1] == '\r')) {
+                length--;
+            }
+            char[] chars = new char[length];
+            for (int i=0; i<length; i++) {
+                chars[i] = (char)(bytes[i] & 0xff);
+            }
+            return new String(chars);
+        }
+
+        private void parseStatusLine(String line) throws IOException {
+            int statusCode = -1;
+            String statusMessage = "";
+
+            int space = line.indexOf(' ');
+            if (space > 0) {
+                int nextSpace = line.indexOf(' ', space + 1);
+                String sub;
+                if (nextSpace < 0) {
+                    sub = line.substring(space + 1);
+                }
+                else {
+                    sub = line.substring(space + 1, nextSpace);
+                    statusMessage = line.substring(nextSpace + 1);
+                }
+                try {
+                    statusCode = Integer.parseInt(sub);
+                }
+                catch (NumberFormatException e) {
+                }
+            }
+
+            if (statusCode < 0 || mSent.size() == 0) {
+                throw new ProtocolException("Invalid HTTP response: " + line);
+            }
+
+            mStatusCode = statusCode;
+            mStatusMessage = statusMessage;
+
+            // HTTP/1.0 connections are closed unless kept alive.
+            mClosing = line.startsWith("HTTP/1.0");
+        }
+
+        private void headersRead() throws IOException {
+            HttpHeaderMap headers = new HttpHeaderMap();
+            headers.readFrom(new ByteArrayInputStream(mHead.toByteArray()),
+                             new char[100]);
+            mHead.reset();
+
+            if (mStatusCode >= 100 && mStatusCode < 200) {
+                // Informational response, so wait for the real one.
+                mStatusCode = 0;
+                return;
+            }
+
+            mHeaders = headers;
+            mBody = new DefaultByteBuffer();
+
+            String connection = headers.getString("Connection");
+            if ("close".equalsIgnoreCase(connection)) {
+                mClosing = true;
+            }
+            else if ("Keep-Alive".equalsIgnoreCase(connection)) {
+                mClosing = false;
+            }
+
+            Request request = (Request)mSent.getFirst();
+            if (request.mHead || mStatusCode == 204 || mStatusCode == 304) {
+                responseReceived();
+                return;
+            }
+
+            String encoding = headers.getString("Transfer-Encoding");
+            if (encoding != null && encoding.equalsIgnoreCase("chunked")) {
+                mState = CHUNK_SIZE;
+                return;
+            }
+
+            Integer length = headers.getInteger("Content-Length");
+            if (length != null) {
+                if ((mRemaining = length.intValue()) <= 0) {
+                    responseReceived();
+                }
+                else {
+                    mState = BODY;
+                }
+                return;
+            }
+
+            mState = BODY_UNTIL_CLOSE;
+            mClosing = true;
+        }
+
+        private void responseReceived() {
+            Request request = (Request)mSent.removeFirst();
+            Response response =
+                new Response(mStatusCode, mStatusMessage, mHeaders, mBody);
+
+            mState = HEAD;
+            mStatusCode = 0;
+            mStatusMessage = null;
+            mHeaders = null;
+            mBody = null;
+
+            request.mFuture.complete(response, null);
+
+            if (mClosing) {
+                mHost.mNoPipelining = true;
+                close(null, true);
+            }
+            else {
+                mHost.dispatch();
+            }
+        }
+
+        private void endOfStream() {
+            if (mState == BODY_UNTIL_CLOSE) {
+                responseReceived();
+                if (!mClosed) {
+                    close(null, true);
+                }
+            }
+            else {
+                failed(new SocketException("Connection closed by server"));
+            }
+        }
+
+        void failed(IOException e) {
+            close(e, true);
+        }
+
+        /**
+         * Closes this connection. Requests awaiting responses are retried if
+         * allowed, or else failed.
+         *
+         * @param e reason for closing, or null if normal
+         * @param retry when false, outstanding requests are failed
+         */
+        void close(IOException e, boolean retry) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+
+            mKey.cancel();
+            try {
+                mChannel.close();
+            }
+            catch (IOException e2) {
+            }
+
+            if (mWriteBuffer != null) {
+                releaseBuffer(mWriteBuffer);
+                mWriteBuffer = null;
+            }
+
+            IOException reason = e;
+            if (reason == null) {
+                reason = new SocketException("Connection closed");
+            }
+
+            LinkedList sent = new LinkedList(mSent);
+            mSent.clear();
+            mWriteQueue.clear();
+            mWriting = null;
+
+            mHost.connectionClosed(this, e);
+
+            while (sent.size() > 0) {
+                Request request = (Request)sent.removeFirst();
+                if (retry && e == null && request.mIdempotent) {
+                    // Server closed the connection normally before reading
+                    // this pipelined request, so it doesn't count as an
+                    // attempt.
+                    request.mAttempts--;
+                    retry(request, reason);
+                }
+                else if (retry) {
+                    retry(request, reason);
+                }
+                else {
+                    request.fail(reason);
+                }
+            }
+        }
+    }
+}
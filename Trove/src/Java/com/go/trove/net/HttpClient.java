@@ -429,7 +429,9 @@ public class HttpClient {
             if ("Keep-Alive".equalsIgnoreCase
                 (mHeaders.getString("Connection"))) {
 
-                if ("HEAD".equals(method)) {
+                if ("HEAD".equals(method) ||
+                    statusCode == 204 || statusCode == 304) {
+                    // No Content and Not Modified responses have no body.
                     contentLength = 0;
                 }
                 else {
@@ -58,9 +58,12 @@ import java.io.InterruptedIOException;
 import java.util.Comparator;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.List;
+import java.util.ArrayList;
 import java.util.TreeMap;
 import java.util.Iterator;
 import com.go.trove.util.ReadWriteLock;
+import com.go.trove.util.StripedReadWriteLock;
 
 /******************************************************************************
  * A BTree is a balanced tree data structure whose entries are usually stored
@@ -72,6 +75,16 @@ import com.go.trove.util.ReadWriteLock;
  * values are often referenced indirectly via pointers. Consider using
  * {@link ObjectRepositoryMap} with a BTree passed into it as a general
  * purpose persistent map.
+ * <p>
+ * By default, every BTree operation holds the StorageStrategy's lock, and so
+ * only one thread can modify the BTree at a time. A BTree constructed in
+ * concurrent mode instead has its own lock, which it holds in read mode for
+ * ordinary gets, puts and removes. Leaf nodes are individually latched, and
+ * so operations that touch different leaves proceed in parallel. Puts and
+ * removes are optimistic: if one would split or underflow a node, or it
+ * affects an entry held in a non-leaf node, it is retried with the lock held
+ * in write mode. In concurrent mode, the StorageStrategy must be able to
+ * load and save distinct nodes concurrently without holding its lock.
  *
  * @author Brian S O'Neill
  * @version
@@ -100,6 +113,23 @@ public class BTree implements PersistentSortedMapKernel {
         return new PersistentSortedMapView(new BTree(strategy, comparator));
     }
 
+    /**
+     * Convenience method that wraps a new BTree in a
+     * {@link PersistentSortedMapView}.
+     *
+     * @param comparator optional comparator for ordering keys
+     * @param concurrent when true, the BTree is constructed in concurrent
+     * mode
+     */
+    public static PersistentSortedMap createMap(StorageStrategy strategy,
+                                                Comparator comparator,
+                                                boolean concurrent)
+        throws IOException
+    {
+        return new PersistentSortedMapView
+            (new BTree(strategy, comparator, concurrent));
+    }
+
     // These are modifed versions of the binary search algorithms provided in
     // java.util.Arrays. A high element must be provided, and keys are stored
     // in every other array element.
@@ -148,6 +178,10 @@ public class BTree implements PersistentSortedMapKernel {
         return ~low2;  // key not found.
     }
 
+    // Returned by putShared and removeShared when the operation requires
+    // exclusive access to the tree.
+    private static final Object RETRY = new Object();
+
     final StorageStrategy mStorageStrategy;
 
     // Maximum number of entries per node.
@@ -162,6 +196,7 @@ public class BTree implements PersistentSortedMapKernel {
 
     final Comparator mComparator;
     final ReadWriteLock mLock;
+    final boolean mConcurrent;
 
     long mRootId;
     Node mRoot;
@@ -174,6 +209,18 @@ public class BTree implements PersistentSortedMapKernel {
 
     public BTree(StorageStrategy strategy, Comparator comparator)
         throws IOException
+    {
+        this(strategy, comparator, false);
+    }
+
+    /**
+     * @param concurrent when true, this BTree is guarded by its own lock
+     * instead of the StorageStrategy's, and leaf nodes are latched
+     * individually.
+     */
+    public BTree(StorageStrategy strategy, Comparator comparator,
+                 boolean concurrent)
+        throws IOException
     {
         mStorageStrategy = strategy;
         mMaxNodeSize = strategy.getMaxNodeSize();
@@ -181,7 +228,14 @@ public class BTree implements PersistentSortedMapKernel {
         mMinNodeSize = mMaxNodeSize / 2;
         mMinNodeSize2 = mMinNodeSize * 2;
         mComparator = comparator;
-        mLock = strategy.lock();
+        mConcurrent = concurrent;
+        if (concurrent) {
+            mLock = new StripedReadWriteLock
+                (strategy.lock().getDefaultTimeout());
+        }
+        else {
+            mLock = strategy.lock();
+        }
 
         mRootId = strategy.loadRootNodeId();
         if (mRootId >= 0) {
@@ -200,10 +254,32 @@ public class BTree implements PersistentSortedMapKernel {
     public int size() throws IOException {
         try {
             mLock.acquireReadLock();
-            if (mTotalSize < 0) {
-                mTotalSize = mRoot == null ? 0 : mRoot.size();
+            synchronized (this) {
+                if (mTotalSize >= 0 || !mConcurrent) {
+                    if (mTotalSize < 0) {
+                        mTotalSize = mRoot == null ? 0 : mRoot.size();
+                    }
+                    return mTotalSize;
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        finally {
+            mLock.releaseLock();
+        }
+
+        // In concurrent mode, counting nodes while leaves are updated would
+        // miss entries, so the size is computed in write mode, just once.
+        try {
+            mLock.acquireWriteLock();
+            synchronized (this) {
+                if (mTotalSize < 0) {
+                    mTotalSize = mRoot == null ? 0 : mRoot.size();
+                }
+                return mTotalSize;
             }
-            return mTotalSize;
         }
         catch (InterruptedException e) {
             throw new InterruptedIOException();
@@ -303,6 +379,13 @@ public class BTree implements PersistentSortedMapKernel {
     }
 
     public Object put(Object key, Object value) throws IOException {
+        if (mConcurrent) {
+            Object old = putShared(key, value);
+            if (old != RETRY) {
+                return old;
+            }
+        }
+
         try {
             mLock.acquireWriteLock();
             mStorageStrategy.begin();
@@ -350,8 +433,22 @@ public class BTree implements PersistentSortedMapKernel {
     }
 
     public Object remove(Object key) throws IOException {
+        if (mConcurrent) {
+            Object old = removeShared(key);
+            if (old != RETRY) {
+                return old;
+            }
+        }
+
         try {
-            mLock.acquireUpgradableLock();
+            if (mConcurrent) {
+                // Nodes are modified before the write lock is acquired below,
+                // which concurrent readers must not observe.
+                mLock.acquireWriteLock();
+            }
+            else {
+                mLock.acquireUpgradableLock();
+            }
             if (mRoot == null) {
                 return null;
             }
@@ -650,6 +747,87 @@ public class BTree implements PersistentSortedMapKernel {
         }
     }
 
+    /**
+     * Fills an empty BTree from entries that are already sorted by key, in
+     * ascending order and without duplicates. Nodes are built bottom-up and
+     * each one is written just once, which is much faster than calling put
+     * for each entry. Use {@link ExternalSorter} to sort entries that don't
+     * fit in memory.
+     *
+     * @param entries iterates over PersistentMap.Entry or Map.Entry objects
+     * @param fillFactor fraction of each node to fill, in the range (0, 1].
+     * Lower values leave room for entries put later, without splitting
+     * nodes. Nodes are never filled below the minimum node size, and so
+     * values under 0.5 behave as 0.5.
+     * @return the number of entries loaded
+     * @throws IllegalStateException if this BTree isn't empty
+     * @throws IllegalArgumentException if the fill factor is out of range,
+     * or if the entries aren't in ascending key order
+     */
+    public int load(PersistentIterator entries, double fillFactor)
+        throws IOException
+    {
+        if (!(fillFactor > 0 && fillFactor <= 1)) {
+            throw new IllegalArgumentException
+                ("Fill factor must be in range (0, 1]: " + fillFactor);
+        }
+
+        int fill = (int)(mMaxNodeSize * fillFactor);
+        if (fill < mMinNodeSize) {
+            fill = mMinNodeSize;
+        }
+        if (fill < 1) {
+            fill = 1;
+        }
+
+        try {
+            mLock.acquireWriteLock();
+            if (mRoot != null) {
+                throw new IllegalStateException("BTree is not empty");
+            }
+
+            mStorageStrategy.begin();
+            Loader loader = new Loader(fill);
+            boolean success = false;
+            try {
+                while (entries.hasNext()) {
+                    Object obj = entries.next();
+                    if (obj instanceof PersistentMap.Entry) {
+                        PersistentMap.Entry e = (PersistentMap.Entry)obj;
+                        loader.add(e.getKey(), e.getValue());
+                    }
+                    else {
+                        Map.Entry e = (Map.Entry)obj;
+                        loader.add(e.getKey(), e.getValue());
+                    }
+                }
+
+                long rootId = loader.finish();
+                if (rootId >= 0) {
+                    mRoot = loadNode(rootId);
+                    mRootId = rootId;
+                    mTotalSize = loader.mCount;
+                    mStorageStrategy.saveRootNodeId(rootId);
+                }
+                success = true;
+            }
+            finally {
+                if (!success) {
+                    loader.abort();
+                }
+                mStorageStrategy.commit();
+            }
+
+            return loader.mCount;
+        }
+        catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        finally {
+            mLock.releaseLock();
+        }
+    }
+
     public int copyKeysInto(Object[] a, int index) throws IOException {
         try {
             mLock.acquireReadLock();
@@ -688,10 +866,61 @@ public class BTree implements PersistentSortedMapKernel {
         }
     }
 
+    /**
+     * Returns the StorageStrategy's lock, unless this BTree is in concurrent
+     * mode. Then the returned lock is owned by this BTree.
+     */
     public ReadWriteLock lock() {
         return mLock;
     }
 
+    /**
+     * Puts with the lock held in read mode, provided that the change is
+     * confined to a single node.
+     *
+     * @return RETRY if the put must be performed exclusively
+     */
+    private Object putShared(Object key, Object value) throws IOException {
+        try {
+            mLock.acquireReadLock();
+            if (mRoot == null) {
+                return RETRY;
+            }
+            mStorageStrategy.begin();
+            Object old = mRoot.putShared(mRootId, key, value);
+            mStorageStrategy.commit();
+            return old;
+        }
+        catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        finally {
+            mLock.releaseLock();
+        }
+    }
+
+    /**
+     * Removes with the lock held in read mode, provided that the entry is in
+     * a leaf node which won't underflow.
+     *
+     * @return RETRY if the remove must be performed exclusively
+     */
+    private Object removeShared(Object key) throws IOException {
+        try {
+            mLock.acquireReadLock();
+            if (mRoot == null) {
+                return null;
+            }
+            return mRoot.removeShared(mRootId, key);
+        }
+        catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        finally {
+            mLock.releaseLock();
+        }
+    }
+
     final Node loadNode(long id) throws IOException {
         NodeData data = new NodeData();
         mStorageStrategy.loadNode(id, data);
@@ -752,13 +981,13 @@ public class BTree implements PersistentSortedMapKernel {
         return count;
     }
 
-    final void incrementTotalSize() {
+    final synchronized void incrementTotalSize() {
         if (mTotalSize >= 0) {
             mTotalSize++;
         }
     }
 
-    final void decrementTotalSize() {
+    final synchronized void decrementTotalSize() {
         if (mTotalSize > 0) {
             mTotalSize--;
         }
@@ -845,6 +1074,11 @@ public class BTree implements PersistentSortedMapKernel {
         // Even elements are keys, odd elements are values.
         Object[] mEntries;
 
+        // Latch state, used only in concurrent mode. Is -1 if held
+        // exclusively, else the number of shared holders.
+        private int mLatchState;
+        private int mExclusiveWaiters;
+
         /**
          * Entries array alternates key and value. Entries must be sorted
          * according to key order.
@@ -872,21 +1106,28 @@ public class BTree implements PersistentSortedMapKernel {
          * recurse into any children. (subclass implements recursion)
          */
         boolean containsValue(Object value) throws IOException {
-            if (mComparator == null) {
-                for (int i = mSize2 - 1; i >= 1; i -= 2) {
-                    if (((Comparable)mEntries[i]).compareTo(value) == 0) {
-                        return true;
+            latchShared();
+            try {
+                if (mComparator == null) {
+                    for (int i = mSize2 - 1; i >= 1; i -= 2) {
+                        Comparable c = (Comparable)mEntries[i];
+                        if (c.compareTo(value) == 0) {
+                            return true;
+                        }
                     }
                 }
-            }
-            else {
-                for (int i = mSize2 - 1; i >= 1; i -= 2) {
-                    if (mComparator.compare(mEntries[i], value) == 0) {
-                        return true;
+                else {
+                    for (int i = mSize2 - 1; i >= 1; i -= 2) {
+                        if (mComparator.compare(mEntries[i], value) == 0) {
+                            return true;
+                        }
                     }
                 }
+                return false;
+            }
+            finally {
+                unlatch();
             }
-            return false;
         }
 
         /**
@@ -926,6 +1167,20 @@ public class BTree implements PersistentSortedMapKernel {
         abstract Object remove(Map unsavedNodes, long id, Object key)
             throws IOException;
 
+        /**
+         * Same as put, except the tree's lock is held only in read mode.
+         * Returns RETRY instead of splitting this node or any child node.
+         */
+        abstract Object putShared(long id, Object key, Object value)
+            throws IOException;
+
+        /**
+         * Same as remove, except the tree's lock is held only in read mode,
+         * and changes are saved immediately. Returns RETRY instead of
+         * underflowing a node or removing an entry from a non-leaf node.
+         */
+        abstract Object removeShared(long id, Object key) throws IOException;
+
         abstract Object firstKey() throws IOException;
 
         abstract Object lastKey() throws IOException;
@@ -963,6 +1218,64 @@ public class BTree implements PersistentSortedMapKernel {
         abstract int copyEntriesInto(Object[] a, int index) throws IOException;
 
         abstract int dump(String indent) throws IOException;
+
+        /**
+         * Latches this node for reading, if in concurrent mode. Nodes are
+         * always latched one at a time, so no deadlock is possible.
+         */
+        final void latchShared() throws IOException {
+            if (mConcurrent) {
+                synchronized (this) {
+                    try {
+                        while (mLatchState < 0 || mExclusiveWaiters > 0) {
+                            wait();
+                        }
+                    }
+                    catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                    mLatchState++;
+                }
+            }
+        }
+
+        /**
+         * Latches this node for modification, if in concurrent mode.
+         */
+        final void latchExclusive() throws IOException {
+            if (mConcurrent) {
+                synchronized (this) {
+                    if (mLatchState != 0) {
+                        // Hold off new shared latches until granted.
+                        mExclusiveWaiters++;
+                        try {
+                            do {
+                                wait();
+                            } while (mLatchState != 0);
+                        }
+                        catch (InterruptedException e) {
+                            // Release any shared latches held back.
+                            mExclusiveWaiters--;
+                            notifyAll();
+                            throw new InterruptedIOException();
+                        }
+                        mExclusiveWaiters--;
+                    }
+                    mLatchState = -1;
+                }
+            }
+        }
+
+        final void unlatch() {
+            if (mConcurrent) {
+                synchronized (this) {
+                    if (mLatchState < 0 || --mLatchState == 0) {
+                        mLatchState = 0;
+                        notifyAll();
+                    }
+                }
+            }
+        }
     }
 
     /**
@@ -975,25 +1288,52 @@ public class BTree implements PersistentSortedMapKernel {
         }
 
         int size() throws IOException {
-            return mSize2 / 2;
+            latchShared();
+            try {
+                return mSize2 / 2;
+            }
+            finally {
+                unlatch();
+            }
         }
 
         boolean containsKey(Object key) throws IOException {
-            return binarySearch2(mEntries, mSize2 - 2, key, mComparator) >= 0;
+            latchShared();
+            try {
+                return binarySearch2
+                    (mEntries, mSize2 - 2, key, mComparator) >= 0;
+            }
+            finally {
+                unlatch();
+            }
         }
 
         Object get(Object key) throws IOException {
-            int index2 = binarySearch2(mEntries, mSize2 - 2, key, mComparator);
-            return (index2 >= 0) ? mEntries[index2 + 1] : null;
+            latchShared();
+            try {
+                int index2 = binarySearch2
+                    (mEntries, mSize2 - 2, key, mComparator);
+                return (index2 >= 0) ? mEntries[index2 + 1] : null;
+            }
+            finally {
+                unlatch();
+            }
         }
 
         Entry getEntry(Object key) throws IOException {
-            int index2 = binarySearch2(mEntries, mSize2 - 2, key, mComparator);
-            if (index2 >= 0) {
-                return new MutableEntry
-                    (mEntries[index2], mEntries[index2 + 1]);
+            latchShared();
+            try {
+                int index2 = binarySearch2
+                    (mEntries, mSize2 - 2, key, mComparator);
+                if (index2 >= 0) {
+                    return new MutableEntry
+                        (mEntries[index2], mEntries[index2 + 1]);
+                }
+                return null;
+            }
+            finally {
+                unlatch();
             }
-            return null;
         }
 
         Object put(long id, Object key, Object value) throws IOException
@@ -1133,83 +1473,186 @@ public class BTree implements PersistentSortedMapKernel {
             return old;
         }
 
+        Object putShared(long id, Object key, Object value)
+            throws IOException
+        {
+            latchExclusive();
+            try {
+                int index2 = binarySearch2
+                    (mEntries, mSize2 - 2, key, mComparator);
+                if (index2 < 0 && mSize2 >= mMaxNodeSize2) {
+                    // Would split.
+                    return RETRY;
+                }
+                return put(id, key, value);
+            }
+            finally {
+                unlatch();
+            }
+        }
+
+        Object removeShared(long id, Object key) throws IOException {
+            latchExclusive();
+            try {
+                int index2 = binarySearch2
+                    (mEntries, mSize2 - 2, key, mComparator);
+                if (index2 < 0) {
+                    return null;
+                }
+                // The root leaf can go below the minimum size, but not to
+                // zero, as that changes the root.
+                int minSize2 = (id == mRootId) ? 2 : mMinNodeSize2;
+                if (mSize2 <= minSize2) {
+                    // Would underflow.
+                    return RETRY;
+                }
+
+                Object old = mEntries[index2 + 1];
+                int amt2 = mSize2 - index2 - 2;
+                if (amt2 > 0) {
+                    System.arraycopy
+                        (mEntries, index2 + 2, mEntries, index2, amt2);
+                }
+                mSize2 -= 2;
+
+                mStorageStrategy.begin();
+                saveNode(id, this);
+                decrementTotalSize();
+                mStorageStrategy.commit();
+                return old;
+            }
+            finally {
+                unlatch();
+            }
+        }
+
         Object firstKey() throws IOException {
-            return mEntries[0];
+            latchShared();
+            try {
+                return mEntries[0];
+            }
+            finally {
+                unlatch();
+            }
         }
 
         Object lastKey() throws IOException {
-            return mEntries[mSize2 - 2];
+            latchShared();
+            try {
+                return mEntries[mSize2 - 2];
+            }
+            finally {
+                unlatch();
+            }
         }
 
         Object nextKey(Object key) throws IOException {
-            int high2 = mSize2 - 2;
-            int index2 = binarySearch2(mEntries, high2, key, mComparator);
-            if (index2 >= 0) {
-                // Key found, move to next.
-                index2 += 2;
+            latchShared();
+            try {
+                int high2 = mSize2 - 2;
+                int index2 = binarySearch2(mEntries, high2, key, mComparator);
+                if (index2 >= 0) {
+                    // Key found, move to next.
+                    index2 += 2;
+                }
+                else {
+                    // Key not found, index is at the next.
+                    index2 = ~index2;
+                }
+                return (index2 <= high2) ? mEntries[index2] : NO_KEY;
             }
-            else {
-                // Key not found, index is at the next.
-                index2 = ~index2;
+            finally {
+                unlatch();
             }
-            return (index2 <= high2) ? mEntries[index2] : NO_KEY;
         }
 
         Object previousKey(Object key) throws IOException {
-            int index2 = binarySearch2(mEntries, mSize2 - 2, key, mComparator);
-            if (index2 >= 0) {
-                // Key found, move to previous.
-                index2 -= 2;
+            latchShared();
+            try {
+                int index2 = binarySearch2
+                    (mEntries, mSize2 - 2, key, mComparator);
+                if (index2 >= 0) {
+                    // Key found, move to previous.
+                    index2 -= 2;
+                }
+                else {
+                    // Key not found, index is at the next, move to previous.
+                    index2 = (~index2) - 2;
+                }
+                return (index2 >= 0) ? mEntries[index2] : NO_KEY;
             }
-            else {
-                // Key not found, index is at the next, move to previous.
-                index2 = (~index2) - 2;
+            finally {
+                unlatch();
             }
-            return (index2 >= 0) ? mEntries[index2] : NO_KEY;
         }
 
         Entry firstEntry() throws IOException {
-            return new MutableEntry(mEntries[0], mEntries[1]);
+            latchShared();
+            try {
+                return new MutableEntry(mEntries[0], mEntries[1]);
+            }
+            finally {
+                unlatch();
+            }
         }
 
         Entry lastEntry() throws IOException {
-            return new MutableEntry
-                (mEntries[mSize2 - 2], mEntries[mSize2 - 1]);
+            latchShared();
+            try {
+                return new MutableEntry
+                    (mEntries[mSize2 - 2], mEntries[mSize2 - 1]);
+            }
+            finally {
+                unlatch();
+            }
         }
 
         Entry nextEntry(Object key) throws IOException {
-            int high2 = mSize2 - 2;
-            int index2 = binarySearch2(mEntries, high2, key, mComparator);
-            if (index2 >= 0) {
-                // Key found, move to next.
-                index2 += 2;
-            }
-            else {
-                // Key not found, index is at the next.
-                index2 = ~index2;
+            latchShared();
+            try {
+                int high2 = mSize2 - 2;
+                int index2 = binarySearch2(mEntries, high2, key, mComparator);
+                if (index2 >= 0) {
+                    // Key found, move to next.
+                    index2 += 2;
+                }
+                else {
+                    // Key not found, index is at the next.
+                    index2 = ~index2;
+                }
+                if (index2 <= high2) {
+                    return new MutableEntry
+                        (mEntries[index2], mEntries[index2 + 1]);
+                }
+                return null;
             }
-            if (index2 <= high2) {
-                return new MutableEntry
-                    (mEntries[index2], mEntries[index2 + 1]);
+            finally {
+                unlatch();
             }
-            return null;
         }
 
         Entry previousEntry(Object key) throws IOException {
-            int index2 = binarySearch2(mEntries, mSize2 - 2, key, mComparator);
-            if (index2 >= 0) {
-                // Key found, move to previous.
-                index2 -= 2;
-            }
-            else {
-                // Key not found, index is at the next, move to previous.
-                index2 = (~index2) - 2;
+            latchShared();
+            try {
+                int index2 = binarySearch2
+                    (mEntries, mSize2 - 2, key, mComparator);
+                if (index2 >= 0) {
+                    // Key found, move to previous.
+                    index2 -= 2;
+                }
+                else {
+                    // Key not found, index is at the next, move to previous.
+                    index2 = (~index2) - 2;
+                }
+                if (index2 >= 0) {
+                    return new MutableEntry
+                        (mEntries[index2], mEntries[index2 + 1]);
+                }
+                return null;
             }
-            if (index2 >= 0) {
-                return new MutableEntry
-                    (mEntries[index2], mEntries[index2 + 1]);
+            finally {
+                unlatch();
             }
-            return null;
         }
 
         Entry removeFirst(Map unsavedNodes, long id) throws IOException {
@@ -1234,19 +1677,31 @@ public class BTree implements PersistentSortedMapKernel {
         }
 
         int copyKeysInto(Object[] a, int index) throws IOException {
-            int limit = mSize2;
-            for (int i=0; i<limit; i += 2) {
-                a[index++] = mEntries[i];
+            latchShared();
+            try {
+                int limit = mSize2;
+                for (int i=0; i<limit; i += 2) {
+                    a[index++] = mEntries[i];
+                }
+                return index;
+            }
+            finally {
+                unlatch();
             }
-            return index;
         }
 
         int copyEntriesInto(Object[] a, int index) throws IOException {
-            int limit = mSize2;
-            for (int i=0; i<limit; i += 2) {
-                a[index++] = new MutableEntry(mEntries[i], mEntries[i + 1]);
+            latchShared();
+            try {
+                int limit = mSize2;
+                for (int i=0; i<limit; i += 2) {
+                    a[index++] = new MutableEntry(mEntries[i], mEntries[i + 1]);
+                }
+                return index;
+            }
+            finally {
+                unlatch();
             }
-            return index;
         }
 
         int dump(String indent) throws IOException {
@@ -1325,7 +1780,13 @@ public class BTree implements PersistentSortedMapKernel {
         Object get(Object key) throws IOException {
             int index2 = binarySearch2(mEntries, mSize2 - 2, key, mComparator);
             if (index2 >= 0) {
-                return mEntries[index2 + 1];
+                latchShared();
+                try {
+                    return mEntries[index2 + 1];
+                }
+                finally {
+                    unlatch();
+                }
             }
             return getChild((~index2) / 2).get(key);
         }
@@ -1333,8 +1794,7 @@ public class BTree implements PersistentSortedMapKernel {
         Entry getEntry(Object key) throws IOException {
             int index2 = binarySearch2(mEntries, mSize2 - 2, key, mComparator);
             if (index2 >= 0) {
-                return new MutableEntry
-                    (mEntries[index2], mEntries[index2 + 1]);
+                return entryAt(index2);
             }
             return getChild((~index2) / 2).getEntry(key);
         }
@@ -1569,6 +2029,41 @@ public class BTree implements PersistentSortedMapKernel {
             return old;
         }
 
+        Object putShared(long id, Object key, Object value)
+            throws IOException
+        {
+            // Keys and children of non-leaf nodes don't change while the
+            // tree's lock is held in read mode, so no latch is needed to
+            // search.
+            int index2 = binarySearch2(mEntries, mSize2 - 2, key, mComparator);
+            if (index2 < 0) {
+                int index = (~index2) / 2;
+                return getChild(index).putShared
+                    (mChildrenIds[index], key, value);
+            }
+
+            latchExclusive();
+            try {
+                Object old = mEntries[index2 + 1];
+                mEntries[index2 + 1] = value;
+                saveNode(id, this);
+                return old;
+            }
+            finally {
+                unlatch();
+            }
+        }
+
+        Object removeShared(long id, Object key) throws IOException {
+            int index2 = binarySearch2(mEntries, mSize2 - 2, key, mComparator);
+            if (index2 >= 0) {
+                // Replacement comes from a leaf, which may underflow.
+                return RETRY;
+            }
+            int index = (~index2) / 2;
+            return getChild(index).removeShared(mChildrenIds[index], key);
+        }
+
         Object firstKey() throws IOException {
             return getChild(0).firstKey();
         }
@@ -1634,8 +2129,7 @@ public class BTree implements PersistentSortedMapKernel {
             }
             // Child has no next entry, so return our next entry.
             if (index2 <= high2) {
-                return new MutableEntry
-                    (mEntries[index2], mEntries[index2 + 1]);
+                return entryAt(index2);
             }
             return null;
         }
@@ -1655,8 +2149,7 @@ public class BTree implements PersistentSortedMapKernel {
             // Child has no previous entry, so return our previous entry.
             index2 -= 2;
             if (index2 >= 0) {
-                return new MutableEntry
-                    (mEntries[index2], mEntries[index2 + 1]);
+                return entryAt(index2);
             }
             return null;
         }
@@ -1703,7 +2196,7 @@ public class BTree implements PersistentSortedMapKernel {
             int i = 0;
             for (; i<limit; i += 2) {
                 index = getChild(i >> 1).copyEntriesInto(a, index);
-                a[index++] = new MutableEntry(mEntries[i], mEntries[i + 1]);
+                a[index++] = entryAt(i);
             }
             return getChild(i >> 1).copyEntriesInto(a, index);
         }
@@ -1723,6 +2216,17 @@ public class BTree implements PersistentSortedMapKernel {
         }
 
         final Node getChild(int index) throws IOException {
+            if (mConcurrent) {
+                // Concurrent readers must agree on the child instance, since
+                // it is also the latch.
+                synchronized (this) {
+                    return getChild0(index);
+                }
+            }
+            return getChild0(index);
+        }
+
+        private Node getChild0(int index) throws IOException {
             Node child;
             Reference ref = mChildrenRefs[index];
             if (ref == null || (child = (Node)ref.get()) == null) {
@@ -1732,6 +2236,21 @@ public class BTree implements PersistentSortedMapKernel {
             return child;
         }
 
+        /**
+         * Returns the entry at the given doubled index. The value is read
+         * with the latch held, as putShared may replace it.
+         */
+        final Entry entryAt(int index2) throws IOException {
+            latchShared();
+            try {
+                return new MutableEntry
+                    (mEntries[index2], mEntries[index2 + 1]);
+            }
+            finally {
+                unlatch();
+            }
+        }
+
         final long getChildId(int index) {
             return mChildrenIds[index];
         }
@@ -1901,6 +2420,248 @@ public class BTree implements PersistentSortedMapKernel {
         }
     }
 
+    /**
+     * Builds a BTree bottom-up from sorted entries. Each level holds back
+     * its last completed node and the entry that follows it, so that the
+     * rightmost node can be balanced against it once the input runs out.
+     */
+    private class Loader {
+        private final int mFill;
+        // Index zero holds the leaves.
+        private final List mLevels = new ArrayList();
+
+        // Ids of all nodes allocated, for freeing them if the load fails.
+        private long[] mAllocated = new long[16];
+        private int mAllocatedCount;
+
+        private Object mLastKey;
+        int mCount;
+
+        Loader(int fill) {
+            mFill = fill;
+        }
+
+        void add(Object key, Object value) throws IOException {
+            if (mCount > 0) {
+                int result;
+                if (mComparator == null) {
+                    result = ((Comparable)mLastKey).compareTo(key);
+                }
+                else {
+                    result = mComparator.compare(mLastKey, key);
+                }
+                if (result >= 0) {
+                    throw new IllegalArgumentException
+                        ("Entries are not in ascending key order: " + key);
+                }
+            }
+            mLastKey = key;
+            mCount++;
+
+            Level level = level(0);
+            NodeData node = level.mCurrent;
+            if (node.size == mFill) {
+                complete(0, key, value);
+            }
+            else {
+                node.entries[node.size * 2] = key;
+                node.entries[node.size * 2 + 1] = value;
+                node.size++;
+            }
+        }
+
+        /**
+         * Writes out all the remaining nodes.
+         *
+         * @return id of root node, or -1 if no entries were added
+         */
+        long finish() throws IOException {
+            if (mCount == 0) {
+                return -1;
+            }
+
+            long lastChildId = -1;
+            for (int k = 0; ; k++) {
+                if (k >= mLevels.size()) {
+                    // Two nodes were merged into a new root.
+                    return lastChildId;
+                }
+                Level level = (Level)mLevels.get(k);
+                NodeData current = level.mCurrent;
+                boolean leaf = k == 0;
+                if (!leaf) {
+                    current.childrenIds[current.size] = lastChildId;
+                }
+
+                if (level.mPrevious == null) {
+                    // Nothing was pushed to the next level, so this is the
+                    // root.
+                    long id = alloc(leaf);
+                    mStorageStrategy.saveNode(id, current);
+                    return id;
+                }
+
+                NodeData previous = level.mPrevious;
+                long previousId = level.mPreviousId;
+
+                if (current.size > 0 && current.size >= mMinNodeSize) {
+                    mStorageStrategy.saveNode(previousId, previous);
+                    lastChildId = alloc(leaf);
+                    mStorageStrategy.saveNode(lastChildId, current);
+                    push(k + 1, previousId,
+                         level.mSeparatorKey, level.mSeparatorValue);
+                    continue;
+                }
+
+                // Rightmost node has underflowed, so merge it with the
+                // previous one, or split the pair evenly.
+                int total = previous.size + 1 + current.size;
+                Object[] entries = new Object[total * 2];
+                System.arraycopy(previous.entries, 0, entries, 0,
+                                 previous.size * 2);
+                entries[previous.size * 2] = level.mSeparatorKey;
+                entries[previous.size * 2 + 1] = level.mSeparatorValue;
+                System.arraycopy(current.entries, 0,
+                                 entries, previous.size * 2 + 2,
+                                 current.size * 2);
+
+                long[] childrenIds = null;
+                if (!leaf) {
+                    childrenIds = new long[total + 1];
+                    System.arraycopy(previous.childrenIds, 0, childrenIds, 0,
+                                     previous.size + 1);
+                    System.arraycopy(current.childrenIds, 0,
+                                     childrenIds, previous.size + 1,
+                                     current.size + 1);
+                }
+
+                if (total <= mMaxNodeSize) {
+                    mStorageStrategy.saveNode
+                        (previousId,
+                         copy(leaf, entries, childrenIds, 0, total));
+                    lastChildId = previousId;
+                    continue;
+                }
+
+                int low = total / 2;
+                mStorageStrategy.saveNode
+                    (previousId, copy(leaf, entries, childrenIds, 0, low));
+                lastChildId = alloc(leaf);
+                mStorageStrategy.saveNode
+                    (lastChildId, copy(leaf, entries, childrenIds,
+                                       low + 1, total - low - 1));
+                push(k + 1, previousId,
+                     entries[low * 2], entries[low * 2 + 1]);
+            }
+        }
+
+        /**
+         * Frees all the nodes allocated so far.
+         */
+        void abort() throws IOException {
+            for (int i=0; i<mAllocatedCount; i++) {
+                freeNode(mAllocated[i]);
+            }
+            mAllocatedCount = 0;
+        }
+
+        /**
+         * Called when the current node at the given level is full, and the
+         * given entry must go into a parent node.
+         */
+        private void complete(int k, Object key, Object value)
+            throws IOException
+        {
+            Level level = level(k);
+            if (level.mPrevious != null) {
+                mStorageStrategy.saveNode(level.mPreviousId, level.mPrevious);
+                push(k + 1, level.mPreviousId,
+                     level.mSeparatorKey, level.mSeparatorValue);
+            }
+            level.mPrevious = level.mCurrent;
+            level.mPreviousId = alloc(k == 0);
+            level.mSeparatorKey = key;
+            level.mSeparatorValue = value;
+            level.mCurrent = newNode(k == 0);
+        }
+
+        /**
+         * Adds a child node and the entry that follows it to a non-leaf
+         * level.
+         */
+        private void push(int k, long childId, Object key, Object value)
+            throws IOException
+        {
+            NodeData node = level(k).mCurrent;
+            node.childrenIds[node.size] = childId;
+            if (node.size == mFill) {
+                complete(k, key, value);
+            }
+            else {
+                node.entries[node.size * 2] = key;
+                node.entries[node.size * 2 + 1] = value;
+                node.size++;
+            }
+        }
+
+        private Level level(int k) {
+            if (k < mLevels.size()) {
+                return (Level)mLevels.get(k);
+            }
+            Level level = new Level();
+            level.mCurrent = newNode(k == 0);
+            mLevels.add(level);
+            return level;
+        }
+
+        private NodeData newNode(boolean leaf) {
+            NodeData node = new NodeData();
+            node.entries = new Object[mMaxNodeSize2];
+            if (!leaf) {
+                node.childrenIds = new long[mMaxNodeSize + 1];
+            }
+            return node;
+        }
+
+        private NodeData copy(boolean leaf, Object[] entries,
+                              long[] childrenIds, int start, int size)
+        {
+            NodeData node = newNode(leaf);
+            node.size = size;
+            System.arraycopy(entries, start * 2, node.entries, 0, size * 2);
+            if (!leaf) {
+                System.arraycopy(childrenIds, start,
+                                 node.childrenIds, 0, size + 1);
+            }
+            return node;
+        }
+
+        private long alloc(boolean leaf) throws IOException {
+            long id = leaf ? allocLeafNode() : allocNonLeafNode();
+            if (mAllocatedCount >= mAllocated.length) {
+                long[] allocated = new long[mAllocated.length * 2];
+                System.arraycopy(mAllocated, 0, allocated, 0,
+                                 mAllocatedCount);
+                mAllocated = allocated;
+            }
+            mAllocated[mAllocatedCount++] = id;
+            return id;
+        }
+    }
+
+    private static class Level {
+        // Node being filled.
+        NodeData mCurrent;
+
+        // Last completed node, not yet saved.
+        NodeData mPrevious;
+        long mPreviousId;
+
+        // Entry that follows the previous node.
+        Object mSeparatorKey;
+        Object mSeparatorValue;
+    }
+
     // The entry classes are transient - they do not directly refer to
     // persistent data. They are used for implementing algorithms and
     // the entry set.
@@ -0,0 +1,434 @@
+/* ====================================================================
+ * Trove - Copyright (c) 1997-2000 Walt Disney Internet Group
+ * ====================================================================
+ * The Tea Software License, Version 1.1
+ *
+ * Copyright (c) 2000 Walt Disney Internet Group. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *        Walt Disney Internet Group (http://opensource.go.com/)."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Tea", "TeaServlet", "Kettle", "Trove" and "BeanDoc" must
+ *    not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact opensource@dig.com.
+ *
+ * 5. Products derived from this software may not be called "Tea",
+ *    "TeaServlet", "Kettle" or "Trove", nor may "Tea", "TeaServlet",
+ *    "Kettle", "Trove" or "BeanDoc" appear in their name, without prior
+ *    written permission of the Walt Disney Internet Group.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE WALT DISNEY INTERNET GROUP OR ITS
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ *
+ * For more information about Tea, please see http://opensource.go.com/.
+ */
+
+package com.go.trove.persist;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.NoSuchElementException;
+import com.go.trove.io.ByteBufferOutputStream;
+import com.go.trove.io.FileByteBuffer;
+import com.go.trove.io.TemporaryFile;
+
+/******************************************************************************
+ * Sorts entries by key, for passing into {@link BTree#load} when there are
+ * too many to sort in memory. Entries are gathered into runs, and each full
+ * run is sorted and spilled to a temporary file through a {@link
+ * FileByteBuffer}. The runs are merged as the sorted entries are iterated.
+ * The sort is stable, and so entries with equal keys come out in the order
+ * they were added. Keys and values must be Serializable if any run is
+ * spilled.
+ *
+ * @author Brian S O'Neill
+ * @version
+ * <!--$$Revision$-->, <!--$$JustDate:--> <!-- $-->
+ */
+public class ExternalSorter {
+    // Spilled runs reset their object streams this often, to keep the
+    // stream's handle table from holding onto every entry written.
+    private static final int RESET_INTERVAL = 1000;
+
+    private final Comparator mComparator;
+    private final ObjectStreamBuilder mBuilder;
+
+    private Entry[] mRun;
+    private int mRunSize;
+
+    private RandomAccessFile mFile;
+    private FileByteBuffer mBuffer;
+    // Start positions of each spilled run.
+    private long[] mRunStarts = new long[8];
+    private int mRunCount;
+
+    private boolean mSorted;
+
+    /**
+     * @param comparator orders keys, or null if keys implement Comparable
+     * @param runSize maximum number of entries to sort in memory at once
+     */
+    public ExternalSorter(Comparator comparator, int runSize) {
+        this(comparator, runSize, null);
+    }
+
+    /**
+     * @param comparator orders keys, or null if keys implement Comparable
+     * @param runSize maximum number of entries to sort in memory at once
+     * @param builder optional ObjectStreamBuilder for spilled runs
+     */
+    public ExternalSorter(Comparator comparator, int runSize,
+                          ObjectStreamBuilder builder)
+    {
+        if (runSize <= 0) {
+            throw new IllegalArgumentException("Run size: " + runSize);
+        }
+        mComparator = comparator;
+        mBuilder = builder == null ? new ObjectStreamBuilder() : builder;
+        mRun = new Entry[runSize];
+    }
+
+    public void add(Object key, Object value) throws IOException {
+        if (mSorted) {
+            throw new IllegalStateException("Already sorted");
+        }
+        if (mRunSize >= mRun.length) {
+            spill();
+        }
+        mRun[mRunSize++] = new Entry(key, value);
+    }
+
+    /**
+     * Returns all the added entries, sorted by key, as PersistentMap.Entry
+     * objects. The temporary file is closed when the iterator is
+     * exhausted. No more entries may be added afterwards.
+     */
+    public PersistentIterator sort() throws IOException {
+        if (mSorted) {
+            throw new IllegalStateException("Already sorted");
+        }
+        mSorted = true;
+
+        if (mRunCount == 0) {
+            // Everything fit in memory.
+            Entry[] run = mRun;
+            int size = mRunSize;
+            mRun = null;
+            Arrays.sort(run, 0, size, new EntryComparator(mComparator));
+            return new ArrayIterator(run, size);
+        }
+
+        if (mRunSize > 0) {
+            spill();
+        }
+        mRun = null;
+
+        long end = mFile.length();
+        Run[] runs = new Run[mRunCount];
+        for (int i=0; i<mRunCount; i++) {
+            long runEnd = i + 1 < mRunCount ? mRunStarts[i + 1] : end;
+            runs[i] = new Run(i, mRunStarts[i], runEnd);
+        }
+        return new MergeIterator(runs);
+    }
+
+    /**
+     * Closes and deletes the temporary file, if any.
+     */
+    public void close() throws IOException {
+        mRun = null;
+        if (mFile != null) {
+            mFile.close();
+            mFile = null;
+            mBuffer = null;
+        }
+    }
+
+    private void spill() throws IOException {
+        Arrays.sort(mRun, 0, mRunSize, new EntryComparator(mComparator));
+
+        if (mFile == null) {
+            mFile = TemporaryFile.createTemporaryFile("ExternalSorter", null);
+            mBuffer = new FileByteBuffer(mFile);
+        }
+
+        if (mRunCount >= mRunStarts.length) {
+            long[] starts = new long[mRunStarts.length * 2];
+            System.arraycopy(mRunStarts, 0, starts, 0, mRunCount);
+            mRunStarts = starts;
+        }
+        mRunStarts[mRunCount++] = mBuffer.getBaseByteCount();
+
+        ObjectOutputStream out = mBuilder.createOutputStream
+            (new BufferedOutputStream
+             (new ByteBufferOutputStream(mBuffer), 8192));
+        out.writeInt(mRunSize);
+        for (int i=0; i<mRunSize; i++) {
+            Entry entry = mRun[i];
+            out.writeObject(entry.mKey);
+            out.writeObject(entry.mValue);
+            mRun[i] = null;
+            if ((i + 1) % RESET_INTERVAL == 0) {
+                out.reset();
+            }
+        }
+        out.close();
+
+        mRunSize = 0;
+    }
+
+    private static class Entry extends AbstractPersistentMapEntry {
+        final Object mKey;
+        final Object mValue;
+
+        Entry(Object key, Object value) {
+            mKey = key;
+            mValue = value;
+        }
+
+        public Object getKey() {
+            return mKey;
+        }
+
+        public Object getValue() {
+            return mValue;
+        }
+    }
+
+    private static class EntryComparator implements Comparator {
+        private final Comparator mComparator;
+
+        EntryComparator(Comparator comparator) {
+            mComparator = comparator;
+        }
+
+        public int compare(Object a, Object b) {
+            Object keyA = ((Entry)a).mKey;
+            Object keyB = ((Entry)b).mKey;
+            if (mComparator == null) {
+                return ((Comparable)keyA).compareTo(keyB);
+            }
+            else {
+                return mComparator.compare(keyA, keyB);
+            }
+        }
+    }
+
+    private static class ArrayIterator implements PersistentIterator {
+        private Entry[] mEntries;
+        private final int mSize;
+        private int mIndex;
+
+        ArrayIterator(Entry[] entries, int size) {
+            mEntries = entries;
+            mSize = size;
+        }
+
+        public boolean hasNext() {
+            return mIndex < mSize;
+        }
+
+        public Object next() {
+            if (mIndex >= mSize) {
+                throw new NoSuchElementException();
+            }
+            Entry entry = mEntries[mIndex];
+            mEntries[mIndex++] = null;
+            return entry;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Reads back one spilled run.
+     */
+    private class Run {
+        final int mIndex;
+        private final ObjectInputStream mIn;
+        private int mRemaining;
+
+        // Next entry of this run.
+        Entry mHead;
+
+        Run(int index, long start, long end) throws IOException {
+            mIndex = index;
+            mIn = mBuilder.createInputStream
+                (new BufferedInputStream
+                 (new RunInputStream(mFile, start, end), 8192));
+            mRemaining = mIn.readInt();
+        }
+
+        /**
+         * @return false if run is exhausted
+         */
+        boolean advance() throws IOException {
+            if (mRemaining <= 0) {
+                mHead = null;
+                return false;
+            }
+            try {
+                mHead = new Entry(mIn.readObject(), mIn.readObject());
+            }
+            catch (ClassNotFoundException e) {
+                throw new IOException(e.toString());
+            }
+            mRemaining--;
+            return true;
+        }
+    }
+
+    /**
+     * Merges spilled runs, using a binary heap ordered by each run's next
+     * entry. Ties go to the earlier run, which keeps the sort stable.
+     */
+    private class MergeIterator implements PersistentIterator {
+        private final Run[] mHeap;
+        private int mHeapSize;
+        private final EntryComparator mEntryComparator =
+            new EntryComparator(mComparator);
+
+        MergeIterator(Run[] runs) throws IOException {
+            mHeap = new Run[runs.length];
+            for (int i=0; i<runs.length; i++) {
+                if (runs[i].advance()) {
+                    mHeap[mHeapSize++] = runs[i];
+                }
+            }
+            for (int i = mHeapSize / 2 - 1; i >= 0; i--) {
+                siftDown(i);
+            }
+            if (mHeapSize == 0) {
+                close();
+            }
+        }
+
+        public boolean hasNext() {
+            return mHeapSize > 0;
+        }
+
+        public Object next() throws IOException {
+            if (mHeapSize == 0) {
+                throw new NoSuchElementException();
+            }
+            Run run = mHeap[0];
+            Entry entry = run.mHead;
+            if (!run.advance()) {
+                mHeap[0] = mHeap[--mHeapSize];
+                mHeap[mHeapSize] = null;
+            }
+            if (mHeapSize > 0) {
+                siftDown(0);
+            }
+            else {
+                close();
+            }
+            return entry;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private boolean less(Run a, Run b) {
+            int result = mEntryComparator.compare(a.mHead, b.mHead);
+            return result < 0 || (result == 0 && a.mIndex < b.mIndex);
+        }
+
+        private void siftDown(int i) {
+            Run[] heap = mHeap;
+            int size = mHeapSize;
+            Run run = heap[i];
+            while (true) {
+                int child = i * 2 + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && less(heap[child + 1], heap[child])) {
+                    child++;
+                }
+                if (!less(heap[child], run)) {
+                    break;
+                }
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = run;
+        }
+    }
+
+    /**
+     * Reads a region of a file shared by all the runs.
+     */
+    private static class RunInputStream extends InputStream {
+        private final RandomAccessFile mFile;
+        private long mPosition;
+        private final long mEnd;
+
+        RunInputStream(RandomAccessFile file, long start, long end) {
+            mFile = file;
+            mPosition = start;
+            mEnd = end;
+        }
+
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) <= 0 ? -1 : (b[0] & 0xff);
+        }
+
+        public int read(byte[] b, int offset, int length) throws IOException {
+            long remaining = mEnd - mPosition;
+            if (remaining <= 0) {
+                return -1;
+            }
+            if (length > remaining) {
+                length = (int)remaining;
+            }
+            int amt;
+            synchronized (mFile) {
+                mFile.seek(mPosition);
+                amt = mFile.read(b, offset, length);
+            }
+            if (amt > 0) {
+                mPosition += amt;
+            }
+            return amt;
+        }
+    }
+}
@@ -53,6 +53,10 @@
 package com.go.trove.persist;
 
 import java.io.*;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 import com.go.trove.io.FastBufferedInputStream;
 import com.go.trove.io.FastBufferedOutputStream;
 import com.go.trove.io.FastDataOutputStream;
@@ -61,7 +65,13 @@ import com.go.trove.file.*;
 import com.go.trove.util.ReadWriteLock;
 
 /******************************************************************************
- * 
+ * Stores BTree nodes in a {@link MultiplexFile}, one multiplexed file per
+ * node. Nodes can optionally be encoded to use less space, which lowers the
+ * amount of I/O per node and allows a larger max node size for a given block
+ * size. Each node records how it was encoded, and so the encoding can be
+ * changed when the file is reopened. The max node size is recorded in the
+ * file too, and the recorded size is used when the file is reopened.
+ *
  * @author Brian S O'Neill
  * @version
  * <!--$$Revision$-->, <!--$$JustDate:--> 02/02/04 <!-- $-->
@@ -88,15 +98,50 @@ public class MultiplexFileStorageStrategy implements BTree.StorageStrategy {
         DOUBLE_ARRAY_TYPE = 18,
         BOOLEAN_ARRAY_TYPE = 19;
 
+    /**
+     * Node encoding option which stores each string key as the number of
+     * leading characters it shares with the previous key in the node,
+     * followed by the rest of its characters. Keys that aren't strings are
+     * unaffected.
+     */
+    public static final int PREFIX_ENCODING = 1;
+
+    /**
+     * Node encoding option which compresses node entries using the deflate
+     * algorithm.
+     */
+    public static final int DEFLATE_ENCODING = 2;
+
+    // Flags or'd into the node size field, which is complemented for leaf
+    // nodes.
+    private static final int
+        PREFIX_FLAG = 0x40000000,
+        DEFLATE_FLAG = 0x20000000,
+        SIZE_MASK = 0x1fffffff;
+
     public static int calculateMaxNodeSize(int blockSize,
                                            int keyType,
                                            int valueType,
                                            int maxKeyLength,
                                            int maxValueLength)
     {
-        int keySize = calculateSize(keyType, maxKeyLength);
-        int valueSize = calculateSize(valueType, maxValueLength);
-        return (blockSize - 8) / (keySize + valueSize + 4);
+        return calculateMaxNodeSize(blockSize, keyType, valueType,
+                                    maxKeyLength, maxValueLength, 0);
+    }
+
+    /**
+     * @param encoding node encoding options, which reduce the expected
+     * size of each entry
+     */
+    public static int calculateMaxNodeSize(int blockSize,
+                                           int keyType,
+                                           int valueType,
+                                           int maxKeyLength,
+                                           int maxValueLength,
+                                           int encoding)
+    {
+        return (blockSize - 8) / calculateEntrySize
+            (keyType, valueType, maxKeyLength, maxValueLength, encoding);
     }
 
     public static int calculateBlockSize(int maxNodeSize,
@@ -105,9 +150,50 @@ public class MultiplexFileStorageStrategy implements BTree.StorageStrategy {
                                          int maxKeyLength,
                                          int maxValueLength)
     {
-        int keySize = calculateSize(keyType, maxKeyLength);
-        int valueSize = calculateSize(valueType, maxValueLength);
-        return maxNodeSize * (keySize + valueSize + 4) + 8;
+        return calculateBlockSize(maxNodeSize, keyType, valueType,
+                                  maxKeyLength, maxValueLength, 0);
+    }
+
+    /**
+     * @param encoding node encoding options, which reduce the expected
+     * size of each entry
+     */
+    public static int calculateBlockSize(int maxNodeSize,
+                                         int keyType,
+                                         int valueType,
+                                         int maxKeyLength,
+                                         int maxValueLength,
+                                         int encoding)
+    {
+        return maxNodeSize * calculateEntrySize
+            (keyType, valueType, maxKeyLength, maxValueLength, encoding) + 8;
+    }
+
+    /**
+     * Returns the expected size of an entry and its child id. Encoded sizes
+     * are estimates: prefix encoded keys are assumed to share half their
+     * characters with the previous key, and deflated entries are assumed to
+     * compress to half their size.
+     */
+    private static int calculateEntrySize(int keyType,
+                                          int valueType,
+                                          int maxKeyLength,
+                                          int maxValueLength,
+                                          int encoding)
+    {
+        int keySize;
+        if (keyType == STRING_TYPE && (encoding & PREFIX_ENCODING) != 0) {
+            // Common length, remaining length and remaining characters.
+            keySize = 4 + (maxKeyLength + 1) / 2;
+        }
+        else {
+            keySize = calculateSize(keyType, maxKeyLength);
+        }
+        int size = keySize + calculateSize(valueType, maxValueLength);
+        if ((encoding & DEFLATE_ENCODING) != 0) {
+            size = (size + 1) / 2;
+        }
+        return size + 4;
     }
 
     private static int calculateSize(int type, int length) {
@@ -207,8 +293,9 @@ public class MultiplexFileStorageStrategy implements BTree.StorageStrategy {
 
     private final TxFileBuffer mFile;
     private final int mReserved;
-    private final int mMaxNodeSize;
+    private int mMaxNodeSize;
     private int mBlockSize;
+    private final int mEncoding;
 
     private FileRepository mRepository;
     private FileBufferInputStream mMetaIn;
@@ -245,6 +332,37 @@ public class MultiplexFileStorageStrategy implements BTree.StorageStrategy {
                                         int maxNodeSize,
                                         ObjectStreamBuilder builder)
         throws IOException
+    {
+        this(file, reserved, blockSize, keyType, valueType,
+             maxKeyLength, maxValueLength, maxNodeSize, builder, 0);
+    }
+
+    /**
+     * If file passed in implements TxFileBuffer, its transaction features
+     * will be used.
+     *
+     * @param file file for storing b-tree
+     * @param reserved Number of bytes to reserve before headers
+     * @param blockSize block size to use on file
+     * @param keyType expected key type
+     * @param valueType expected value type
+     * @param maxKeyLength if key type is array or string, maximum expected
+     * length, which can be exceeded
+     * @param maxValueLength if value type is array or string, maximum expected
+     * length, which can be exceeded
+     * @param maxNodeSize maximum entries per b-tree node
+     * @param builder optional ObjectStreamBuilder
+     * @param encoding node encoding options, PREFIX_ENCODING and
+     * DEFLATE_ENCODING or'd together, or 0 for none
+     */                                     
+    public MultiplexFileStorageStrategy(FileBuffer file, int reserved,
+                                        int blockSize,
+                                        Class keyType, Class valueType,
+                                        int maxKeyLength, int maxValueLength,
+                                        int maxNodeSize,
+                                        ObjectStreamBuilder builder,
+                                        int encoding)
+        throws IOException
     {
         if (file instanceof TxFileBuffer) {
             mFile = (TxFileBuffer)file;
@@ -257,15 +375,20 @@ public class MultiplexFileStorageStrategy implements BTree.StorageStrategy {
         mKeyType = selectType(keyType);
         mValueType = selectType(valueType);
 
+        if (mKeyType != STRING_TYPE) {
+            encoding &= ~PREFIX_ENCODING;
+        }
+        mEncoding = encoding;
+
         if (maxNodeSize <= 0) {
             maxNodeSize =
                 calculateMaxNodeSize(blockSize, mKeyType, mValueType,
-                                     maxKeyLength, maxValueLength);
+                                     maxKeyLength, maxValueLength, encoding);
         }
         else if (blockSize <= 0) {
             blockSize =
                 calculateBlockSize(maxNodeSize, mKeyType, mValueType,
-                                   maxKeyLength, maxValueLength);
+                                   maxKeyLength, maxValueLength, encoding);
         }
 
         if (maxNodeSize < 2) {
@@ -292,6 +415,13 @@ public class MultiplexFileStorageStrategy implements BTree.StorageStrategy {
         return mMaxNodeSize;
     }
 
+    /**
+     * Returns the encoding options used when saving nodes.
+     */
+    public int getEncoding() {
+        return mEncoding;
+    }
+
     public int loadTotalSize() throws IOException {
         mMetaIn.position(mReserved);
         try {
@@ -331,9 +461,10 @@ public class MultiplexFileStorageStrategy implements BTree.StorageStrategy {
         int size = din.readInt();
         
         if (size < 0) {
-            size = ~size;
+            size = ~size & SIZE_MASK;
         }
         else {
+            size &= SIZE_MASK;
             long[] childrenIds = new long[mMaxNodeSize + 1];
             data.childrenIds = childrenIds;
             int limit = size + 1;
@@ -351,11 +482,14 @@ public class MultiplexFileStorageStrategy implements BTree.StorageStrategy {
         DataInput din = new DataInputStream(in);
         
         int size = din.readInt();
-        
-        if (size < 0) {
+        boolean leaf = size < 0;
+        if (leaf) {
             size = ~size;
         }
-        else {
+        int flags = size & ~SIZE_MASK;
+        size &= SIZE_MASK;
+        
+        if (!leaf) {
             long[] childrenIds = new long[mMaxNodeSize + 1];
             data.childrenIds = childrenIds;
             int limit = size + 1;
@@ -368,29 +502,47 @@ public class MultiplexFileStorageStrategy implements BTree.StorageStrategy {
         
         int keyType = mKeyType;
         int valueType = mValueType;
-        
-        ObjectInputStream oin;
-        
-        if (keyType == OBJECT_TYPE || valueType == OBJECT_TYPE) {
-            oin = mOSBuilder.createInputStream(in);
-            din = oin;
+
+        Inflater inflater;
+        if ((flags & DEFLATE_FLAG) != 0) {
+            inflater = new Inflater();
+            in = new InflaterInputStream(in, inflater);
+            din = new DataInputStream(in);
         }
         else {
-            oin = null;
+            inflater = null;
         }
+
+        // Previous key, if keys are prefix encoded.
+        String prev = ((flags & PREFIX_FLAG) != 0) ? "" : null;
+        
+        ObjectInputStream oin;
         
         Object[] entries = new Object[mMaxNodeSize * 2];
         
         data.entries = entries;
         
         try {
+            if (keyType == OBJECT_TYPE || valueType == OBJECT_TYPE) {
+                oin = mOSBuilder.createInputStream(in);
+                din = oin;
+            }
+            else {
+                oin = null;
+            }
+
             int limit = size * 2;
             for (int i = 0; i < limit; i += 2) {
                 if (keyType == OBJECT_TYPE) {
                     entries[i] = oin.readObject();
                 }
                 else if (keyType == STRING_TYPE) {
-                    entries[i] = readUTF(din);
+                    if (prev == null) {
+                        entries[i] = readUTF(din);
+                    }
+                    else {
+                        entries[i] = prev = readUTF(din, prev);
+                    }
                 }
                 else {
                     entries[i] = readData(din, keyType);
@@ -406,16 +558,21 @@ public class MultiplexFileStorageStrategy implements BTree.StorageStrategy {
                     entries[i + 1] = readData(din, valueType);
                 }
             }
+        
+            if (oin != null) {
+                oin.close();
+            }
+            else {
+                in.close();
+            }
         }
         catch (ClassNotFoundException e) {
             throw new IOException(e.toString());
         }
-        
-        if (oin != null) {
-            oin.close();
-        }
-        else {
-            in.close();
+        finally {
+            if (inflater != null) {
+                inflater.end();
+            }
         }
     }
     
@@ -427,16 +584,24 @@ public class MultiplexFileStorageStrategy implements BTree.StorageStrategy {
         int keyType = mKeyType;
         int valueType = mValueType;
 
+        int flags = 0;
+        if ((mEncoding & PREFIX_ENCODING) != 0) {
+            flags |= PREFIX_FLAG;
+        }
+        if ((mEncoding & DEFLATE_ENCODING) != 0 && size > 0) {
+            flags |= DEFLATE_FLAG;
+        }
+
         OutputStream out =
             new FileBufferOutputStream(mRepository.openFile(id));
         out = new FastBufferedOutputStream(out, mBlockSize);
         DataOutput dout = new FastDataOutputStream(out);
         
         if (childrenIds == null) {
-            dout.writeInt(~size);
+            dout.writeInt(~(size | flags));
         }
         else {
-            dout.writeInt(size);
+            dout.writeInt(size | flags);
             int limit = size + 1;
             for (int i=0; i<limit; i++) {
                 long child = childrenIds[i];
@@ -446,53 +611,80 @@ public class MultiplexFileStorageStrategy implements BTree.StorageStrategy {
                 dout.writeInt((int)child);
             }
         }
-        
-        ObjectOutputStream oout;
-        
-        if (keyType == OBJECT_TYPE || valueType == OBJECT_TYPE) {
-            oout = mOSBuilder.createOutputStream(out);
-            dout = oout;
-        }
-        else {
-            oout = null;
-        }
-        
-        char[] workspace;
-        if (keyType == STRING_TYPE || valueType == STRING_TYPE) {
-            workspace = new char[128];
+
+        Deflater deflater;
+        if ((flags & DEFLATE_FLAG) != 0) {
+            deflater = new Deflater();
+            out = new DeflaterOutputStream(out, deflater);
+            dout = new FastDataOutputStream(out);
         }
         else {
-            workspace = null;
+            deflater = null;
         }
+
+        // Previous key, if keys are prefix encoded.
+        String prev = ((flags & PREFIX_FLAG) != 0) ? "" : null;
+
+        try {
+            ObjectOutputStream oout;
         
-        int limit = size * 2;
-        for (int i = 0; i < limit; i += 2) {
-            if (keyType == OBJECT_TYPE) {
-                oout.writeObject(entries[i]);
+            if (keyType == OBJECT_TYPE || valueType == OBJECT_TYPE) {
+                oout = mOSBuilder.createOutputStream(out);
+                dout = oout;
             }
-            else if (keyType == STRING_TYPE) {
-                writeUTF(dout, (String)entries[i], workspace);
+            else {
+                oout = null;
+            }
+        
+            char[] workspace;
+            if (keyType == STRING_TYPE || valueType == STRING_TYPE) {
+                workspace = new char[128];
             }
             else {
-                writeData(dout, keyType, entries[i]);
+                workspace = null;
             }
+        
+            int limit = size * 2;
+            for (int i = 0; i < limit; i += 2) {
+                if (keyType == OBJECT_TYPE) {
+                    oout.writeObject(entries[i]);
+                }
+                else if (keyType == STRING_TYPE) {
+                    String key = (String)entries[i];
+                    if (prev == null) {
+                        writeUTF(dout, key, workspace);
+                    }
+                    else {
+                        writeUTF(dout, key, prev, workspace);
+                        prev = key;
+                    }
+                }
+                else {
+                    writeData(dout, keyType, entries[i]);
+                }
             
-            if (valueType == OBJECT_TYPE) {
-                oout.writeObject(entries[i + 1]);
+                if (valueType == OBJECT_TYPE) {
+                    oout.writeObject(entries[i + 1]);
+                }
+                else if (valueType == STRING_TYPE) {
+                    writeUTF(dout, (String)entries[i + 1], workspace);
+                }
+                else {
+                    writeData(dout, valueType, entries[i + 1]);
+                }
             }
-            else if (valueType == STRING_TYPE) {
-                writeUTF(dout, (String)entries[i + 1], workspace);
+        
+            if (oout != null) {
+                oout.close();
             }
             else {
-                writeData(dout, valueType, entries[i + 1]);
+                out.close();
             }
         }
-        
-        if (oout != null) {
-            oout.close();
-        }
-        else {
-            out.close();
+        finally {
+            if (deflater != null) {
+                deflater.end();
+            }
         }
     }
 
@@ -547,7 +739,17 @@ public class MultiplexFileStorageStrategy implements BTree.StorageStrategy {
             mBlockSize = mf.getBlockSize();
         }
         
-        // Reserve file 1 for future use.
+        // File 1 records the max node size. It can depend on the encoding,
+        // which may change when the file is reopened, but nodes already
+        // saved must still fit.
+        FileBuffer info = mf.openFile(1);
+        if (clear || info.size() < 4) {
+            new FileBufferOutputStream(info).writeInt(mMaxNodeSize);
+        }
+        else {
+            mMaxNodeSize = new FileBufferInputStream(info).readInt();
+        }
+
         mRepository = new MultiplexFileRepository(mf, 2);
         
         mMetaIn = new FileBufferInputStream(mFile);
@@ -578,6 +780,20 @@ public class MultiplexFileStorageStrategy implements BTree.StorageStrategy {
         return new String(chars, 0, length);
     }
 
+    /**
+     * Reads a string which was written relative to the previous string.
+     */
+    private String readUTF(DataInput din, String prev) throws IOException {
+        int common = din.readUnsignedShort();
+        int length = din.readUnsignedShort();
+        char[] chars = new char[common + length];
+        prev.getChars(0, common, chars, 0);
+        if (length > 0) {
+            length = DataIO.readUTF(din, chars, common, length);
+        }
+        return new String(chars, 0, common + length);
+    }
+
     private Object readData(DataInput din, int type) throws IOException {
         switch (type) {
         default:
@@ -629,6 +845,28 @@ public class MultiplexFileStorageStrategy implements BTree.StorageStrategy {
         DataIO.writeUTF(dout, str, 0, length, workspace);
     }
 
+    /**
+     * Writes the number of leading characters the string shares with the
+     * previous string, followed by the remaining characters.
+     */
+    private void writeUTF(DataOutput dout, String str, String prev,
+                          char[] workspace)
+        throws IOException
+    {
+        int length = str.length();
+        if (length > 65535) {
+            throw new IOException("String too long: " + length);
+        }
+        int common = 0;
+        int max = Math.min(length, prev.length());
+        while (common < max && str.charAt(common) == prev.charAt(common)) {
+            common++;
+        }
+        dout.writeShort(common);
+        dout.writeShort(length - common);
+        DataIO.writeUTF(dout, str, common, length - common, workspace);
+    }
+
     private void writeData(DataOutput dout, int type, Object obj)
         throws IOException
     {
@@ -55,7 +55,9 @@ package com.go.trove.persist;
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
 import java.lang.reflect.UndeclaredThrowableException;
 import com.go.trove.util.Depot;
@@ -78,7 +80,9 @@ public class PersistentCollectionKit {
      * close on system exit and detection of incomplete or failed close on
      * previous use. Depot keys and values must be {@link Serializable}.
      * Depot keys must implement {@link Comparable}, or else a
-     * {@link Comparator} must be provided.
+     * {@link Comparator} must be provided. Call
+     * {@link PersistentDepot#close close} to cleanly close the Depot before
+     * system exit.
      * <p>
      * Three files are used by the Depot: the object repository (.obr), the
      * valid cache index (.ixv), and the invalid cache index (.ixi).
@@ -143,19 +147,20 @@ public class PersistentCollectionKit {
      * system exits.
      * @param builder optional ObjectStreamBuilder.
      */
-    public static Depot createPersistentDepot(Depot.Factory factory,
-                                              int cacheSize,
-                                              TransactionQueue tq,
-                                              long depotTimeout,
-                                              boolean create,
-                                              String dataFilePath,
-                                              int indexBlockSize,
-                                              Class keyType,
-                                              int keyLength,
-                                              Comparator keyComparator,
-                                              int valueBlockSize,
-                                              long shutdownTimeout,
-                                              ObjectStreamBuilder builder)
+    public static PersistentDepot createPersistentDepot
+        (Depot.Factory factory,
+         int cacheSize,
+         TransactionQueue tq,
+         long depotTimeout,
+         boolean create,
+         String dataFilePath,
+         int indexBlockSize,
+         Class keyType,
+         int keyLength,
+         Comparator keyComparator,
+         int valueBlockSize,
+         long shutdownTimeout,
+         ObjectStreamBuilder builder)
         throws IOException
     {
         File objectFile, validIndexFile, invalidIndexFile;
@@ -167,12 +172,14 @@ public class PersistentCollectionKit {
         ObjectRepository store = null;
         PersistentMap valid = null;
         PersistentMap invalid = null;
+        // FileClosers of the opened data files.
+        List closers = new ArrayList(3);
 
         if (!create) openExisting: {
             try {
-                store = createObjectRepository
+                store = openObjectRepository
                     (objectFile, valueBlockSize, false, true, shutdownTimeout,
-                     builder);
+                     builder, closers);
             }
             catch (CorruptFileException e) {
                 create = true;
@@ -180,10 +187,10 @@ public class PersistentCollectionKit {
             }
                 
             try {
-                valid = createSortedMap
+                valid = openSortedMap
                     (validIndexFile, indexBlockSize, keyType, keyLength,
                      keyComparator, false, true, shutdownTimeout, store,
-                     builder);
+                     builder, closers);
             }
             catch (CorruptFileException e) {
                 create = true;
@@ -191,10 +198,10 @@ public class PersistentCollectionKit {
             }
             
             try {
-                invalid = createSortedMap
+                invalid = openSortedMap
                     (invalidIndexFile, indexBlockSize, keyType, keyLength,
                      keyComparator, false, true, shutdownTimeout, store,
-                     builder);
+                     builder, closers);
             }
             catch (CorruptFileException e) {
                 create = true;
@@ -203,17 +210,22 @@ public class PersistentCollectionKit {
         }
 
         if (create) {
-            store = createObjectRepository
+            // Close the files opened before one was found to be corrupt.
+            closeAll((FileCloser[])closers.toArray
+                     (new FileCloser[closers.size()]));
+            closers.clear();
+
+            store = openObjectRepository
                 (objectFile, valueBlockSize, true, true, shutdownTimeout,
-                 builder);
-            valid = createSortedMap
+                 builder, closers);
+            valid = openSortedMap
                 (validIndexFile, indexBlockSize, keyType, keyLength,
                  keyComparator, true, true, shutdownTimeout, store,
-                 builder);
-            invalid = createSortedMap
+                 builder, closers);
+            invalid = openSortedMap
                 (invalidIndexFile, indexBlockSize, keyType, keyLength,
                  keyComparator, true, true, shutdownTimeout, store,
-                 builder);
+                 builder, closers);
         }
 
         if (cacheSize == 0) {
@@ -227,8 +239,9 @@ public class PersistentCollectionKit {
             //invalid = new CachedPersistentMap(new Cache(cacheSize), invalid);
         }
 
-        return new Depot
-            (factory, new DepotKernel(valid, invalid), tq, depotTimeout);
+        return new PersistentDepot
+            (factory, new DepotKernel(valid, invalid), tq, depotTimeout,
+             (FileCloser[])closers.toArray(new FileCloser[closers.size()]));
     }
 
     /**
@@ -258,11 +271,27 @@ public class PersistentCollectionKit {
          long shutdownTimeout,
          ObjectStreamBuilder builder)
         throws IOException
+    {
+        return openObjectRepository
+            (file, blockSize, create, failIfDirty, shutdownTimeout, builder,
+             null);
+    }
+
+    private static ObjectRepository openObjectRepository
+        (File file,
+         int blockSize,
+         boolean create,
+         boolean failIfDirty,
+         long shutdownTimeout,
+         ObjectStreamBuilder builder,
+         List closers)
+        throws IOException
     {
         create = create || !file.exists();
-        FileBuffer fb = new SystemFileBuffer(file, false);
-        return createObjectRepository
-            (fb, blockSize, create, failIfDirty, shutdownTimeout, builder);
+        FileBuffer fb = new ChannelFileBuffer(file, false);
+        return openObjectRepository
+            (fb, blockSize, create, failIfDirty, shutdownTimeout, builder,
+             closers);
     }
 
     /**
@@ -292,6 +321,24 @@ public class PersistentCollectionKit {
          long shutdownTimeout,
          ObjectStreamBuilder builder)
         throws IOException
+    {
+        return openObjectRepository
+            (file, blockSize, create, failIfDirty, shutdownTimeout, builder,
+             null);
+    }
+
+    /**
+     * @param closers optional List to add the FileCloser of the file to
+     */
+    private static ObjectRepository openObjectRepository
+        (FileBuffer file,
+         int blockSize,
+         boolean create,
+         boolean failIfDirty,
+         long shutdownTimeout,
+         ObjectStreamBuilder builder,
+         List closers)
+        throws IOException
     {
         TxFileBuffer txfile;
         int reserved;
@@ -310,7 +357,7 @@ public class PersistentCollectionKit {
                 ("File not closed cleanly; contents may be corrupt");
         }
 
-        addShutdownHook(txfile, shutdownTimeout);
+        addShutdownHook(txfile, shutdownTimeout, closers);
 
         MultiplexFile mf;
         if (create) {
@@ -365,12 +412,88 @@ public class PersistentCollectionKit {
          ObjectRepository store,
          ObjectStreamBuilder builder)
         throws IOException
+    {
+        return createSortedMap(indexFile, indexBlockSize, keyType, keyLength,
+                               keyComparator, createIndex,
+                               failIfDirty, shutdownTimeout, store, builder,
+                               false, 0);
+    }
+
+    /**
+     * Creates a generic PersistentSortedMap for use in mapping any kind of
+     * Serializable object.
+     *
+     * <ul>
+     * <li>B-Tree index
+     * <li>Automatic clean shutdown on system exit
+     * <li>Detection of failed shutdown
+     * </ul>
+     *
+     * @param indexFile File for storing B-Tree index
+     * @param indexBlockSize block size (in bytes) for B-Tree node allocation
+     * @param keyType expected key type, i.e. String.class
+     * @param keyLength expected average key length, if key is string or array
+     * @param keyComparator Comparator for ordering keys, or null if keys
+     * implement Comparable
+     * @param createIndex always creates a new B-Tree in the index file,
+     * destroying anything already there
+     * @param failIfDirty when true, checks if index file is clean and
+     * throws CorruptFileException if not
+     * @param shutdownTimeout max milliseconds to wait for clean close when
+     * system exits
+     * @param store ObjectRepository for storing values, which may be shared
+     * @param builder optional ObjectStreamBuilder for BTree
+     * @param concurrent when true, the B-Tree is opened in concurrent mode,
+     * and updates to different leaf nodes proceed in parallel
+     * @param encoding B-Tree node encoding options, as defined by
+     * {@link MultiplexFileStorageStrategy}, or 0 for none
+     *
+     * @throws CorruptFileException if failIfDirty is true and file wasn't
+     * closed cleanly the last time is was used
+     */
+    public static PersistentSortedMap createSortedMap
+        (File indexFile,
+         int indexBlockSize,
+         Class keyType,
+         int keyLength,
+         Comparator keyComparator,
+         boolean createIndex,
+         boolean failIfDirty,
+         long shutdownTimeout,
+         ObjectRepository store,
+         ObjectStreamBuilder builder,
+         boolean concurrent,
+         int encoding)
+        throws IOException
     {
         createIndex = createIndex || !indexFile.exists();
-        FileBuffer fb = new SystemFileBuffer(indexFile, false);
+        FileBuffer fb = new ChannelFileBuffer(indexFile, false);
         return createSortedMap(fb, indexBlockSize, keyType, keyLength,
                                keyComparator, createIndex,
-                               failIfDirty, shutdownTimeout, store, builder);
+                               failIfDirty, shutdownTimeout, store, builder,
+                               concurrent, encoding);
+    }
+
+    private static PersistentSortedMap openSortedMap
+        (File indexFile,
+         int indexBlockSize,
+         Class keyType,
+         int keyLength,
+         Comparator keyComparator,
+         boolean createIndex,
+         boolean failIfDirty,
+         long shutdownTimeout,
+         ObjectRepository store,
+         ObjectStreamBuilder builder,
+         List closers)
+        throws IOException
+    {
+        createIndex = createIndex || !indexFile.exists();
+        FileBuffer fb = new ChannelFileBuffer(indexFile, false);
+        return openSortedMap(fb, indexBlockSize, keyType, keyLength,
+                             keyComparator, createIndex,
+                             failIfDirty, shutdownTimeout, store, builder,
+                             false, 0, closers);
     }
 
     /**
@@ -413,6 +536,84 @@ public class PersistentCollectionKit {
          ObjectRepository store,
          ObjectStreamBuilder builder)
         throws IOException
+    {
+        return createSortedMap(indexFile, indexBlockSize, keyType, keyLength,
+                               keyComparator, createIndex,
+                               failIfDirty, shutdownTimeout, store, builder,
+                               false, 0);
+    }
+
+    /**
+     * Creates a generic PersistentSortedMap for use in mapping any kind of
+     * Serializable object.
+     *
+     * <ul>
+     * <li>B-Tree index
+     * <li>Automatic clean shutdown on system exit
+     * <li>Detection of failed shutdown
+     * </ul>
+     *
+     * @param indexFile FileBuffer for storing B-Tree index
+     * @param indexBlockSize block size (in bytes) for B-Tree node allocation
+     * @param keyType expected key type, i.e. String.class
+     * @param keyLength expected average key length, if key is string or array
+     * @param keyComparator Comparator for ordering keys, or null if keys
+     * implement Comparable
+     * @param createIndex always creates a new B-Tree in the index file,
+     * destroying anything already there
+     * @param failIfDirty when true, checks if index file is clean and
+     * throws CorruptFileException if not
+     * @param shutdownTimeout max milliseconds to wait for clean close when
+     * system exits
+     * @param store ObjectRepository for storing values, which may be shared
+     * @param builder optional ObjectStreamBuilder for BTree
+     * @param concurrent when true, the B-Tree is opened in concurrent mode,
+     * and updates to different leaf nodes proceed in parallel
+     * @param encoding B-Tree node encoding options, as defined by
+     * {@link MultiplexFileStorageStrategy}, or 0 for none
+     *
+     * @throws CorruptFileException if failIfDirty is true and file wasn't
+     * closed cleanly the last time is was used
+     */
+    public static PersistentSortedMap createSortedMap
+        (FileBuffer indexFile,
+         int indexBlockSize,
+         Class keyType,
+         int keyLength,
+         Comparator keyComparator,
+         boolean createIndex,
+         boolean failIfDirty,
+         long shutdownTimeout,
+         ObjectRepository store,
+         ObjectStreamBuilder builder,
+         boolean concurrent,
+         int encoding)
+        throws IOException
+    {
+        return openSortedMap(indexFile, indexBlockSize, keyType, keyLength,
+                             keyComparator, createIndex,
+                             failIfDirty, shutdownTimeout, store, builder,
+                             concurrent, encoding, null);
+    }
+
+    /**
+     * @param closers optional List to add the FileCloser of the file to
+     */
+    private static PersistentSortedMap openSortedMap
+        (FileBuffer indexFile,
+         int indexBlockSize,
+         Class keyType,
+         int keyLength,
+         Comparator keyComparator,
+         boolean createIndex,
+         boolean failIfDirty,
+         long shutdownTimeout,
+         ObjectRepository store,
+         ObjectStreamBuilder builder,
+         boolean concurrent,
+         int encoding,
+         List closers)
+        throws IOException
     {
         TxFileBuffer txfile;
         int reserved;
@@ -432,7 +633,7 @@ public class PersistentCollectionKit {
                 ("Index file not closed cleanly; contents may be corrupt");
         }
 
-        addShutdownHook(txfile, shutdownTimeout);
+        addShutdownHook(txfile, shutdownTimeout, closers);
 
         if (createIndex) {
             txfile.truncate(reserved);
@@ -440,32 +641,101 @@ public class PersistentCollectionKit {
 
         BTree.StorageStrategy ss = new MultiplexFileStorageStrategy
             (txfile, reserved, indexBlockSize, keyType, Long.class,
-             keyLength, 0, 0, builder);
+             keyLength, 0, 0, builder, encoding);
 
-        PersistentSortedMap index;
-        if (keyComparator == null) {
-            index = BTree.createMap(ss);
-        }
-        else {
-            index = BTree.createMap(ss, keyComparator);
-        }
+        PersistentSortedMap index =
+            BTree.createMap(ss, keyComparator, concurrent);
 
         return new ObjectRepositoryMap(index, store);
     }
 
-    private static void addShutdownHook(final TxFileBuffer txfile,
-                                        final long timeout)
+    private static void addShutdownHook(TxFileBuffer txfile, long timeout,
+                                        List closers)
     {
-        Runtime.getRuntime().addShutdownHook(new Thread() {
-            public void run() {
-                try {
-                    txfile.close(timeout);
-                }
-                catch (Exception e) {
-                    e.printStackTrace();
+        FileCloser closer = new FileCloser(txfile, timeout);
+        Runtime.getRuntime().addShutdownHook(closer);
+        if (closers != null) {
+            closers.add(closer);
+        }
+    }
+
+    /**
+     * Closes the files in reverse order, throwing the first exception after
+     * attempting to close them all.
+     */
+    private static void closeAll(FileCloser[] closers) throws IOException {
+        IOException error = null;
+        for (int i=closers.length; --i>=0; ) {
+            try {
+                closers[i].close();
+            }
+            catch (IOException e) {
+                if (error == null) {
+                    error = e;
                 }
             }
-        });
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**************************************************************************
+     * A Depot created by {@link PersistentCollectionKit#createPersistentDepot
+     * createPersistentDepot}. Its data files are cleanly closed on system
+     * exit, or sooner by calling {@link #close close}.
+     */
+    public static class PersistentDepot extends Depot {
+        private final FileCloser[] mClosers;
+
+        PersistentDepot(Depot.Factory factory, Depot.Kernel kernel,
+                        TransactionQueue tq, long timeout,
+                        FileCloser[] closers) {
+            super(factory, kernel, tq, timeout);
+            mClosers = closers;
+        }
+
+        /**
+         * Cleanly closes the data files, waiting up to the shutdown timeout
+         * for transactions in progress to finish. The Depot can't be used
+         * afterwards. Calling close again has no effect.
+         */
+        public void close() throws IOException {
+            closeAll(mClosers);
+        }
+    }
+
+    /**
+     * Closes a file on system exit, unless it's closed sooner.
+     */
+    private static class FileCloser extends Thread {
+        private final TxFileBuffer mFile;
+        private final long mTimeout;
+
+        FileCloser(TxFileBuffer file, long timeout) {
+            mFile = file;
+            mTimeout = timeout;
+        }
+
+        public void run() {
+            try {
+                mFile.close(mTimeout);
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        void close() throws IOException {
+            try {
+                // Don't keep the file reachable until system exit.
+                Runtime.getRuntime().removeShutdownHook(this);
+            }
+            catch (IllegalStateException e) {
+                // Exiting, and so the hook closes it too.
+            }
+            mFile.close(mTimeout);
+        }
     }
 
     // PersistentDepotKernel
@@ -60,7 +60,8 @@ import java.util.*;
  * but calling "containsKey" or "containsValue" will not.
  * <p>
  * Like its base class, Cache is not thread-safe and must be wrapped with
- * Collections.synchronizedMap to be made thread-safe.
+ * Collections.synchronizedMap to be made thread-safe. For a cache that is
+ * shared by many threads, consider using {@link ConcurrentCache} instead.
  *
  * @author Brian S O'Neill
  * @version
@@ -55,6 +55,7 @@ package com.go.trove.util;
 import java.io.OutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.InputStream;
 import java.io.FileInputStream;
@@ -64,8 +65,11 @@ import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLStreamHandler;
 import java.util.*;
+import java.util.zip.CRC32;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
+import com.go.trove.classfile.ConstantClassInfo;
+import com.go.trove.classfile.ConstantPool;
 
 /******************************************************************************
  * A special ClassLoader that allows classes to be defined by directly
@@ -119,6 +123,12 @@ public class ClassInjector extends ClassLoader {
     // A map to store raw bytecode for future use in getResourceAsStream().
     private Map mGZippedBytecode;
 
+    // Maps class names to Long CRC32 checksums of their bytecode.
+    private Map mChecksums = Collections.synchronizedMap(new HashMap());
+
+    // Maps class names to the String names of the classes they reference.
+    private Map mReferences = Collections.synchronizedMap(new HashMap());
+
     private URLStreamHandler mFaker;
 
     /**
@@ -230,6 +240,78 @@ public class ClassInjector extends ClassLoader {
         return new Stream(name);
     }
 
+    /**
+     * Returns a CRC32 checksum of the bytecode of a class defined by this
+     * ClassInjector, or -1 if it didn't define the class. The checksum is
+     * the same for identical bytecode, and so it can identify a version of a
+     * generated class across restarts.
+     *
+     * @param name the fully qualified name of the class
+     */
+    public long getChecksum(String name) {
+        Long checksum = (Long)mChecksums.get(name);
+        return checksum == null ? -1 : checksum.longValue();
+    }
+
+    /**
+     * Returns a checksum of the bytecode of a class defined by this
+     * ClassInjector, combined with the checksums of all the classes it
+     * references, directly or indirectly, that are also defined by this
+     * ClassInjector. Referenced classes are loaded if they haven't been
+     * already. Unlike {@link #getChecksum getChecksum}, the deep checksum
+     * changes when any class that the given class depends on changes.
+     *
+     * @param name the fully qualified name of the class
+     * @return -1 if this ClassInjector didn't define the class, or if the
+     * references of any class couldn't be determined
+     */
+    public long getDeepChecksum(String name) {
+        // Sorted by name, so that the result doesn't depend on the order in
+        // which references are followed.
+        Map checksums = new TreeMap();
+        List toVisit = new ArrayList();
+        toVisit.add(name);
+
+        while (toVisit.size() > 0) {
+            String visit = (String)toVisit.remove(toVisit.size() - 1);
+            if (checksums.containsKey(visit)) {
+                continue;
+            }
+            Long checksum = (Long)mChecksums.get(visit);
+            String[] references = (String[])mReferences.get(visit);
+            if (checksum == null || references == null) {
+                return -1;
+            }
+            checksums.put(visit, checksum);
+
+            for (int i=0; i<references.length; i++) {
+                String ref = references[i];
+                if (!mChecksums.containsKey(ref) && mayLoadFromFile(ref)) {
+                    try {
+                        loadClass(ref);
+                    }
+                    catch (ClassNotFoundException e) {
+                    }
+                    catch (LinkageError e) {
+                    }
+                }
+                if (mChecksums.containsKey(ref)) {
+                    toVisit.add(ref);
+                }
+            }
+        }
+
+        CRC32 crc = new CRC32();
+        Iterator it = checksums.values().iterator();
+        while (it.hasNext()) {
+            long checksum = ((Long)it.next()).longValue();
+            for (int shift = 0; shift < 32; shift += 8) {
+                crc.update((int)(checksum >> shift));
+            }
+        }
+        return crc.getValue();
+    }
+
     public URL getResource(String name) {
         
         if (mGZippedBytecode != null) {
@@ -290,6 +372,7 @@ public class ClassInjector extends ClassLoader {
     
     protected void define(String name, byte[] data) {
         defineClass(name, data, 0, data.length);
+        putChecksum(name, data, data.length);
         if (mGZippedBytecode != null) {
             try {
                 ByteArrayOutputStream baos = new ByteArrayOutputStream();
@@ -348,7 +431,9 @@ public class ClassInjector extends ClassLoader {
                     
                     in.close();
                     
-                    return defineClass(name, buffer, 0, offset);
+                    Class clazz = defineClass(name, buffer, 0, offset);
+                    putChecksum(name, buffer, offset);
+                    return clazz;
                 }
                 catch (IOException e) {
                     if (error == null) {
@@ -367,6 +452,50 @@ public class ClassInjector extends ClassLoader {
         }
     }
 
+    private void putChecksum(String name, byte[] data, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        mChecksums.put(name, new Long(crc.getValue()));
+
+        // Record the classes referenced from the constant pool, for
+        // computing deep checksums.
+        try {
+            DataInputStream in = new DataInputStream
+                (new ByteArrayInputStream(data, 0, length));
+            // Skip magic number and version.
+            in.readInt();
+            in.readInt();
+
+            List references = new ArrayList();
+            Iterator it = ConstantPool.readFrom(in)
+                .getAllConstants().iterator();
+            while (it.hasNext()) {
+                Object constant = it.next();
+                if (constant instanceof ConstantClassInfo) {
+                    String ref = ((ConstantClassInfo)constant)
+                        .getType().getRootName();
+                    if (!ref.equals(name)) {
+                        references.add(ref);
+                    }
+                }
+            }
+
+            mReferences.put(name, references.toArray
+                            (new String[references.size()]));
+        }
+        catch (Exception e) {
+            // References are unknown, and so no deep checksum is available.
+        }
+    }
+
+    /**
+     * Returns true if the given class might be found by loadFromFile.
+     */
+    private boolean mayLoadFromFile(String name) {
+        return mRootClassDirs != null &&
+            (mRootPackage == null || name.startsWith(mRootPackage));
+    }
+
     private class Stream extends ByteArrayOutputStream {
         private String mName;
         
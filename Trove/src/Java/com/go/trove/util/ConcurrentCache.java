@@ -0,0 +1,623 @@
+/* ====================================================================
+ * Trove - Copyright (c) 1997-2000 Walt Disney Internet Group
+ * ====================================================================
+ * The Tea Software License, Version 1.1
+ *
+ * Copyright (c) 2000 Walt Disney Internet Group. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *        Walt Disney Internet Group (http://opensource.go.com/)."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Tea", "TeaServlet", "Kettle", "Trove" and "BeanDoc" must
+ *    not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact opensource@dig.com.
+ *
+ * 5. Products derived from this software may not be called "Tea",
+ *    "TeaServlet", "Kettle" or "Trove", nor may "Tea", "TeaServlet",
+ *    "Kettle", "Trove" or "BeanDoc" appear in their name, without prior
+ *    written permission of the Walt Disney Internet Group.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE WALT DISNEY INTERNET GROUP OR ITS
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ *
+ * For more information about Tea, please see http://opensource.go.com/.
+ */
+
+package com.go.trove.util;
+
+import java.lang.ref.*;
+import java.util.*;
+
+/******************************************************************************
+ * A thread-safe alternative to {@link Cache} which does not need to be
+ * wrapped with Collections.synchronizedMap. Entries are spread across a
+ * fixed number of independently locked segments, and so threads accessing
+ * different keys rarely contend with each other. Values are softly
+ * referenced, and cleared references are reclaimed with a ReferenceQueue
+ * instead of by scanning the whole table.
+ * <p>
+ * Like Cache, ConcurrentCache guarantees that the most recently used entries
+ * remain available. Recent usage is tracked per segment, and so the
+ * guarantee is approximately LRU: each segment retains its share of the
+ * maximum amount of recent entries. Calling "get" or "put" updates the usage
+ * information, but calling "containsKey" or "containsValue" will not.
+ * <p>
+ * Iterators returned by this map never throw
+ * ConcurrentModificationException. They reflect the state of each segment at
+ * the time the iterator reached it, and may return fewer entries than the
+ * amount reported by size().
+ *
+ * @author Brian S O'Neill
+ * @version
+ * <!--$$Revision$-->, <!--$$JustDate:--> <!-- $-->
+ * @see Cache
+ */
+public class ConcurrentCache extends AbstractMap implements Map {
+    private static final int DEFAULT_SEGMENTS = 16;
+
+    private static int segmentCount(int concurrencyLevel) {
+        if (concurrencyLevel <= 0) {
+            throw new IllegalArgumentException
+                ("Concurrency level must be greater than zero: " +
+                 concurrencyLevel);
+        }
+        int count = 1;
+        while (count < concurrencyLevel) {
+            count <<= 1;
+        }
+        return count;
+    }
+
+    private static int checkMaxRecent(int maxRecent) {
+        if (maxRecent <= 0) {
+            throw new IllegalArgumentException
+                ("Max recent must be greater than zero: " + maxRecent);
+        }
+        return maxRecent;
+    }
+
+    /**
+     * Applies a supplemental hash function so that keys with poor hash codes
+     * are distributed evenly across segments.
+     */
+    private static int hash(Object key) {
+        if (key == null) {
+            return 0;
+        }
+        int h = key.hashCode();
+        h += ~(h << 9);
+        h ^=  (h >>> 14);
+        h +=  (h << 4);
+        h ^=  (h >>> 10);
+        return h;
+    }
+
+    private final Segment[] mSegments;
+    // Contains hard references to recently used entries, striped the same
+    // way as the segments. Is null if no recent entries are guaranteed.
+    private final Usage[] mUsages;
+    private final int mMask;
+
+    private transient Set mKeySet;
+    private transient Set mEntrySet;
+
+    /**
+     * Construct a ConcurrentCache that behaves like a concurrent
+     * SoftHashMap. No recently used entries are guaranteed to be in the
+     * cache.
+     */
+    public ConcurrentCache() {
+        this(0, DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * Construct a ConcurrentCache with an amount of recently used entries
+     * that are guaranteed to always be in the cache.
+     *
+     * @param maxRecent maximum amount of recently used entries guaranteed to
+     * be in the cache.
+     * @throws IllegalArgumentException if maxRecent is less than or equal to
+     * zero.
+     */
+    public ConcurrentCache(int maxRecent) {
+        this(checkMaxRecent(maxRecent), DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * Construct a ConcurrentCache with an amount of recently used entries
+     * that are guaranteed to always be in the cache.
+     *
+     * @param maxRecent maximum amount of recently used entries guaranteed to
+     * be in the cache. If zero, no entries are guaranteed.
+     * @param concurrencyLevel estimated number of threads concurrently
+     * updating the cache, which is rounded up to a power of two to select
+     * the number of segments
+     * @throws IllegalArgumentException if maxRecent is negative or if
+     * concurrencyLevel is less than or equal to zero
+     */
+    public ConcurrentCache(int maxRecent, int concurrencyLevel) {
+        if (maxRecent < 0) {
+            throw new IllegalArgumentException
+                ("Max recent must not be negative: " + maxRecent);
+        }
+
+        int count = segmentCount(concurrencyLevel);
+
+        // Don't create more segments than recent entries, or else the
+        // guarantee would be stretched too thin.
+        if (maxRecent > 0) {
+            while (count > maxRecent) {
+                count >>= 1;
+            }
+        }
+
+        mSegments = new Segment[count];
+        for (int i=0; i<count; i++) {
+            mSegments[i] = new Segment();
+        }
+
+        if (maxRecent == 0) {
+            mUsages = null;
+        }
+        else {
+            int perSegment = (maxRecent + count - 1) / count;
+            mUsages = new Usage[count];
+            for (int i=0; i<count; i++) {
+                mUsages[i] = new Usage(perSegment);
+            }
+        }
+
+        mMask = count - 1;
+    }
+
+    /**
+     * Piggyback this cache onto another one in order for the recently used
+     * entries to be shared. If this cache is more active than the one it
+     * attaches to, then more of its most recently used entries will be
+     * guaranteed to be in the cache, possibly bumping out entries from the
+     * other cache.
+     */
+    public ConcurrentCache(ConcurrentCache cache) {
+        int count = cache.mSegments.length;
+        mSegments = new Segment[count];
+        for (int i=0; i<count; i++) {
+            mSegments[i] = new Segment();
+        }
+        mUsages = cache.mUsages;
+        mMask = cache.mMask;
+    }
+
+    public int size() {
+        int size = 0;
+        Segment[] segments = mSegments;
+        for (int i=0; i<segments.length; i++) {
+            size += segments[i].size();
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        Segment[] segments = mSegments;
+        for (int i=0; i<segments.length; i++) {
+            if (segments[i].size() != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean containsKey(Object key) {
+        return segmentFor(hash(key)).get(key) != null;
+    }
+
+    public boolean containsValue(Object value) {
+        Segment[] segments = mSegments;
+        for (int i=0; i<segments.length; i++) {
+            if (segments[i].containsValue(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public Object get(Object key) {
+        int hash = hash(key);
+        Object value = segmentFor(hash).get(key);
+        if (value == null) {
+            return null;
+        }
+        adjustMRU(hash, key, value);
+        return (value instanceof Null) ? null : value;
+    }
+
+    public Object put(Object key, Object value) {
+        if (value == null) {
+            value = new Null();
+        }
+        int hash = hash(key);
+        adjustMRU(hash, key, value);
+        Object old = segmentFor(hash).put(key, value, false);
+        return (old instanceof Null) ? null : old;
+    }
+
+    /**
+     * If the key is not already associated with a value, associate it with
+     * the given one. The check and the put are performed atomically.
+     *
+     * @return the value already associated with the key, or null if none
+     */
+    public Object putIfAbsent(Object key, Object value) {
+        if (value == null) {
+            value = new Null();
+        }
+        int hash = hash(key);
+        Object existing = segmentFor(hash).put(key, value, true);
+        if (existing == null) {
+            adjustMRU(hash, key, value);
+            return null;
+        }
+        adjustMRU(hash, key, existing);
+        return (existing instanceof Null) ? null : existing;
+    }
+
+    public Object remove(Object key) {
+        int hash = hash(key);
+        if (mUsages != null) {
+            Usage usage = mUsages[hash & mMask];
+            synchronized (usage) {
+                usage.remove(key);
+            }
+        }
+        Object old = segmentFor(hash).remove(key);
+        return (old instanceof Null) ? null : old;
+    }
+
+    public void clear() {
+        Segment[] segments = mSegments;
+        for (int i=0; i<segments.length; i++) {
+            segments[i].clear();
+        }
+        if (mUsages != null) {
+            Usage[] usages = mUsages;
+            for (int i=0; i<usages.length; i++) {
+                synchronized (usages[i]) {
+                    usages[i].clear();
+                }
+            }
+        }
+    }
+
+    public Set keySet() {
+        if (mKeySet == null) {
+            mKeySet = new AbstractSet() {
+                public Iterator iterator() {
+                    return new EntryIterator(true);
+                }
+
+                public int size() {
+                    return ConcurrentCache.this.size();
+                }
+
+                public boolean contains(Object o) {
+                    return containsKey(o);
+                }
+
+                public boolean remove(Object o) {
+                    if (containsKey(o)) {
+                        ConcurrentCache.this.remove(o);
+                        return true;
+                    }
+                    return false;
+                }
+
+                public void clear() {
+                    ConcurrentCache.this.clear();
+                }
+            };
+        }
+        return mKeySet;
+    }
+
+    public Set entrySet() {
+        if (mEntrySet == null) {
+            mEntrySet = new AbstractSet() {
+                public Iterator iterator() {
+                    return new EntryIterator(false);
+                }
+
+                public int size() {
+                    return ConcurrentCache.this.size();
+                }
+
+                public boolean contains(Object o) {
+                    if (!(o instanceof Map.Entry)) {
+                        return false;
+                    }
+                    Map.Entry entry = (Map.Entry)o;
+                    Object key = entry.getKey();
+                    Object value = segmentFor(hash(key)).get(key);
+                    if (value == null) {
+                        return false;
+                    }
+                    if (value instanceof Null) {
+                        return entry.getValue() == null;
+                    }
+                    return value.equals(entry.getValue());
+                }
+
+                public boolean remove(Object o) {
+                    if (contains(o)) {
+                        ConcurrentCache.this.remove(((Map.Entry)o).getKey());
+                        return true;
+                    }
+                    return false;
+                }
+
+                public void clear() {
+                    ConcurrentCache.this.clear();
+                }
+            };
+        }
+        return mEntrySet;
+    }
+
+    private Segment segmentFor(int hash) {
+        return mSegments[hash & mMask];
+    }
+
+    private void adjustMRU(int hash, Object key, Object value) {
+        if (mUsages == null) {
+            return;
+        }
+        Usage usage = mUsages[hash & mMask];
+        synchronized (usage) {
+            Object existing = usage.get(key);
+            if (existing != null) {
+                if (value == null && existing instanceof Null) {
+                    value = existing;
+                }
+            }
+            else if (!usage.containsKey(key)) {
+                // A new entry will be put into the UsageMap, so remove
+                // least recently used if MRU is too big.
+                while (usage.size() >= usage.mMaxRecent) {
+                    usage.remove(usage.lastKey());
+                }
+            }
+            usage.put(key, value);
+        }
+    }
+
+    /**
+     * Stands in for null values, and is softly referenced just like any
+     * other value.
+     */
+    private static class Null {
+        public boolean equals(Object other) {
+            return other == null || other instanceof Null;
+        }
+
+        public int hashCode() {
+            return 0;
+        }
+
+        public String toString() {
+            return "null";
+        }
+    }
+
+    private static class Usage extends UsageMap {
+        static final long serialVersionUID = 1;
+
+        final int mMaxRecent;
+
+        Usage(int maxRecent) {
+            mMaxRecent = maxRecent;
+        }
+    }
+
+    private static class ValueRef extends SoftReference {
+        final Object mKey;
+
+        ValueRef(Object key, Object value, ReferenceQueue queue) {
+            super(value, queue);
+            mKey = key;
+        }
+    }
+
+    /**
+     * A segment is a small soft valued hash table, guarded by its own lock.
+     */
+    private static class Segment {
+        // Maps keys to ValueRefs.
+        private final Map mMap = new HashMap();
+        private final ReferenceQueue mQueue = new ReferenceQueue();
+
+        synchronized int size() {
+            expunge();
+            return mMap.size();
+        }
+
+        /**
+         * Returns the value, possibly Null, or null if not found.
+         */
+        synchronized Object get(Object key) {
+            expunge();
+            ValueRef ref = (ValueRef)mMap.get(key);
+            return (ref == null) ? null : ref.get();
+        }
+
+        synchronized boolean containsValue(Object value) {
+            expunge();
+            Iterator it = mMap.values().iterator();
+            while (it.hasNext()) {
+                Object v = ((ValueRef)it.next()).get();
+                if (v == null) {
+                    continue;
+                }
+                if (v instanceof Null) {
+                    if (value == null) {
+                        return true;
+                    }
+                }
+                else if (v.equals(value)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Returns the old value, possibly Null, or null if none.
+         *
+         * @param onlyIfAbsent when true, an existing value is not replaced
+         */
+        synchronized Object put(Object key, Object value,
+                                boolean onlyIfAbsent) {
+            expunge();
+            ValueRef ref = (ValueRef)mMap.get(key);
+            Object old = (ref == null) ? null : ref.get();
+            if (old != null && onlyIfAbsent) {
+                return old;
+            }
+            mMap.put(key, new ValueRef(key, value, mQueue));
+            return old;
+        }
+
+        synchronized Object remove(Object key) {
+            expunge();
+            ValueRef ref = (ValueRef)mMap.remove(key);
+            return (ref == null) ? null : ref.get();
+        }
+
+        synchronized void clear() {
+            mMap.clear();
+            while (mQueue.poll() != null);
+        }
+
+        /**
+         * Returns a snapshot of the live entries in this segment.
+         */
+        synchronized List entries() {
+            expunge();
+            List list = new ArrayList(mMap.size());
+            Iterator it = mMap.values().iterator();
+            while (it.hasNext()) {
+                ValueRef ref = (ValueRef)it.next();
+                Object value = ref.get();
+                if (value != null) {
+                    list.add(new Pair(ref.mKey, value));
+                }
+            }
+            return list;
+        }
+
+        /**
+         * Removes entries whose values have been reclaimed by the garbage
+         * collector. Caller must hold the segment lock.
+         */
+        private void expunge() {
+            Reference r;
+            while ((r = mQueue.poll()) != null) {
+                ValueRef ref = (ValueRef)r;
+                // Only remove if not already replaced by a new value.
+                if (mMap.get(ref.mKey) == ref) {
+                    mMap.remove(ref.mKey);
+                }
+            }
+        }
+    }
+
+    private class EntryIterator implements Iterator {
+        private final boolean mKeysOnly;
+        private int mSegmentIndex;
+        private Iterator mCurrent;
+        private Pair mLast;
+
+        EntryIterator(boolean keysOnly) {
+            mKeysOnly = keysOnly;
+        }
+
+        public boolean hasNext() {
+            while (mCurrent == null || !mCurrent.hasNext()) {
+                if (mSegmentIndex >= mSegments.length) {
+                    return false;
+                }
+                mCurrent = mSegments[mSegmentIndex++].entries().iterator();
+            }
+            return true;
+        }
+
+        public Object next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Pair pair = (Pair)mCurrent.next();
+            mLast = pair;
+            if (mKeysOnly) {
+                return pair.getFirst();
+            }
+            return new Entry(pair.getFirst(), pair.getSecond());
+        }
+
+        public void remove() {
+            if (mLast == null) {
+                throw new IllegalStateException();
+            }
+            ConcurrentCache.this.remove(mLast.getFirst());
+            mLast = null;
+        }
+    }
+
+    private class Entry extends AbstractMapEntry {
+        private final Object mKey;
+        private Object mValue;
+
+        Entry(Object key, Object value) {
+            mKey = key;
+            mValue = value;
+        }
+
+        public Object getKey() {
+            return mKey;
+        }
+
+        public Object getValue() {
+            return (mValue instanceof Null) ? null : mValue;
+        }
+
+        public Object setValue(Object value) {
+            Object old = getValue();
+            mValue = value;
+            put(mKey, value);
+            return old;
+        }
+    }
+}
@@ -82,6 +82,12 @@ import com.go.trove.util.tq.*;
  * {@link PerishablesFactory automatically}. This approach is based on a fixed
  * time expiration and is somewhat inflexible. An ideal invalidation strategy
  * requires asynchronous notification from the actual data providers.
+ * <p>
+ * At most one factory call is in flight for any key. Requesters that don't
+ * want to block may call {@link #getAsync getAsync}, which returns a
+ * {@link Handle} to the pending value. Perishable objects that are requested
+ * often can be {@link #setRefreshAhead refreshed ahead} of their expiration,
+ * in the background, so that they never become invalid.
  *
  * @author Brian S O'Neill
  * @version
@@ -98,13 +104,15 @@ public class Depot {
     final TransactionQueue mQueue;
     private final long mTimeout;
 
-    // Maps keys to Retrievers.
-    private final Map mRetrievers =
-        Collections.synchronizedMap(new SoftHashMap());
+    // Maps keys to Retrievers. Is replaced when the Depot is cleared.
+    private volatile ConcurrentCache mRetrievers = new ConcurrentCache();
 
     private final Object mExpireLock = new Object();
+    // Maps keys to Expirations.
     private Map mExpirations;
 
+    private double mRefreshAhead;
+
     /**
      * @param factory Default factory from which objects are obtained
      * @param validCache Map to use for caching valid objects
@@ -116,12 +124,11 @@ public class Depot {
     public Depot(Factory factory, Map validCache, Map invalidCache,
                  TransactionQueue tq, long timeout) {
         mDefaultFactory = factory;
-        mValidCache = Collections.synchronizedMap(validCache);
-        mInvalidCache = Collections.synchronizedMap(invalidCache);
+        mValidCache = synchronizedMap(validCache);
+        mInvalidCache = synchronizedMap(invalidCache);
         mKernel = new SimpleKernel();
         mQueue = tq;
         mTimeout = timeout;
-
     }
     
     /**
@@ -141,17 +148,17 @@ public class Depot {
             invalid = Utils.VOID_MAP;
         }
         else if (cacheSize > 0) {
-            valid = new Cache(cacheSize);
-            invalid = new Cache((Cache)valid);
+            valid = new ConcurrentCache(cacheSize);
+            invalid = new ConcurrentCache((ConcurrentCache)valid);
         }
         else {
-            valid = new SoftHashMap();
-            invalid = new SoftHashMap();
+            valid = new ConcurrentCache();
+            invalid = new ConcurrentCache();
         }
 
         mDefaultFactory = factory;
-        mValidCache = Collections.synchronizedMap(valid);
-        mInvalidCache = Collections.synchronizedMap(invalid);
+        mValidCache = synchronizedMap(valid);
+        mInvalidCache = synchronizedMap(invalid);
         mKernel = new SimpleKernel();
         mQueue = tq;
         mTimeout = timeout;
@@ -226,6 +233,35 @@ public class Depot {
     }
     */
     
+    /**
+     * Enables refresh-ahead of objects created by a
+     * {@link PerishablesFactory}. When a valid object is retrieved within
+     * the given fraction of its valid duration before it expires, the
+     * factory is called in the background to replace it. The current object
+     * is returned without waiting. Objects that are retrieved frequently
+     * are therefore replaced before they expire, and requesters never have
+     * to wait on the factory or fall back to an invalid object.
+     *
+     * @param fraction fraction of the valid duration, between 0.0 and 1.0.
+     * A value of 0.0 disables refresh-ahead, which is the default.
+     * @throws IllegalArgumentException if fraction is out of range
+     */
+    public void setRefreshAhead(double fraction) {
+        if (!(fraction >= 0.0 && fraction <= 1.0)) {
+            throw new IllegalArgumentException
+                ("Refresh-ahead fraction must be between 0.0 and 1.0: " +
+                 fraction);
+        }
+        mRefreshAhead = fraction;
+    }
+
+    /**
+     * Returns the refresh-ahead fraction, which is 0.0 if disabled.
+     */
+    public double getRefreshAhead() {
+        return mRefreshAhead;
+    }
+
     /**
      * Retrieve an object from the Depot. If the requested object is in the
      * cache of valid objects, it is returned immediately. If the object is
@@ -294,46 +330,19 @@ public class Depot {
         Retriever r = getRetriever(key);
         synchronized (r) {
             boolean priority;
-            Object value = mValidCache.get(key);
-            if (value != null || mValidCache.containsKey(key)) {
-                validTest: {
-                    if (value instanceof Perishable) {
-                        if (!((Perishable)value).isValid()) {
-                            break validTest;
-                        }
-                    }
-                    
-                    synchronized (mExpireLock) {
-                        if (mExpirations == null) {
-                            return value;
-                        }
-                        Long expire = (Long)mExpirations.get(key);
-                        if (expire == null ||
-                            System.currentTimeMillis() <= expire.longValue()) {
-                            // Value is still valid.
-                            return value;
-                        }
-                        
-                        // Value has expired.
-                        mExpirations.remove(key);
-                    }
-                }
-                
-                mValidCache.remove(key);
-                mInvalidCache.put(key, value);
-                
-                priority = false;
+            Object value = getValid(r, factory, key);
+            if (value != NOTHING) {
+                return value;
+            }
+
+            value = mInvalidCache.get(key);
+            if (value == null && !mInvalidCache.containsKey(key)) {
+                // Wait forever since not even an invalid value exists.
+                timeout = -1;
+                priority = true;
             }
             else {
-                value = mInvalidCache.get(key);
-                if (value == null && !mInvalidCache.containsKey(key)) {
-                    // Wait forever since not even an invalid value exists.
-                    timeout = -1;
-                    priority = true;
-                }
-                else {
-                    priority = false;
-                }
+                priority = false;
             }
             
             Object newValue = r.retrieve(factory, timeout, false);
@@ -341,6 +350,48 @@ public class Depot {
         }
     }
 
+    /**
+     * Retrieve an object from the Depot without blocking. If the requested
+     * object is in the cache of valid objects, the returned handle is
+     * already done. Otherwise, the factory is called in the background,
+     * unless a call for the same key is already in progress, in which case
+     * the returned handle shares its result.
+     *
+     * @param key key of object to retrieve
+     */
+    public Handle getAsync(Object key) {
+        return getAsync(mDefaultFactory, key);
+    }
+
+    /**
+     * Retrieve an object from the Depot without blocking. If the requested
+     * object is in the cache of valid objects, the returned handle is
+     * already done. Otherwise, the factory is called in the background,
+     * unless a call for the same key is already in progress, in which case
+     * the returned handle shares its result.
+     *
+     * @param factory factory to use to retrieve object if not cached
+     * @param key key of object to retrieve
+     */
+    public Handle getAsync(Factory factory, Object key) {
+        Retriever r = getRetriever(key);
+        synchronized (r) {
+            Object value = getValid(r, factory, key);
+            if (value != NOTHING) {
+                Pending done = new Pending(key, NOTHING);
+                done.complete(value);
+                return done;
+            }
+
+            value = mInvalidCache.get(key);
+            if (value == null && !mInvalidCache.containsKey(key)) {
+                value = NOTHING;
+            }
+
+            return r.retrieveAsync(factory, value);
+        }
+    }
+
     /**
      * Invalidate the object referenced by the given key, if it is already
      * cached in this Depot. Invalidated objects are not removed from the
@@ -430,31 +481,103 @@ public class Depot {
      * cached objects should absolutely never be used again.
      */
     public void clear() {
-        synchronized (mRetrievers) {
-            mKernel.clear();
-            mRetrievers.clear();
+        mKernel.clear();
+        // Replace the Retrievers once the caches are cleared. Requests that
+        // already hold a Retriever complete as if they started before the
+        // clear, and later requests cannot find one left over from it.
+        mRetrievers = new ConcurrentCache();
+    }
+
+    /**
+     * Returns the valid value for the given key, or NOTHING if not valid. If
+     * the value has expired, it is moved to the invalid cache. Caller must
+     * be synchronized on the Retriever.
+     */
+    private Object getValid(Retriever r, Factory factory, Object key) {
+        Object value = mValidCache.get(key);
+        if (value == null && !mValidCache.containsKey(key)) {
+            return NOTHING;
+        }
+
+        validTest: {
+            if (value instanceof Perishable) {
+                if (!((Perishable)value).isValid()) {
+                    break validTest;
+                }
+            }
+            
+            boolean refresh;
+            synchronized (mExpireLock) {
+                if (mExpirations == null) {
+                    return value;
+                }
+                Expiration exp = (Expiration)mExpirations.get(key);
+                if (exp == null) {
+                    return value;
+                }
+                long now = System.currentTimeMillis();
+                if (now > exp.mExpire) {
+                    // Value has expired.
+                    mExpirations.remove(key);
+                    break validTest;
+                }
+                refresh = now >= exp.mRefresh;
+            }
+
+            if (refresh && factory != null) {
+                // Value is still valid, but replace it in the background.
+                r.refresh(factory);
+            }
+
+            return value;
         }
+                
+        mValidCache.remove(key);
+        mInvalidCache.put(key, value);
+
+        return NOTHING;
     }
 
     void setExpiration(Object key, long duration) {
-        Long expire = new Long(System.currentTimeMillis() + duration);
+        long now = System.currentTimeMillis();
+        long refresh;
+        if (mRefreshAhead > 0.0) {
+            refresh = now + duration - (long)(duration * mRefreshAhead);
+        }
+        else {
+            refresh = Long.MAX_VALUE;
+        }
+        Expiration exp = new Expiration(now + duration, refresh);
         synchronized (mExpireLock) {
             if (mExpirations == null) {
                 mExpirations = new HashMap();
             }
-            mExpirations.put(key, expire);
+            mExpirations.put(key, exp);
         }
     }
 
     private Retriever getRetriever(Object key) {
-        synchronized (mRetrievers) {
-            Retriever r = (Retriever)mRetrievers.get(key);
-            if (r == null) {
-                r = new Retriever(key);
-                mRetrievers.put(key, r);
+        ConcurrentCache retrievers = mRetrievers;
+        Retriever r = (Retriever)retrievers.get(key);
+        if (r == null) {
+            r = new Retriever(key);
+            Retriever existing = (Retriever)retrievers.putIfAbsent(key, r);
+            if (existing != null) {
+                r = existing;
             }
-            return r;
         }
+        return r;
+    }
+
+    /**
+     * Wraps the given map to make it thread-safe, unless it already is.
+     */
+    private static Map synchronizedMap(Map map) {
+        return isConcurrent(map) ? map : Collections.synchronizedMap(map);
+    }
+
+    private static boolean isConcurrent(Map map) {
+        return map instanceof ConcurrentCache || map == Utils.VOID_MAP;
     }
 
     /**
@@ -507,6 +630,60 @@ public class Depot {
         public boolean isValid();
     }
 
+    /**
+     * A handle to an object that is being retrieved by
+     * {@link Depot#getAsync getAsync}.
+     */
+    public interface Handle {
+        /**
+         * Returns the key of the object being retrieved.
+         */
+        public Object getKey();
+
+        /**
+         * Returns true if the factory has finished, and so calling get will
+         * not block.
+         */
+        public boolean isDone();
+
+        /**
+         * Waits for the factory to finish and returns the object it created.
+         * If the factory aborted, the invalid object is returned instead, or
+         * null if none.
+         */
+        public Object get() throws InterruptedException;
+
+        /**
+         * Waits for the factory to finish and returns the object it created.
+         * If the factory aborted or if the timeout elapsed, the invalid
+         * object is returned instead, or null if none.
+         *
+         * @param timeout max time (in milliseconds) to wait, if negative,
+         * wait forever
+         */
+        public Object get(long timeout) throws InterruptedException;
+
+        /**
+         * Adds a callback that is invoked when the factory has finished. If
+         * already finished, the callback is invoked immediately in the
+         * calling thread. Otherwise, it is invoked by the thread that ran
+         * the factory.
+         */
+        public void addCallback(Callback callback);
+    }
+
+    /**
+     * Receives notification that a {@link Handle} is done.
+     */
+    public interface Callback {
+        /**
+         * @param key key of retrieved object
+         * @param value object created by the factory, or the invalid object
+         * if the factory aborted, or null if none
+         */
+        public void done(Object key, Object value);
+    }
+
     public interface Filter {
         /**
          * Returns true if the given key should be included in an operation,
@@ -589,60 +766,198 @@ public class Depot {
         }
         
         public void invalidateAll(Filter filter) {
-            Map valid = mValidCache;
-            Map invalid = mInvalidCache;
-            synchronized (valid) {
-                Iterator it = valid.entrySet().iterator();
-                while (it.hasNext()) {
-                    Map.Entry entry = (Map.Entry)it.next();
-                    Object key = entry.getKey();
-                    if (filter.accept(key)) {
-                        it.remove();
-                        invalid.put(key, entry.getValue());
-                    }
+            if (isConcurrent()) {
+                moveToInvalid(filter);
+            }
+            else {
+                synchronized (mValidCache) {
+                    moveToInvalid(filter);
                 }
             }
         }
         
         public void invalidateAll() {
-            synchronized (mValidCache) {
-                synchronized (mInvalidCache) {
-                    mInvalidCache.putAll(mValidCache);
-                    mValidCache.clear();
+            if (isConcurrent()) {
+                moveToInvalid(null);
+            }
+            else {
+                synchronized (mValidCache) {
+                    synchronized (mInvalidCache) {
+                        moveToInvalid(null);
+                    }
                 }
             }
         }
         
         public void removeAll(Filter filter) {
-            Map valid = mValidCache;
+            if (isConcurrent()) {
+                remove(mValidCache, filter);
+                remove(mInvalidCache, filter);
+            }
+            else {
+                synchronized (mValidCache) {
+                    synchronized (mInvalidCache) {
+                        remove(mValidCache, filter);
+                        remove(mInvalidCache, filter);
+                    }
+                }
+            }
+        }
+
+        public void clear() {
+            if (isConcurrent()) {
+                mValidCache.clear();
+                mInvalidCache.clear();
+            }
+            else {
+                synchronized (mValidCache) {
+                    synchronized (mInvalidCache) {
+                        mValidCache.clear();
+                        mInvalidCache.clear();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Returns true if the caches can be iterated without locking them.
+         * The locks of a ConcurrentCache are internal, and so synchronizing
+         * on it would not exclude anything.
+         */
+        private boolean isConcurrent() {
+            return Depot.isConcurrent(mValidCache) &&
+                Depot.isConcurrent(mInvalidCache);
+        }
+
+        /**
+         * Moves entries accepted by the filter, or all entries if null, one
+         * at a time, since a concurrent cache may receive new entries while
+         * they are being moved.
+         */
+        private void moveToInvalid(Filter filter) {
             Map invalid = mInvalidCache;
-            synchronized (valid) {
-                synchronized (invalid) {
-                    Iterator it = valid.keySet().iterator();
-                    while (it.hasNext()) {
-                        Object key = it.next();
-                        if (filter.accept(key)) {
-                            it.remove();
-                        }
+            Iterator it = mValidCache.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry entry = (Map.Entry)it.next();
+                Object key = entry.getKey();
+                if (filter == null || filter.accept(key)) {
+                    it.remove();
+                    invalid.put(key, entry.getValue());
+                }
+            }
+        }
+
+        private void remove(Map cache, Filter filter) {
+            Iterator it = cache.keySet().iterator();
+            while (it.hasNext()) {
+                if (filter.accept(it.next())) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private static class Expiration {
+        final long mExpire;
+        final long mRefresh;
+
+        Expiration(long expire, long refresh) {
+            mExpire = expire;
+            mRefresh = refresh;
+        }
+    }
+
+    private static class Pending implements Handle {
+        private final Object mKey;
+        private final Object mInvalid;
+        private Object mValue;
+        private boolean mDone;
+        private List mCallbacks;
+
+        /**
+         * @param invalid invalid value to fall back on, or NOTHING if none
+         */
+        Pending(Object key, Object invalid) {
+            mKey = key;
+            mInvalid = invalid;
+        }
+
+        public Object getKey() {
+            return mKey;
+        }
+
+        public synchronized boolean isDone() {
+            return mDone;
+        }
+
+        public Object get() throws InterruptedException {
+            return get(-1);
+        }
+
+        public synchronized Object get(long timeout)
+            throws InterruptedException
+        {
+            if (!mDone) {
+                if (timeout < 0) {
+                    while (!mDone) {
+                        wait();
                     }
-                    it = invalid.keySet().iterator();
-                    while (it.hasNext()) {
-                        Object key = it.next();
-                        if (filter.accept(key)) {
-                            it.remove();
+                }
+                else if (timeout > 0) {
+                    long end = System.currentTimeMillis() + timeout;
+                    while (!mDone) {
+                        wait(timeout);
+                        timeout = end - System.currentTimeMillis();
+                        if (timeout <= 0) {
+                            break;
                         }
                     }
                 }
             }
+            return result();
         }
 
-        public void clear() {
-            synchronized (mValidCache) {
-                synchronized (mInvalidCache) {
-                    mValidCache.clear();
-                    mInvalidCache.clear();
+        public void addCallback(Callback callback) {
+            Object value;
+            synchronized (this) {
+                if (!mDone) {
+                    if (mCallbacks == null) {
+                        mCallbacks = new ArrayList(2);
+                    }
+                    mCallbacks.add(callback);
+                    return;
                 }
+                value = result();
             }
+            callback.done(mKey, value);
+        }
+
+        /**
+         * @param value value from factory, or NOTHING if aborted
+         */
+        void complete(Object value) {
+            List callbacks;
+            synchronized (this) {
+                if (mDone) {
+                    return;
+                }
+                mValue = value;
+                mDone = true;
+                notifyAll();
+                callbacks = mCallbacks;
+                mCallbacks = null;
+                value = result();
+            }
+            if (callbacks != null) {
+                for (int i=0; i<callbacks.size(); i++) {
+                    ((Callback)callbacks.get(i)).done(mKey, value);
+                }
+            }
+        }
+
+        private Object result() {
+            Object value = (mDone && mValue != NOTHING) ? mValue : mInvalid;
+            return (value == NOTHING) ? null : value;
         }
     }
 
@@ -650,6 +965,8 @@ public class Depot {
         private final Object mKey;
         private Factory mFactory;
         private Object mValue;
+        // Handle of the factory call in progress, if any.
+        private Pending mPending;
 
         Retriever(Object key) {
             mKey = key;
@@ -688,10 +1005,66 @@ public class Depot {
             return NOTHING;
         }
 
-        public synchronized void bypassValue(Object value) {
+        /**
+         * Returns a handle to the value being retrieved, starting a factory
+         * call if none is in progress.
+         *
+         * @param invalid invalid value to fall back on, or NOTHING if none
+         */
+        public synchronized Handle retrieveAsync(Factory factory,
+                                                 Object invalid)
+        {
             if (mFactory != null) {
+                // Work in progress to retrieve new value.
+                if (mPending == null) {
+                    mPending = new Pending(mKey, invalid);
+                }
+                return mPending;
+            }
+
+            if ((mFactory = factory) == null) {
+                throw new NullPointerException("Factory is null");
+            }
+
+            Pending pending = new Pending(mKey, invalid);
+            mPending = pending;
+
+            if (!mQueue.enqueue(this)) {
+                // No threads available in TQ to retrieve new value.
+                mFactory = null;
+                mPending = null;
+                pending.complete(NOTHING);
+            }
+
+            return pending;
+        }
+
+        /**
+         * Starts a factory call in the background to replace a value that
+         * is still valid, unless one is already in progress.
+         */
+        public synchronized void refresh(Factory factory) {
+            if (mFactory == null) {
+                mFactory = factory;
+                if (!mQueue.enqueue(this)) {
+                    // Try again on a later request.
+                    mFactory = null;
+                }
+            }
+        }
+
+        public void bypassValue(Object value) {
+            Pending pending;
+            synchronized (this) {
+                if (mFactory == null) {
+                    return;
+                }
                 mValue = value;
                 notifyAll();
+                pending = takePending();
+            }
+            if (pending != null) {
+                pending.complete(value);
             }
         }
 
@@ -719,6 +1092,7 @@ public class Depot {
                 finally {
                     t.setName(originalName);
                 }
+                Pending pending;
                 synchronized (this) {
                     mValue = value;
                     if (factory instanceof PerishablesFactory) {
@@ -740,6 +1114,10 @@ public class Depot {
                     }
                     mFactory = null;
                     notifyAll();
+                    pending = takePending();
+                }
+                if (pending != null) {
+                    pending.complete(value);
                 }
             }
             finally {
@@ -751,13 +1129,30 @@ public class Depot {
             done();
         }
         
-        private synchronized void done() {
-            if (mFactory != null) {
-                mFactory = null;
-                notifyAll();
+        private void done() {
+            Pending pending;
+            synchronized (this) {
+                if (mFactory != null) {
+                    mFactory = null;
+                    notifyAll();
+                }
+                pending = takePending();
+            }
+            if (pending != null) {
+                // Factory aborted, so fall back to invalid value.
+                pending.complete(NOTHING);
             }
         }
 
+        /**
+         * Caller must be synchronized on this Retriever.
+         */
+        private Pending takePending() {
+            Pending pending = mPending;
+            mPending = null;
+            return pending;
+        }
+
         private Object waitForValue(long timeout) {
             if (timeout == 0) {
                 return mValue;
@@ -158,16 +158,16 @@ public class LocalConferenceImpl implements UbercacheConference,
                 invalid = Utils.VOID_MAP;
             }
             else if (cacheSize > 0) {
-                valid = new Cache(cacheSize);
-                invalid = new Cache((Cache)valid);
+                valid = new ConcurrentCache(cacheSize);
+                invalid = new ConcurrentCache((ConcurrentCache)valid);
             }
             else {
-                valid = new SoftHashMap();
-                invalid = new SoftHashMap();
+                valid = new ConcurrentCache();
+                invalid = new ConcurrentCache();
             }   
             
-            mValidCache = Collections.synchronizedMap(valid);
-            mInvalidCache = Collections.synchronizedMap(invalid);
+            mValidCache = valid;
+            mInvalidCache = invalid;
         }
 
         public Map validCache() {
@@ -204,10 +204,14 @@ public class LocalConferenceImpl implements UbercacheConference,
         }
         
         public void invalidateAll() {
-            synchronized (mValidCache) {
-                synchronized (mInvalidCache) {
-                    mInvalidCache.putAll(mValidCache);
-                    mValidCache.clear();
+            Map valid = mValidCache;
+            Map invalid = mInvalidCache;
+            synchronized (valid) {
+                Iterator it = valid.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry entry = (Map.Entry)it.next();
+                    it.remove();
+                    invalid.put(entry.getKey(), entry.getValue());
                 }
             }
         }
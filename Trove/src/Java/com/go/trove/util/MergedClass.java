@@ -54,6 +54,8 @@ package com.go.trove.util;
 
 import java.lang.reflect.*;
 import java.util.*;
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
 import java.io.OutputStream;
 import java.io.IOException;
 import com.go.trove.classfile.*;
@@ -84,6 +86,10 @@ public class MergedClass {
     // reclaimed by the garbage collector.
     private static Map cMergedMap;
 
+    // Maps merged classes to weakly referenced Factory instances. The values
+    // are weak because factories refer to the merged classes.
+    private static Map cFactoryMap = new WeakHashMap(7);
+
     static {
         try {
             cMergedMap = new IdentityMap(7);
@@ -253,6 +259,83 @@ public class MergedClass {
         }
     }
 
+    /**
+     * Returns a factory for the same merged class whose constructor is
+     * returned by {@link #getConstructor2(ClassInjector, Class[], String[])}.
+     * The factory is generated code which invokes the constructor directly,
+     * and so creating instances with it avoids reflection.
+     *
+     * @param injector ClassInjector that will receive class definition
+     * @param classes Source classes used to derive merged class
+     * @param prefixes Optional prefixes to apply to methods of each generated
+     * class to eliminate duplicate method names
+     */
+    public static Factory getFactory2(ClassInjector injector,
+                                      Class[] classes,
+                                      String[] prefixes)
+        throws IllegalArgumentException
+    {
+        Class clazz = getMergedClass(injector, classes, prefixes);
+
+        synchronized (cFactoryMap) {
+            Reference ref = (Reference)cFactoryMap.get(clazz);
+            Factory factory;
+            if (ref == null || (factory = (Factory)ref.get()) == null) {
+                factory = createFactory(injector, clazz);
+                cFactoryMap.put(clazz, new WeakReference(factory));
+            }
+            return factory;
+        }
+    }
+
+    private static Factory createFactory(ClassInjector injector,
+                                         Class merged)
+    {
+        String factoryName = merged.getName() + "$Factory";
+        try {
+            return (Factory)injector.loadClass(factoryName).newInstance();
+        }
+        catch (ClassNotFoundException e) {
+        }
+        catch (Exception e) {
+            throw new InternalError(e.toString());
+        }
+
+        ClassFile cf = new ClassFile(factoryName);
+        cf.getModifiers().setFinal(true);
+        cf.markSynthetic();
+        cf.addInterface(Factory.class);
+        cf.addDefaultConstructor();
+
+        TypeDesc mergedType = TypeDesc.forClass(merged);
+        TypeDesc instanceFactoryType =
+            TypeDesc.forClass(InstanceFactory.class);
+
+        Modifiers publicAccess = new Modifiers();
+        publicAccess.setPublic(true);
+        MethodInfo mi = cf.addMethod
+            (publicAccess, "newInstance", TypeDesc.OBJECT,
+             new TypeDesc[]{instanceFactoryType});
+        CodeBuilder builder = new CodeBuilder(mi);
+        builder.newObject(mergedType);
+        builder.dup();
+        builder.loadLocal(builder.getParameters()[0]);
+        builder.invokeConstructor(merged.getName(),
+                                  new TypeDesc[]{instanceFactoryType});
+        builder.returnValue(TypeDesc.OBJECT);
+
+        try {
+            OutputStream stream = injector.getStream(cf.getClassName());
+            cf.writeTo(stream);
+            stream.close();
+            return (Factory)injector.loadClass(cf.getClassName())
+                .newInstance();
+        }
+        catch (Exception e) {
+            throw new InternalError(e.toString());
+        }
+    }
+
     private static Class getMergedClass(ClassInjector injector,
                                         Class[] classes,
                                         String[] prefixes)
@@ -762,6 +845,19 @@ public class MergedClass {
         public Object getInstance(int index);
     }
 
+    /**
+     * Factory creates merged class instances without using reflection.
+     *
+     * @see MergedClass#getFactory2
+     */
+    public interface Factory {
+        /**
+         * Returns a new merged class instance which requests merged
+         * instances from the given InstanceFactory when first needed.
+         */
+        public Object newInstance(InstanceFactory factory);
+    }
+
     private static class ClassEntry {
         private final Class mClazz;
         private final String mPrefix;
@@ -0,0 +1,511 @@
+/* ====================================================================
+ * Trove - Copyright (c) 1997-2000 Walt Disney Internet Group
+ * ====================================================================
+ * The Tea Software License, Version 1.1
+ *
+ * Copyright (c) 2000 Walt Disney Internet Group. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *        Walt Disney Internet Group (http://opensource.go.com/)."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Tea", "TeaServlet", "Kettle", "Trove" and "BeanDoc" must
+ *    not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact opensource@dig.com.
+ *
+ * 5. Products derived from this software may not be called "Tea",
+ *    "TeaServlet", "Kettle" or "Trove", nor may "Tea", "TeaServlet",
+ *    "Kettle", "Trove" or "BeanDoc" appear in their name, without prior
+ *    written permission of the Walt Disney Internet Group.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE WALT DISNEY INTERNET GROUP OR ITS
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ *
+ * For more information about Tea, please see http://opensource.go.com/.
+ */
+
+package com.go.trove.util;
+
+/******************************************************************************
+ * A ReadWriteLock for locks that are mostly acquired for reading. It has the
+ * same re-entrant and writer priority semantics as {@link SecureReadWriteLock},
+ * but read locks are counted in several stripes, each with its own monitor.
+ * Threads are assigned to stripes in turn, so threads that only read rarely
+ * contend with each other. Acquiring a write lock is more expensive, as it
+ * must examine every stripe.
+ * <p>
+ * As with SecureReadWriteLock, a thread can only release as many locks as
+ * it has acquired, and IllegalStateExceptions are thrown when a thread
+ * attempts to acquire a lock in a fashion that is deadlock prone.
+ *
+ * @author Brian S O'Neill
+ * @version
+ * <!--$$Revision$-->, <!--$$JustDate:--> <!-- $-->
+ */
+public final class StripedReadWriteLock implements ReadWriteLock {
+    private static final Stripe[] createStripes() {
+        int count = Runtime.getRuntime().availableProcessors() * 2;
+        int length = 2;
+        while (length < count && length < 64) {
+            length <<= 1;
+        }
+        Stripe[] stripes = new Stripe[length];
+        for (int i=0; i<length; i++) {
+            stripes[i] = new Stripe();
+        }
+        return stripes;
+    }
+
+    private final long mTimeout;
+
+    private final Stripe[] mStripes = createStripes();
+    private int mNextStripe;
+
+    // Is true when a write lock is held or requested. Read locks are then
+    // only granted to threads that already hold a lock. Is only changed while
+    // synchronized on this, and is read while synchronized on a Stripe.
+    private volatile boolean mWriteIntent;
+
+    // The thread (if any) that holds the upgradable lock.
+    private Thread mUpgradableLockHeld;
+
+    // The thread (if any) that holds the write lock.
+    private Thread mWriteLockHeld;
+
+    // The count of threads attempting to acquire write locks.
+    private int mWriteLockAttempts;
+
+    private final ThreadLocal mLockInfoRef = new LockInfoRef();
+
+    /**
+     * Constructs a StripedReadWriteLock with an infinite default timeout.
+     */
+    public StripedReadWriteLock() {
+        mTimeout = -1;
+    }
+
+    /**
+     * Constructs a StripedReadWriteLock with the given default timeout. If
+     * negative, the timeout is infinite.
+     */
+    public StripedReadWriteLock(long timeout) {
+        mTimeout = timeout;
+    }
+
+    /**
+     * Same as calling acquireReadLock(getDefaultTimeout()).
+     */
+    public void acquireReadLock() throws InterruptedException {
+        acquireReadLock(mTimeout);
+    }
+
+    /**
+     * A read lock is obtained when no threads currently hold or are waiting
+     * for a write lock. When a thread has a read lock, it only blocks threads
+     * that wish to acquire a write lock.
+     *
+     * @param timeout milliseconds to wait for lock acquisition. If negative,
+     * timeout is infinite.
+     * @return true if the lock was acquired.
+     */
+    public boolean acquireReadLock(long timeout) throws InterruptedException {
+        LockInfo info = (LockInfo)mLockInfoRef.get();
+
+        if (info.mType == NONE) {
+            Stripe stripe = info.mStripe;
+            long expire = (timeout > 0) ?
+                (System.currentTimeMillis() + timeout) : 0;
+            while (true) {
+                synchronized (stripe) {
+                    if (!mWriteIntent) {
+                        stripe.mReadLocks++;
+                        break;
+                    }
+                }
+                // Slow path, wait for writers to finish and then try again.
+                synchronized (this) {
+                    if (mWriteIntent) {
+                        if (timeout < 0) {
+                            wait();
+                        }
+                        else {
+                            if (timeout > 0) {
+                                timeout = expire - System.currentTimeMillis();
+                            }
+                            if (timeout <= 0) {
+                                return false;
+                            }
+                            wait(timeout);
+                        }
+                    }
+                }
+            }
+            info.mType = READ;
+        }
+
+        info.mCount++;
+        return true;
+    }
+
+    /**
+     * Same as calling acquireUpgradableLock(getDefaultTimeout()).
+     */
+    public void acquireUpgradableLock()
+        throws InterruptedException, IllegalStateException
+    {
+        acquireUpgradableLock(mTimeout);
+    }
+
+    /**
+     * An upgradable lock is obtained when no threads currently hold write or
+     * upgradable locks. When a thread has an upgradable lock, it blocks 
+     * threads that wish to acquire upgradable or write locks. To perform an
+     * upgrade, call acquireWriteLock while the upgradable lock is still held.
+     *
+     * @param timeout milliseconds to wait for lock acquisition. If negative,
+     * timeout is infinite.
+     * @return true if the lock was acquired.
+     * @throws IllegalStateException if thread holds a read lock.
+     * @see SecureReadWriteLock#acquireUpgradableLock(long)
+     */
+    public boolean acquireUpgradableLock(long timeout)
+        throws InterruptedException, IllegalStateException
+    {
+        LockInfo info = (LockInfo)mLockInfoRef.get();
+        int type = info.mType;
+
+        if (type == READ) {
+            throw new IllegalStateException
+                ("Cannot acquire an upgradable lock while thread holds " +
+                 "only a read lock.");
+        }
+
+        if (type == NONE) {
+            synchronized (this) {
+                if (!upgradableLockAvailable()) {
+                    if (timeout < 0) {
+                        while (true) {
+                            wait();
+                            if (upgradableLockAvailable()) {
+                                break;
+                            }
+                        }
+                    }
+                    else if (timeout > 0) {
+                        long expire = System.currentTimeMillis() + timeout;
+                        while (true) {
+                            wait(timeout);
+                            if (upgradableLockAvailable()) {
+                                break;
+                            }
+                            timeout = expire - System.currentTimeMillis();
+                            if (timeout <= 0) {
+                                return false;
+                            }
+                        }
+                    }
+                    else {
+                        return false;
+                    }
+                }
+                mUpgradableLockHeld = Thread.currentThread();
+            }
+            info.mType = UPGRADABLE;
+        }     
+
+        info.mCount++;
+        return true;
+    }
+
+    /**
+     * Same as calling acquireWriteLock(getDefaultTimeout()).
+     */
+    public void acquireWriteLock()
+        throws InterruptedException, IllegalStateException
+    {
+        acquireWriteLock(mTimeout);
+    }
+
+    /**
+     * A write lock is obtained only when there are no read, upgradable or 
+     * write locks held by any other thread. When a thread has a write lock,
+     * it blocks any thread that wishes to acquire any kind of lock. Requests
+     * for write locks are granted the highest priority.
+     *
+     * @param timeout milliseconds to wait for lock acquisition. If negative,
+     * timeout is infinite.
+     * @return true if the lock was acquired.
+     * @throws IllegalStateException if thread holds a read lock.
+     */
+    public boolean acquireWriteLock(long timeout)
+        throws InterruptedException, IllegalStateException
+    {
+        LockInfo info = (LockInfo)mLockInfoRef.get();
+        int type = info.mType;
+
+        if (type == READ) {
+            throw new IllegalStateException
+                ("Cannot acquire a write lock while thread holds " + 
+                 "only a read lock. " +
+                 "Use an upgradable lock instead of a read lock.");
+        }
+
+        if (type != WRITE) {
+            synchronized (this) {
+                // Stop new readers before checking for existing ones.
+                mWriteLockAttempts++;
+                mWriteIntent = true;
+                boolean acquired = false;
+                try {
+                    if (!writeLockAvailable(type)) {
+                        if (timeout < 0) {
+                            do {
+                                wait();
+                            } while (!writeLockAvailable(type));
+                        }
+                        else if (timeout > 0) {
+                            long expire =
+                                System.currentTimeMillis() + timeout;
+                            while (true) {
+                                wait(timeout);
+                                if (writeLockAvailable(type)) {
+                                    break;
+                                }
+                                timeout = expire - System.currentTimeMillis();
+                                if (timeout <= 0) {
+                                    return false;
+                                }
+                            }
+                        }
+                        else {
+                            return false;
+                        }
+                    }
+                    acquired = true;
+                }
+                finally {
+                    mWriteLockAttempts--;
+                    if (acquired) {
+                        mWriteLockHeld = Thread.currentThread();
+                    }
+                    else {
+                        updateWriteIntent();
+                        notifyAll();
+                    }
+                }
+            }
+            if (type == UPGRADABLE) {
+                // Save the count before upgrade, which will be used when
+                // the lock is released.
+                info.mUpgradeCount = info.mCount;
+            }
+            info.mType = WRITE;
+        }
+        
+        info.mCount++;
+        return true;
+    }
+
+    /**
+     * Release the lock held by the current thread.
+     *
+     * @return false if this thread doesn't hold a lock.
+     */
+    public boolean releaseLock() {
+        LockInfo info = (LockInfo)mLockInfoRef.get();
+        int type = info.mType;
+        int count = info.mCount;
+        if (count > 0) {
+            count--;
+        }
+        else {
+            info.mType = type = NONE;
+            count = 0;
+        }
+
+        if ((info.mCount = count) == 0) {
+            switch (type) {
+            case NONE: default:
+                return false;
+
+            case READ:
+                Stripe stripe = info.mStripe;
+                boolean notify;
+                synchronized (stripe) {
+                    notify = --stripe.mReadLocks == 0 && mWriteIntent;
+                }
+                if (notify) {
+                    // A writer may be waiting for the last reader.
+                    synchronized (this) {
+                        notifyAll();
+                    }
+                }
+                break;
+
+            case UPGRADABLE:
+                synchronized (this) {
+                    mUpgradableLockHeld = null;
+                    notifyAll();
+                }
+                break;
+
+            case WRITE:
+                synchronized (this) {
+                    mWriteLockHeld = null;
+                    if (info.mUpgradeCount > 0) {
+                        // Upgraded lock is released all at once.
+                        mUpgradableLockHeld = null;
+                        info.mUpgradeCount = 0;
+                    }
+                    updateWriteIntent();
+                    notifyAll();
+                }
+                break;
+            }
+
+            info.mType = NONE;
+        }
+        else if (type == WRITE && info.mUpgradeCount == count) {
+            // Convert write lock back into an upgradable lock.
+            info.mType = UPGRADABLE;
+            info.mUpgradeCount = 0;
+            synchronized (this) {
+                mWriteLockHeld = null;
+                updateWriteIntent();
+                notifyAll();
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the default timeout used for acquiring locks. If negative,
+     * the timeout is infinite.
+     */
+    public long getDefaultTimeout() {
+        return mTimeout;
+    }
+
+    /**
+     * Returns the lock type held by the calling thread, which is
+     * NONE, READ, UPGRADABLE, or WRITE.
+     */
+    public int getLockType() {
+        return ((LockInfo)mLockInfoRef.get()).mType;
+    }
+
+    /**
+     * Returns the number of times this thread has acquired a lock. The
+     * releaseLock method would need be called this many times to release all
+     * the locks.
+     */
+    public int getLockAcquisitions() {
+        return ((LockInfo)mLockInfoRef.get()).mCount;
+    }
+
+    /**
+     * Returns the number of threads that hold read locks.
+     */
+    public int getReadLocksHeld() {
+        int count = 0;
+        Stripe[] stripes = mStripes;
+        for (int i=0; i<stripes.length; i++) {
+            synchronized (stripes[i]) {
+                count += stripes[i].mReadLocks;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the thread (if any) that is holding the upgradable lock. It
+     * can be interrupted to stop a deadlock.
+     */
+    public synchronized Thread getUpgradableLockHeld() {
+        return mUpgradableLockHeld;
+    }
+
+    /**
+     * Returns the thread (if any) that is holding the write lock. It can be
+     * interrupted to stop a deadlock.
+     */
+    public synchronized Thread getWriteLockHeld() {
+        return mWriteLockHeld;
+    }
+
+    public synchronized String toString() {
+        return super.toString() + '[' + getReadLocksHeld() + ',' +
+            mUpgradableLockHeld + ',' + mWriteLockHeld + ']';
+    }
+
+    // Caller must be synchronized.
+    private void updateWriteIntent() {
+        mWriteIntent = mWriteLockHeld != null || mWriteLockAttempts > 0;
+    }
+
+    // Caller must be synchronized.
+    private boolean upgradableLockAvailable() {
+        return !mWriteIntent && mUpgradableLockHeld == null;
+    }
+
+    // Caller must be synchronized.
+    private boolean writeLockAvailable(int type) {
+        if (mWriteLockHeld != null ||
+            (type != UPGRADABLE && mUpgradableLockHeld != null)) {
+            return false;
+        }
+        return getReadLocksHeld() == 0;
+    }
+
+    private synchronized Stripe nextStripe() {
+        return mStripes[mNextStripe++ & (mStripes.length - 1)];
+    }
+
+    private static final class Stripe {
+        // The count of threads in this stripe holding read locks.
+        int mReadLocks;
+    }
+
+    private static final class LockInfo {
+        int mType = NONE;
+        int mCount;
+        // The lock count when the lock was upgraded to a write lock.
+        int mUpgradeCount;
+        Stripe mStripe;
+    }
+
+    private final class LockInfoRef extends ThreadLocal {
+        protected Object initialValue() {
+            LockInfo info = new LockInfo();
+            info.mStripe = nextStripe();
+            return info;
+        }
+    }
+}
@@ -53,6 +53,8 @@
 package com.go.trove.util;
 
 import java.util.*;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 
 /******************************************************************************
  * A ThreadPool contains a collection of re-usable threads. There is a slight
@@ -60,12 +62,55 @@ import java.util.*;
  * improve performance in systems that create short-lived threads. Pooled
  * threads operate on Runnable targets and return back to the pool when the
  * Runnable.run method exits.
+ * <p>
+ * When running on a Java runtime that supports virtual threads, a ThreadPool
+ * can instead start each Runnable in a new virtual thread. Virtual threads
+ * are not pooled, and the maximum allowed number of threads limits how many
+ * can run at once. A thread blocked on I/O then costs very little, and so the
+ * maximum can be much larger. Virtual mode is enabled by calling
+ * {@link #setVirtual}, or for all ThreadPools by setting the system property
+ * "com.go.trove.util.ThreadPool.VIRTUAL" to true.
  *
  * @author Brian S O'Neill
  * @version
  * <!--$$Revision$-->, <!--$$JustDate:--> 01/09/07 <!-- $-->
  */
 public class ThreadPool extends ThreadGroup {
+    private static final boolean VIRTUAL_DEFAULT =
+        Boolean.getBoolean("com.go.trove.util.ThreadPool.VIRTUAL");
+
+    // Thread.ofVirtual() and Thread.Builder.unstarted(Runnable), or null if
+    // the Java runtime doesn't support virtual threads.
+    private static final Method cOfVirtual;
+    private static final Method cUnstarted;
+
+    static {
+        Method ofVirtual, unstarted;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual", (Class[])null);
+            unstarted = Class.forName("java.lang.Thread$Builder").getMethod
+                ("unstarted", new Class[] {Runnable.class});
+
+            // The methods exist as a preview feature in some runtimes, but
+            // fail unless it is enabled. Start one thread to be sure.
+            Runnable probe = new Runnable() {
+                public void run() {
+                }
+            };
+            Thread thread = (Thread)unstarted.invoke
+                (ofVirtual.invoke(null, (Object[])null),
+                 new Object[] {probe});
+            thread.start();
+            thread.join();
+        }
+        catch (Exception e) {
+            ofVirtual = null;
+            unstarted = null;
+        }
+        cOfVirtual = ofVirtual;
+        cUnstarted = unstarted;
+    }
+
     private static int cThreadID;
 
     private synchronized static int nextThreadID() {
@@ -90,6 +135,9 @@ public class ThreadPool extends ThreadGroup {
     private boolean mDaemon;
     private int mPriority;
     private boolean mClosed;
+    private boolean mVirtual;
+    // Virtual threads that are running, which aren't in this ThreadGroup.
+    private Set mVirtualThreads;
 
     /**
      * Create a ThreadPool of daemon threads.
@@ -167,6 +215,18 @@ public class ThreadPool extends ThreadGroup {
         mClosed = false;
 
         mPool = new LinkedList();
+        mVirtualThreads = new HashSet();
+
+        if (VIRTUAL_DEFAULT) {
+            setVirtual(true);
+        }
+    }
+
+    /**
+     * Returns true if the Java runtime supports virtual threads.
+     */
+    public static boolean isVirtualThreadSupported() {
+        return cUnstarted != null;
     }
 
     /**
@@ -241,6 +301,29 @@ public class ThreadPool extends ThreadGroup {
         }
     }
 
+    /**
+     * Returns true if Runnables are started in new virtual threads instead
+     * of pooled threads.
+     */
+    public boolean isVirtual() {
+        synchronized (mPool) {
+            return mVirtual;
+        }
+    }
+
+    /**
+     * When set to true, Runnables started afterwards each run in a new
+     * virtual thread, and the maximum allowed number of threads limits how
+     * many run at once. Virtual threads are always daemon threads, and they
+     * don't use the pool priority. This setting is ignored if the Java
+     * runtime doesn't support virtual threads.
+     */
+    public void setVirtual(boolean virtual) {
+        synchronized (mPool) {
+            mVirtual = virtual && isVirtualThreadSupported();
+        }
+    }
+
     /**
      * @return The maximum allowed number of threads.
      */
@@ -251,10 +334,14 @@ public class ThreadPool extends ThreadGroup {
     }
 
     /**
-     * @return The number of currently available threads in the pool.
+     * @return The number of currently available threads in the pool. In
+     * virtual mode, this is the number of additional threads that may start.
      */
     public int getAvailableCount() {
         synchronized (mPool) {
+            if (mVirtual) {
+                return mMax - mActive;
+            }
             return mPool.size();
         }
     }
@@ -283,12 +370,20 @@ public class ThreadPool extends ThreadGroup {
         int count = activeCount();
         Thread[] threads = new Thread[count];
         count = enumerate(threads);
-        if (count >= threads.length) {
+
+        Thread[] virtual;
+        synchronized (mPool) {
+            virtual = new Thread[mVirtualThreads.size()];
+            mVirtualThreads.toArray(virtual);
+        }
+
+        if (count >= threads.length && virtual.length == 0) {
             return sort(threads);
         }
         else {
-            Thread[] newThreads = new Thread[count];
+            Thread[] newThreads = new Thread[count + virtual.length];
             System.arraycopy(threads, 0, newThreads, 0, count);
+            System.arraycopy(virtual, 0, newThreads, count, virtual.length);
             return sort(newThreads);
         }
     }
@@ -408,6 +503,10 @@ public class ThreadPool extends ThreadGroup {
     private Thread start0(Runnable target, long timeout, String name) 
         throws NoThreadException, InterruptedException
     {
+        if (isVirtual()) {
+            return startVirtual(target, timeout, name);
+        }
+
         PooledThread thread;
 
         while (true) {
@@ -540,6 +639,17 @@ public class ThreadPool extends ThreadGroup {
         }
 
         interrupt();
+
+        // Virtual threads aren't in this ThreadGroup, and so they must be
+        // interrupted individually.
+        Thread[] virtual;
+        synchronized (mPool) {
+            virtual = new Thread[mVirtualThreads.size()];
+            mVirtualThreads.toArray(virtual);
+        }
+        for (int i=0; i<virtual.length; i++) {
+            virtual[i].interrupt();
+        }
     }
 
     private PooledThread startThread(Runnable target, String name) {
@@ -571,6 +681,108 @@ public class ThreadPool extends ThreadGroup {
         return thread;
     }
 
+    /**
+     * Waits for the active count to drop below the maximum, and then starts
+     * the target in a new virtual thread.
+     */
+    private Thread startVirtual(Runnable target, long timeout, String name)
+        throws NoThreadException, InterruptedException
+    {
+        Thread thread;
+
+        synchronized (mPool) {
+            closeCheck();
+
+            if (mActive >= mMax) {
+                if (timeout == 0) {
+                    throw new NoThreadException
+                        ("No thread available from " + this);
+                }
+
+                if (timeout < 0) {
+                    while (mActive >= mMax) {
+                        mPool.wait(0);
+                        closeCheck();
+                    }
+                }
+                else {
+                    long expireTime = System.currentTimeMillis() + timeout;
+                    while (mActive >= mMax) {
+                        long remaining =
+                            expireTime - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            throw new NoThreadException
+                                ("No thread available after waiting " + 
+                                 timeout + " milliseconds: " + this);
+                        }
+                        mPool.wait(remaining);
+                        closeCheck();
+                    }
+                }
+            }
+
+            try {
+                thread = (Thread)cUnstarted.invoke
+                    (cOfVirtual.invoke(null, (Object[])null),
+                     new Object[] {new VirtualTarget(target)});
+            }
+            catch (InvocationTargetException e) {
+                throw new NoThreadException
+                    ("Unable to create virtual thread: " +
+                     e.getTargetException());
+            }
+            catch (IllegalAccessException e) {
+                throw new NoThreadException
+                    ("Unable to create virtual thread: " + e);
+            }
+
+            if (name == null) {
+                name = getName() + ' ' + nextThreadID();
+            }
+            thread.setName(name);
+
+            mActive++;
+            mVirtualThreads.add(thread);
+            try {
+                thread.start();
+            }
+            catch (RuntimeException e) {
+                mActive--;
+                mVirtualThreads.remove(thread);
+                throw e;
+            }
+        }
+
+        synchronized (mListeners) {
+            if (mListeners.size() > 0) {
+                ThreadPoolEvent event = new ThreadPoolEvent(this, thread);
+                for (Iterator it = mListeners.iterator(); it.hasNext();) {
+                    ((ThreadPoolListener)it.next()).threadStarted(event);
+                }
+            }
+        }
+
+        return thread;
+    }
+
+    void virtualThreadExiting(Thread thread) {
+        synchronized (mPool) {
+            mVirtualThreads.remove(thread);
+            mActive--;
+            // Wake up threads waiting to start and threads waiting to close.
+            mPool.notifyAll();
+        }
+
+        synchronized (mListeners) {
+            if (mListeners.size() > 0) {
+                ThreadPoolEvent event = new ThreadPoolEvent(this, thread);
+                for (Iterator it = mListeners.iterator(); it.hasNext();) {
+                    ((ThreadPoolListener)it.next()).threadExiting(event);
+                }
+            }
+        }
+    }
+
     private void closeCheck() throws NoThreadException {
         if (mClosed) {
             throw new NoThreadException("Thread pool is closed", true);
@@ -697,4 +909,28 @@ public class ThreadPool extends ThreadGroup {
             }
         }
     }
+
+    private class VirtualTarget implements Runnable {
+        private final Runnable mTarget;
+
+        VirtualTarget(Runnable target) {
+            mTarget = target;
+        }
+
+        public void run() {
+            Thread current = Thread.currentThread();
+            try {
+                mTarget.run();
+            }
+            catch (ThreadDeath death) {
+                throw death;
+            }
+            catch (Throwable e) {
+                uncaughtException(current, e);
+            }
+            finally {
+                virtualThreadExiting(current);
+            }
+        }
+    }
 }
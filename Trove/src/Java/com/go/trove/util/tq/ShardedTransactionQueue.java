@@ -0,0 +1,771 @@
+/* ====================================================================
+ * Trove - Copyright (c) 1997-2000 Walt Disney Internet Group
+ * ====================================================================
+ * The Tea Software License, Version 1.1
+ *
+ * Copyright (c) 2000 Walt Disney Internet Group. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *        Walt Disney Internet Group (http://opensource.go.com/)."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Tea", "TeaServlet", "Kettle", "Trove" and "BeanDoc" must
+ *    not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact opensource@dig.com.
+ *
+ * 5. Products derived from this software may not be called "Tea",
+ *    "TeaServlet", "Kettle" or "Trove", nor may "Tea", "TeaServlet",
+ *    "Kettle", "Trove" or "BeanDoc" appear in their name, without prior
+ *    written permission of the Walt Disney Internet Group.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE WALT DISNEY INTERNET GROUP OR ITS
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ *
+ * For more information about Tea, please see http://opensource.go.com/.
+ */
+
+package com.go.trove.util.tq;
+
+import java.util.*;
+import com.go.trove.util.*;
+
+/******************************************************************************
+ * A TransactionQueue whose waiting transactions are spread across several
+ * shards, each guarded by its own lock. Transactions are enqueued into a
+ * shard selected by the calling thread, and each worker thread has a home
+ * shard. A worker that finds its home shard empty steals transactions from
+ * the others, so no transaction waits while a worker is idle.
+ * <p>
+ * The maximum size, maximum threads, timeouts, listeners, tuners and
+ * statistics all behave as in TransactionQueue, with these differences:
+ *
+ * <ul>
+ * <li>Statistics are gathered per shard and summed when requested. The
+ * peak queue size and peak servicing count are the sums of the shard peaks,
+ * and so they may be larger than the true peaks.
+ * <li>Listeners are not called while holding a lock, and so they may be
+ * called concurrently by several threads.
+ * <li>While suspended, workers don't dequeue any transactions.
+ * </ul>
+ *
+ * @author Brian S O'Neill
+ * @version
+ * <!--$$Revision$-->, <!--$$JustDate:--> <!-- $-->
+ */
+public class ShardedTransactionQueue extends TransactionQueue {
+    private static final Object[] NO_LISTENERS = new Object[0];
+
+    private final ThreadPool mPool;
+    private final Shard[] mShards;
+
+    private volatile boolean mSuspended;
+    // Incremented by the idle method to make waiting workers exit.
+    private volatile int mIdleGeneration;
+
+    // Replaced on each change, so that they can be read without locking.
+    private volatile Object[] mListeners = NO_LISTENERS;
+    private volatile Object[] mExceptionListeners = NO_LISTENERS;
+
+    // Only changed while holding this object's lock, but startWorker reads
+    // it without locking first.
+    private volatile int mThreadCount;
+
+    // The following fields are guarded by this object's lock.
+    private int mThreadId;
+    private int mNextHome;
+    private int mPeakThreadCount;
+    private long mTimeLapseStart;
+
+    /**
+     * Creates a queue with one shard per available processor.
+     */
+    public ShardedTransactionQueue(ThreadPool tp, String name,
+                                   int maxSize, int maxThreads) {
+        this(tp, name, maxSize, maxThreads,
+             Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param shards number of shards to spread waiting transactions across
+     */
+    public ShardedTransactionQueue(ThreadPool tp, String name,
+                                   int maxSize, int maxThreads, int shards) {
+        super(tp, name, maxSize, maxThreads);
+        if (shards < 1) {
+            throw new IllegalArgumentException
+                ("TransactionQueue must have at least one shard: " + shards);
+        }
+        mPool = tp;
+        mShards = new Shard[shards];
+        for (int i=0; i<shards; i++) {
+            mShards[i] = new Shard();
+        }
+        resetStatistics();
+    }
+
+    /**
+     * Returns the number of shards that waiting transactions are spread
+     * across.
+     */
+    public int getShardCount() {
+        return mShards.length;
+    }
+
+    public boolean enqueue(Transaction transaction) {
+        Shard[] shards = mShards;
+        int count = shards.length;
+        int start = (System.identityHashCode(Thread.currentThread())
+                     & 0x7fffffff) % count;
+
+        synchronized (shards[start]) {
+            shards[start].mTotalEnqueueAttempts++;
+        }
+
+        if (transaction == null || mPool.isClosed()) {
+            return false;
+        }
+
+        TransactionQueueEvent event =
+            new TransactionQueueEvent(this, transaction);
+
+        // The maximum size is divided amongst the shards, and the queue is
+        // full only when every shard is full.
+        int maxSize = getMaximumSize();
+        Shard shard = null;
+        for (int i=0; i<count; i++) {
+            int index = (start + i) % count;
+            int limit = maxSize / count + (index < maxSize % count ? 1 : 0);
+            Shard s = shards[index];
+            synchronized (s) {
+                int size = s.mQueue.size();
+                if (size < limit) {
+                    s.mQueue.addLast(event);
+                    s.mTotalEnqueued++;
+                    if (++size > s.mPeakQueueSize) {
+                        s.mPeakQueueSize = size;
+                    }
+                    shard = s;
+                    break;
+                }
+            }
+        }
+
+        if (shard == null) {
+            Object[] listeners = mListeners;
+            for (int i=0; i<listeners.length; i++) {
+                ((TransactionQueueListener)listeners[i])
+                    .transactionQueueFull(event);
+            }
+            return false;
+        }
+
+        if (!mSuspended && !signalWorker(start)) {
+            if (!startWorker(mThreadCount == 0)) {
+                // No thread available to ever service the transaction.
+                synchronized (shard) {
+                    if (shard.mQueue.remove(event)) {
+                        shard.mTotalEnqueued--;
+                        return false;
+                    }
+                }
+            }
+        }
+
+        Object[] listeners = mListeners;
+        for (int i=0; i<listeners.length; i++) {
+            ((TransactionQueueListener)listeners[i])
+                .transactionEnqueued(event);
+        }
+
+        return true;
+    }
+
+    public void suspend() {
+        mSuspended = true;
+    }
+
+    public boolean resume() {
+        mSuspended = false;
+        for (int i=0; i<mShards.length; i++) {
+            Shard shard = mShards[i];
+            synchronized (shard) {
+                shard.mSignals = shard.mWaiting;
+                shard.notifyAll();
+            }
+        }
+        if (getQueueSize() > 0 && !signalWorker(0)) {
+            return startWorker(mThreadCount == 0);
+        }
+        return true;
+    }
+
+    public void idle() {
+        mIdleGeneration++;
+        for (int i=0; i<mShards.length; i++) {
+            Shard shard = mShards[i];
+            synchronized (shard) {
+                shard.notifyAll();
+            }
+        }
+    }
+
+    public synchronized void addTransactionQueueListener
+        (TransactionQueueListener listener) {
+
+        mListeners = add(mListeners, listener);
+    }
+
+    public synchronized void removeTransactionQueueListener
+        (TransactionQueueListener listener) {
+
+        mListeners = remove(mListeners, listener);
+    }
+
+    public synchronized void addUncaughtExceptionListener
+        (UncaughtExceptionListener listener) {
+
+        mExceptionListeners = add(mExceptionListeners, listener);
+    }
+
+    public synchronized void removeUncaughtExceptionListener
+        (UncaughtExceptionListener listener) {
+
+        mExceptionListeners = remove(mExceptionListeners, listener);
+    }
+
+    public int getQueueSize() {
+        int size = 0;
+        for (int i=0; i<mShards.length; i++) {
+            Shard shard = mShards[i];
+            synchronized (shard) {
+                size += shard.mQueue.size();
+            }
+        }
+        return size;
+    }
+
+    public int getThreadCount() {
+        return mThreadCount;
+    }
+
+    public TransactionQueueData getStatistics() {
+        int queueSize = 0;
+        int servicingCount = 0;
+        int peakQueueSize = 0;
+        int peakServicingCount = 0;
+        int totalEnqueueAttempts = 0;
+        int totalEnqueued = 0;
+        int totalServiced = 0;
+        int totalExpired = 0;
+        int totalServiceExceptions = 0;
+        int totalUncaughtExceptions = 0;
+        long totalQueueDuration = 0;
+        long totalServiceDuration = 0;
+
+        for (int i=0; i<mShards.length; i++) {
+            Shard shard = mShards[i];
+            synchronized (shard) {
+                queueSize += shard.mQueue.size();
+                servicingCount += shard.mServicingCount;
+                peakQueueSize += shard.mPeakQueueSize;
+                peakServicingCount += shard.mPeakServicingCount;
+                totalEnqueueAttempts += shard.mTotalEnqueueAttempts;
+                totalEnqueued += shard.mTotalEnqueued;
+                totalServiced += shard.mTotalServiced;
+                totalExpired += shard.mTotalExpired;
+                totalServiceExceptions += shard.mTotalServiceExceptions;
+                totalUncaughtExceptions += shard.mTotalUncaughtExceptions;
+                totalQueueDuration += shard.mTotalQueueDuration;
+                totalServiceDuration += shard.mTotalServiceDuration;
+            }
+        }
+
+        int threadCount;
+        int peakThreadCount;
+        long timeLapseStart;
+        synchronized (this) {
+            threadCount = mThreadCount;
+            peakThreadCount = mPeakThreadCount;
+            timeLapseStart = mTimeLapseStart;
+        }
+
+        return new TransactionQueueData(this,
+                                        timeLapseStart,
+                                        System.currentTimeMillis(),
+                                        queueSize,
+                                        threadCount,
+                                        servicingCount,
+                                        peakQueueSize,
+                                        peakThreadCount,
+                                        peakServicingCount,
+                                        totalEnqueueAttempts,
+                                        totalEnqueued,
+                                        totalServiced,
+                                        totalExpired,
+                                        totalServiceExceptions,
+                                        totalUncaughtExceptions,
+                                        totalQueueDuration,
+                                        totalServiceDuration);
+    }
+
+    public void resetStatistics() {
+        if (mShards == null) {
+            // Called by the superclass constructor.
+            return;
+        }
+
+        for (int i=0; i<mShards.length; i++) {
+            Shard shard = mShards[i];
+            synchronized (shard) {
+                shard.resetStatistics();
+            }
+        }
+
+        synchronized (this) {
+            mPeakThreadCount = mThreadCount;
+            mTimeLapseStart = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Wakes up a worker waiting on any shard, searching from the given one.
+     *
+     * @return false if no workers are waiting
+     */
+    private boolean signalWorker(int start) {
+        Shard[] shards = mShards;
+        int count = shards.length;
+        for (int i=0; i<count; i++) {
+            Shard shard = shards[(start + i) % count];
+            if (shard.mWaiting > 0) {
+                synchronized (shard) {
+                    if (shard.mWaiting > shard.mSignals) {
+                        shard.mSignals++;
+                        shard.notify();
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Starts a worker thread, unless the maximum have already been started.
+     *
+     * @param canWait when true, wait for the ThreadPool to supply a thread
+     * @return false if no worker thread exists or could be started
+     */
+    private boolean startWorker(boolean canWait) {
+        if (mThreadCount >= getMaximumThreads()) {
+            // Check without locking first, since this is the common case
+            // when the queue is busy.
+            return true;
+        }
+
+        synchronized (this) {
+            if (mThreadCount >= getMaximumThreads()) {
+                return true;
+            }
+
+            String threadName = getName() + ' ' + (mThreadId++);
+            Worker worker = new Worker(mNextHome++ % mShards.length);
+            try {
+                if (canWait) {
+                    mPool.start(worker, threadName);
+                }
+                else {
+                    mPool.start(worker, 0, threadName);
+                }
+            }
+            catch (NoThreadException e) {
+                if (!e.isThreadPoolClosed() && mThreadCount == 0) {
+                    fireUncaughtException(e);
+                }
+                return mThreadCount > 0;
+            }
+            catch (InterruptedException e) {
+                return mThreadCount > 0;
+            }
+            catch (Throwable e) {
+                fireUncaughtException(e);
+                return mThreadCount > 0;
+            }
+
+            if (++mThreadCount > mPeakThreadCount) {
+                mPeakThreadCount = mThreadCount;
+            }
+        }
+
+        return true;
+    }
+
+    private boolean exitWorker(boolean force) {
+        synchronized (this) {
+            if (!force && !mSuspended && getQueueSize() > 0) {
+                // Can't exit thread because transactions are waiting to be
+                // serviced, and other threads may all be busy.
+                return false;
+            }
+            mThreadCount--;
+        }
+
+        // An enqueue may have read the thread count without locking, just
+        // before it was decremented, and so relied on this worker. Having
+        // decremented it, check again, as such an enqueue has added its
+        // transaction by now.
+        if (!mSuspended && getQueueSize() > 0) {
+            startWorker(false);
+        }
+
+        return true;
+    }
+
+    /**
+     * Removes the next transaction, preferring the given home shard and
+     * stealing from the others if it is empty.
+     *
+     * @param remaining set to true if more transactions remain
+     * @return null if all shards are empty
+     */
+    private TransactionQueueEvent poll(int home, boolean[] remaining) {
+        Shard[] shards = mShards;
+        int count = shards.length;
+        for (int i=0; i<count; i++) {
+            Shard shard = shards[(home + i) % count];
+            synchronized (shard) {
+                if (!shard.mQueue.isEmpty()) {
+                    TransactionQueueEvent event =
+                        (TransactionQueueEvent)shard.mQueue.removeFirst();
+                    remaining[0] = !shard.mQueue.isEmpty();
+                    return event;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Waits for a transaction. Returns null when the worker should go idle.
+     */
+    private TransactionQueueEvent take(int home, boolean[] remaining)
+        throws InterruptedException
+    {
+        Shard shard = mShards[home];
+        long idleTimeout = getIdleTimeout();
+        long start = System.currentTimeMillis();
+        int generation = mIdleGeneration;
+
+        synchronized (shard) {
+            shard.mWaiting++;
+        }
+
+        try {
+            while (true) {
+                if (!mSuspended) {
+                    TransactionQueueEvent event = poll(home, remaining);
+                    if (event != null) {
+                        return event;
+                    }
+                }
+
+                if (idleTimeout == 0 || generation != mIdleGeneration) {
+                    return null;
+                }
+
+                long timeout;
+                if (idleTimeout < 0) {
+                    timeout = 0;
+                }
+                else {
+                    timeout = start + idleTimeout - System.currentTimeMillis();
+                    if (timeout <= 0) {
+                        return null;
+                    }
+                }
+
+                synchronized (shard) {
+                    // A signal may have been sent after polling, but before
+                    // locking the shard.
+                    if (shard.mSignals > 0) {
+                        shard.mSignals--;
+                        continue;
+                    }
+                    shard.wait(timeout);
+                    if (shard.mSignals > 0) {
+                        shard.mSignals--;
+                    }
+                }
+            }
+        }
+        finally {
+            synchronized (shard) {
+                shard.mWaiting--;
+                if (shard.mSignals > shard.mWaiting) {
+                    shard.mSignals = shard.mWaiting;
+                }
+            }
+        }
+    }
+
+    private void fireUncaughtException(Throwable e) {
+        Shard shard = mShards[(System.identityHashCode(Thread.currentThread())
+                               & 0x7fffffff) % mShards.length];
+        synchronized (shard) {
+            shard.mTotalUncaughtExceptions++;
+        }
+
+        Object[] listeners = mExceptionListeners;
+        if (listeners.length > 0) {
+            UncaughtExceptionEvent event =
+                new UncaughtExceptionEvent(this, e);
+            for (int i=0; i<listeners.length; i++) {
+                ((UncaughtExceptionListener)listeners[i])
+                    .uncaughtException(event);
+            }
+        }
+        else {
+            Thread current = Thread.currentThread();
+            current.getThreadGroup().uncaughtException(current, e);
+        }
+    }
+
+    private static Object[] add(Object[] array, Object element) {
+        Object[] newArray = new Object[array.length + 1];
+        System.arraycopy(array, 0, newArray, 0, array.length);
+        newArray[array.length] = element;
+        return newArray;
+    }
+
+    private static Object[] remove(Object[] array, Object element) {
+        for (int i=0; i<array.length; i++) {
+            if (array[i].equals(element)) {
+                Object[] newArray = new Object[array.length - 1];
+                System.arraycopy(array, 0, newArray, 0, i);
+                System.arraycopy(array, i + 1, newArray, i,
+                                 newArray.length - i);
+                return newArray;
+            }
+        }
+        return array;
+    }
+
+    /**
+     * Waiting transactions and statistics, guarded by the shard's lock.
+     */
+    private static class Shard {
+        final LinkedList mQueue = new LinkedList();
+
+        // Number of workers whose home is this shard and are looking for
+        // transactions. Is only changed while locked.
+        volatile int mWaiting;
+        // Number of wakeup signals not yet received by waiting workers.
+        int mSignals;
+
+        int mServicingCount;
+        int mPeakQueueSize;
+        int mPeakServicingCount;
+        int mTotalEnqueueAttempts;
+        int mTotalEnqueued;
+        int mTotalServiced;
+        int mTotalExpired;
+        int mTotalServiceExceptions;
+        int mTotalUncaughtExceptions;
+        long mTotalQueueDuration;
+        long mTotalServiceDuration;
+
+        void resetStatistics() {
+            mPeakQueueSize = mQueue.size();
+            mPeakServicingCount = mServicingCount;
+            mTotalEnqueueAttempts = 0;
+            mTotalEnqueued = 0;
+            mTotalServiced = 0;
+            mTotalExpired = 0;
+            mTotalServiceExceptions = 0;
+            mTotalUncaughtExceptions = 0;
+            mTotalQueueDuration = 0;
+            mTotalServiceDuration = 0;
+        }
+    }
+
+    private class Worker implements Runnable {
+        private final int mHome;
+        private final Shard mShard;
+
+        Worker(int home) {
+            mHome = home;
+            mShard = mShards[home];
+        }
+
+        public void run() {
+            boolean forceExit = false;
+            boolean[] remaining = new boolean[1];
+
+            while (true) {
+                try {
+                    TransactionQueueEvent event;
+                    try {
+                        event = take(mHome, remaining);
+                    }
+                    catch (InterruptedException e) {
+                        forceExit = true;
+                        event = null;
+                    }
+
+                    if (event == null) {
+                        // Go into idle mode.
+                        if (exitWorker(forceExit)) {
+                            break;
+                        }
+                        continue;
+                    }
+
+                    if (remaining[0] && !signalWorker(mHome)) {
+                        // Ensure another thread can service the rest.
+                        startWorker(false);
+                    }
+
+                    service(event);
+                }
+                catch (Throwable e) {
+                    try {
+                        fireUncaughtException(e);
+                    }
+                    catch (Throwable e2) {
+                        // If another error is thrown while trying to log the
+                        // first error, ignore it.
+                    }
+                }
+            }
+        }
+
+        private void service(TransactionQueueEvent event) throws Exception {
+            long enqueueTimestamp = event.getTimestampMillis();
+
+            TransactionQueueEvent deqEvent = new TransactionQueueEvent(event);
+            long serviceTimestamp = deqEvent.getTimestampMillis();
+
+            Shard shard = mShard;
+            synchronized (shard) {
+                if (++shard.mServicingCount > shard.mPeakServicingCount) {
+                    shard.mPeakServicingCount = shard.mServicingCount;
+                }
+                shard.mTotalQueueDuration +=
+                    serviceTimestamp - enqueueTimestamp;
+            }
+
+            try {
+                Object[] listeners = mListeners;
+                for (int i=0; i<listeners.length; i++) {
+                    ((TransactionQueueListener)listeners[i])
+                        .transactionDequeued(deqEvent);
+                }
+            }
+            catch (Throwable e) {
+                fireUncaughtException(e);
+            }
+
+            event = deqEvent;
+
+            long timeout = getTransactionTimeout();
+            if (timeout >= 0 &&
+                (serviceTimestamp - enqueueTimestamp) >= timeout) {
+                try {
+                    event.getTransaction().cancel();
+                }
+                finally {
+                    synchronized (shard) {
+                        shard.mServicingCount--;
+                        shard.mTotalExpired++;
+                    }
+                    Object[] listeners = mListeners;
+                    if (listeners.length > 0) {
+                        TransactionQueueEvent expEvent =
+                            new TransactionQueueEvent(event);
+                        for (int i=0; i<listeners.length; i++) {
+                            ((TransactionQueueListener)listeners[i])
+                                .transactionExpired(expEvent);
+                        }
+                    }
+                }
+                return;
+            }
+
+            try {
+                event.getTransaction().service();
+
+                TransactionQueueEvent svcEvent =
+                    new TransactionQueueEvent(event);
+                synchronized (shard) {
+                    shard.mTotalServiceDuration +=
+                        svcEvent.getTimestampMillis() - serviceTimestamp;
+                }
+
+                Object[] listeners = mListeners;
+                for (int i=0; i<listeners.length; i++) {
+                    ((TransactionQueueListener)listeners[i])
+                        .transactionServiced(svcEvent);
+                }
+
+                // Adjust counters at end in case a listener threw an
+                // exception, and let the exception handler adjust the
+                // counters instead.
+                synchronized (shard) {
+                    shard.mServicingCount--;
+                    shard.mTotalServiced++;
+                }
+            }
+            catch (Throwable e) {
+                fireUncaughtException(e);
+
+                try {
+                    event.getTransaction().cancel();
+                }
+                catch (Throwable e2) {
+                    fireUncaughtException(e2);
+                }
+
+                synchronized (shard) {
+                    shard.mServicingCount--;
+                    shard.mTotalServiceExceptions++;
+                }
+
+                Object[] listeners = mListeners;
+                if (listeners.length > 0) {
+                    TransactionQueueEvent excEvent =
+                        new TransactionQueueEvent(event, e);
+                    for (int i=0; i<listeners.length; i++) {
+                        ((TransactionQueueListener)listeners[i])
+                            .transactionException(excEvent);
+                    }
+                }
+            }
+        }
+    }
+}
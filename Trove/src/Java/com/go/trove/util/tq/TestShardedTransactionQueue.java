@@ -0,0 +1,156 @@
+/* ====================================================================
+ * Trove - Copyright (c) 1997-2000 Walt Disney Internet Group
+ * ====================================================================
+ * The Tea Software License, Version 1.1
+ *
+ * Copyright (c) 2000 Walt Disney Internet Group. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *        Walt Disney Internet Group (http://opensource.go.com/)."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Tea", "TeaServlet", "Kettle", "Trove" and "BeanDoc" must
+ *    not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact opensource@dig.com.
+ *
+ * 5. Products derived from this software may not be called "Tea",
+ *    "TeaServlet", "Kettle" or "Trove", nor may "Tea", "TeaServlet",
+ *    "Kettle", "Trove" or "BeanDoc" appear in their name, without prior
+ *    written permission of the Walt Disney Internet Group.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE WALT DISNEY INTERNET GROUP OR ITS
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ====================================================================
+ *
+ * For more information about Tea, please see http://opensource.go.com/.
+ */
+
+package com.go.trove.util.tq;
+
+import com.go.trove.util.*;
+
+/******************************************************************************
+ * Stress test for ShardedTransactionQueue, run with only one worker thread
+ * which exits as soon as it finds nothing to do. Every enqueued transaction
+ * must be serviced, or else a worker exited while a transaction was left
+ * with none to service it.
+ *
+ * @author Brian S O'Neill
+ * @version
+ * <!--$$Revision$-->, <!--$$JustDate:--> <!-- $-->
+ */
+public class TestShardedTransactionQueue {
+    /**
+     * @param args optional number of rounds, number of producer threads and
+     * number of transactions per producer
+     */
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int producers = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int count = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+
+        ThreadPool pool = new ThreadPool("test", 100, true);
+
+        PropertyMap props = new PropertyMap();
+        props.put("max.threads", "1");
+        props.put("max.size", String.valueOf(producers * count));
+        props.put("timeout.idle", "0");
+
+        int failures = 0;
+        for (int r=0; r<rounds; r++) {
+            final ShardedTransactionQueue queue = new ShardedTransactionQueue
+                (pool, "test", 1, 1, Math.max(2, producers / 2));
+            queue.applyProperties(props);
+
+            final Counter serviced = new Counter();
+            final Counter enqueued = new Counter();
+            final int perProducer = count;
+
+            Thread[] threads = new Thread[producers];
+            for (int i=0; i<producers; i++) {
+                threads[i] = new Thread() {
+                    public void run() {
+                        for (int j=0; j<perProducer; j++) {
+                            if (queue.enqueue(serviced)) {
+                                enqueued.increment();
+                            }
+                            if ((j & 15) == 0) {
+                                // Let the worker drain the queue and exit.
+                                Thread.yield();
+                            }
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+
+            for (int i=0; i<producers; i++) {
+                threads[i].join();
+            }
+
+            long end = System.currentTimeMillis() + 10000;
+            while (serviced.get() < enqueued.get() &&
+                   System.currentTimeMillis() < end) {
+                Thread.sleep(10);
+            }
+
+            int stranded = enqueued.get() - serviced.get();
+            if (stranded > 0) {
+                failures++;
+                System.out.println
+                    ("Round " + r + ": " + stranded + " of " +
+                     enqueued.get() + " transactions never serviced, " +
+                     queue.getThreadCount() + " threads");
+            }
+        }
+
+        System.out.println(failures == 0 ? "Passed" :
+                           ("Failed " + failures + " of " + rounds +
+                            " rounds"));
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static class Counter implements Transaction {
+        private int mCount;
+
+        public void service() {
+            increment();
+        }
+
+        public void cancel() {
+        }
+
+        synchronized void increment() {
+            mCount++;
+        }
+
+        synchronized int get() {
+            return mCount;
+        }
+    }
+}
@@ -60,6 +60,10 @@ import com.go.trove.util.*;
  * using threads obtained from a {@link ThreadPool}. When a transaction is
  * enqueued, it goes into a waiting queue, and it is serviced as soon as a
  * thread is available.
+ * <p>
+ * All queue operations and statistics are guarded by a single lock. For
+ * queues that are heavily contended, consider {@link ShardedTransactionQueue}
+ * instead.
  *
  * @author Brian S O'Neill
  * @version
@@ -68,10 +72,11 @@ import com.go.trove.util.*;
 public class TransactionQueue {
     private ThreadPool mThreadPool;
     private String mName;
-    private int mMaxSize;
-    private int mMaxThreads;
-    private long mIdleTimeout;
-    private long mTransactionTimeout;
+    // Settings are volatile so that they can be read without locking.
+    private volatile int mMaxSize;
+    private volatile int mMaxThreads;
+    private volatile long mIdleTimeout;
+    private volatile long mTransactionTimeout;
 
     private LinkedList mQueue = new LinkedList();
     private int mThreadCount;
@@ -136,7 +141,7 @@ public class TransactionQueue {
      * @see #idle()
      * @see ThreadPool#getIdleTimeout
      */
-    public synchronized long getIdleTimeout() {
+    public long getIdleTimeout() {
         return mIdleTimeout;
     }
 
@@ -155,7 +160,7 @@ public class TransactionQueue {
      * transaction expires. The default value is -1, indicating that enqueued
      * transactions never expire.
      */
-    public synchronized long getTransactionTimeout() {
+    public long getTransactionTimeout() {
         return mTransactionTimeout;
     }
 
@@ -169,7 +174,7 @@ public class TransactionQueue {
     /**
      * Returns the maximum allowed number of queued transactions.
      */
-    public synchronized int getMaximumSize() {
+    public int getMaximumSize() {
         return mMaxSize;
     }
 
@@ -188,7 +193,7 @@ public class TransactionQueue {
     /**
      * Returns the maximum allowed number of worker threads.
      */
-    public synchronized int getMaximumThreads() {
+    public int getMaximumThreads() {
         return mMaxThreads;
     }
 